@@ -0,0 +1,185 @@
+/*
+ * Licensed to Julian Hyde under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to you under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.hydromatic.filtex;
+
+import net.hydromatic.filtex.util.Pair;
+
+import com.google.common.collect.ImmutableList;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Parses many filter expressions in parallel.
+ *
+ * <p>For example, to validate the filters stored in saved dashboards,
+ *
+ * <pre>{@code
+ * List<Pair<TypeFamily, String>> filters = ...;
+ * BatchParser.Result result = BatchParser.parse(filters);
+ * System.out.println(result.invalidCount + " invalid filters");
+ * }</pre>
+ *
+ * <p>Each distinct (type family, expression) pair is parsed once, and
+ * duplicates share the same {@link ParseResult} (and AST), which callers
+ * should therefore not modify. The distinct expressions are divided into
+ * chunks that are parsed by the tasks of a {@link ForkJoinPool}; each worker
+ * thread re-uses its own parser (see
+ * {@link Filtex#parseFilterExpression(TypeFamily, String)}).
+ */
+public class BatchParser {
+  /** Number of expressions below which a task does not split. */
+  private static final int CHUNK_SIZE = 256;
+
+  private BatchParser() {
+  }
+
+  /** Parses a list of expressions using the common pool. */
+  public static Result parse(List<Pair<TypeFamily, String>> expressions) {
+    return parse(expressions, ForkJoinPool.commonPool());
+  }
+
+  /** Parses a stream of expressions using the common pool. */
+  public static Result parse(Stream<Pair<TypeFamily, String>> expressions) {
+    return parse(expressions.collect(Collectors.toList()));
+  }
+
+  /** Parses a stream of expressions using a given pool. */
+  public static Result parse(Stream<Pair<TypeFamily, String>> expressions,
+      ForkJoinPool pool) {
+    return parse(expressions.collect(Collectors.toList()), pool);
+  }
+
+  /** Parses a list of expressions using a given pool. */
+  public static Result parse(List<Pair<TypeFamily, String>> expressions,
+      ForkJoinPool pool) {
+    final long start = System.nanoTime();
+
+    // Assign each distinct expression an ordinal.
+    final Map<Pair<TypeFamily, String>, Integer> ordinals = new HashMap<>();
+    final List<Pair<TypeFamily, String>> distinct = new ArrayList<>();
+    final int[] inputOrdinals = new int[expressions.size()];
+    for (int i = 0; i < expressions.size(); i++) {
+      final Pair<TypeFamily, String> expression =
+          requireNonNull(expressions.get(i));
+      final Integer ordinal = ordinals.get(expression);
+      if (ordinal != null) {
+        inputOrdinals[i] = ordinal;
+      } else {
+        inputOrdinals[i] = distinct.size();
+        ordinals.put(expression, distinct.size());
+        distinct.add(expression);
+      }
+    }
+
+    final ParseResult[] distinctResults = new ParseResult[distinct.size()];
+    final LongAdder parseNanos = new LongAdder();
+    pool.invoke(
+        new ParseTask(distinct, distinctResults, 0, distinct.size(),
+            parseNanos));
+
+    final ImmutableList.Builder<ParseResult> results =
+        ImmutableList.builder();
+    int invalidCount = 0;
+    for (int ordinal : inputOrdinals) {
+      final ParseResult result = distinctResults[ordinal];
+      results.add(result);
+      if (!result.isValid()) {
+        ++invalidCount;
+      }
+    }
+    return new Result(results.build(), distinct.size(), invalidCount,
+        System.nanoTime() - start, parseNanos.sum());
+  }
+
+  /** Task that parses a range of expressions, splitting if the range is
+   * large. */
+  private static class ParseTask extends RecursiveAction {
+    private final List<Pair<TypeFamily, String>> expressions;
+    private final ParseResult[] results;
+    private final int start;
+    private final int end;
+    private final LongAdder parseNanos;
+
+    ParseTask(List<Pair<TypeFamily, String>> expressions,
+        ParseResult[] results, int start, int end, LongAdder parseNanos) {
+      this.expressions = expressions;
+      this.results = results;
+      this.start = start;
+      this.end = end;
+      this.parseNanos = parseNanos;
+    }
+
+    @Override protected void compute() {
+      if (end - start > CHUNK_SIZE) {
+        final int middle = (start + end) >>> 1;
+        invokeAll(
+            new ParseTask(expressions, results, start, middle, parseNanos),
+            new ParseTask(expressions, results, middle, end, parseNanos));
+        return;
+      }
+      final long t0 = System.nanoTime();
+      for (int i = start; i < end; i++) {
+        final Pair<TypeFamily, String> expression = expressions.get(i);
+        results[i] = Filtex.tryParse(expression.left, expression.right);
+      }
+      parseNanos.add(System.nanoTime() - t0);
+    }
+  }
+
+  /** Results of parsing a batch of expressions. */
+  public static class Result {
+    /** Result for each expression, in input order. */
+    public final List<ParseResult> results;
+    /** Number of distinct (type family, expression) pairs. */
+    public final int distinctCount;
+    /** Number of input expressions that were invalid. */
+    public final int invalidCount;
+    /** Wall-clock time to parse the batch, in nanoseconds. */
+    public final long elapsedNanos;
+    /** Total time spent parsing, summed over all workers, in nanoseconds. */
+    public final long parseNanos;
+
+    Result(List<ParseResult> results, int distinctCount, int invalidCount,
+        long elapsedNanos, long parseNanos) {
+      this.results = results;
+      this.distinctCount = distinctCount;
+      this.invalidCount = invalidCount;
+      this.elapsedNanos = elapsedNanos;
+      this.parseNanos = parseNanos;
+    }
+
+    @Override public String toString() {
+      return "count=" + results.size()
+          + ", distinctCount=" + distinctCount
+          + ", invalidCount=" + invalidCount
+          + ", elapsedNanos=" + elapsedNanos
+          + ", parseNanos=" + parseNanos;
+    }
+  }
+}
+
+// End BatchParser.java
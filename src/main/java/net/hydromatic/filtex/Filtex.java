@@ -18,16 +18,26 @@
 
 import net.hydromatic.filtex.ast.Ast;
 import net.hydromatic.filtex.ast.AstNode;
+import net.hydromatic.filtex.ast.Asts;
+import net.hydromatic.filtex.ast.Op;
+import net.hydromatic.filtex.ast.Pos;
 import net.hydromatic.filtex.ast.Summary;
+import net.hydromatic.filtex.parse.CharSequenceTokenManager;
 import net.hydromatic.filtex.parse.FiltexParserImpl;
 import net.hydromatic.filtex.parse.ParseException;
+import net.hydromatic.filtex.parse.ParseLimitException;
+import net.hydromatic.filtex.parse.SimpleNumberParser;
+import net.hydromatic.filtex.parse.Token;
 import net.hydromatic.filtex.parse.TokenMgrError;
 
 import com.google.common.collect.ImmutableList;
+import com.google.common.hash.HashCode;
 
 import org.checkerframework.checker.nullness.qual.Nullable;
 
 import java.io.StringReader;
+import java.util.ArrayDeque;
+import java.util.Deque;
 import java.util.Locale;
 
 import static net.hydromatic.filtex.ast.AstBuilder.ast;
@@ -40,9 +50,33 @@
  * &#064;looker/filter-expressions</a> TypeScript API.
  */
 public class Filtex {
+  /** Parser for the current thread. It is re-initialized for each expression,
+   * which is cheaper than creating a new parser, with its token manager and
+   * buffers, each time. Its token manager reads directly from the
+   * expression string. */
+  private static final ThreadLocal<FiltexParserImpl> THREAD_PARSER =
+      ThreadLocal.withInitial(() ->
+          new FiltexParserImpl(new CharSequenceTokenManager()));
+
+  /** Parser for the current thread that only recognizes expressions. */
+  private static final ThreadLocal<FiltexParserImpl> THREAD_RECOGNIZER =
+      ThreadLocal.withInitial(() -> {
+        final FiltexParserImpl parser =
+            new FiltexParserImpl(new CharSequenceTokenManager());
+        parser.setRecognize(true);
+        return parser;
+      });
+
   private Filtex() {
   }
 
+  /** Command-line entry point, as invoked by the {@code filtex} script.
+   *
+   * @see Main */
+  public static void main(String[] args) {
+    Main.main(args);
+  }
+
   /** Returns a valid filter expression type when given the type and field
    * properties of a dashboard filter.
    *
@@ -87,32 +121,247 @@ public static TypeFamily getExpressionType(boolean numeric, String type) {
    *    },
    * }
    * }</pre>
+   *
+   * <p>If the same expressions are parsed many times, consider using a
+   * {@link ParseCache}.
    */
   public static AstNode parseFilterExpression(TypeFamily typeFamily,
       String expression) {
-    FiltexParserImpl parser =
-        new FiltexParserImpl(new StringReader(expression));
+    return parseFilterExpression(typeFamily, expression, true);
+  }
+
+  /** Parses a filter expression, optionally re-using this thread's parser.
+   *
+   * <p>Parsers are always re-used in production; {@code reuseParser = false}
+   * is for tests and benchmarks. */
+  static AstNode parseFilterExpression(TypeFamily typeFamily,
+      String expression, boolean reuseParser) {
+    final ParseResult result =
+        tryParse(typeFamily, expression, reuseParser, ParseLimits.NONE);
+    if (result.node != null) {
+      return result.node;
+    }
+    return getMatchesAdvancedNode(expression, null);
+  }
+
+  /** Parses a filter expression, returning either its AST or the position at
+   * which it is invalid.
+   *
+   * <p>Unlike {@link #parseFilterExpression(TypeFamily, String)}, does not
+   * convert an invalid expression into a "matches advanced" node. Invalid
+   * expressions are common, so this path is cheap: the parser's exceptions
+   * have no stack trace, and the error message is only generated if you call
+   * {@link ParseResult#message()}.
+   *
+   * <p>For example,
+   * <pre>{@code
+   * tryParse(TypeFamily.NUMBER, "1, 2, (3")
+   * }</pre>
+   *
+   * <p>returns a result whose status is
+   * {@link ParseResult.Status#INVALID INVALID} and whose position is 1.8. */
+  public static ParseResult tryParse(TypeFamily typeFamily,
+      String expression) {
+    return tryParse(typeFamily, expression, true, ParseLimits.NONE);
+  }
+
+  /** Parses a filter expression, failing if the expression exceeds any of
+   * the given limits.
+   *
+   * <p>Use this method for expressions from untrusted sources. If a limit is
+   * exceeded, returns a result whose status is
+   * {@link ParseResult.Status#LIMIT_EXCEEDED LIMIT_EXCEEDED}; an expression
+   * is rejected as soon as a limit is reached, without parsing or
+   * transforming the rest of it. */
+  public static ParseResult tryParse(TypeFamily typeFamily,
+      String expression, ParseLimits limits) {
+    return tryParse(typeFamily, expression, true, limits);
+  }
+
+  private static ParseResult tryParse(TypeFamily typeFamily,
+      String expression, boolean reuseParser, ParseLimits limits) {
+    if (expression.length() > limits.maxLength) {
+      return limitExceeded(typeFamily, expression,
+          new ParseLimitException(ParseLimitException.Limit.LENGTH,
+              limits.maxLength, Pos.ZERO));
+    }
+    if (typeFamily == TypeFamily.NUMBER) {
+      // Most numeric expressions are simple enough to not need the full
+      // parser.
+      final AstNode node =
+          SimpleNumberParser.parse(expression, limits.maxTermCount);
+      if (node != null) {
+        try {
+          checkValueCount(node, limits);
+        } catch (ParseLimitException e) {
+          return limitExceeded(typeFamily, expression, e);
+        }
+        final ParseResult result =
+            ParseResult.ok(typeFamily, expression,
+                Transforms.numberTransform(node));
+        ParseMetrics.INSTANCE.record(result, true);
+        return result;
+      }
+    }
+    final FiltexParserImpl parser = parser(expression, reuseParser);
+    parser.setMaxTermCount(limits.maxTermCount);
+    if (reuseParser) {
+      ((CharSequenceTokenManager) parser.token_source)
+          .setLimits(limits.maxTokenCount, limits.maxNanos);
+    }
+    ParseResult result;
     try {
       final AstNode node;
       switch (typeFamily) {
       case DATE:
         node = parser.dateExpressionEof();
-        return Transforms.locationTransform(node);
+        result = ParseResult.ok(typeFamily, expression,
+            Transforms.locationTransform(node));
+        break;
 
       case LOCATION:
         node = parser.locationExpressionEof();
-        return Transforms.locationTransform(node);
+        result = ParseResult.ok(typeFamily, expression,
+            Transforms.locationTransform(node));
+        break;
 
       case NUMBER:
         node = parser.numericExpressionEof();
-        return Transforms.numberTransform(node);
+        checkValueCount(node, limits);
+        result = ParseResult.ok(typeFamily, expression,
+            Transforms.numberTransform(node));
+        break;
+
+      default:
+        throw new IllegalArgumentException("unknown type family " + typeFamily);
+      }
+    } catch (ParseException e) {
+      result = invalid(typeFamily, expression, parser, e);
+    } catch (TokenMgrError e) {
+      result = ParseResult.invalid(typeFamily, expression, e.pos(), e);
+    } catch (ParseLimitException e) {
+      return limitExceeded(typeFamily, expression, e);
+    }
+    ParseMetrics.INSTANCE.record(result, false);
+    return result;
+  }
+
+  /** Creates and records a result for an expression that exceeded a
+   * limit. */
+  private static ParseResult limitExceeded(TypeFamily typeFamily,
+      String expression, ParseLimitException e) {
+    final ParseResult result =
+        ParseResult.limitExceeded(typeFamily, expression, e);
+    ParseMetrics.INSTANCE.record(result, false);
+    return result;
+  }
+
+  /** Throws if a numeric expression, before it is transformed, has more
+   * values than allowed.
+   *
+   * <p>Each "=" term has one value, and {@link Transforms#numberTransform}
+   * merges them into lists; merging is the most expensive part of the
+   * transform, so it is worth checking first. */
+  private static void checkValueCount(AstNode node, ParseLimits limits) {
+    if (limits.maxValueCount == Integer.MAX_VALUE) {
+      return;
+    }
+    long valueCount = 0;
+    final Deque<AstNode> stack = new ArrayDeque<>();
+    stack.push(node);
+    while (!stack.isEmpty()) {
+      final AstNode n = stack.pop();
+      if (n instanceof Ast.CallN) {
+        ((Ast.CallN) n).args.forEach(stack::push);
+      } else if (n.op == Op.EQ) {
+        valueCount += ((Ast.Comparison) n).value.size();
+        if (valueCount > limits.maxValueCount) {
+          throw new ParseLimitException(ParseLimitException.Limit.VALUE_COUNT,
+              limits.maxValueCount, Pos.ZERO);
+        }
+      }
+    }
+  }
 
+  /** Recognizes a filter expression, without building its AST. Returns
+   * null if the expression is valid, otherwise the position of the first
+   * error (the same position as {@link #tryParse(TypeFamily, String)}).
+   *
+   * <p>Use this method when you only need to know whether an expression is
+   * valid; for example, to validate input. It runs the same grammar as
+   * {@code tryParse}, but for a valid expression it creates no AST nodes,
+   * numbers or dates, and does not transform the AST.
+   *
+   * <p>For example,
+   * <pre>{@code
+   * recognize(TypeFamily.NUMBER, "1, 2, (3")
+   * }</pre>
+   *
+   * <p>returns position 1.8. */
+  public static @Nullable Pos recognize(TypeFamily typeFamily,
+      String expression) {
+    final FiltexParserImpl parser = THREAD_RECOGNIZER.get();
+    reset(parser, expression);
+    try {
+      switch (typeFamily) {
+      case DATE:
+        parser.dateExpressionEof();
+        break;
+      case LOCATION:
+        parser.locationExpressionEof();
+        break;
+      case NUMBER:
+        parser.numericExpressionEof();
+        break;
       default:
         throw new IllegalArgumentException("unknown type family " + typeFamily);
       }
-    } catch (ParseException | TokenMgrError e) {
-      return getMatchesAdvancedNode(expression, null);
+      return null;
+    } catch (ParseException e) {
+      return errorPos(parser, e);
+    } catch (TokenMgrError e) {
+      return e.pos();
+    }
+  }
+
+  /** Creates a result for an expression that the parser rejected. */
+  static ParseResult invalid(TypeFamily typeFamily, String expression,
+      FiltexParserImpl parser, ParseException e) {
+    // The parser's tokens will be re-used, so the exception needs copies.
+    return ParseResult.invalid(typeFamily, expression, errorPos(parser, e),
+        e.detach());
+  }
+
+  /** Returns the position of the error that caused a parser to throw. */
+  private static Pos errorPos(FiltexParserImpl parser, ParseException e) {
+    final Token token = e.errorToken();
+    return token != null
+        ? new Pos("", token.beginLine, token.beginColumn,
+            token.endLine, token.endColumn + 1)
+        : parser.pos();
+  }
+
+  /** Returns a parser that will read a given expression.
+   *
+   * <p>If {@code reuse}, re-initializes and returns this thread's parser;
+   * otherwise creates a new parser with the token manager generated by
+   * JavaCC. */
+  static FiltexParserImpl parser(String expression, boolean reuse) {
+    if (!reuse) {
+      return new FiltexParserImpl(new StringReader(expression));
     }
+    final FiltexParserImpl parser = THREAD_PARSER.get();
+    reset(parser, expression);
+    return parser;
+  }
+
+  /** Re-initializes a parser whose token manager is a
+   * {@link CharSequenceTokenManager} to read a given expression. */
+  private static void reset(FiltexParserImpl parser, String expression) {
+    final CharSequenceTokenManager tokenManager =
+        (CharSequenceTokenManager) parser.token_source;
+    tokenManager.reset(expression);
+    parser.ReInit(tokenManager);
   }
 
   private static AstNode getMatchesAdvancedNode(String expression,
@@ -126,9 +375,27 @@ private static AstNode getMatchesAdvancedNode(String expression,
     } else {
       id = 1;
     }
-    final Ast.MatchesAdvanced matchesAdvanced = ast.matchesAdvanced(expression);
-    matchesAdvanced.id = id;
-    return matchesAdvanced;
+    return ast.matchesAdvanced(expression, id);
+  }
+
+  /** Returns a fingerprint of a filter expression, suitable for use as the
+   * key of a cache of results.
+   *
+   * <p>Expressions that are semantically equal have the same fingerprint.
+   * For example,
+   * <pre>{@code
+   * fingerprint(TypeFamily.NUMBER, "1,2")
+   * fingerprint(TypeFamily.NUMBER, "2, 1, 2.0")
+   * }</pre>
+   *
+   * <p>return the same value.
+   *
+   * @see Transforms#canonicalize(AstNode)
+   * @see Asts#fingerprint(AstNode) */
+  public static HashCode fingerprint(TypeFamily typeFamily,
+      String expression) {
+    final AstNode node = parseFilterExpression(typeFamily, expression);
+    return Asts.fingerprint(Transforms.canonicalize(node));
   }
 
   /** Returns a localized, human-readable summary of a
@@ -146,6 +413,17 @@ public static String summary(TypeFamily typeFamily, String s,
     return Summary.summary(typeFamily, s, ImmutableList.of(), null, true);
   }
 
+  /** Returns a localized, human-readable summary of a parsed filter
+   * expression.
+   *
+   * <p>Unlike {@link #summary(TypeFamily, String, Locale)}, does not parse.
+   * Summaries are currently in English, whatever the locale. To summarize
+   * the same trees many times, use a {@link SummaryCache}. */
+  public static String summary(TypeFamily typeFamily, AstNode node,
+      Locale locale) {
+    return Summary.summary(typeFamily, node, null, ImmutableList.of());
+  }
+
   /**
    * Returns an object with utility functions and values pertaining to a given
    * expression type:
@@ -0,0 +1,442 @@
+/*
+ * Licensed to Julian Hyde under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to you under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.hydromatic.filtex;
+
+import net.hydromatic.filtex.ast.AstNode;
+import net.hydromatic.filtex.ast.Digester;
+import net.hydromatic.filtex.ast.Summary;
+import net.hydromatic.filtex.util.Pair;
+
+import com.google.common.collect.ImmutableList;
+
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Command-line interface.
+ *
+ * <p>Reads newline-delimited filter expressions from a file (or standard
+ * input), parses them in parallel, and writes one line per expression, in
+ * input order. For example,
+ *
+ * <pre>{@code
+ * $ printf '1, 2\n>=5\n(3\n' | ./filtex --type=number
+ * {type='=', value='1,2'}
+ * {type='>=', value=5}
+ * INVALID at 1.3
+ * }</pre>
+ *
+ * <p>A file is read through memory-mapped regions of a {@link FileChannel},
+ * so that large files are neither copied into the heap nor decoded as one
+ * string. Lines are gathered into batches, each of which is parsed by
+ * {@link BatchParser}.
+ */
+public class Main {
+  static final String USAGE = "Usage: filtex [--type=TYPE] [--format=FORMAT]"
+      + " [--threads=N] [FILE]\n"
+      + "\n"
+      + "Parses filter expressions, one per line, from FILE (or standard\n"
+      + "input if FILE is absent or '-'), and writes one line per\n"
+      + "expression.\n"
+      + "\n"
+      + "  --type=TYPE      date, location or number (default)\n"
+      + "  --format=FORMAT  digest (default), summary or json\n"
+      + "  --threads=N      number of parser threads (default: all cores)\n"
+      + "\n"
+      + "Exit status is 0 if all expressions are valid, 1 if any are\n"
+      + "invalid, 2 if there is an error in the arguments or input.\n";
+
+  /** Default number of lines parsed as one batch. */
+  static final int DEFAULT_BATCH_SIZE = 1 << 16;
+
+  /** Default size of a memory-mapped region of the input file. */
+  static final int DEFAULT_REGION_SIZE = 1 << 26;
+
+  final TypeFamily typeFamily;
+  final Format format;
+  final int threadCount;
+  final @Nullable String file;
+  final int batchSize;
+  final int regionSize;
+
+  Main(TypeFamily typeFamily, Format format, int threadCount,
+      @Nullable String file, int batchSize, int regionSize) {
+    this.typeFamily = requireNonNull(typeFamily, "typeFamily");
+    this.format = requireNonNull(format, "format");
+    this.threadCount = threadCount;
+    this.file = file;
+    this.batchSize = batchSize;
+    this.regionSize = regionSize;
+  }
+
+  /** Command-line entry point. */
+  public static void main(String[] args) {
+    final int status = run(args, System.in, System.out, System.err);
+    System.exit(status);
+  }
+
+  /** Parses arguments and runs, returning an exit status. */
+  static int run(String[] args, InputStream in, OutputStream out,
+      PrintStream err) {
+    final Main main;
+    try {
+      main = parseArgs(args);
+    } catch (IllegalArgumentException e) {
+      err.println(e.getMessage());
+      err.print(USAGE);
+      return 2;
+    }
+    if (main == null) {
+      err.print(USAGE);
+      return 0;
+    }
+    try {
+      return main.run(in, out);
+    } catch (IOException e) {
+      err.println("filtex: " + e.getMessage());
+      return 2;
+    }
+  }
+
+  /** Parses command-line arguments; returns null if the user asked for
+   * help. */
+  static @Nullable Main parseArgs(String[] args) {
+    TypeFamily typeFamily = TypeFamily.NUMBER;
+    Format format = Format.DIGEST;
+    int threadCount = 0;
+    String file = null;
+    for (String arg : args) {
+      if (arg.equals("-h") || arg.equals("--help")) {
+        return null;
+      } else if (arg.startsWith("--type=")) {
+        typeFamily = enumValue(TypeFamily.class, arg);
+        switch (typeFamily) {
+        case DATE:
+        case LOCATION:
+        case NUMBER:
+          break;
+        default:
+          // Filtex has no grammar for DATE_TIME or STRING
+          throw new IllegalArgumentException("unsupported type: " + arg);
+        }
+      } else if (arg.startsWith("--format=")) {
+        format = enumValue(Format.class, arg);
+      } else if (arg.startsWith("--threads=")) {
+        threadCount = Integer.parseInt(value(arg));
+        if (threadCount <= 0) {
+          throw new IllegalArgumentException("invalid argument: " + arg);
+        }
+      } else if (arg.startsWith("--")) {
+        throw new IllegalArgumentException("unknown option: " + arg);
+      } else if (file != null) {
+        throw new IllegalArgumentException("too many files: " + arg);
+      } else {
+        file = arg;
+      }
+    }
+    return new Main(typeFamily, format, threadCount, file,
+        DEFAULT_BATCH_SIZE, DEFAULT_REGION_SIZE);
+  }
+
+  private static String value(String arg) {
+    return arg.substring(arg.indexOf('=') + 1);
+  }
+
+  private static <E extends Enum<E>> E enumValue(Class<E> enumClass,
+      String arg) {
+    try {
+      return Enum.valueOf(enumClass, value(arg).toUpperCase(Locale.ROOT));
+    } catch (IllegalArgumentException e) {
+      throw new IllegalArgumentException("invalid argument: " + arg);
+    }
+  }
+
+  /** Reads, parses and writes all expressions; returns 1 if any expression
+   * is invalid, 0 otherwise. */
+  int run(InputStream in, OutputStream out) throws IOException {
+    final ForkJoinPool pool = threadCount > 0
+        ? new ForkJoinPool(threadCount)
+        : ForkJoinPool.commonPool();
+    try (Writer writer =
+             new BufferedWriter(
+                 new OutputStreamWriter(out, StandardCharsets.UTF_8),
+                 1 << 16)) {
+      final Sink sink = new Sink(pool, writer);
+      if (file == null || file.equals("-")) {
+        readStream(in, sink);
+      } else {
+        readFile(Paths.get(file), sink);
+      }
+      sink.flush();
+      return sink.invalidCount > 0 ? 1 : 0;
+    } finally {
+      if (pool != ForkJoinPool.commonPool()) {
+        pool.shutdown();
+      }
+    }
+  }
+
+  /** Reads lines from a stream. */
+  private void readStream(InputStream in, Sink sink) throws IOException {
+    final BufferedReader reader =
+        new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8),
+            1 << 16);
+    for (;;) {
+      final String line = reader.readLine();
+      if (line == null) {
+        break;
+      }
+      sink.add(line);
+    }
+  }
+
+  /** Reads lines from a file, mapping it into memory one region at a time.
+   * Each region ends at a line break (except the last region of a file
+   * that does not end with a line break), so that no line spans two
+   * regions. */
+  private void readFile(Path path, Sink sink) throws IOException {
+    try (FileChannel channel =
+             FileChannel.open(path, StandardOpenOption.READ)) {
+      final long size = channel.size();
+      final CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder()
+          .onMalformedInput(CodingErrorAction.REPLACE)
+          .onUnmappableCharacter(CodingErrorAction.REPLACE);
+      CharBuffer chars = CharBuffer.allocate(256);
+      long position = 0;
+      while (position < size) {
+        final long length = Math.min(regionSize, size - position);
+        final MappedByteBuffer buffer =
+            channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+        int limit = (int) length;
+        if (position + length < size) {
+          // Not the last region; stop after the last line break.
+          while (limit > 0 && buffer.get(limit - 1) != '\n') {
+            --limit;
+          }
+          if (limit == 0) {
+            throw new IOException("line at offset " + position
+                + " is longer than " + regionSize + " bytes");
+          }
+        }
+        int start = 0;
+        while (start < limit) {
+          int end = start;
+          while (end < limit && buffer.get(end) != '\n') {
+            ++end;
+          }
+          int lineEnd = end;
+          if (lineEnd > start && buffer.get(lineEnd - 1) == '\r') {
+            --lineEnd;
+          }
+          // A UTF-8 line has at most as many chars as bytes.
+          final int lineLength = lineEnd - start;
+          if (lineLength > chars.capacity()) {
+            chars = CharBuffer.allocate(
+                Math.max(lineLength, chars.capacity() * 2));
+          }
+          sink.add(decode(decoder, buffer, start, lineEnd, chars));
+          start = end + 1;
+        }
+        position += limit;
+      }
+    }
+  }
+
+  /** Decodes the bytes between {@code start} and {@code end} of a buffer
+   * as a string, using {@code chars} as workspace. */
+  private static String decode(CharsetDecoder decoder, ByteBuffer buffer,
+      int start, int end, CharBuffer chars) {
+    final ByteBuffer bytes = buffer.duplicate();
+    bytes.limit(end);
+    bytes.position(start);
+    chars.clear();
+    decoder.reset();
+    decoder.decode(bytes, chars, true);
+    decoder.flush(chars);
+    chars.flip();
+    return chars.toString();
+  }
+
+  /** Writes a result to a writer. */
+  void write(ParseResult result, Writer w) throws IOException {
+    switch (format) {
+    case DIGEST:
+      w.write(result.isValid()
+          ? digest(requireNonNull(result.node)).toString()
+          : result.toString());
+      break;
+    case SUMMARY:
+      w.write(result.isValid() ? summary(result) : result.toString());
+      break;
+    case JSON:
+      w.write("{\"expression\":");
+      writeJson(w, result.expression);
+      w.write(",\"valid\":");
+      w.write(String.valueOf(result.isValid()));
+      if (result.isValid()) {
+        w.write(",\"ast\":");
+        writeJson(w, digest(requireNonNull(result.node)).toMap());
+      } else {
+        w.write(",\"pos\":");
+        writeJson(w, String.valueOf(result.pos));
+        w.write(",\"message\":");
+        writeJson(w, result.message());
+      }
+      w.write('}');
+      break;
+    default:
+      throw new AssertionError(format);
+    }
+    w.write('\n');
+  }
+
+  private static Digester digest(AstNode node) {
+    return node.digest(new Digester());
+  }
+
+  private static String summary(ParseResult result) {
+    try {
+      return Summary.summary(result.typeFamily, requireNonNull(result.node),
+          result.expression, ImmutableList.of());
+    } catch (UnsupportedOperationException e) {
+      return "UNSUPPORTED " + e.getMessage();
+    }
+  }
+
+  /** Writes a value (string, number, boolean, null, or map) as JSON. */
+  private static void writeJson(Writer w, @Nullable Object o)
+      throws IOException {
+    if (o == null) {
+      w.write("null");
+    } else if (o instanceof Number || o instanceof Boolean) {
+      w.write(o.toString());
+    } else if (o instanceof Map) {
+      char sep = '{';
+      for (Map.Entry<?, ?> e : ((Map<?, ?>) o).entrySet()) {
+        w.write(sep);
+        writeJson(w, String.valueOf(e.getKey()));
+        w.write(':');
+        writeJson(w, e.getValue());
+        sep = ',';
+      }
+      if (sep == '{') {
+        w.write('{');
+      }
+      w.write('}');
+    } else {
+      final String s = o.toString();
+      w.write('"');
+      for (int i = 0; i < s.length(); i++) {
+        final char c = s.charAt(i);
+        switch (c) {
+        case '"':
+        case '\\':
+          w.write('\\');
+          w.write(c);
+          break;
+        case '\n':
+          w.write("\\n");
+          break;
+        case '\r':
+          w.write("\\r");
+          break;
+        case '\t':
+          w.write("\\t");
+          break;
+        default:
+          if (c < ' ') {
+            w.write(String.format(Locale.ROOT, "\\u%04x", (int) c));
+          } else {
+            w.write(c);
+          }
+        }
+      }
+      w.write('"');
+    }
+  }
+
+  /** Output format. */
+  enum Format {
+    /** The digest of each AST, as generated by {@link Digester}. */
+    DIGEST,
+    /** A human-readable summary of each expression. */
+    SUMMARY,
+    /** A JSON object per expression. */
+    JSON
+  }
+
+  /** Gathers lines into batches, parses each batch, and writes the
+   * results. */
+  private class Sink {
+    private final ForkJoinPool pool;
+    private final Writer writer;
+    private final List<Pair<TypeFamily, String>> batch = new ArrayList<>();
+    int invalidCount;
+
+    Sink(ForkJoinPool pool, Writer writer) {
+      this.pool = pool;
+      this.writer = writer;
+    }
+
+    void add(String line) throws IOException {
+      batch.add(Pair.of(typeFamily, line));
+      if (batch.size() >= batchSize) {
+        flush();
+      }
+    }
+
+    void flush() throws IOException {
+      if (batch.isEmpty()) {
+        return;
+      }
+      final BatchParser.Result result = BatchParser.parse(batch, pool);
+      invalidCount += result.invalidCount;
+      for (ParseResult parseResult : result.results) {
+        write(parseResult, writer);
+      }
+      batch.clear();
+    }
+  }
+}
+
+// End Main.java
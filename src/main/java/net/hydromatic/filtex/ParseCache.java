@@ -0,0 +1,125 @@
+/*
+ * Licensed to Julian Hyde under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to you under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.hydromatic.filtex;
+
+import net.hydromatic.filtex.ast.AstNode;
+import net.hydromatic.filtex.ast.Asts;
+import net.hydromatic.filtex.util.Pair;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+
+import java.util.concurrent.ExecutionException;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Cache of parsed filter expressions, keyed by type family and expression.
+ *
+ * <p>Use it in front of {@link Filtex#parseFilterExpression} when a small
+ * number of distinct expressions are parsed many times. For example,
+ *
+ * <pre>{@code
+ * ParseCache cache = ParseCache.withMaximumSize(10_000);
+ * AstNode node = cache.parseFilterExpression(TypeFamily.NUMBER, "[0,20],>30");
+ * }</pre>
+ *
+ * <p>Cached trees are shared between callers. Trees are immutable, and so
+ * may be shared between threads without locking or copying. They are
+ * numbered (see {@link Asts#applyId}) before they are added to the cache,
+ * so that later calls to {@code applyId} return the cached tree rather than
+ * a numbered copy.
+ *
+ * <p>The cache is safe for use by concurrent threads.
+ */
+public class ParseCache {
+  private final Cache<Pair<TypeFamily, String>, AstNode> cache;
+
+  private ParseCache(Cache<Pair<TypeFamily, String>, AstNode> cache) {
+    this.cache = requireNonNull(cache, "cache");
+  }
+
+  /** Creates a cache that holds at most {@code maximumSize} expressions. */
+  public static ParseCache withMaximumSize(long maximumSize) {
+    return of(
+        CacheBuilder.newBuilder()
+            .maximumSize(maximumSize)
+            .recordStats()
+            .build());
+  }
+
+  /** Creates a cache whose total weight is at most {@code maximumWeight}.
+   * The weight of an entry is the length of its expression, which is
+   * roughly proportional to the size of its AST. */
+  public static ParseCache withMaximumWeight(long maximumWeight) {
+    return of(
+        CacheBuilder.newBuilder()
+            .maximumWeight(maximumWeight)
+            .<Pair<TypeFamily, String>, AstNode>weigher((key, node) ->
+                key.right.length())
+            .recordStats()
+            .build());
+  }
+
+  /** Creates a ParseCache backed by a given cache.
+   *
+   * <p>The cache should be built with
+   * {@link CacheBuilder#recordStats()} if you want {@link #stats()} to return
+   * meaningful values. */
+  public static ParseCache of(
+      Cache<Pair<TypeFamily, String>, AstNode> cache) {
+    return new ParseCache(cache);
+  }
+
+  /** Returns the AST for a filter expression, parsing it if it is not in the
+   * cache.
+   *
+   * @see Filtex#parseFilterExpression(TypeFamily, String) */
+  public AstNode parseFilterExpression(TypeFamily typeFamily,
+      String expression) {
+    final Pair<TypeFamily, String> key = Pair.of(typeFamily, expression);
+    try {
+      return cache.get(key, () -> parse(typeFamily, expression));
+    } catch (ExecutionException e) {
+      throw new RuntimeException(e.getCause());
+    }
+  }
+
+  private static AstNode parse(TypeFamily typeFamily, String expression) {
+    final AstNode node = Filtex.parseFilterExpression(typeFamily, expression);
+    // Date nodes do not accept visitors, and so are never numbered.
+    return typeFamily == TypeFamily.DATE ? node : Asts.applyId(node);
+  }
+
+  /** Returns the number of entries in the cache. */
+  public long size() {
+    return cache.size();
+  }
+
+  /** Discards all entries in the cache. */
+  public void invalidateAll() {
+    cache.invalidateAll();
+  }
+
+  /** Returns statistics: the number of hits, misses and evictions. */
+  public CacheStats stats() {
+    return cache.stats();
+  }
+}
+
+// End ParseCache.java
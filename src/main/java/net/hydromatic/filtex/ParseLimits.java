@@ -0,0 +1,128 @@
+/*
+ * Licensed to Julian Hyde under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to you under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.hydromatic.filtex;
+
+/**
+ * Limits on the cost of parsing a filter expression.
+ *
+ * <p>Use limits when expressions come from an untrusted source, so that one
+ * huge or pathological expression cannot use unbounded memory or time. For
+ * example,
+ *
+ * <pre>{@code
+ * ParseLimits limits = ParseLimits.DEFAULT.withMaxTermCount(100);
+ * ParseResult result = Filtex.tryParse(TypeFamily.NUMBER, s, limits);
+ * }</pre>
+ *
+ * <p>If an expression exceeds a limit, {@link Filtex#tryParse} returns a
+ * result whose status is
+ * {@link ParseResult.Status#LIMIT_EXCEEDED LIMIT_EXCEEDED}. Each limit is
+ * checked as early as possible: the length before parsing starts, the term
+ * count, token count and time as each term or token is read, and the value
+ * count before the AST is transformed.
+ *
+ * <p>Instances are immutable.
+ */
+public class ParseLimits {
+  /** No limits. */
+  public static final ParseLimits NONE =
+      new ParseLimits(Integer.MAX_VALUE, Integer.MAX_VALUE, Integer.MAX_VALUE,
+          Long.MAX_VALUE, Long.MAX_VALUE);
+
+  /** Limits that are generous for expressions typed by people, but
+   * prevent abuse: 10,000 characters, 1,000 terms, 1,000 values,
+   * 10,000 tokens and 10 milliseconds. */
+  public static final ParseLimits DEFAULT =
+      new ParseLimits(10_000, 1_000, 1_000, 10_000, 10_000_000L);
+
+  /** Maximum number of characters in an expression. */
+  public final int maxLength;
+
+  /** Maximum number of terms; for example "1, [2, 3], &gt;4" has 3 terms. */
+  public final int maxTermCount;
+
+  /** Maximum number of elements of value lists; for example
+   * "1, 2, not 3, &gt;4" has 3 values. */
+  public final int maxValueCount;
+
+  /** Maximum number of tokens that the parser may read. */
+  public final long maxTokenCount;
+
+  /** Maximum time, in nanoseconds, that the parser may spend reading
+   * tokens. */
+  public final long maxNanos;
+
+  private ParseLimits(int maxLength, int maxTermCount, int maxValueCount,
+      long maxTokenCount, long maxNanos) {
+    this.maxLength = positive(maxLength, "maxLength");
+    this.maxTermCount = positive(maxTermCount, "maxTermCount");
+    this.maxValueCount = positive(maxValueCount, "maxValueCount");
+    this.maxTokenCount = positive(maxTokenCount, "maxTokenCount");
+    this.maxNanos = positive(maxNanos, "maxNanos");
+  }
+
+  private static int positive(int value, String name) {
+    return (int) positive((long) value, name);
+  }
+
+  private static long positive(long value, String name) {
+    if (value <= 0) {
+      throw new IllegalArgumentException(name + " must be positive: " + value);
+    }
+    return value;
+  }
+
+  /** Returns a copy of these limits with a given maximum length. */
+  public ParseLimits withMaxLength(int maxLength) {
+    return new ParseLimits(maxLength, maxTermCount, maxValueCount,
+        maxTokenCount, maxNanos);
+  }
+
+  /** Returns a copy of these limits with a given maximum number of terms. */
+  public ParseLimits withMaxTermCount(int maxTermCount) {
+    return new ParseLimits(maxLength, maxTermCount, maxValueCount,
+        maxTokenCount, maxNanos);
+  }
+
+  /** Returns a copy of these limits with a given maximum number of
+   * values. */
+  public ParseLimits withMaxValueCount(int maxValueCount) {
+    return new ParseLimits(maxLength, maxTermCount, maxValueCount,
+        maxTokenCount, maxNanos);
+  }
+
+  /** Returns a copy of these limits with a given maximum number of
+   * tokens. */
+  public ParseLimits withMaxTokenCount(long maxTokenCount) {
+    return new ParseLimits(maxLength, maxTermCount, maxValueCount,
+        maxTokenCount, maxNanos);
+  }
+
+  /** Returns a copy of these limits with a given maximum parse time. */
+  public ParseLimits withMaxNanos(long maxNanos) {
+    return new ParseLimits(maxLength, maxTermCount, maxValueCount,
+        maxTokenCount, maxNanos);
+  }
+
+  @Override public String toString() {
+    return "maxLength=" + maxLength + ", maxTermCount=" + maxTermCount
+        + ", maxValueCount=" + maxValueCount
+        + ", maxTokenCount=" + maxTokenCount + ", maxNanos=" + maxNanos;
+  }
+}
+
+// End ParseLimits.java
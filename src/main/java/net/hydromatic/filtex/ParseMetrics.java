@@ -0,0 +1,101 @@
+/*
+ * Licensed to Julian Hyde under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to you under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.hydromatic.filtex;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts the filter expressions parsed, how many of them failed to parse
+ * and fell back to a "matches advanced" node, and how many exceeded a
+ * {@link ParseLimits limit}.
+ *
+ * <p>{@link Filtex#tryParse} and {@link Filtex#parseFilterExpression} record
+ * to {@link #INSTANCE}. Counters are safe for use by concurrent threads.
+ */
+public class ParseMetrics {
+  /** Metrics for all parses in this JVM. */
+  public static final ParseMetrics INSTANCE = new ParseMetrics();
+
+  private final LongAdder parseCount = new LongAdder();
+  private final LongAdder invalidCount = new LongAdder();
+  private final LongAdder simpleCount = new LongAdder();
+  private final LongAdder limitExceededCount = new LongAdder();
+
+  private ParseMetrics() {
+  }
+
+  /** Records the outcome of a parse, and whether it was handled by
+   * {@link net.hydromatic.filtex.parse.SimpleNumberParser}. */
+  void record(ParseResult result, boolean simple) {
+    parseCount.increment();
+    if (simple) {
+      simpleCount.increment();
+    }
+    if (result.status == ParseResult.Status.LIMIT_EXCEEDED) {
+      limitExceededCount.increment();
+    } else if (!result.isValid()) {
+      invalidCount.increment();
+    }
+  }
+
+  /** Returns the number of expressions parsed. */
+  public long parseCount() {
+    return parseCount.sum();
+  }
+
+  /** Returns the number of expressions that were invalid, and therefore fell
+   * back to "matches advanced". */
+  public long invalidCount() {
+    return invalidCount.sum();
+  }
+
+  /** Returns the number of expressions that were simple enough to be parsed
+   * without the generated parser. */
+  public long simpleCount() {
+    return simpleCount.sum();
+  }
+
+  /** Returns the number of expressions that exceeded a limit, and were
+   * rejected without being fully parsed. They are not included in
+   * {@link #invalidCount()}. */
+  public long limitExceededCount() {
+    return limitExceededCount.sum();
+  }
+
+  /** Returns the fraction of parsed expressions that were invalid, between 0
+   * and 1; 0 if no expressions have been parsed. */
+  public double fallbackRate() {
+    final long parseCount = parseCount();
+    return parseCount == 0 ? 0D : (double) invalidCount() / parseCount;
+  }
+
+  /** Resets all counters to zero. */
+  public void reset() {
+    parseCount.reset();
+    invalidCount.reset();
+    simpleCount.reset();
+    limitExceededCount.reset();
+  }
+
+  @Override public String toString() {
+    return "parseCount=" + parseCount() + ", invalidCount=" + invalidCount()
+        + ", simpleCount=" + simpleCount()
+        + ", limitExceededCount=" + limitExceededCount();
+  }
+}
+
+// End ParseMetrics.java
@@ -0,0 +1,112 @@
+/*
+ * Licensed to Julian Hyde under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to you under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.hydromatic.filtex;
+
+import net.hydromatic.filtex.ast.AstNode;
+import net.hydromatic.filtex.ast.Pos;
+import net.hydromatic.filtex.parse.ParseLimitException;
+
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Result of parsing a filter expression: either an AST, or the position and
+ * reason that the expression is invalid.
+ *
+ * @see Filtex#tryParse(TypeFamily, String)
+ */
+public class ParseResult {
+  public final TypeFamily typeFamily;
+  public final String expression;
+  public final Status status;
+
+  /** The AST, or null if the expression is invalid. */
+  public final @Nullable AstNode node;
+
+  /** Position of the error, or null if the expression is valid; if a limit
+   * was exceeded, the position at which it was exceeded, or
+   * {@link Pos#ZERO} if the limit applies to the whole expression. */
+  public final @Nullable Pos pos;
+
+  /** Exception that caused the failure; its message is generated only if
+   * {@link #message()} is called. */
+  private final @Nullable Throwable cause;
+
+  private ParseResult(TypeFamily typeFamily, String expression, Status status,
+      @Nullable AstNode node, @Nullable Pos pos, @Nullable Throwable cause) {
+    this.typeFamily = requireNonNull(typeFamily, "typeFamily");
+    this.expression = requireNonNull(expression, "expression");
+    this.status = requireNonNull(status, "status");
+    this.node = node;
+    this.pos = pos;
+    this.cause = cause;
+  }
+
+  /** Creates a result for a valid expression. */
+  static ParseResult ok(TypeFamily typeFamily, String expression,
+      AstNode node) {
+    return new ParseResult(typeFamily, expression, Status.OK,
+        requireNonNull(node, "node"), null, null);
+  }
+
+  /** Creates a result for an expression that could not be parsed. */
+  static ParseResult invalid(TypeFamily typeFamily, String expression,
+      Pos pos, Throwable cause) {
+    return new ParseResult(typeFamily, expression, Status.INVALID, null,
+        requireNonNull(pos, "pos"), requireNonNull(cause, "cause"));
+  }
+
+  /** Creates a result for an expression that exceeded a limit. */
+  static ParseResult limitExceeded(TypeFamily typeFamily, String expression,
+      ParseLimitException e) {
+    return new ParseResult(typeFamily, expression, Status.LIMIT_EXCEEDED,
+        null, e.pos, e);
+  }
+
+  /** Returns whether the expression was parsed successfully. */
+  public boolean isValid() {
+    return status == Status.OK;
+  }
+
+  /** Returns a description of why the expression is invalid, or null if it
+   * is valid. */
+  public @Nullable String message() {
+    return cause == null ? null : cause.getMessage();
+  }
+
+  @Override public String toString() {
+    return status == Status.OK
+        ? String.valueOf(node)
+        : status + " at " + pos;
+  }
+
+  /** Outcome of a parse. */
+  public enum Status {
+    /** The expression is valid, and {@link #node} is its AST. */
+    OK,
+    /** The expression is not valid in the type family's grammar;
+     * {@link #pos} is the position of the error. */
+    INVALID,
+    /** The expression exceeded one of the {@link ParseLimits} given to
+     * {@link Filtex#tryParse(TypeFamily, String, ParseLimits)}; it may or may
+     * not be valid. */
+    LIMIT_EXCEEDED
+  }
+}
+
+// End ParseResult.java
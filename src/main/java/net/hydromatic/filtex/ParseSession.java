@@ -0,0 +1,677 @@
+/*
+ * Licensed to Julian Hyde under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to you under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.hydromatic.filtex;
+
+import net.hydromatic.filtex.ast.Ast;
+import net.hydromatic.filtex.ast.AstNode;
+import net.hydromatic.filtex.ast.Op;
+import net.hydromatic.filtex.parse.CharSequenceTokenManager;
+import net.hydromatic.filtex.parse.FiltexParserImpl;
+import net.hydromatic.filtex.parse.FiltexParserImplConstants;
+import net.hydromatic.filtex.parse.ParseException;
+import net.hydromatic.filtex.parse.SimpleNumberParser;
+import net.hydromatic.filtex.parse.Token;
+import net.hydromatic.filtex.parse.TokenMgrError;
+
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static net.hydromatic.filtex.ast.AstBuilder.ast;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Parses a filter expression as it is edited, re-using the work done for
+ * previous versions of the expression.
+ *
+ * <p>A filter editor that validates each keystroke creates a session, and
+ * calls {@link #edit} for each change. For example,
+ *
+ * <pre>{@code
+ * ParseSession session = new ParseSession(TypeFamily.NUMBER);
+ * session.reset("1, 2, 3");
+ * ParseResult result = session.edit(3, 1, "20"); // "1, 20, 3"
+ * }</pre>
+ *
+ * <p>For {@link TypeFamily#NUMBER}, the session divides the expression into
+ * segments at the commas that separate top-level terms, and remembers the
+ * terms parsed from each segment. An edit re-lexes from the start of the
+ * first segment that it touches, until it reaches the start of a segment that
+ * it did not change, and parses only the new segments. The result is
+ * the same as {@link Filtex#tryParse} would return for the whole expression,
+ * including the position of the first error.
+ *
+ * <p>The session also remembers the terms of the transformed expression,
+ * in which {@link Transforms#numberTransform} has merged runs of '=' terms,
+ * and replaces only the runs that contain new segments. Segments before the
+ * most recent edit have positions measured from the start of the expression,
+ * and segments after it from the end, so an edit does not need to move the
+ * segments after it. (This is the "gap buffer" of text editors.)
+ *
+ * <p>Therefore the work for an edit is proportional to the number of segments
+ * that it changes, plus the number of segments between it and the previous
+ * edit; typing at one place is cheap however long the expression. The
+ * exceptions are:
+ *
+ * <ul>
+ *   <li>The new expression, and the arguments and merged values of the new
+ *   AST, are copied from the previous ones; that is linear in the length of
+ *   the expression, but is just copying arrays.</li>
+ *   <li>If the expression contains a double-quote, or one or two terms
+ *   negated by "not", each edit processes the whole expression. (A string is
+ *   never valid in a numeric expression, and one or two "not" terms change
+ *   how {@link Transforms#numberTransform} merges the other terms.)</li>
+ *   <li>If the expression is invalid and contains a line break, finding the
+ *   line and column of the error reads the expression up to the error.</li>
+ * </ul>
+ *
+ * <p>For other type families, each edit parses the whole expression.
+ *
+ * <p>A session is not thread-safe. Results share nodes with the results of
+ * previous edits, and callers should not modify them.
+ */
+public class ParseSession {
+  private static final int COMMA = FiltexParserImplConstants.COMMA;
+  private static final int EOF = FiltexParserImplConstants.EOF;
+  private static final int LPAREN = CharSequenceTokenManager.kind("(");
+  private static final int LBRACKET = CharSequenceTokenManager.kind("[");
+  private static final int RPAREN = CharSequenceTokenManager.kind(")");
+  private static final int RBRACKET = CharSequenceTokenManager.kind("]");
+
+  /** Terms of an invalid segment; it behaves as one term that cannot be
+   * merged with its neighbors. */
+  private static final List<@Nullable AstNode> INVALID_TERMS =
+      Collections.singletonList(null);
+
+  private final TypeFamily typeFamily;
+
+  /** Token manager that finds the boundaries of segments. */
+  private final CharSequenceTokenManager lexer =
+      new CharSequenceTokenManager();
+
+  /** Parser for segments; it has its own token manager. */
+  private final FiltexParserImpl parser =
+      new FiltexParserImpl(new CharSequenceTokenManager());
+
+  /** Segments of the expression, in order; each but the last is followed by
+   * a comma. Empty if the type family is not NUMBER. Segments before
+   * {@link #gap} are measured from the start of the expression, the others
+   * from the end. */
+  private final List<Segment> segments = new ArrayList<>();
+
+  /** Index of the first segment that is measured from the end of the
+   * expression. */
+  private int gap;
+
+  /** Terms of the expression after runs of '=' terms with the same
+   * {@code is} value have been merged, as {@link Transforms#numberTransform}
+   * merges them if there are no "not" terms; null for an invalid segment. */
+  private final List<@Nullable AstNode> runs = new ArrayList<>();
+
+  /** Segments that could not be parsed, in no particular order. */
+  private final List<Segment> invalidSegments = new ArrayList<>();
+
+  private String expression = "";
+  private ParseResult result;
+
+  /** Number of double-quote characters in the expression. */
+  private int quoteCount;
+
+  /** Number of line-feed and carriage-return characters in the
+   * expression. */
+  private int lineBreakCount;
+
+  /** Number of terms whose {@code is} value is false. */
+  private int notCount;
+
+  /** Number of segments created, removed, or moved across the gap by the
+   * most recent edit; for testing. */
+  int visitCount;
+
+  /** Creates a session whose expression is initially empty. */
+  public ParseSession(TypeFamily typeFamily) {
+    this.typeFamily = requireNonNull(typeFamily, "typeFamily");
+    resegment(0, 0, 0);
+    this.result = parse();
+  }
+
+  /** Returns the current expression. */
+  public String expression() {
+    return expression;
+  }
+
+  /** Returns the result of parsing the current expression. */
+  public ParseResult result() {
+    return result;
+  }
+
+  /** Replaces the expression, discarding the work done for previous
+   * versions, and returns the result of parsing it. */
+  public ParseResult reset(String expression) {
+    this.expression = requireNonNull(expression, "expression");
+    this.quoteCount = count(expression, '"', '"');
+    this.lineBreakCount = count(expression, '\n', '\r');
+    visitCount = 0;
+    resegment(0, segments.size(), 0);
+    return result = parse();
+  }
+
+  /** Applies an edit to the expression, and returns the result of parsing
+   * the new expression.
+   *
+   * @param offset Offset at which the edit starts
+   * @param removeLength Number of characters removed, starting at
+   *   {@code offset}
+   * @param insert Text inserted at {@code offset}
+   * @throws IndexOutOfBoundsException if the removed range is not within
+   *   the expression
+   */
+  public ParseResult edit(int offset, int removeLength, String insert) {
+    final int end = offset + removeLength;
+    if (offset < 0 || removeLength < 0 || end > expression.length()) {
+      throw new IndexOutOfBoundsException("offset " + offset
+          + ", removeLength " + removeLength
+          + ", expression length " + expression.length());
+    }
+    final String removed = expression.substring(offset, end);
+    quoteCount += count(insert, '"', '"') - count(removed, '"', '"');
+    lineBreakCount +=
+        count(insert, '\n', '\r') - count(removed, '\n', '\r');
+    visitCount = 0;
+
+    // Segments that end before the edit, or start after it, are unchanged.
+    // Move the gap between them while positions are measured in the old
+    // expression. But if the expression contains a double-quote, it may start
+    // a string that ends in a later segment, so an edit can change how text
+    // before it is divided into tokens; start again.
+    int first = 0;
+    int next = segments.size();
+    if (quoteCount == 0 && typeFamily == TypeFamily.NUMBER) {
+      first = firstEndingAtOrAfter(offset);
+      next = firstStartingAfter(end);
+      moveGap(first, next);
+    }
+    final int start = first == 0 ? 0 : start(segments.get(first));
+    expression = expression.substring(0, offset) + insert
+        + expression.substring(end);
+    resegment(first, next, start);
+    return result = parse();
+  }
+
+  /** Returns the number of occurrences of two characters in a string. */
+  private static int count(String s, char c0, char c1) {
+    int n = 0;
+    for (int i = 0; i < s.length(); i++) {
+      final char c = s.charAt(i);
+      if (c == c0 || c == c1) {
+        ++n;
+      }
+    }
+    return n;
+  }
+
+  /** Returns the offset of the first character of a segment. */
+  private int start(Segment segment) {
+    return segment.fromEnd
+        ? expression.length() - segment.start
+        : segment.start;
+  }
+
+  /** Returns the offset after the last character of a segment. */
+  private int end(Segment segment) {
+    return segment.fromEnd
+        ? expression.length() - segment.end
+        : segment.end;
+  }
+
+  /** Returns the index of the first segment whose end is at or after
+   * {@code offset}. */
+  private int firstEndingAtOrAfter(int offset) {
+    int lo = 0;
+    int hi = segments.size() - 1;
+    while (lo < hi) {
+      final int mid = (lo + hi) >>> 1;
+      if (end(segments.get(mid)) < offset) {
+        lo = mid + 1;
+      } else {
+        hi = mid;
+      }
+    }
+    return lo;
+  }
+
+  /** Returns the index of the first segment whose start is after
+   * {@code offset}, or the number of segments if there is none. */
+  private int firstStartingAfter(int offset) {
+    int lo = 0;
+    int hi = segments.size();
+    while (lo < hi) {
+      final int mid = (lo + hi) >>> 1;
+      if (start(segments.get(mid)) <= offset) {
+        lo = mid + 1;
+      } else {
+        hi = mid;
+      }
+    }
+    return lo;
+  }
+
+  /** Moves the gap so that it is between {@code first} and {@code next},
+   * converting the segments that it passes over. */
+  private void moveGap(int first, int next) {
+    final int length = expression.length();
+    for (; gap < first; ++gap) {
+      final Segment segment = segments.get(gap);
+      segment.flip(length);
+      index(segment, gap == 0 ? null : segments.get(gap - 1), true);
+      ++visitCount;
+    }
+    while (gap > next) {
+      final Segment segment = segments.get(--gap);
+      segment.flip(length);
+      index(segment,
+          gap + 1 == segments.size() ? null : segments.get(gap + 1), false);
+      ++visitCount;
+    }
+  }
+
+  /** Replaces segments, starting with segment {@code first}, by dividing the
+   * expression from offset {@code start}. Stops on reaching the start of an
+   * old segment (at index {@code next} or later) that can be re-used.
+   * Segments before {@code first} must be before the gap, and segments at
+   * {@code next} and after must be after it.
+   *
+   * <p>Then parses the new segments, and replaces the runs of the
+   * transformed expression that contain them. */
+  private void resegment(int first, int next, int start) {
+    if (typeFamily != TypeFamily.NUMBER) {
+      return;
+    }
+    final List<Segment> added = new ArrayList<>();
+    int reused = segments.size();
+    // Line and column are only needed for errors, and are computed then.
+    lexer.reset(expression, start, expression.length(), 1, start);
+    int depth = 0;
+    int j = next;
+    try {
+      for (;;) {
+        final Token t = lexer.getNextToken();
+        if (t.kind == EOF) {
+          break;
+        } else if (t.kind == LPAREN || t.kind == LBRACKET) {
+          ++depth;
+        } else if (t.kind == RPAREN || t.kind == RBRACKET) {
+          depth = Math.max(0, depth - 1);
+        } else if (t.kind == COMMA && depth == 0) {
+          final int comma = lexer.offset() - 1;
+          added.add(new Segment(start, comma));
+          start = comma + 1;
+          while (j < segments.size() && start(segments.get(j)) < start) {
+            ++j;
+          }
+          if (j < segments.size() && start(segments.get(j)) == start) {
+            // The lexer is at the start of an old segment, in the same state
+            // as when that segment was created, so that segment and the ones
+            // after it are unchanged.
+            reused = j;
+            break;
+          }
+        }
+      }
+    } catch (TokenMgrError e) {
+      // The rest of the expression is one segment; the parser will report
+      // the error.
+    }
+    if (reused == segments.size()) {
+      added.add(new Segment(start, expression.length()));
+    }
+
+    // The runs from the one containing the last term before the new
+    // segments to the one containing the first term after them will be
+    // replaced. Runs that are cut by the new segments keep their outer
+    // parts.
+    final Segment left = first == 0 ? null : segments.get(first - 1);
+    final Segment right =
+        reused == segments.size() ? null : segments.get(reused);
+    final int runStart = left == null ? 0 : left.runIndex;
+    final int runEnd =
+        right == null ? runs.size() : runs.size() - right.runIndex;
+    final List<@Nullable AstNode> terms = new ArrayList<>();
+    if (left != null) {
+      terms.add(leftPart(left));
+    }
+    for (Segment segment : segments.subList(first, reused)) {
+      if (segment.terms == null) {
+        invalidSegments.remove(segment);
+      } else {
+        notCount -= notCount(segment.terms);
+      }
+      ++visitCount;
+    }
+    Segment previous = left;
+    for (Segment segment : added) {
+      segment.terms = parseTerms(segment);
+      if (segment.terms == null) {
+        invalidSegments.add(segment);
+      } else {
+        notCount += notCount(segment.terms);
+      }
+      terms.addAll(termsOf(segment));
+      index(segment, previous, true);
+      previous = segment;
+      ++visitCount;
+    }
+    if (right != null) {
+      terms.add(rightPart(right));
+    }
+    runs.subList(runStart, runEnd).clear();
+    runs.addAll(runStart, merge(terms));
+    segments.subList(first, reused).clear();
+    segments.addAll(first, added);
+    gap = first + added.size();
+  }
+
+  /** Returns the terms of a segment, or one null term if it is invalid. */
+  private static List<@Nullable AstNode> termsOf(Segment segment) {
+    return segment.terms == null ? INVALID_TERMS : segment.terms;
+  }
+
+  /** Returns 1 or 2 if a term is an '=' term whose {@code is} value is
+   * true or false, otherwise 0. Consecutive terms of the same non-zero
+   * kind are merged. */
+  private static int kind(@Nullable AstNode term) {
+    return term instanceof Ast.Comparison && term.op == Op.EQ
+        ? term.is() ? 1 : 2
+        : 0;
+  }
+
+  /** Returns the number of values of a term that can be merged. */
+  private static int valueCount(@Nullable AstNode term) {
+    return kind(term) == 0 ? 0 : ((Ast.Comparison) term).value.size();
+  }
+
+  private static int notCount(List<AstNode> terms) {
+    int n = 0;
+    for (AstNode term : terms) {
+      if (!term.is()) {
+        ++n;
+      }
+    }
+    return n;
+  }
+
+  /** Sets the run fields of a segment from those of its neighbor: if
+   * {@code forward}, from the segment before it (and both are before the
+   * gap), otherwise from the segment after it (and both are after the
+   * gap). */
+  private static void index(Segment segment, @Nullable Segment neighbor,
+      boolean forward) {
+    int runIndex = -1;
+    int runTerms = 0;
+    int runValues = 0;
+    int kind = 0;
+    if (neighbor != null) {
+      final List<@Nullable AstNode> terms = termsOf(neighbor);
+      runIndex = neighbor.runIndex;
+      runTerms = neighbor.runTerms;
+      runValues = neighbor.runValues;
+      kind = kind(terms.get(forward ? terms.size() - 1 : 0));
+    }
+    final List<@Nullable AstNode> terms = termsOf(segment);
+    for (int i = 0; i < terms.size(); i++) {
+      final AstNode term = terms.get(forward ? i : terms.size() - 1 - i);
+      final int kind2 = kind(term);
+      if (kind2 != 0 && kind2 == kind) {
+        ++runTerms;
+        runValues += valueCount(term);
+      } else {
+        ++runIndex;
+        runTerms = 1;
+        runValues = valueCount(term);
+      }
+      kind = kind2;
+    }
+    segment.runIndex = runIndex;
+    segment.runTerms = runTerms;
+    segment.runValues = runValues;
+  }
+
+  /** Returns the part, up to and including the last term of a segment, of
+   * the run that contains that term. */
+  private @Nullable AstNode leftPart(Segment segment) {
+    final List<@Nullable AstNode> terms = termsOf(segment);
+    if (segment.runTerms == 1) {
+      return terms.get(terms.size() - 1);
+    }
+    final Ast.Comparison run =
+        (Ast.Comparison) requireNonNull(runs.get(segment.runIndex));
+    return slice(run, 0, segment.runValues);
+  }
+
+  /** Returns the part, from the first term of a segment, of the run that
+   * contains that term. */
+  private @Nullable AstNode rightPart(Segment segment) {
+    if (segment.runTerms == 1) {
+      return termsOf(segment).get(0);
+    }
+    final Ast.Comparison run =
+        (Ast.Comparison) requireNonNull(
+            runs.get(runs.size() - 1 - segment.runIndex));
+    final int size = run.value.size();
+    return slice(run, size - segment.runValues, size);
+  }
+
+  /** Returns a comparison with some of the values of a merged run; the same
+   * as merging the terms that contributed those values. */
+  private static AstNode slice(Ast.Comparison run, int from, int to) {
+    return from == 0 && to == run.value.size()
+        ? run
+        : ast.comparison(run.is, run.op, run.value.subList(from, to));
+  }
+
+  /** Merges runs of terms, as {@link Transforms#numberTransform} does if
+   * there are no "not" terms. */
+  private static List<@Nullable AstNode> merge(
+      List<@Nullable AstNode> terms) {
+    final List<@Nullable AstNode> list = new ArrayList<>();
+    for (int i = 0; i < terms.size();) {
+      final AstNode first = terms.get(i);
+      final int kind = kind(first);
+      int j = i + 1;
+      while (j < terms.size() && kind != 0 && kind(terms.get(j)) == kind) {
+        ++j;
+      }
+      list.add(j == i + 1 ? first : Transforms.mergeNodes(terms.subList(i, j)));
+      i = j;
+    }
+    return list;
+  }
+
+  /** Returns the result for the current expression, using the terms
+   * remembered for each segment. */
+  private ParseResult parse() {
+    if (typeFamily != TypeFamily.NUMBER) {
+      return Filtex.tryParse(typeFamily, expression);
+    }
+    if (!invalidSegments.isEmpty()) {
+      Segment segment = invalidSegments.get(0);
+      for (Segment segment2 : invalidSegments) {
+        if (start(segment2) < start(segment)) {
+          segment = segment2;
+        }
+      }
+      return invalid(segment);
+    }
+    final AstNode node;
+    if (notCount == 1 || notCount == 2) {
+      final List<AstNode> terms = new ArrayList<>();
+      for (Segment segment : segments) {
+        terms.addAll(requireNonNull(segment.terms));
+      }
+      node = Transforms.numberTransform(ast.logicalExpression(terms));
+    } else {
+      node = ast.logicalExpression(runs);
+    }
+    return record(ParseResult.ok(typeFamily, expression, node));
+  }
+
+  /** Parses a segment, and returns its terms, or null if it is invalid. */
+  private @Nullable List<AstNode> parseTerms(Segment segment) {
+    AstNode node =
+        SimpleNumberParser.parse(
+            expression.substring(segment.start, segment.end));
+    if (node == null) {
+      try {
+        // Positions are wrong if there are line breaks, but if the segment
+        // is invalid, invalid(Segment) will parse it again to get the error.
+        node = parseRegion(segment.start, segment.end, 1, segment.start);
+      } catch (ParseException | TokenMgrError e) {
+        return null;
+      }
+    }
+    return node instanceof Ast.CallN
+        ? ((Ast.CallN) node).args
+        : Collections.singletonList(node);
+  }
+
+  /** Returns the result for the whole expression, given the first segment
+   * that is invalid. */
+  private ParseResult invalid(Segment segment) {
+    final int start = start(segment);
+    final int end = end(segment);
+    final boolean last = end == expression.length();
+
+    // Line and column of the character before the segment, as the token
+    // manager would compute them.
+    int line = 1;
+    int column = start;
+    if (lineBreakCount > 0) {
+      boolean cr = false;
+      boolean lf = false;
+      column = 0;
+      for (int i = 0; i < start; i++) {
+        final char c = expression.charAt(i);
+        ++column;
+        if (lf) {
+          lf = false;
+          ++line;
+          column = 1;
+        } else if (cr) {
+          cr = false;
+          if (c != '\n') {
+            ++line;
+            column = 1;
+          }
+        }
+        cr = c == '\r';
+        lf = c == '\n';
+      }
+    }
+
+    try {
+      parseRegion(start, end, line, column);
+    } catch (ParseException e) {
+      final Token token = e.errorToken();
+      if (last || token == null || token.kind != EOF) {
+        return record(Filtex.invalid(typeFamily, expression, parser, e));
+      }
+    } catch (TokenMgrError e) {
+      if (last || !e.eofSeen) {
+        return record(
+            ParseResult.invalid(typeFamily, expression, e.pos(), e));
+      }
+    }
+
+    // The segment is incomplete. Where the parser of the whole expression
+    // would see the comma after the segment, the segment's parser saw the end
+    // of input. Parse again, up to the end of the expression, to get the same
+    // error. (The parser will fail at or before the comma, so it will not read
+    // the later segments.)
+    try {
+      parseRegion(start, expression.length(), line, column);
+    } catch (ParseException e) {
+      return record(Filtex.invalid(typeFamily, expression, parser, e));
+    } catch (TokenMgrError e) {
+      return record(ParseResult.invalid(typeFamily, expression, e.pos(), e));
+    }
+    // Should not happen; but the whole expression gives the right answer.
+    return Filtex.tryParse(typeFamily, expression);
+  }
+
+  private static ParseResult record(ParseResult result) {
+    ParseMetrics.INSTANCE.record(result, false);
+    return result;
+  }
+
+  /** Parses the expression from {@code start} to {@code end}; {@code line}
+   * and {@code column} are the position of the character before
+   * {@code start}. */
+  private AstNode parseRegion(int start, int end, int line, int column)
+      throws ParseException {
+    final CharSequenceTokenManager tokenManager =
+        (CharSequenceTokenManager) parser.token_source;
+    tokenManager.reset(expression, start, end, line, column);
+    parser.ReInit(tokenManager);
+    return parser.numericExpressionEof();
+  }
+
+  /** Part of the expression between two top-level commas.
+   *
+   * <p>If the segment is before the gap, its offsets are measured from the
+   * start of the expression, and its run fields describe its last term and
+   * the part of that term's run up to and including it. If the segment is
+   * after the gap, its offsets are measured from the end of the expression,
+   * and its run fields describe its first term and the part of that term's
+   * run from it onwards. Neither depends on segments on the other side of
+   * the gap. */
+  private static class Segment {
+    /** Whether the segment is after the gap. */
+    boolean fromEnd;
+    /** Offset of the first character. */
+    int start;
+    /** Offset after the last character; the offset of the following comma,
+     * if any. */
+    int end;
+    /** Terms, or null if the segment is invalid. */
+    @Nullable List<AstNode> terms;
+    /** Before the gap, the index of the run; after the gap, the number of
+     * runs after it. */
+    int runIndex;
+    /** Number of terms in the part of the run. */
+    int runTerms;
+    /** Number of values in the part of the run. */
+    int runValues;
+
+    Segment(int start, int end) {
+      this.start = start;
+      this.end = end;
+    }
+
+    /** Moves the segment to the other side of the gap, given the length of
+     * the expression. The caller must then re-compute its run fields. */
+    void flip(int length) {
+      fromEnd = !fromEnd;
+      start = length - start;
+      end = length - end;
+    }
+  }
+}
+
+// End ParseSession.java
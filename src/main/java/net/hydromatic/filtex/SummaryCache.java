@@ -0,0 +1,136 @@
+/*
+ * Licensed to Julian Hyde under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to you under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.hydromatic.filtex;
+
+import net.hydromatic.filtex.ast.AstNode;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.collect.ImmutableList;
+
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+import java.util.List;
+import java.util.Locale;
+import java.util.Objects;
+import java.util.concurrent.ExecutionException;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Cache of summaries of parsed filter expressions, keyed by type family,
+ * AST and locale.
+ *
+ * <p>Use it when the same filters are summarized many times, for example
+ * when listing pages render the filters of many dashboards. Combined with a
+ * {@link ParseCache}, the cost of a summary is a hash lookup:
+ *
+ * <pre>{@code
+ * SummaryCache summaries = SummaryCache.withMaximumSize(10_000);
+ * AstNode node = parseCache.parseFilterExpression(TypeFamily.NUMBER, s);
+ * String summary = summaries.summary(TypeFamily.NUMBER, node, locale);
+ * }</pre>
+ *
+ * <p>ASTs are compared structurally (see {@link AstNode#equals(Object)}),
+ * and their hash codes are cached, so trees that are parsed from the same
+ * expression share an entry, and ids are ignored.
+ *
+ * <p>The cache is safe for use by concurrent threads.
+ */
+public class SummaryCache {
+  private final Cache<Key, String> cache;
+
+  private SummaryCache(Cache<Key, String> cache) {
+    this.cache = requireNonNull(cache, "cache");
+  }
+
+  /** Creates a cache that holds at most {@code maximumSize} summaries. */
+  public static SummaryCache withMaximumSize(long maximumSize) {
+    return new SummaryCache(
+        CacheBuilder.newBuilder()
+            .maximumSize(maximumSize)
+            .recordStats()
+            .build());
+  }
+
+  /** Returns the summary of a parsed filter expression, computing it if it
+   * is not in the cache.
+   *
+   * @see Filtex#summary(TypeFamily, AstNode, Locale) */
+  public String summary(TypeFamily typeFamily, AstNode node, Locale locale) {
+    final Key key = new Key(typeFamily, node, locale);
+    try {
+      return cache.get(key, () -> Filtex.summary(typeFamily, node, locale));
+    } catch (ExecutionException e) {
+      throw new RuntimeException(e.getCause());
+    }
+  }
+
+  /** Returns the summaries of a list of parsed filter expressions, all of
+   * the same type family, in the same order. */
+  public List<String> summaries(TypeFamily typeFamily,
+      Iterable<? extends AstNode> nodes, Locale locale) {
+    final ImmutableList.Builder<String> list = ImmutableList.builder();
+    for (AstNode node : nodes) {
+      list.add(summary(typeFamily, node, locale));
+    }
+    return list.build();
+  }
+
+  /** Returns the number of entries in the cache. */
+  public long size() {
+    return cache.size();
+  }
+
+  /** Discards all entries in the cache. */
+  public void invalidateAll() {
+    cache.invalidateAll();
+  }
+
+  /** Returns statistics: the number of hits, misses and evictions. */
+  public CacheStats stats() {
+    return cache.stats();
+  }
+
+  /** Key of an entry in the cache. */
+  private static class Key {
+    final TypeFamily typeFamily;
+    final AstNode node;
+    final Locale locale;
+
+    Key(TypeFamily typeFamily, AstNode node, Locale locale) {
+      this.typeFamily = requireNonNull(typeFamily, "typeFamily");
+      this.node = requireNonNull(node, "node");
+      this.locale = requireNonNull(locale, "locale");
+    }
+
+    @Override public int hashCode() {
+      return Objects.hash(typeFamily, node, locale);
+    }
+
+    @Override public boolean equals(@Nullable Object o) {
+      return o == this
+          || o instanceof Key
+          && typeFamily == ((Key) o).typeFamily
+          && node.equals(((Key) o).node)
+          && locale.equals(((Key) o).locale);
+    }
+  }
+}
+
+// End SummaryCache.java
@@ -17,16 +17,25 @@
 package net.hydromatic.filtex;
 
 import net.hydromatic.filtex.ast.Ast;
+import net.hydromatic.filtex.ast.AstCursor;
 import net.hydromatic.filtex.ast.AstNode;
 import net.hydromatic.filtex.ast.Asts;
+import net.hydromatic.filtex.ast.Bound;
+import net.hydromatic.filtex.ast.DecimalList;
+import net.hydromatic.filtex.ast.Decimals;
 import net.hydromatic.filtex.ast.Op;
+import net.hydromatic.filtex.util.Pair;
 
-import com.google.common.collect.Iterables;
+import com.google.common.collect.ImmutableSortedSet;
 
 import org.checkerframework.checker.nullness.qual.Nullable;
 
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
-import java.util.function.Consumer;
 import java.util.stream.Collectors;
 
 import static net.hydromatic.filtex.ast.AstBuilder.ast;
@@ -35,22 +44,16 @@
 public class Transforms {
   private Transforms() {}
 
-  /** Traverses ast and returns the count of 'not' nodes ('is' value set to
-   * false). */
+  /** Returns the number of 'not' items ('is' value set to false) in an
+   * ast. */
   static int countNots(AstNode root) {
-    class CountingConsumer implements Consumer<AstNode> {
-      private int count = 0;
-
-      @Override public void accept(AstNode node) {
-        if (!node.is()) {
-          ++count;
-        }
+    int count = 0;
+    for (AstCursor cursor = new AstCursor().reset(root); cursor.next();) {
+      if (!cursor.current().is()) {
+        ++count;
       }
     }
-
-    CountingConsumer consumer = new CountingConsumer();
-    Asts.traverse(root, consumer);
-    return consumer.count;
+    return count;
   }
 
   /** When two duplicate "is not" nodes are present,
@@ -69,93 +72,209 @@ static AstNode removeDuplicateNotNodes(AstNode root) {
         : workingRoot;
   }
 
-  /** Merges the value array of two nodes, removing duplicates. */
-  static AstNode mergeNodes(AstNode left, AstNode right) {
-    assert left.op == right.op;
-    switch (left.op) {
+  /** Merges the value arrays of a run of nodes of the same type into a
+   * single node. Takes time proportional to the total number of values. */
+  @SuppressWarnings("rawtypes")
+  static AstNode mergeNodes(List<AstNode> nodes) {
+    final Op op = nodes.get(0).op;
+    switch (op) {
     case EQ:
-      final Ast.Comparison left2 = (Ast.Comparison) left;
-      final Ast.Comparison right2 = (Ast.Comparison) right;
-      return ast.comparison(left2.is & right2.is, left.op,
-          Iterables.concat(left2.value, right2.value));
+      boolean is = true;
+      final List<List<Comparable>> values = new ArrayList<>(nodes.size());
+      for (AstNode node : nodes) {
+        assert node.op == op;
+        final Ast.Comparison comparison = (Ast.Comparison) node;
+        is &= comparison.is;
+        values.add(comparison.value);
+      }
+      return ast.comparison(is, op, DecimalList.concat(values));
 
     default:
-      throw new AssertionError(left.op);
+      throw new AssertionError(op);
     }
   }
 
-  /** Returns whether the left && right.left children of this node are of the
-   * same type and can be merged. */
-  static boolean canMergeLeftNodes(Ast.@Nullable Comparison left,
-      Ast.@Nullable Call2 right, Op compareType,
-      boolean allowDifferentIsValue) {
-    return left != null
-        && right != null
-        && right.left != null
-        && left.op == right.left.op
-        && left.op == compareType
-        && (left.is() == right.left.is() || allowDifferentIsValue);
-  }
-
-  /** Returns whether the left && right children of node are of the same type
-   * and can be merged. */
-  static boolean canMergeEndNodes(Ast.@Nullable Comparison left,
-      Ast.@Nullable Comparison right, Op compareType,
+  /** Returns whether a term of a logical expression can be merged with the
+   * first term of the run that precedes it. */
+  static boolean canMerge(AstNode left, AstNode right, Op compareType,
       boolean allowDifferentIsValue) {
-    return left != null
-        && right != null
+    return left instanceof Ast.Comparison
+        && right instanceof Ast.Comparison
         && left.op == right.op
         && left.op == compareType
         && (left.is() == right.is() || allowDifferentIsValue);
   }
 
-  /** Traverses AST and merges nodes of the same multi value type. */
-  static AstNode mergeNodesWithSameType(AstNode root, Op compareType,
-      boolean allowDifferentIsValue) {
-    AstNode node = root;
-
-    while (node instanceof Ast.Call2
-        && ((Ast.Call2) node).left instanceof Ast.Comparison
-        && ((Ast.Call2) node).right instanceof Ast.Call2
-        && canMergeLeftNodes((Ast.Comparison) ((Ast.Call2) node).left,
-            (Ast.Call2) ((Ast.Call2) node).right, compareType,
-            allowDifferentIsValue)) {
-      final Ast.Call2 node2 = (Ast.Call2) node;
-      final Ast.Comparison left = (Ast.Comparison) node2.left;
-      final Ast.Call2 right = (Ast.Call2) node2.right;
-      final AstNode newLeft = mergeNodes(left, right.left);
-      final AstNode newRight = right.right;
-      node = new Ast.Call2(node2.op, newLeft, newRight);
-    }
-
-    if (node instanceof Ast.Call2
-        && ((Ast.Call2) node).left instanceof Ast.Comparison
-        && ((Ast.Call2) node).right instanceof Ast.Comparison
-        && canMergeEndNodes((Ast.Comparison) ((Ast.Call2) node).left,
-            (Ast.Comparison) ((Ast.Call2) node).right,
-            compareType, allowDifferentIsValue)) {
-      final Ast.Call2 node2 = (Ast.Call2) node;
-      node = mergeNodes(node2.left, node2.right);
-    }
-    return node;
-  }
-
   /** Transforms the AST by combining sequential nodes of the same type into a
    * single node. Used for merging number('=') and string('match') nodes of same
-   * type. */
+   * type.
+   *
+   * <p>Makes one pass over the terms of the logical expression, finding runs
+   * of terms that can be merged, and merges each run in one step; so the
+   * cost is linear in the number of values. Does not modify
+   * {@code root}. */
   public static AstNode mergeMultiValueNodes(AstNode root, Op type,
       boolean mergeDifferentIsValue) {
-    final AstNode workingRoot =
-        mergeNodesWithSameType(root, type, mergeDifferentIsValue);
-    AstNode pointer = workingRoot;
-    while (pointer instanceof Ast.Call2
-        && ((Ast.Call2) pointer).right != null) {
-      ((Ast.Call2) pointer).right =
-          mergeNodesWithSameType(((Ast.Call2) pointer).right, type,
-              mergeDifferentIsValue);
-      pointer = ((Ast.Call2) pointer).right;
-    }
-    return workingRoot;
+    if (!(root instanceof Ast.CallN)) {
+      return root;
+    }
+    final List<AstNode> args = ((Ast.CallN) root).args;
+    final List<AstNode> list = new ArrayList<>();
+    for (int i = 0; i < args.size();) {
+      final AstNode first = args.get(i);
+      int j = i + 1;
+      while (j < args.size()
+          && canMerge(first, args.get(j), type, mergeDifferentIsValue)) {
+        ++j;
+      }
+      list.add(j == i + 1 ? first : mergeNodes(args.subList(i, j)));
+      i = j;
+    }
+    return list.size() == args.size()
+        ? root
+        : ast.logicalExpression(list);
+  }
+
+  /**
+   * Returns the canonical form of an AST.
+   *
+   * <p>Expressions that are semantically equal but written differently, such
+   * as "1,2" and "2, 1, 2.0", have canonical forms that are equal, and
+   * therefore have the same {@link Asts#fingerprint(AstNode) fingerprint}.
+   * The canonical form:
+   *
+   * <ul>
+   *   <li>merges the values of all '=' terms into a single '=' term, and of
+   *   all 'not =' terms into a single 'not =' term;</li>
+   *   <li>sorts the values of '=' terms and removes duplicates;</li>
+   *   <li>removes trailing zeros from the fractional part of numbers, so that
+   *   "2.0" becomes "2";</li>
+   *   <li>converts a closed range whose bounds are equal, such as
+   *   "[5, 5]", to '=';</li>
+   *   <li>sorts the terms of a logical expression, and removes duplicate
+   *   terms.</li>
+   * </ul>
+   *
+   * <p>Does not modify {@code root}. The canonical form is intended for
+   * comparison and hashing; it may unparse to an expression that is
+   * different from, although equivalent to, the original.
+   */
+  @SuppressWarnings("rawtypes")
+  public static AstNode canonicalize(AstNode root) {
+    if (!(root instanceof Ast.CallN)) {
+      return canonicalizeTerm(root);
+    }
+    final Ast.CallN call = (Ast.CallN) root;
+    final List<Comparable> values = new ArrayList<>();
+    final List<Comparable> notValues = new ArrayList<>();
+    final List<AstNode> terms = new ArrayList<>();
+    for (AstNode arg : call.args) {
+      // Canonicalize each term before merging, because a term such as
+      // "[5, 5]" becomes '=' and must be merged with the other '=' terms.
+      final AstNode term =
+          arg.op == Op.EQ && arg instanceof Ast.Comparison
+              ? arg
+              : canonicalize(arg);
+      if (term.op == Op.EQ && term instanceof Ast.Comparison) {
+        (term.is() ? values : notValues)
+            .addAll(((Ast.Comparison) term).value);
+      } else {
+        terms.add(term);
+      }
+    }
+    if (!values.isEmpty()) {
+      terms.add(canonicalizeTerm(ast.comparison(true, Op.EQ, values)));
+    }
+    if (!notValues.isEmpty()) {
+      terms.add(canonicalizeTerm(ast.comparison(false, Op.EQ, notValues)));
+    }
+
+    // Sort terms by operator, then by fingerprint, and remove duplicates.
+    final List<Pair<Long, AstNode>> keyedTerms = new ArrayList<>();
+    for (AstNode term : terms) {
+      keyedTerms.add(Pair.of(Asts.fingerprint(term).asLong(), term));
+    }
+    keyedTerms.sort(
+        Comparator.<Pair<Long, AstNode>>comparingInt(p -> p.right.op.ordinal())
+            .thenComparing(p -> p.right.is())
+            .thenComparing(p -> p.left));
+    final List<AstNode> list = new ArrayList<>();
+    for (Pair<Long, AstNode> p : keyedTerms) {
+      if (list.isEmpty() || !list.get(list.size() - 1).equals(p.right)) {
+        list.add(p.right);
+      }
+    }
+    return list.size() == 1 ? list.get(0) : ast.logicalExpression(list);
+  }
+
+  /** Returns the canonical form of a term that is not a logical
+   * expression. */
+  @SuppressWarnings("rawtypes")
+  private static AstNode canonicalizeTerm(AstNode node) {
+    if (node instanceof Ast.Comparison) {
+      final Ast.Comparison comparison = (Ast.Comparison) node;
+      final List<Comparable> values =
+          canonicalizeValues(comparison.value, node.op == Op.EQ);
+      return values == null ? node
+          : ast.comparison(comparison.is, node.op, values);
+    }
+    if (node instanceof Ast.NumericRange) {
+      final Ast.NumericRange range = (Ast.NumericRange) node;
+      final BigDecimal left = Decimals.normalize(range.left());
+      final BigDecimal right = Decimals.normalize(range.right());
+      if (node.op == Op.CLOSED_CLOSED && left.equals(right)) {
+        return ast.comparison(range.is, Op.EQ, left);
+      }
+      return ast.between(range.is,
+          node.op.containsLowerBound() ? Bound.CLOSED : Bound.OPEN,
+          node.op.containsUpperBound() ? Bound.CLOSED : Bound.OPEN,
+          left, right);
+    }
+    return node;
+  }
+
+  /** Normalizes a list of numeric values, and if {@code sort}, sorts them and
+   * removes duplicates. Returns null if the values are not all numbers.
+   *
+   * <p>If every value fits in a long and has the same scale after
+   * normalization, as is usual for a long list of integers, sorts the packed
+   * values without creating any objects. */
+  @SuppressWarnings("rawtypes")
+  private static @Nullable List<Comparable> canonicalizeValues(
+      List<Comparable> values, boolean sort) {
+    if (values instanceof DecimalList) {
+      final DecimalList decimals = (DecimalList) values;
+      final long[] packed = new long[decimals.size()];
+      boolean sameScale = true;
+      for (int i = 0; i < packed.length; i++) {
+        packed[i] = Decimals.normalize(decimals.getPacked(i));
+        sameScale &= Decimals.scale(packed[i]) == Decimals.scale(packed[0]);
+      }
+      if (sameScale) {
+        int count = packed.length;
+        if (sort) {
+          Arrays.sort(packed);
+          count = 0;
+          for (int i = 0; i < packed.length; i++) {
+            if (count == 0 || packed[i] != packed[count - 1]) {
+              packed[count++] = packed[i];
+            }
+          }
+        }
+        return DecimalList.copyOf(packed, count);
+      }
+    }
+    final List<BigDecimal> list = new ArrayList<>(values.size());
+    for (Comparable value : values) {
+      if (!(value instanceof BigDecimal)) {
+        return null;
+      }
+      list.add(Decimals.normalize((BigDecimal) value));
+    }
+    if (sort) {
+      return new ArrayList<Comparable>(ImmutableSortedSet.copyOf(list));
+    }
+    return new ArrayList<>(list);
   }
 
   /**
@@ -186,23 +305,90 @@ public static AstNode locationTransform(AstNode root) {
    * <ul>
    *   <li>combine the value array on nodes of type '='</li>
    * </ul>
+   *
+   * <p>A parsed number AST is a single term or a logical expression whose
+   * arguments are terms, and for such trees the transform is done in one
+   * pass over the terms, building at most one new list; the cost is linear
+   * in the number of terms. Other trees use {@link #countNots},
+   * {@link #mergeMultiValueNodes} and {@link #removeDuplicateNotNodes}. Does
+   * not modify {@code root}.
    */
   public static AstNode numberTransform(AstNode root) {
+    final List<AstNode> args =
+        root instanceof Ast.CallN ? ((Ast.CallN) root).args
+            : Collections.singletonList(root);
+    int countOfNotNodes = 0;
+    for (AstNode arg : args) {
+      if (arg instanceof Ast.Call1
+          || arg instanceof Ast.Call2
+          || arg instanceof Ast.CallN) {
+        return numberTransformSlow(root);
+      }
+      if (!arg.is()) {
+        ++countOfNotNodes;
+      }
+    }
+
     // workaround for inconsistency in number filter and allow merging of nodes
     // with different 'is' value: 1, not 2 -> becomes
     // a single filter node { type: '=', is: false, value: [1, 2] }
-    final int countOfNotNodes = countNots(root);
     final boolean mergeNodesWithDifferentIsValue = countOfNotNodes == 1;
 
-    final AstNode mergedRoot =
-        mergeMultiValueNodes(root,
-            Op.EQ,
-            mergeNodesWithDifferentIsValue);
-
     // if there are two "is not" nodes check if they are duplicates
     // to undo the "fix" applied when serializing the number filter
     final boolean checkForDuplicates = countOfNotNodes == 2;
-    return checkForDuplicates
+
+    // Merge runs of '=' terms, and remember where the "is not" terms are
+    final List<AstNode> list = new ArrayList<>();
+    int firstNot = -1;
+    int secondNot = -1;
+    int notCount = 0;
+    for (int i = 0; i < args.size();) {
+      final AstNode first = args.get(i);
+      int j = i + 1;
+      while (j < args.size()
+          && canMerge(first, args.get(j), Op.EQ,
+              mergeNodesWithDifferentIsValue)) {
+        ++j;
+      }
+      final AstNode term =
+          j == i + 1 ? first : mergeNodes(args.subList(i, j));
+      if (!term.is()) {
+        if (notCount++ == 0) {
+          firstNot = list.size();
+        } else {
+          secondNot = list.size();
+        }
+      }
+      list.add(term);
+      i = j;
+    }
+    final AstNode mergedRoot =
+        list.size() == args.size() ? root : ast.logicalExpression(list);
+    if (!checkForDuplicates) {
+      return mergedRoot;
+    }
+
+    // Number the tree, as removeDuplicateNotNodes would, and remove the
+    // second of two equal "is not" terms
+    final AstNode workingRoot =
+        mergedRoot.id != null ? mergedRoot : Asts.renumber(mergedRoot);
+    if (notCount != 2 || !list.get(firstNot).equals(list.get(secondNot))) {
+      return workingRoot;
+    }
+    final List<AstNode> numberedArgs =
+        new ArrayList<>(((Ast.CallN) workingRoot).args);
+    numberedArgs.remove(secondNot);
+    return ast.logicalExpression(numberedArgs);
+  }
+
+  /** Applies {@link #numberTransform} to a tree whose terms are not all
+   * simple, making several passes. */
+  private static AstNode numberTransformSlow(AstNode root) {
+    final int countOfNotNodes = countNots(root);
+    final AstNode mergedRoot =
+        mergeMultiValueNodes(root, Op.EQ, countOfNotNodes == 1);
+    return countOfNotNodes == 2
         ? removeDuplicateNotNodes(mergedRoot)
         : mergedRoot;
   }
@@ -31,8 +31,13 @@ public enum TypeFamily {
 
   public String describe(AstNode node) {
     switch (this) {
+    case DATE:
+    case DATE_TIME:
+      return Summary.describeDate(node);
     case LOCATION:
       return Summary.describeLocation(node);
+    case NUMBER:
+      return Summary.describeNumber(node);
     default:
       throw new UnsupportedOperationException("unexpected: " + this);
     }
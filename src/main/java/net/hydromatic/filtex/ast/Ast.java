@@ -17,11 +17,11 @@
 package net.hydromatic.filtex.ast;
 
 import com.google.common.collect.ImmutableList;
+import com.google.common.hash.PrimitiveSink;
 
 import org.checkerframework.checker.nullness.qual.Nullable;
 
 import java.math.BigDecimal;
-import java.math.RoundingMode;
 import java.util.List;
 import java.util.Objects;
 
@@ -34,35 +34,44 @@ public class Ast {
   private Ast() {
   }
 
-  /** Date literal. */
+  /** Date literal.
+   *
+   * <p>The year, quarter, month, day and time are packed into
+   * {@link #date}; see {@link DateTimes}. */
   public static class DateLiteral extends AstNode {
-    public final int year;
-    public final @Nullable Integer quarter;
-    public final @Nullable Integer month;
-    public final @Nullable Integer day;
-    private final @Nullable Integer hour;
-    private final @Nullable Integer minute;
-    private final @Nullable Integer second;
-
-    public DateLiteral(Op op, int year, @Nullable Integer quarter,
-        @Nullable Integer month, @Nullable Integer day, @Nullable Integer hour,
-        @Nullable Integer minute, @Nullable Integer second) {
+    public final long date;
+
+    public DateLiteral(Op op, long date) {
       super(Pos.ZERO, op);
-      this.year = year;
-      this.quarter = quarter;
-      this.month = month;
-      this.day = day;
-      this.hour = hour;
-      this.minute = minute;
-      this.second = second;
+      this.date = date;
+    }
+
+    @Override protected boolean equalsNode(AstNode node) {
+      final DateLiteral that = (DateLiteral) node;
+      return op == that.op
+          && date == that.date;
+    }
+
+    @Override protected int computeHashCode() {
+      return Objects.hash(op, date);
+    }
+
+    @Override public PrimitiveSink fingerprint(PrimitiveSink sink) {
+      super.fingerprint(sink);
+      return sink.putLong(date);
     }
 
     @Override public Digester digest(Digester digester) {
+      final DateTimes.Precision precision = DateTimes.precision(date);
       return super.digest(digester)
-          .put(op == Op.ON ? "date.year" : "year", year)
-          .putIf(op == Op.ON ? "date.month" : "month", month)
-          .putIf(op == Op.ON ? "date.day" : "day", day)
-          .putIf("quarter.quarter", quarter);
+          .put(op == Op.ON ? "date.year" : "year", DateTimes.year(date))
+          .putIf(op == Op.ON ? "date.month" : "month",
+              precision.hasMonth() ? DateTimes.month(date) : null)
+          .putIf(op == Op.ON ? "date.day" : "day",
+              precision.hasDay() ? DateTimes.day(date) : null)
+          .putIf("quarter.quarter",
+              precision == DateTimes.Precision.QUARTER
+                  ? DateTimes.quarter(date) : null);
     }
 
     @Override public AstWriter unparse(AstWriter writer) {
@@ -83,6 +92,21 @@ public DayLiteral(String day) {
       this.day = day;
     }
 
+    @Override protected boolean equalsNode(AstNode node) {
+      final DayLiteral that = (DayLiteral) node;
+      return day.equals(that.day);
+    }
+
+    @Override protected int computeHashCode() {
+      return Objects.hash(day);
+    }
+
+    @Override public PrimitiveSink fingerprint(PrimitiveSink sink) {
+      super.fingerprint(sink);
+      putString(sink, day);
+      return sink;
+    }
+
     @Override public Digester digest(Digester digester) {
       return super.digest(digester)
           .put("day", day);
@@ -108,17 +132,22 @@ public static class Interval extends AstNode {
       this.value = value;
     }
 
-    @Override public boolean equals(Object o) {
-      return o == this
-          || o instanceof Interval
-          && value.equals(((Interval) o).value)
-          && unit == ((Interval) o).unit;
+    @Override protected boolean equalsNode(AstNode node) {
+      final Interval that = (Interval) node;
+      return value.equals(that.value)
+          && unit == that.unit;
     }
 
-    @Override public int hashCode() {
+    @Override protected int computeHashCode() {
       return Objects.hash(value, unit);
     }
 
+    @Override public PrimitiveSink fingerprint(PrimitiveSink sink) {
+      super.fingerprint(sink);
+      Decimals.fingerprint(sink, value);
+      return sink.putInt(unit.ordinal());
+    }
+
     @Override public Digester digest(Digester digester) {
       return super.digest(digester)
           .put("unit", unit.singular)
@@ -134,21 +163,39 @@ public static class Interval extends AstNode {
     }
   }
 
-  /** Date range, e.g. "2018/05/10 to 2018/05/13". */
+  /** Date range, e.g. "2018/05/10 to 2018/05/13".
+   *
+   * <p>The start and end are packed; see {@link DateTimes}. */
   public static class Range extends AstNode {
-    public final Date start;
-    public final Date end;
+    public final long start;
+    public final long end;
 
-    Range(Date start, Date end) {
+    Range(long start, long end) {
       super(Pos.ZERO, Op.RANGE);
       this.start = start;
       this.end = end;
     }
 
+    @Override protected boolean equalsNode(AstNode node) {
+      final Range that = (Range) node;
+      return start == that.start
+          && end == that.end;
+    }
+
+    @Override protected int computeHashCode() {
+      return Objects.hash(start, end);
+    }
+
+    @Override public PrimitiveSink fingerprint(PrimitiveSink sink) {
+      super.fingerprint(sink);
+      sink.putLong(start);
+      return sink.putLong(end);
+    }
+
     @Override public Digester digest(Digester digester) {
       return super.digest(digester)
-          .sub("end", end)
-          .sub("start", start);
+          .date("end", end)
+          .date("start", start);
     }
 
     @Override public AstWriter unparse(AstWriter writer) {
@@ -162,19 +209,36 @@ public static class Range extends AstNode {
 
   /** Date range based on interval, e.g. "2018/05/10 for 3 days". */
   public static class RangeInterval extends AstNode {
-    public final Date start;
+    public final long start;
     public final Ast.Interval end;
 
-    RangeInterval(Date start, Ast.Interval end) {
+    RangeInterval(long start, Ast.Interval end) {
       super(Pos.ZERO, Op.RANGE_INTERVAL);
       this.start = start;
       this.end = end;
     }
 
+    @Override protected boolean equalsNode(AstNode node) {
+      final RangeInterval that = (RangeInterval) node;
+      return start == that.start
+          && end.equals(that.end);
+    }
+
+    @Override protected int computeHashCode() {
+      return Objects.hash(start, end);
+    }
+
+    @Override public PrimitiveSink fingerprint(PrimitiveSink sink) {
+      super.fingerprint(sink);
+      sink.putLong(start);
+      end.fingerprint(sink);
+      return sink;
+    }
+
     @Override public Digester digest(Digester digester) {
       return super.digest(digester)
           .sub("end", end)
-          .sub("start", start);
+          .date("start", start);
     }
 
     @Override public AstWriter unparse(AstWriter writer) {
@@ -199,6 +263,25 @@ public static class MonthInterval extends AstNode {
       this.end = end;
     }
 
+    @Override protected boolean equalsNode(AstNode node) {
+      final MonthInterval that = (MonthInterval) node;
+      return year == that.year
+          && month == that.month
+          && end.equals(that.end);
+    }
+
+    @Override protected int computeHashCode() {
+      return Objects.hash(year, month, end);
+    }
+
+    @Override public PrimitiveSink fingerprint(PrimitiveSink sink) {
+      super.fingerprint(sink);
+      sink.putInt(year);
+      sink.putInt(month);
+      end.fingerprint(sink);
+      return sink;
+    }
+
     @Override public Digester digest(Digester digester) {
       return super.digest(digester)
           .sub("end", end)
@@ -220,10 +303,33 @@ public static class Point extends AstNode {
     public final Location location;
 
     protected Point(Location location) {
-      super(Pos.ZERO, Op.POINT);
+      this(location, null);
+    }
+
+    private Point(Location location, @Nullable Integer id) {
+      super(Pos.ZERO, Op.POINT, id);
       this.location = location;
     }
 
+    @Override protected boolean equalsNode(AstNode node) {
+      final Point that = (Point) node;
+      return location.equals(that.location);
+    }
+
+    @Override protected int computeHashCode() {
+      return Objects.hash(location);
+    }
+
+    @Override public PrimitiveSink fingerprint(PrimitiveSink sink) {
+      super.fingerprint(sink);
+      location.fingerprint(sink);
+      return sink;
+    }
+
+    @Override AstNode copy(@Nullable Integer id, List<AstNode> children) {
+      return new Point(location, id);
+    }
+
     @Override public Digester digest(Digester digester) {
       return super.digest(digester)
           .put("lat", location.latitude)
@@ -245,11 +351,36 @@ public static class Box extends AstNode {
     public final Location to;
 
     protected Box(Location from, Location to) {
-      super(Pos.ZERO, Op.BOX);
+      this(from, to, null);
+    }
+
+    private Box(Location from, Location to, @Nullable Integer id) {
+      super(Pos.ZERO, Op.BOX, id);
       this.from = from;
       this.to = to;
     }
 
+    @Override protected boolean equalsNode(AstNode node) {
+      final Box that = (Box) node;
+      return from.equals(that.from)
+          && to.equals(that.to);
+    }
+
+    @Override protected int computeHashCode() {
+      return Objects.hash(from, to);
+    }
+
+    @Override public PrimitiveSink fingerprint(PrimitiveSink sink) {
+      super.fingerprint(sink);
+      from.fingerprint(sink);
+      to.fingerprint(sink);
+      return sink;
+    }
+
+    @Override AstNode copy(@Nullable Integer id, List<AstNode> children) {
+      return new Box(from, to, id);
+    }
+
     @Override public Digester digest(Digester digester) {
       return super.digest(digester)
           .put("lat", from.latitude)
@@ -259,24 +390,13 @@ protected Box(Location from, Location to) {
     }
 
     @Override public AstWriter unparse(AstWriter writer) {
-      appendDegrees(writer, from.latitude, "°S", "°N");
-      writer.append(", ");
-      appendDegrees(writer, from.longitude, "°W", "°E");
-      writer.append(" to ");
-      appendDegrees(writer, to.latitude, "°S", "°N");
-      writer.append(", ");
-      appendDegrees(writer, to.longitude, "°W", "°E");
-      return writer;
-    }
-
-    private void appendDegrees(AstWriter w, BigDecimal v, String neg,
-        String pos) {
-      v = v.setScale(1, RoundingMode.HALF_EVEN);
-      if (v.signum() < 0) {
-        w.appendLiteral(v.negate()).append(neg);
-      } else {
-        w.appendLiteral(v).append(pos);
-      }
+      return writer.appendDegrees(from.latitude, "°S", "°N")
+          .append(", ")
+          .appendDegrees(from.longitude, "°W", "°E")
+          .append(" to ")
+          .appendDegrees(to.latitude, "°S", "°N")
+          .append(", ")
+          .appendDegrees(to.longitude, "°W", "°E");
     }
 
     @Override public void accept(AstVisitor visitor, @Nullable AstNode parent) {
@@ -290,12 +410,40 @@ public static class Circle extends AstNode {
     public final Location location;
 
     Circle(BigDecimal distance, Unit unit, Location location) {
-      super(Pos.ZERO, Op.CIRCLE);
+      this(distance, unit, location, null);
+    }
+
+    private Circle(BigDecimal distance, Unit unit, Location location,
+        @Nullable Integer id) {
+      super(Pos.ZERO, Op.CIRCLE, id);
       this.distance = distance;
       this.unit = unit;
       this.location = location;
     }
 
+    @Override protected boolean equalsNode(AstNode node) {
+      final Circle that = (Circle) node;
+      return distance.equals(that.distance)
+          && unit == that.unit
+          && location.equals(that.location);
+    }
+
+    @Override protected int computeHashCode() {
+      return Objects.hash(distance, unit, location);
+    }
+
+    @Override public PrimitiveSink fingerprint(PrimitiveSink sink) {
+      super.fingerprint(sink);
+      Decimals.fingerprint(sink, distance);
+      sink.putInt(unit.ordinal());
+      location.fingerprint(sink);
+      return sink;
+    }
+
+    @Override AstNode copy(@Nullable Integer id, List<AstNode> children) {
+      return new Circle(distance, unit, location, id);
+    }
+
     @Override public Digester digest(Digester digester) {
       return super.digest(digester)
           .put("distance", distance)
@@ -322,11 +470,48 @@ public static class Comparison extends AstNode {
     public final List<Comparable> value;
 
     Comparison(boolean is, Op op, List<Comparable> value) {
-      super(Pos.ZERO, op);
+      this(is, op, value, null);
+    }
+
+    private Comparison(boolean is, Op op, List<Comparable> value,
+        @Nullable Integer id) {
+      super(Pos.ZERO, op, id);
       this.is = is;
       this.value = value;
     }
 
+    @Override protected boolean equalsNode(AstNode node) {
+      final Comparison that = (Comparison) node;
+      return op == that.op
+          && is == that.is
+          && value.equals(that.value);
+    }
+
+    @Override protected int computeHashCode() {
+      return Objects.hash(op, is, value);
+    }
+
+    @Override public PrimitiveSink fingerprint(PrimitiveSink sink) {
+      super.fingerprint(sink);
+      sink.putBoolean(is);
+      sink.putInt(value.size());
+      if (value instanceof DecimalList) {
+        final DecimalList decimals = (DecimalList) value;
+        for (int i = 0; i < decimals.size(); i++) {
+          Decimals.fingerprint(sink, decimals.getPacked(i));
+        }
+      } else {
+        for (Comparable v : value) {
+          putValue(sink, v);
+        }
+      }
+      return sink;
+    }
+
+    @Override AstNode copy(@Nullable Integer id, List<AstNode> children) {
+      return new Comparison(is, op, value, id);
+    }
+
     @Override public boolean is() {
       return is;
     }
@@ -335,12 +520,41 @@ public static class Comparison extends AstNode {
       return value;
     }
 
+    @Override public String valueString() {
+      if (value instanceof DecimalList) {
+        return ((DecimalList) value).appendTo(new StringBuilder()).toString();
+      }
+      return super.valueString();
+    }
+
     @Override public void accept(AstVisitor visitor, @Nullable AstNode parent) {
       visitor.visit(this, parent);
     }
 
     @Override public AstWriter unparse(AstWriter writer) {
-      return writer.append(valueString());
+      // Same as valueString(), without creating a string
+      if (value instanceof DecimalList) {
+        final DecimalList decimals = (DecimalList) value;
+        for (int i = 0; i < decimals.size(); i++) {
+          if (i > 0) {
+            writer.append(',');
+          }
+          writer.appendDecimal(decimals.getPacked(i), null);
+        }
+        return writer;
+      }
+      String sep = "";
+      for (Comparable comparable : value) {
+        writer.append(sep).append(String.valueOf(comparable));
+        sep = ",";
+      }
+      return writer;
+    }
+
+    @Override public Digester digest(Digester digester) {
+      return super.digest(digester)
+          .putIf("is", is ? null : false)
+          .put("value", valueString());
     }
   }
 
@@ -349,10 +563,33 @@ public static class Call0 extends AstNode {
     final boolean is;
 
     Call0(Op op, boolean is) {
-      super(Pos.ZERO, op);
+      this(op, is, null);
+    }
+
+    private Call0(Op op, boolean is, @Nullable Integer id) {
+      super(Pos.ZERO, op, id);
       this.is = is;
     }
 
+    @Override protected boolean equalsNode(AstNode node) {
+      final Call0 that = (Call0) node;
+      return op == that.op
+          && is == that.is;
+    }
+
+    @Override protected int computeHashCode() {
+      return Objects.hash(op, is);
+    }
+
+    @Override public PrimitiveSink fingerprint(PrimitiveSink sink) {
+      super.fingerprint(sink);
+      return sink.putBoolean(is);
+    }
+
+    @Override AstNode copy(@Nullable Integer id, List<AstNode> children) {
+      return new Call0(op, is, id);
+    }
+
     @Override public boolean is() {
       return is;
     }
@@ -371,6 +608,11 @@ public static class Call0 extends AstNode {
       }
     }
 
+    @Override public Digester digest(Digester digester) {
+      return super.digest(digester)
+          .putIf("is", is ? null : false);
+    }
+
     @Override public void accept(AstVisitor visitor, @Nullable AstNode parent) {
       visitor.visit(this, parent);
     }
@@ -382,11 +624,45 @@ public static class Call1 extends AstNode {
     public final AstNode node;
 
     Call1(Op op, boolean is, AstNode node) {
-      super(Pos.ZERO, op);
+      this(op, is, node, null);
+    }
+
+    private Call1(Op op, boolean is, AstNode node, @Nullable Integer id) {
+      super(Pos.ZERO, op, id);
       this.is = is;
       this.node = node;
     }
 
+    @Override protected boolean equalsNode(AstNode node) {
+      final Call1 that = (Call1) node;
+      return op == that.op
+          && is == that.is
+          && this.node.equals(that.node);
+    }
+
+    @Override protected int computeHashCode() {
+      return Objects.hash(op, is, node);
+    }
+
+    @Override public PrimitiveSink fingerprint(PrimitiveSink sink) {
+      super.fingerprint(sink);
+      sink.putBoolean(is);
+      node.fingerprint(sink);
+      return sink;
+    }
+
+    @Override List<AstNode> children() {
+      return ImmutableList.of(node);
+    }
+
+    @Override AstNode copy(@Nullable Integer id, List<AstNode> children) {
+      return new Call1(op, is, children.get(0), id);
+    }
+
+    @Override public boolean is() {
+      return is;
+    }
+
     @Override public void accept(AstVisitor visitor, @Nullable AstNode parent) {
       visitor.visit(this, parent);
     }
@@ -399,51 +675,228 @@ public static class Call1 extends AstNode {
       writer.append(op.s);
       return writer.append(")");
     }
+
+    @Override public Digester digest(Digester digester) {
+      return super.digest(digester)
+          .putIf("is", is ? null : false)
+          .sub("node", node);
+    }
   }
 
   /** Call with two arguments, optionally negated. */
   public static class Call2 extends AstNode {
     public final AstNode left;
-    public AstNode right;
+    public final AstNode right;
 
     public Call2(Op op, AstNode left, AstNode right) {
-      super(Pos.ZERO, op);
+      this(op, left, right, null);
+    }
+
+    private Call2(Op op, AstNode left, AstNode right, @Nullable Integer id) {
+      super(Pos.ZERO, op, id);
       this.left = left;
       this.right = right;
     }
 
+    @Override protected boolean equalsNode(AstNode node) {
+      final Call2 that = (Call2) node;
+      return op == that.op
+          && left.equals(that.left)
+          && right.equals(that.right);
+    }
+
+    @Override protected int computeHashCode() {
+      return Objects.hash(op, left, right);
+    }
+
+    @Override public PrimitiveSink fingerprint(PrimitiveSink sink) {
+      super.fingerprint(sink);
+      left.fingerprint(sink);
+      right.fingerprint(sink);
+      return sink;
+    }
+
+    @Override List<AstNode> children() {
+      return ImmutableList.of(left, right);
+    }
+
+    @Override AstNode copy(@Nullable Integer id, List<AstNode> children) {
+      return new Call2(op, children.get(0), children.get(1), id);
+    }
+
     @Override public AstWriter unparse(AstWriter writer) {
       return writer.infix(left, op, right);
     }
 
+    @Override public Digester digest(Digester digester) {
+      return super.digest(digester)
+          .sub("left", left)
+          .sub("right", right);
+    }
+
     @Override public void accept(AstVisitor visitor, AstNode parent) {
       visitor.visit(this, parent);
     }
   }
 
-  /** Numeric range. */
+  /** Call with two or more arguments, such as the logical expression
+   * "1, 3, 5, > 10".
+   *
+   * <p>Its digest and unparsed form are the same as a right-deep tree of
+   * {@link Call2}, "{1,{3,{5,>10}}}", but it is traversed by iterating over
+   * {@link #args}, and so long expressions do not exhaust the stack. */
+  public static class CallN extends AstNode {
+    public final ImmutableList<AstNode> args;
+
+    CallN(Op op, Iterable<? extends AstNode> args) {
+      this(op, args, null);
+    }
+
+    private CallN(Op op, Iterable<? extends AstNode> args,
+        @Nullable Integer id) {
+      super(Pos.ZERO, op, id);
+      this.args = ImmutableList.copyOf(args);
+      checkArgument(this.args.size() >= 2, "too few arguments: %s",
+          this.args.size());
+    }
+
+    @Override protected boolean equalsNode(AstNode node) {
+      final CallN that = (CallN) node;
+      return op == that.op
+          && args.equals(that.args);
+    }
+
+    @Override protected int computeHashCode() {
+      return Objects.hash(op, args);
+    }
+
+    @Override public PrimitiveSink fingerprint(PrimitiveSink sink) {
+      super.fingerprint(sink);
+      sink.putInt(args.size());
+      for (AstNode arg : args) {
+        arg.fingerprint(sink);
+      }
+      return sink;
+    }
+
+    @Override List<AstNode> children() {
+      return args;
+    }
+
+    @Override AstNode copy(@Nullable Integer id, List<AstNode> children) {
+      return new CallN(op, children, id);
+    }
+
+    @Override public AstWriter unparse(AstWriter writer) {
+      final int n = args.size();
+      for (int i = 0; i < n - 1; i++) {
+        writer.append("{");
+        args.get(i).unparse(writer);
+        writer.append(op.s);
+      }
+      args.get(n - 1).unparse(writer);
+      for (int i = 0; i < n - 1; i++) {
+        writer.append("}");
+      }
+      return writer;
+    }
+
+    @Override public Digester digest(Digester digester) {
+      Digester d = digester;
+      for (int i = 0; i < args.size() - 1; i++) {
+        d = super.digest(d)
+            .sub("left", args.get(i))
+            .plus("right");
+      }
+      args.get(args.size() - 1).digest(d);
+      return digester;
+    }
+
+    @Override public void accept(AstVisitor visitor, @Nullable AstNode parent) {
+      visitor.visit(this, parent);
+    }
+  }
+
+  /** Numeric range.
+   *
+   * <p>Each bound is stored packed into a long (see {@link Decimals}), or as
+   * a {@link BigDecimal} if it does not fit. */
   public static class NumericRange extends AstNode {
     public final boolean is;
-    public final BigDecimal left;
-    public final BigDecimal right;
+    private final long left;
+    private final long right;
+    private final @Nullable BigDecimal bigLeft;
+    private final @Nullable BigDecimal bigRight;
 
-    NumericRange(Op op, String id, boolean is, BigDecimal left,
-        BigDecimal right) {
-      super(Pos.ZERO, op);
+    NumericRange(Op op, boolean is, long left, @Nullable BigDecimal bigLeft,
+        long right, @Nullable BigDecimal bigRight) {
+      this(op, is, left, bigLeft, right, bigRight, null);
+    }
+
+    private NumericRange(Op op, boolean is, long left,
+        @Nullable BigDecimal bigLeft, long right,
+        @Nullable BigDecimal bigRight, @Nullable Integer id) {
+      super(Pos.ZERO, op, id);
       this.is = is;
-      this.left = requireNonNull(left);
-      this.right = requireNonNull(right);
+      this.left = left;
+      this.right = right;
+      this.bigLeft = left == Decimals.NONE ? requireNonNull(bigLeft) : null;
+      this.bigRight = right == Decimals.NONE ? requireNonNull(bigRight) : null;
+    }
+
+    @Override protected boolean equalsNode(AstNode node) {
+      final NumericRange that = (NumericRange) node;
+      return op == that.op
+          && is == that.is
+          && left == that.left
+          && right == that.right
+          && Objects.equals(bigLeft, that.bigLeft)
+          && Objects.equals(bigRight, that.bigRight);
+    }
+
+    @Override protected int computeHashCode() {
+      return Objects.hash(op, is, left, right, bigLeft, bigRight);
+    }
+
+    @Override public PrimitiveSink fingerprint(PrimitiveSink sink) {
+      super.fingerprint(sink);
+      sink.putBoolean(is);
+      Decimals.fingerprint(sink, left, bigLeft);
+      Decimals.fingerprint(sink, right, bigRight);
+      return sink;
+    }
+
+    @Override AstNode copy(@Nullable Integer id, List<AstNode> children) {
+      return new NumericRange(op, is, left, bigLeft, right, bigRight, id);
+    }
+
+    /** Returns the lower bound. */
+    public BigDecimal left() {
+      return bigLeft != null ? bigLeft : Decimals.toBigDecimal(left);
+    }
+
+    /** Returns the upper bound. */
+    public BigDecimal right() {
+      return bigRight != null ? bigRight : Decimals.toBigDecimal(right);
+    }
+
+    /** Returns the lower bound packed into a long, or {@link Decimals#NONE}
+     * if it does not fit. */
+    public long packedLeft() {
+      return left;
+    }
+
+    /** Returns the upper bound packed into a long, or {@link Decimals#NONE}
+     * if it does not fit. */
+    public long packedRight() {
+      return right;
     }
 
     @Override public AstWriter unparse(AstWriter writer) {
       writer.append(op.left);
-      if (left != null) {
-        writer.appendLiteral(left);
-      }
+      writer.appendDecimal(left, bigLeft);
       writer.append(",");
-      if (right != null) {
-        writer.appendLiteral(right);
-      }
+      writer.appendDecimal(right, bigRight);
       writer.append(op.right);
       return writer;
     }
@@ -469,24 +922,28 @@ public static class NumericRange extends AstNode {
     }
 
     @Override public Iterable<Comparable> value() {
-      return left != null && right != null
-          ? ImmutableList.of(left, right)
-          : left != null
-              ? ImmutableList.of(left)
-              : ImmutableList.of(right);
+      return ImmutableList.of(left(), right());
     }
 
     @Override public String low() {
-      return left == null ? "" : left.toString();
+      return bigLeft != null ? bigLeft.toString() : Decimals.toString(left);
     }
 
     @Override public String high() {
-      return right == null ? "" : right.toString();
+      return bigRight != null ? bigRight.toString() : Decimals.toString(right);
     }
 
     @Override public String bounds() {
       return op.s;
     }
+
+    @Override public Digester digest(Digester digester) {
+      return super.digest(digester)
+          .putIf("is", is ? null : false)
+          .put("bounds", bounds())
+          .put("low", left())
+          .put("high", right());
+    }
   }
 
   /** MatchesAdvanced. */
@@ -494,11 +951,30 @@ public static class NumericRange extends AstNode {
   public static class MatchesAdvanced extends AstNode {
     public final String expression;
 
-    MatchesAdvanced(String expression) {
-      super(Pos.ZERO, Op.MATCHES_ADVANCED);
+    MatchesAdvanced(String expression, @Nullable Integer id) {
+      super(Pos.ZERO, Op.MATCHES_ADVANCED, id);
       this.expression = expression;
     }
 
+    @Override protected boolean equalsNode(AstNode node) {
+      final MatchesAdvanced that = (MatchesAdvanced) node;
+      return expression.equals(that.expression);
+    }
+
+    @Override protected int computeHashCode() {
+      return Objects.hash(expression);
+    }
+
+    @Override public PrimitiveSink fingerprint(PrimitiveSink sink) {
+      super.fingerprint(sink);
+      putString(sink, expression);
+      return sink;
+    }
+
+    @Override AstNode copy(@Nullable Integer id, List<AstNode> children) {
+      return new MatchesAdvanced(expression, id);
+    }
+
     @Override public String expression() {
       return expression;
     }
@@ -510,19 +986,39 @@ public static class MatchesAdvanced extends AstNode {
     @Override public AstWriter unparse(AstWriter writer) {
       return writer.append(expression);
     }
+
+    @Override public Digester digest(Digester digester) {
+      return super.digest(digester)
+          .put("expression", expression);
+    }
   }
 
   public static class Absolute extends AstNode {
-    public final Date date;
+    public final long date;
 
-    Absolute(Date date, boolean before) {
+    Absolute(long date, boolean before) {
       super(Pos.ZERO, before ? Op.BEFORE : Op.AFTER);
       this.date = date;
     }
 
+    @Override protected boolean equalsNode(AstNode node) {
+      final Absolute that = (Absolute) node;
+      return op == that.op
+          && date == that.date;
+    }
+
+    @Override protected int computeHashCode() {
+      return Objects.hash(op, date);
+    }
+
+    @Override public PrimitiveSink fingerprint(PrimitiveSink sink) {
+      super.fingerprint(sink);
+      return sink.putLong(date);
+    }
+
     @Override public Digester digest(Digester digester) {
       return super.digest(digester)
-          .sub("date", date)
+          .date("date", date)
           .put("range", "absolute");
     }
 
@@ -548,6 +1044,25 @@ public static class RelativeRange extends AstNode {
       this.endInterval = endInterval;
     }
 
+    @Override protected boolean equalsNode(AstNode node) {
+      final RelativeRange that = (RelativeRange) node;
+      return fromNow == that.fromNow
+          && startInterval.equals(that.startInterval)
+          && endInterval.equals(that.endInterval);
+    }
+
+    @Override protected int computeHashCode() {
+      return Objects.hash(fromNow, startInterval, endInterval);
+    }
+
+    @Override public PrimitiveSink fingerprint(PrimitiveSink sink) {
+      super.fingerprint(sink);
+      sink.putBoolean(fromNow);
+      startInterval.fingerprint(sink);
+      endInterval.fingerprint(sink);
+      return sink;
+    }
+
     @Override public Digester digest(Digester digester) {
       return super.digest(digester)
           .put("intervalType", intervalType())
@@ -582,6 +1097,25 @@ public static class RelativeUnit extends AstNode {
       this.unit = unit;
     }
 
+    @Override protected boolean equalsNode(AstNode node) {
+      final RelativeUnit that = (RelativeUnit) node;
+      return op == that.op
+          && fromNow == that.fromNow
+          && value.equals(that.value)
+          && unit == that.unit;
+    }
+
+    @Override protected int computeHashCode() {
+      return Objects.hash(op, fromNow, value, unit);
+    }
+
+    @Override public PrimitiveSink fingerprint(PrimitiveSink sink) {
+      super.fingerprint(sink);
+      sink.putBoolean(fromNow);
+      Decimals.fingerprint(sink, value);
+      return sink.putInt(unit.ordinal());
+    }
+
     @Override public Digester digest(Digester digester) {
       return super.digest(digester)
           .put("range", "relative")
@@ -611,6 +1145,24 @@ public static class Past extends AstNode {
       this.complete = complete;
     }
 
+    @Override protected boolean equalsNode(AstNode node) {
+      final Past that = (Past) node;
+      return value.equals(that.value)
+          && unit == that.unit
+          && complete == that.complete;
+    }
+
+    @Override protected int computeHashCode() {
+      return Objects.hash(value, unit, complete);
+    }
+
+    @Override public PrimitiveSink fingerprint(PrimitiveSink sink) {
+      super.fingerprint(sink);
+      Decimals.fingerprint(sink, value);
+      sink.putInt(unit.ordinal());
+      return sink.putBoolean(complete);
+    }
+
     @Override public Digester digest(Digester digester) {
       return super.digest(digester)
           .put("unit", unit.singular)
@@ -638,6 +1190,23 @@ public static class Relative extends AstNode {
       this.unit = unit;
     }
 
+    @Override protected boolean equalsNode(AstNode node) {
+      final Relative that = (Relative) node;
+      return op == that.op
+          && value.equals(that.value)
+          && unit == that.unit;
+    }
+
+    @Override protected int computeHashCode() {
+      return Objects.hash(op, value, unit);
+    }
+
+    @Override public PrimitiveSink fingerprint(PrimitiveSink sink) {
+      super.fingerprint(sink);
+      Decimals.fingerprint(sink, value);
+      return sink.putInt(unit.ordinal());
+    }
+
     @Override public Digester digest(Digester digester) {
       return super.digest(digester)
           .put("unit", unit.singular)
@@ -665,6 +1234,21 @@ public static class ThisUnit extends AstNode {
       this.unit = unit;
     }
 
+    @Override protected boolean equalsNode(AstNode node) {
+      final ThisUnit that = (ThisUnit) node;
+      return op == that.op
+          && unit == that.unit;
+    }
+
+    @Override protected int computeHashCode() {
+      return Objects.hash(op, unit);
+    }
+
+    @Override public PrimitiveSink fingerprint(PrimitiveSink sink) {
+      super.fingerprint(sink);
+      return sink.putInt(unit.ordinal());
+    }
+
     @Override public Digester digest(Digester digester) {
       return super.digest(digester)
           .put("unit", unit.singular);
@@ -690,6 +1274,22 @@ public static class ThisRange extends AstNode {
       this.endInterval = endInterval;
     }
 
+    @Override protected boolean equalsNode(AstNode node) {
+      final ThisRange that = (ThisRange) node;
+      return startInterval == that.startInterval
+          && endInterval == that.endInterval;
+    }
+
+    @Override protected int computeHashCode() {
+      return Objects.hash(startInterval, endInterval);
+    }
+
+    @Override public PrimitiveSink fingerprint(PrimitiveSink sink) {
+      super.fingerprint(sink);
+      sink.putInt(startInterval.ordinal());
+      return sink.putInt(endInterval.ordinal());
+    }
+
     @Override public Digester digest(Digester digester) {
       return super.digest(digester)
           .put("startInterval", startInterval.singular)
@@ -716,6 +1316,22 @@ public static class LastInterval extends AstNode {
       this.unit = unit;
     }
 
+    @Override protected boolean equalsNode(AstNode node) {
+      final LastInterval that = (LastInterval) node;
+      return value.equals(that.value)
+          && unit == that.unit;
+    }
+
+    @Override protected int computeHashCode() {
+      return Objects.hash(value, unit);
+    }
+
+    @Override public PrimitiveSink fingerprint(PrimitiveSink sink) {
+      super.fingerprint(sink);
+      Decimals.fingerprint(sink, value);
+      return sink.putInt(unit.ordinal());
+    }
+
     @Override public Digester digest(Digester digester) {
       return super.digest(digester)
           .put("unit", unit.singular)
@@ -0,0 +1,801 @@
+/*
+ * Licensed to Julian Hyde under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to you under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.hydromatic.filtex.ast;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Compact binary encoding of ASTs.
+ *
+ * <p>Use it to store a parsed filter, or send it to another process, so that
+ * the receiver does not need to parse it again. For example,
+ *
+ * <pre>{@code
+ * ByteBuffer buffer = AstBinary.write(node);
+ * AstNode node2 = AstBinary.read(buffer);
+ * assert node2.equals(node);
+ * }</pre>
+ *
+ * <p>{@link #reader(ByteBuffer)} returns a {@link Reader}, which inspects the
+ * encoded tree in place, without building {@link AstNode} objects.
+ *
+ * <p>An encoded tree consists of the bytes "FX", the format version
+ * ({@link #VERSION}), and the root node. A node consists of:
+ *
+ * <ul>
+ *   <li>a byte whose low 5 bits are the {@link Kind} and whose bit 5 is a
+ *   flag: for nodes that can be negated, whether the node is negated; for
+ *   other nodes, the node's boolean field, if any;</li>
+ *   <li>a byte holding the ordinal of the node's {@link Op};</li>
+ *   <li>the node's fields, in the order that they are declared, followed by
+ *   its child nodes.</li>
+ * </ul>
+ *
+ * <p>Fields are encoded as follows:
+ *
+ * <ul>
+ *   <li>A number is a zig-zag variable-length integer holding its packed
+ *   value (see {@link Decimals}); if it does not fit, the encoding of
+ *   {@link Decimals#NONE} is followed by its scale and the length and bytes
+ *   of its unscaled value.</li>
+ *   <li>A date (see {@link DateTimes}) and an integer are variable-length
+ *   integers; a list or string is its length followed by its elements or
+ *   UTF-8 bytes.</li>
+ *   <li>The value of a comparison is a list of numbers, preceded by the
+ *   byte 0; or if any value is not a number, a list of strings, preceded by
+ *   the byte 1.</li>
+ *   <li>A unit is the byte holding its ordinal; a location is two numbers.</li>
+ * </ul>
+ *
+ * <p>Node ids and positions are not encoded. The version changes whenever
+ * the encoding, {@link Op}, {@link DatetimeUnit} or {@link Unit} changes;
+ * readers reject other versions.
+ */
+public class AstBinary {
+  /** Version of the encoding. */
+  public static final int VERSION = 1;
+
+  private static final byte[] MAGIC = {'F', 'X'};
+  private static final int HEADER_LENGTH = MAGIC.length + 1;
+
+  private static final int KIND_MASK = 0x1F;
+  private static final int FLAG = 0x20;
+
+  private static final int NUMBERS = 0;
+  private static final int STRINGS = 1;
+
+  private static final Op[] OPS = Op.values();
+  private static final DatetimeUnit[] DATETIME_UNITS = DatetimeUnit.values();
+  private static final Unit[] UNITS = Unit.values();
+
+  private AstBinary() {
+  }
+
+  /** Encodes a tree. The result is a buffer positioned at 0 whose limit is
+   * the length of the encoding. */
+  public static ByteBuffer write(AstNode node) {
+    final Writer writer = new Writer();
+    writer.putBytes(MAGIC);
+    writer.putByte(VERSION);
+    writer.putNode(node);
+    return ByteBuffer.wrap(writer.bytes, 0, writer.count);
+  }
+
+  /** Decodes a tree. Reads from the buffer's position, but does not change
+   * its position. */
+  public static AstNode read(ByteBuffer buffer) {
+    return reader(buffer).toNode();
+  }
+
+  /** Returns a reader for the root node of an encoded tree, starting at the
+   * buffer's position.
+   *
+   * @throws IllegalArgumentException if the buffer does not start with a
+   *   header of the current version */
+  public static Reader reader(ByteBuffer buffer) {
+    final int start = buffer.position();
+    if (buffer.limit() - start < HEADER_LENGTH
+        || buffer.get(start) != MAGIC[0]
+        || buffer.get(start + 1) != MAGIC[1]) {
+      throw new IllegalArgumentException("not an encoded AST");
+    }
+    final int version = buffer.get(start + 2);
+    if (version != VERSION) {
+      throw new IllegalArgumentException("unsupported version " + version
+          + "; expected " + VERSION);
+    }
+    return new Reader(buffer, start + HEADER_LENGTH);
+  }
+
+  /** Kind of node; there is one for each subclass of {@link AstNode} in
+   * {@link Ast}. The ordinal is the code in the encoding, so new values must
+   * be added at the end. */
+  public enum Kind {
+    DATE_LITERAL(Ast.DateLiteral.class),
+    DAY_LITERAL(Ast.DayLiteral.class),
+    INTERVAL(Ast.Interval.class),
+    RANGE(Ast.Range.class),
+    RANGE_INTERVAL(Ast.RangeInterval.class),
+    MONTH_INTERVAL(Ast.MonthInterval.class),
+    POINT(Ast.Point.class),
+    BOX(Ast.Box.class),
+    CIRCLE(Ast.Circle.class),
+    COMPARISON(Ast.Comparison.class),
+    CALL0(Ast.Call0.class),
+    CALL1(Ast.Call1.class),
+    CALL2(Ast.Call2.class),
+    CALLN(Ast.CallN.class),
+    NUMERIC_RANGE(Ast.NumericRange.class),
+    MATCHES_ADVANCED(Ast.MatchesAdvanced.class),
+    ABSOLUTE(Ast.Absolute.class),
+    RELATIVE_RANGE(Ast.RelativeRange.class),
+    RELATIVE_UNIT(Ast.RelativeUnit.class),
+    PAST(Ast.Past.class),
+    RELATIVE(Ast.Relative.class),
+    THIS_UNIT(Ast.ThisUnit.class),
+    THIS_RANGE(Ast.ThisRange.class),
+    LAST_INTERVAL(Ast.LastInterval.class);
+
+    private static final Kind[] VALUES = values();
+    private static final ImmutableMap<Class<?>, Kind> BY_CLASS;
+
+    static {
+      final ImmutableMap.Builder<Class<?>, Kind> b = ImmutableMap.builder();
+      for (Kind kind : VALUES) {
+        b.put(kind.nodeClass, kind);
+      }
+      BY_CLASS = b.build();
+    }
+
+    public final Class<? extends AstNode> nodeClass;
+
+    Kind(Class<? extends AstNode> nodeClass) {
+      this.nodeClass = nodeClass;
+    }
+
+    static Kind of(AstNode node) {
+      final Kind kind = BY_CLASS.get(node.getClass());
+      if (kind == null) {
+        throw new IllegalArgumentException("cannot encode " + node.getClass());
+      }
+      return kind;
+    }
+
+    /** Returns whether the flag in a node of this kind means that the node
+     * is negated. */
+    boolean negatable() {
+      switch (this) {
+      case COMPARISON:
+      case CALL0:
+      case CALL1:
+      case NUMERIC_RANGE:
+        return true;
+      default:
+        return false;
+      }
+    }
+  }
+
+  /** Appends encoded nodes to a growable array of bytes. */
+  private static class Writer {
+    byte[] bytes = new byte[64];
+    int count;
+
+    private void ensure(int n) {
+      if (count + n > bytes.length) {
+        bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, count + n));
+      }
+    }
+
+    void putByte(int b) {
+      ensure(1);
+      bytes[count++] = (byte) b;
+    }
+
+    void putBytes(byte[] b) {
+      ensure(b.length);
+      System.arraycopy(b, 0, bytes, count, b.length);
+      count += b.length;
+    }
+
+    /** Writes an unsigned variable-length integer, 7 bits per byte. */
+    void putVarLong(long v) {
+      ensure(10);
+      while ((v & ~0x7FL) != 0) {
+        bytes[count++] = (byte) ((v & 0x7F) | 0x80);
+        v >>>= 7;
+      }
+      bytes[count++] = (byte) v;
+    }
+
+    void putString(String s) {
+      final byte[] b = s.getBytes(StandardCharsets.UTF_8);
+      putVarLong(b.length);
+      putBytes(b);
+    }
+
+    void putPacked(long packed) {
+      putVarLong(packed << 1 ^ packed >> 63);
+    }
+
+    void putDecimal(long packed, BigDecimal value) {
+      putPacked(packed);
+      if (packed == Decimals.NONE) {
+        final byte[] b = value.unscaledValue().toByteArray();
+        putPacked(value.scale());
+        putVarLong(b.length);
+        putBytes(b);
+      }
+    }
+
+    void putDecimal(BigDecimal value) {
+      putDecimal(Decimals.pack(value), value);
+    }
+
+    void putLocation(Location location) {
+      putDecimal(location.latitude);
+      putDecimal(location.longitude);
+    }
+
+    @SuppressWarnings("rawtypes")
+    void putValues(List<Comparable> values) {
+      putVarLong(values.size());
+      if (values instanceof DecimalList) {
+        final DecimalList decimals = (DecimalList) values;
+        putByte(NUMBERS);
+        for (int i = 0; i < decimals.size(); i++) {
+          putPacked(decimals.getPacked(i));
+        }
+        return;
+      }
+      boolean numbers = true;
+      for (Comparable value : values) {
+        numbers &= value instanceof BigDecimal;
+      }
+      putByte(numbers ? NUMBERS : STRINGS);
+      for (Comparable value : values) {
+        if (numbers) {
+          putDecimal((BigDecimal) value);
+        } else {
+          putString(value.toString());
+        }
+      }
+    }
+
+    void putNode(AstNode node) {
+      final Kind kind = Kind.of(node);
+      final boolean flag;
+      switch (kind) {
+      case RELATIVE_RANGE:
+        flag = ((Ast.RelativeRange) node).fromNow;
+        break;
+      case RELATIVE_UNIT:
+        flag = ((Ast.RelativeUnit) node).fromNow;
+        break;
+      case PAST:
+        flag = ((Ast.Past) node).complete;
+        break;
+      default:
+        flag = kind.negatable() && !node.is();
+      }
+      putByte(kind.ordinal() | (flag ? FLAG : 0));
+      putByte(node.op.ordinal());
+
+      switch (kind) {
+      case DATE_LITERAL:
+        putVarLong(((Ast.DateLiteral) node).date);
+        break;
+      case DAY_LITERAL:
+        putString(((Ast.DayLiteral) node).day);
+        break;
+      case INTERVAL:
+        final Ast.Interval interval = (Ast.Interval) node;
+        putDecimal(interval.value);
+        putByte(interval.unit.ordinal());
+        break;
+      case RANGE:
+        final Ast.Range range = (Ast.Range) node;
+        putVarLong(range.start);
+        putVarLong(range.end);
+        break;
+      case RANGE_INTERVAL:
+        final Ast.RangeInterval rangeInterval = (Ast.RangeInterval) node;
+        putVarLong(rangeInterval.start);
+        putNode(rangeInterval.end);
+        break;
+      case MONTH_INTERVAL:
+        final Ast.MonthInterval monthInterval = (Ast.MonthInterval) node;
+        putVarLong(monthInterval.year);
+        putVarLong(monthInterval.month);
+        putNode(monthInterval.end);
+        break;
+      case POINT:
+        putLocation(((Ast.Point) node).location);
+        break;
+      case BOX:
+        putLocation(((Ast.Box) node).from);
+        putLocation(((Ast.Box) node).to);
+        break;
+      case CIRCLE:
+        final Ast.Circle circle = (Ast.Circle) node;
+        putDecimal(circle.distance);
+        putByte(circle.unit.ordinal());
+        putLocation(circle.location);
+        break;
+      case COMPARISON:
+        putValues(((Ast.Comparison) node).value);
+        break;
+      case CALL0:
+        break;
+      case CALL1:
+        putNode(((Ast.Call1) node).node);
+        break;
+      case CALL2:
+        putNode(((Ast.Call2) node).left);
+        putNode(((Ast.Call2) node).right);
+        break;
+      case CALLN:
+        final List<AstNode> args = ((Ast.CallN) node).args;
+        putVarLong(args.size());
+        for (AstNode arg : args) {
+          putNode(arg);
+        }
+        break;
+      case NUMERIC_RANGE:
+        final Ast.NumericRange numericRange = (Ast.NumericRange) node;
+        putDecimal(numericRange.packedLeft(), numericRange.left());
+        putDecimal(numericRange.packedRight(), numericRange.right());
+        break;
+      case MATCHES_ADVANCED:
+        putString(((Ast.MatchesAdvanced) node).expression);
+        break;
+      case ABSOLUTE:
+        putVarLong(((Ast.Absolute) node).date);
+        break;
+      case RELATIVE_RANGE:
+        putNode(((Ast.RelativeRange) node).startInterval);
+        putNode(((Ast.RelativeRange) node).endInterval);
+        break;
+      case RELATIVE_UNIT:
+        putDecimal(((Ast.RelativeUnit) node).value);
+        putByte(((Ast.RelativeUnit) node).unit.ordinal());
+        break;
+      case PAST:
+        putDecimal(((Ast.Past) node).value);
+        putByte(((Ast.Past) node).unit.ordinal());
+        break;
+      case RELATIVE:
+        putDecimal(((Ast.Relative) node).value);
+        putByte(((Ast.Relative) node).unit.ordinal());
+        break;
+      case THIS_UNIT:
+        putByte(((Ast.ThisUnit) node).unit.ordinal());
+        break;
+      case THIS_RANGE:
+        putByte(((Ast.ThisRange) node).startInterval.ordinal());
+        putByte(((Ast.ThisRange) node).endInterval.ordinal());
+        break;
+      case LAST_INTERVAL:
+        putDecimal(((Ast.LastInterval) node).value);
+        putByte(((Ast.LastInterval) node).unit.ordinal());
+        break;
+      default:
+        throw new AssertionError(kind);
+      }
+    }
+  }
+
+  /** Reads encoded values from a buffer, starting at a given offset.
+   *
+   * <p>Uses absolute reads, and so does not change the buffer's position;
+   * several inputs may read the same buffer concurrently. */
+  private static class Input {
+    final ByteBuffer buffer;
+    int offset;
+
+    Input(ByteBuffer buffer, int offset) {
+      this.buffer = buffer;
+      this.offset = offset;
+    }
+
+    int getByte() {
+      return buffer.get(offset++) & 0xFF;
+    }
+
+    long getVarLong() {
+      long v = 0;
+      for (int shift = 0;; shift += 7) {
+        final int b = getByte();
+        v |= (long) (b & 0x7F) << shift;
+        if ((b & 0x80) == 0) {
+          return v;
+        }
+      }
+    }
+
+    int getVarInt() {
+      return Math.toIntExact(getVarLong());
+    }
+
+    /** Moves past a string, or the bytes of a number. */
+    void skipBytes() {
+      final int length = getVarInt();
+      offset += length;
+    }
+
+    long getPacked() {
+      final long v = getVarLong();
+      return v >>> 1 ^ -(v & 1);
+    }
+
+    String getString() {
+      final int length = getVarInt();
+      final byte[] b = new byte[length];
+      for (int i = 0; i < length; i++) {
+        b[i] = buffer.get(offset++);
+      }
+      return StandardCharsets.UTF_8.decode(ByteBuffer.wrap(b)).toString();
+    }
+
+    /** Reads the tail of a number that does not fit in a long. */
+    BigDecimal getBigDecimal() {
+      final int scale = Math.toIntExact(getPacked());
+      final byte[] b = new byte[getVarInt()];
+      for (int i = 0; i < b.length; i++) {
+        b[i] = buffer.get(offset++);
+      }
+      return new BigDecimal(new BigInteger(b), scale);
+    }
+
+    BigDecimal getDecimal() {
+      final long packed = getPacked();
+      return packed == Decimals.NONE
+          ? getBigDecimal()
+          : Decimals.toBigDecimal(packed);
+    }
+
+    void skipDecimal() {
+      if (getPacked() == Decimals.NONE) {
+        getPacked();
+        skipBytes();
+      }
+    }
+
+    Location getLocation() {
+      final BigDecimal latitude = getDecimal();
+      return new Location(latitude, getDecimal());
+    }
+
+    DatetimeUnit getDatetimeUnit() {
+      return DATETIME_UNITS[getByte()];
+    }
+
+    @SuppressWarnings("rawtypes")
+    List<Comparable> getValues() {
+      final int size = getVarInt();
+      if (getByte() == STRINGS) {
+        final ImmutableList.Builder<Comparable> b = ImmutableList.builder();
+        for (int i = 0; i < size; i++) {
+          b.add(getString());
+        }
+        return b.build();
+      }
+      final long[] packed = new long[size];
+      @Nullable List<Comparable> list = null;
+      for (int i = 0; i < size; i++) {
+        packed[i] = getPacked();
+        if (packed[i] == Decimals.NONE && list == null) {
+          list = new ArrayList<>(size);
+          for (int j = 0; j < i; j++) {
+            list.add(Decimals.toBigDecimal(packed[j]));
+          }
+        }
+        if (list != null) {
+          list.add(packed[i] == Decimals.NONE
+              ? getBigDecimal()
+              : Decimals.toBigDecimal(packed[i]));
+        }
+      }
+      return list == null
+          ? DecimalList.copyOf(packed, size)
+          : ImmutableList.copyOf(list);
+    }
+
+    void skipValues() {
+      final int size = getVarInt();
+      final boolean strings = getByte() == STRINGS;
+      for (int i = 0; i < size; i++) {
+        if (strings) {
+          skipBytes();
+        } else {
+          skipDecimal();
+        }
+      }
+    }
+
+    /** Moves past a node and its descendants, without creating objects. */
+    void skipNode() {
+      final Kind kind = Kind.VALUES[getByte() & KIND_MASK];
+      ++offset; // op
+      switch (kind) {
+      case DATE_LITERAL:
+      case ABSOLUTE:
+        getVarLong();
+        break;
+      case DAY_LITERAL:
+      case MATCHES_ADVANCED:
+        skipBytes();
+        break;
+      case INTERVAL:
+      case RELATIVE_UNIT:
+      case PAST:
+      case RELATIVE:
+      case LAST_INTERVAL:
+        skipDecimal();
+        ++offset; // unit
+        break;
+      case RANGE:
+        getVarLong();
+        getVarLong();
+        break;
+      case RANGE_INTERVAL:
+        getVarLong();
+        skipNode();
+        break;
+      case MONTH_INTERVAL:
+        getVarLong();
+        getVarLong();
+        skipNode();
+        break;
+      case POINT:
+        skipDecimal();
+        skipDecimal();
+        break;
+      case BOX:
+        for (int i = 0; i < 4; i++) {
+          skipDecimal();
+        }
+        break;
+      case CIRCLE:
+        skipDecimal();
+        ++offset; // unit
+        skipDecimal();
+        skipDecimal();
+        break;
+      case COMPARISON:
+        skipValues();
+        break;
+      case CALL0:
+        break;
+      case CALL1:
+        skipNode();
+        break;
+      case CALL2:
+      case RELATIVE_RANGE:
+        skipNode();
+        skipNode();
+        break;
+      case CALLN:
+        for (int i = getVarInt(); i > 0; i--) {
+          skipNode();
+        }
+        break;
+      case NUMERIC_RANGE:
+        skipDecimal();
+        skipDecimal();
+        break;
+      case THIS_UNIT:
+        ++offset;
+        break;
+      case THIS_RANGE:
+        offset += 2;
+        break;
+      default:
+        throw new AssertionError(kind);
+      }
+    }
+
+    /** Reads a node and its descendants. */
+    AstNode getNode() {
+      final int b = getByte();
+      final Kind kind = Kind.VALUES[b & KIND_MASK];
+      final boolean flag = (b & FLAG) != 0;
+      final Op op = OPS[getByte()];
+      switch (kind) {
+      case DATE_LITERAL:
+        return new Ast.DateLiteral(op, getVarLong());
+      case DAY_LITERAL:
+        return new Ast.DayLiteral(getString());
+      case INTERVAL:
+        final BigDecimal value = getDecimal();
+        return new Ast.Interval(getDatetimeUnit(), value);
+      case RANGE:
+        final long start = getVarLong();
+        return new Ast.Range(start, getVarLong());
+      case RANGE_INTERVAL:
+        final long start2 = getVarLong();
+        return new Ast.RangeInterval(start2, (Ast.Interval) getNode());
+      case MONTH_INTERVAL:
+        final int year = getVarInt();
+        final int month = getVarInt();
+        return new Ast.MonthInterval(year, month, (Ast.Interval) getNode());
+      case POINT:
+        return new Ast.Point(getLocation());
+      case BOX:
+        final Location from = getLocation();
+        return new Ast.Box(from, getLocation());
+      case CIRCLE:
+        final BigDecimal distance = getDecimal();
+        final Unit unit = UNITS[getByte()];
+        return new Ast.Circle(distance, unit, getLocation());
+      case COMPARISON:
+        return new Ast.Comparison(!flag, op, getValues());
+      case CALL0:
+        return new Ast.Call0(op, !flag);
+      case CALL1:
+        return new Ast.Call1(op, !flag, getNode());
+      case CALL2:
+        final AstNode left = getNode();
+        return new Ast.Call2(op, left, getNode());
+      case CALLN:
+        final int size = getVarInt();
+        final List<AstNode> args = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+          args.add(getNode());
+        }
+        return new Ast.CallN(op, args);
+      case NUMERIC_RANGE:
+        final long packedLeft = getPacked();
+        final BigDecimal bigLeft =
+            packedLeft == Decimals.NONE ? getBigDecimal() : null;
+        final long packedRight = getPacked();
+        final BigDecimal bigRight =
+            packedRight == Decimals.NONE ? getBigDecimal() : null;
+        return new Ast.NumericRange(op, !flag, packedLeft, bigLeft,
+            packedRight, bigRight);
+      case MATCHES_ADVANCED:
+        return new Ast.MatchesAdvanced(getString(), null);
+      case ABSOLUTE:
+        return new Ast.Absolute(getVarLong(), op == Op.BEFORE);
+      case RELATIVE_RANGE:
+        final Ast.Interval startInterval = (Ast.Interval) getNode();
+        return new Ast.RelativeRange(flag, startInterval,
+            (Ast.Interval) getNode());
+      case RELATIVE_UNIT:
+        final BigDecimal value2 = getDecimal();
+        return new Ast.RelativeUnit(op == Op.BEFORE, flag, value2,
+            getDatetimeUnit());
+      case PAST:
+        final BigDecimal value3 = getDecimal();
+        return new Ast.Past(value3, getDatetimeUnit(), flag);
+      case RELATIVE:
+        final BigDecimal value4 = getDecimal();
+        return new Ast.Relative(op, value4, getDatetimeUnit());
+      case THIS_UNIT:
+        return new Ast.ThisUnit(op, getDatetimeUnit());
+      case THIS_RANGE:
+        final DatetimeUnit startUnit = getDatetimeUnit();
+        return new Ast.ThisRange(startUnit, getDatetimeUnit());
+      case LAST_INTERVAL:
+        final BigDecimal value5 = getDecimal();
+        return new Ast.LastInterval(value5, getDatetimeUnit());
+      default:
+        throw new AssertionError(kind);
+      }
+    }
+  }
+
+  /** View of an encoded node.
+   *
+   * <p>Reads the node's kind, operator, values and children directly from
+   * the buffer, without decoding the rest of the tree. Call
+   * {@link #toNode()} to decode the node and its descendants. */
+  public static class Reader {
+    private final ByteBuffer buffer;
+    private final int offset;
+
+    private Reader(ByteBuffer buffer, int offset) {
+      this.buffer = requireNonNull(buffer, "buffer");
+      this.offset = offset;
+    }
+
+    /** Returns the kind of node. */
+    public Kind kind() {
+      return Kind.VALUES[buffer.get(offset) & KIND_MASK];
+    }
+
+    /** Returns the operator; see {@link AstNode#op}. */
+    public Op op() {
+      return OPS[buffer.get(offset + 1) & 0xFF];
+    }
+
+    /** Returns false if the node is negated; see {@link AstNode#is()}. */
+    public boolean is() {
+      return !kind().negatable() || (buffer.get(offset) & FLAG) == 0;
+    }
+
+    /** Returns the values of a comparison, or the bounds of a numeric range;
+     * for other kinds of node, returns null. See {@link AstNode#value()}. */
+    @SuppressWarnings("rawtypes")
+    public @Nullable List<Comparable> value() {
+      final Input input = new Input(buffer, offset + 2);
+      switch (kind()) {
+      case COMPARISON:
+        return input.getValues();
+      case NUMERIC_RANGE:
+        final BigDecimal left = input.getDecimal();
+        return ImmutableList.of(left, input.getDecimal());
+      default:
+        return null;
+      }
+    }
+
+    /** Returns readers for the arguments of a logical expression or of a
+     * call; empty if this node has none. See {@link AstNode#children()}. */
+    public List<Reader> children() {
+      final Input input = new Input(buffer, offset + 2);
+      final int size;
+      switch (kind()) {
+      case CALL1:
+        size = 1;
+        break;
+      case CALL2:
+        size = 2;
+        break;
+      case CALLN:
+        size = input.getVarInt();
+        break;
+      default:
+        return ImmutableList.of();
+      }
+      final ImmutableList.Builder<Reader> b = ImmutableList.builder();
+      for (int i = 0; i < size; i++) {
+        b.add(new Reader(buffer, input.offset));
+        input.skipNode();
+      }
+      return b.build();
+    }
+
+    /** Returns the number of bytes in the encoding of this node and its
+     * descendants. */
+    public int length() {
+      final Input input = new Input(buffer, offset);
+      input.skipNode();
+      return input.offset - offset;
+    }
+
+    /** Decodes this node and its descendants. */
+    public AstNode toNode() {
+      return new Input(buffer, offset).getNode();
+    }
+  }
+}
+
+// End AstBinary.java
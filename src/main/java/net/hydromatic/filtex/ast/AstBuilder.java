@@ -17,12 +17,14 @@
 package net.hydromatic.filtex.ast;
 
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
 
 import org.checkerframework.checker.nullness.qual.Nullable;
 
 import java.math.BigDecimal;
+import java.util.ArrayList;
 import java.util.List;
-import java.util.function.BinaryOperator;
 
 /** AST Builder. */
 public enum AstBuilder {
@@ -32,6 +34,33 @@ public enum AstBuilder {
   // CHECKSTYLE: IGNORE 1
   ast;
 
+  /** Canonical nodes, held weakly; see {@link #intern(AstNode)}. */
+  private static final Interner<AstNode> INTERNER =
+      Interners.newWeakInterner();
+
+  /** Returns a canonical tree that is equal to a given tree.
+   *
+   * <p>Trees that are structurally equal (see {@link AstNode#equals}), and
+   * subtrees that are equal, share the same nodes. Use this method when you
+   * hold many trees in memory, many of which are the same; for example,
+   * "not null" or "&gt; 0".
+   *
+   * <p>The canonical nodes are held weakly, so they are garbage-collected
+   * when no tree uses them. Because trees that differ only in their ids
+   * share nodes, the nodes of the returned tree have no ids; call
+   * {@link Asts#applyId} if you need them. */
+  public AstNode intern(AstNode node) {
+    final List<AstNode> children = node.children();
+    final List<AstNode> children2 = new ArrayList<>(children.size());
+    boolean changed = node.id != null;
+    for (AstNode child : children) {
+      final AstNode child2 = intern(child);
+      children2.add(child2);
+      changed |= child2 != child;
+    }
+    return INTERNER.intern(changed ? node.copy(null, children2) : node);
+  }
+
   /** Creates an anywhere location. */
   public AstNode anywhere() {
     return new Ast.Call0(Op.ANYWHERE, true);
@@ -55,13 +84,40 @@ public AstNode circle(BigDecimal distance, Unit unit, Location location) {
   /** Creates a comparison. */
   @SuppressWarnings("rawtypes")
   public Ast.Comparison comparison(boolean is, Op op, Comparable value) {
-    return comparison(is, op, ImmutableList.of(value));
+    if (value instanceof BigDecimal) {
+      final long packed = Decimals.pack((BigDecimal) value);
+      if (packed != Decimals.NONE) {
+        return decimalComparison(is, op, packed);
+      }
+    }
+    return new Ast.Comparison(is, op, ImmutableList.of(value));
   }
 
+  /** Creates a comparison. If all values are numbers that fit in a long,
+   * they are stored in a {@link DecimalList}. */
   @SuppressWarnings("rawtypes")
   public Ast.Comparison comparison(boolean is, Op op,
       Iterable<Comparable> value) {
-    return new Ast.Comparison(is, op, ImmutableList.copyOf(value));
+    final List<Comparable> decimals = DecimalList.copyOf(value);
+    return new Ast.Comparison(is, op,
+        decimals != null ? decimals : ImmutableList.copyOf(value));
+  }
+
+  /** Creates a comparison with a number packed into a long (see
+   * {@link Decimals}). */
+  public Ast.Comparison decimalComparison(boolean is, Op op, long packed) {
+    return new Ast.Comparison(is, op, DecimalList.of(packed));
+  }
+
+  /** Creates a comparison with a number, given the text of a numeric
+   * literal such as "-1.5". */
+  @SuppressWarnings("rawtypes")
+  private Ast.Comparison comparison(boolean is, Op op, String literal) {
+    final long packed = Decimals.parse(literal);
+    return packed != Decimals.NONE
+        ? decimalComparison(is, op, packed)
+        : new Ast.Comparison(is, op,
+            ImmutableList.<Comparable>of(new BigDecimal(literal)));
   }
 
   /** Creates a day of week literal. */
@@ -71,48 +127,50 @@ public AstNode day(String day) {
 
   /** Creates a year date literal. */
   public AstNode year(int year) {
-    return new Ast.DateLiteral(Op.YEAR, year, null, null, null, null, null,
-        null);
+    return new Ast.DateLiteral(Op.YEAR, DateTimes.year(year));
   }
 
   /** Creates a fiscal year date literal. */
   public AstNode fiscalYear(int year) {
-    return new Ast.DateLiteral(Op.FISCAL_YEAR, year, null, null, null, null,
-        null, null);
+    return new Ast.DateLiteral(Op.FISCAL_YEAR, DateTimes.year(year));
   }
 
   /** Creates a year-quarter date literal. */
   public AstNode quarter(int year, int quarter) {
-    return new Ast.DateLiteral(Op.QUARTER, year, quarter, null, null, null,
-        null, null);
+    return new Ast.DateLiteral(Op.QUARTER, DateTimes.quarter(year, quarter));
   }
 
   /** Creates a fiscal year-quarter date literal. */
   public AstNode fiscalQuarter(int year, int quarter) {
-    return new Ast.DateLiteral(Op.FISCAL_QUARTER, year, quarter, null, null,
-        null, null, null);
+    return new Ast.DateLiteral(Op.FISCAL_QUARTER,
+        DateTimes.quarter(year, quarter));
   }
 
   /** Creates a year-month date literal. */
   public AstNode month(int year, int month) {
-    return new Ast.DateLiteral(Op.MONTH, year, null, month, null, null, null,
-        null);
+    return new Ast.DateLiteral(Op.MONTH, DateTimes.month(year, month));
   }
 
-  public AstNode on(Date date) {
-    if (date instanceof Datetime) {
-      final Datetime datetime = (Datetime) date;
-      return new Ast.DateLiteral(Op.ON, datetime.year, null, datetime.month,
-          datetime.day, datetime.hour, datetime.minute, datetime.second);
-    } else {
-      return new Ast.DateLiteral(Op.ON, date.year, null, date.month,
-          date.day, null, null, null);
-    }
+  /** Creates a date literal for a day, or a day and time, packed as by
+   * {@link DateTimes}. */
+  public AstNode on(long date) {
+    return new Ast.DateLiteral(Op.ON, date);
   }
 
   /** Creates a number literal. */
   public Ast.Comparison numberLiteral(boolean is, BigDecimal value) {
-    return comparison(is, Op.EQ, ImmutableList.of(value));
+    return comparison(is, Op.EQ, value);
+  }
+
+  /** Creates a number literal, given its text, such as "-1.5". */
+  public Ast.Comparison numberLiteral(boolean is, String literal) {
+    return comparison(is, Op.EQ, literal);
+  }
+
+  /** Creates a number literal whose value is packed into a long (see
+   * {@link Decimals}). */
+  public Ast.Comparison decimalLiteral(boolean is, long packed) {
+    return decimalComparison(is, Op.EQ, packed);
   }
 
   /** Creates a string literal. */
@@ -120,14 +178,27 @@ public Ast.Comparison stringLiteral(boolean is, String value) {
     return comparison(is, Op.EQ, ImmutableList.of(value));
   }
 
-  /** Creates a logical expression. */
+  /** Creates a logical expression with two terms. */
   public AstNode logicalExpression(AstNode left, AstNode right) {
-    return new Ast.Call2(Op.COMMA, left, right);
+    return new Ast.CallN(Op.COMMA, ImmutableList.of(left, right));
   }
 
-  /** Folds a list into a left-deep a logical expression. */
+  /** Creates a logical expression; if there is only one term, returns
+   * it. */
   public AstNode logicalExpression(List<AstNode> terms) {
-    return foldRight(terms, this::logicalExpression);
+    switch (terms.size()) {
+    case 0:
+      throw new IllegalArgumentException("empty list");
+    case 1:
+      return terms.get(0);
+    default:
+      return new Ast.CallN(Op.COMMA, terms);
+    }
+  }
+
+  /** Creates a call with one argument, optionally negated. */
+  public AstNode call(Op op, boolean is, AstNode node) {
+    return new Ast.Call1(op, is, node);
   }
 
   /** Creates a term representing "null" or "not null". */
@@ -157,19 +228,56 @@ public AstNode between(boolean is, Bound leftBound, Bound rightBound,
 
   private Ast.NumericRange range(Op op, boolean is, BigDecimal left,
       BigDecimal right) {
-    return new Ast.NumericRange(op, null, is, left, right);
+    return new Ast.NumericRange(op, is, Decimals.pack(left), left,
+        Decimals.pack(right), right);
+  }
+
+  /** Creates a term representing a range or a comparison, given the text
+   * of its bounds; see
+   * {@link #between(boolean, Bound, Bound, BigDecimal, BigDecimal)}. */
+  public AstNode between(boolean is, Bound leftBound, Bound rightBound,
+      @Nullable String left, @Nullable String right) {
+    if (left != null && right != null) {
+      final long packedLeft = Decimals.parse(left);
+      final long packedRight = Decimals.parse(right);
+      return new Ast.NumericRange(getOp(leftBound, rightBound), is,
+          packedLeft,
+          packedLeft == Decimals.NONE ? new BigDecimal(left) : null,
+          packedRight,
+          packedRight == Decimals.NONE ? new BigDecimal(right) : null);
+    } else if (left != null) {
+      return comparison(is, leftBound == Bound.CLOSED ? Op.GE : Op.GT, left);
+    } else if (right != null) {
+      return comparison(is, rightBound == Bound.CLOSED ? Op.LE : Op.LT, right);
+    } else {
+      throw new IllegalArgumentException();
+    }
   }
 
   /** Creates a term representing a one-sided range, such as "{@code > 10}"
    * or "{@code <= 0}". */
   public AstNode between(Op op, boolean is, BigDecimal number) {
+    return comparison(is, comparisonOp(op), number);
+  }
+
+  /** Creates a term representing a one-sided range, given the text of its
+   * bound. */
+  public AstNode between(Op op, boolean is, String number) {
+    return comparison(is, comparisonOp(op), number);
+  }
+
+  /** Converts a one-sided range operator to a comparison operator; for
+   * example, {@link Op#OPEN_ABSENT} becomes {@link Op#GT}. */
+  private static Op comparisonOp(Op op) {
     switch (op) {
     case ABSENT_OPEN:
+      return Op.LT;
     case ABSENT_CLOSED:
-      return comparison(is, op == Op.ABSENT_OPEN ? Op.LT : Op.LE, number);
+      return Op.LE;
     case OPEN_ABSENT:
+      return Op.GT;
     case CLOSED_ABSENT:
-      return comparison(is, op == Op.OPEN_ABSENT ? Op.GT : Op.GE, number);
+      return Op.GE;
     default:
       throw new AssertionError("unknown " + op);
     }
@@ -178,7 +286,13 @@ public AstNode between(Op op, boolean is, BigDecimal number) {
   /** Creates a matchesAdvanced. */
   @SuppressWarnings("rawtypes")
   public Ast.MatchesAdvanced matchesAdvanced(String expression) {
-    return new Ast.MatchesAdvanced(expression);
+    return matchesAdvanced(expression, null);
+  }
+
+  /** Creates a matchesAdvanced with a given id. */
+  public Ast.MatchesAdvanced matchesAdvanced(String expression,
+      @Nullable Integer id) {
+    return new Ast.MatchesAdvanced(expression, id);
   }
 
   /** Converts a pair of bounds into an operator.
@@ -187,41 +301,15 @@ private Op getOp(Bound left, Bound right) {
     return Op.valueOf(left + "_" + right);
   }
 
-  /** Folds a list to the left.
-   * Thus [1, 2, 3, 4] becomes (((1, 2), 3), 4). */
-  private static <E> E foldLeft(Iterable<? extends E> iterable,
-      BinaryOperator<E> combiner) {
-    E previous = null;
-    for (E e : iterable) {
-      if (previous == null) {
-        previous = e;
-      } else {
-        previous = combiner.apply(previous, e);
-      }
-    }
-    if (previous == null) {
-      throw new IllegalArgumentException("empty list");
-    }
-    return previous;
-  }
-
-  /** Folds a list to the right.
-   * Thus [1, 2, 3, 4] becomes (1, (2, (3, 4))). */
-  private static <E> E foldRight(Iterable<? extends E> iterable,
-      BinaryOperator<E> combiner) {
-    return foldLeft(ImmutableList.copyOf(iterable).reverse(),
-        (BinaryOperator<E>) (x, y) -> combiner.apply(y, x));
-  }
-
   public Ast.Interval interval(DatetimeUnit unit, BigDecimal value) {
     return new Ast.Interval(unit, value);
   }
 
-  public AstNode rangeInterval(Date start, Ast.Interval end) {
+  public AstNode rangeInterval(long start, Ast.Interval end) {
     return new Ast.RangeInterval(start, end);
   }
 
-  public AstNode range(Date start, Date end) {
+  public AstNode range(long start, long end) {
     return new Ast.Range(start, end);
   }
 
@@ -229,7 +317,7 @@ public AstNode monthInterval(int year, int month, Ast.Interval end) {
     return new Ast.MonthInterval(year, month, end);
   }
 
-  public AstNode absolute(Date date, boolean before) {
+  public AstNode absolute(long date, boolean before) {
     return new Ast.Absolute(date, before);
   }
 
@@ -0,0 +1,162 @@
+/*
+ * Licensed to Julian Hyde under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to you under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.hydromatic.filtex.ast;
+
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+
+/**
+ * Cursor over the items of a filter expression.
+ *
+ * <p>Yields the same nodes, in the same order, as
+ * {@link Asts#treeToList(AstNode)}: first the "or" items (those that are not
+ * negated), then the "and" items (those that are negated), each in in-order
+ * (left, node, right). Logical expressions are not items, but their terms
+ * are.
+ *
+ * <p>Unlike {@code treeToList}, it creates no lists or visitors. It walks the
+ * tree twice, using a stack of arrays that grows to the depth of the tree and
+ * is kept when the cursor is reset; so a cursor that is reused does not
+ * allocate. For example,
+ *
+ * <pre>{@code
+ * AstCursor cursor = new AstCursor();
+ * for (AstNode root : roots) {
+ *   for (cursor.reset(root); cursor.next();) {
+ *     AstNode item = cursor.current();
+ *     ...
+ *   }
+ * }
+ * }</pre>
+ *
+ * <p>A cursor is not thread-safe.
+ */
+public class AstCursor {
+  private AstNode[] nodes = new AstNode[8];
+  /** For each node on the stack, how many of its children have been
+   * pushed. */
+  private int[] states = new int[8];
+  private int depth;
+  private @Nullable AstNode root;
+  private @Nullable AstNode current;
+  /** Whether this is the second pass, which yields negated items. */
+  private boolean negated;
+
+  /** Positions this cursor before the first item of a tree. */
+  public AstCursor reset(AstNode root) {
+    this.root = root;
+    this.current = null;
+    this.negated = false;
+    Arrays.fill(nodes, 0, depth, null);
+    depth = 0;
+    push(root);
+    return this;
+  }
+
+  /** Moves to the next item; returns false if there are no more items. */
+  public boolean next() {
+    for (;;) {
+      final AstNode item = advance();
+      if (item != null) {
+        if (item.is() != negated) {
+          current = item;
+          return true;
+        }
+        continue;
+      }
+      if (negated || root == null) {
+        current = null;
+        return false;
+      }
+      negated = true;
+      push(root);
+    }
+  }
+
+  /** Returns the current item.
+   *
+   * @throws NoSuchElementException if the cursor is not on an item */
+  public AstNode current() {
+    if (current == null) {
+      throw new NoSuchElementException();
+    }
+    return current;
+  }
+
+  private void push(AstNode node) {
+    if (depth == nodes.length) {
+      nodes = Arrays.copyOf(nodes, depth * 2);
+      states = Arrays.copyOf(states, depth * 2);
+    }
+    nodes[depth] = node;
+    states[depth] = 0;
+    ++depth;
+  }
+
+  private void pop() {
+    nodes[--depth] = null;
+  }
+
+  /** Walks the tree until it reaches the next candidate item, and returns
+   * it; returns null at the end of the tree. */
+  private @Nullable AstNode advance() {
+    while (depth > 0) {
+      final AstNode node = nodes[depth - 1];
+      final int state = states[depth - 1]++;
+      if (node instanceof Ast.CallN) {
+        final Ast.CallN callN = (Ast.CallN) node;
+        if (state < callN.args.size()) {
+          push(callN.args.get(state));
+        } else {
+          pop();
+        }
+      } else if (node instanceof Ast.Call2) {
+        final Ast.Call2 call2 = (Ast.Call2) node;
+        switch (state) {
+        case 0:
+          push(call2.left);
+          break;
+        case 1:
+          // A Call2 other than "," is an item, between its children
+          if (call2.op != Op.COMMA) {
+            return call2;
+          }
+          break;
+        case 2:
+          push(call2.right);
+          break;
+        default:
+          pop();
+        }
+      } else if (node instanceof Ast.Call1) {
+        if (state == 0) {
+          push(((Ast.Call1) node).node);
+        } else {
+          pop();
+        }
+      } else {
+        pop();
+        return node;
+      }
+    }
+    return null;
+  }
+}
+
+// End AstCursor.java
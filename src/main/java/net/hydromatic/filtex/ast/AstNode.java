@@ -16,26 +16,80 @@
  */
 package net.hydromatic.filtex.ast;
 
+import com.google.common.collect.ImmutableList;
+import com.google.common.hash.PrimitiveSink;
+
 import org.checkerframework.checker.nullness.qual.Nullable;
 
+import java.math.BigDecimal;
+import java.util.List;
+
 /** Base class for Abstract Syntax Tree node. */
 public abstract class AstNode {
   public final Pos pos;
   public final Op op;
 
-  /** Unique identifier of a node, or null. It's mutable, so that we don't have
-   * to copy the tree just to number it, but just be careful. */
-  public @Nullable Integer id;
+  /** Unique identifier of a node, or null. Nodes are immutable, so to
+   * number a tree, {@link Asts#applyId} creates a copy. */
+  public final @Nullable Integer id;
+
+  /** Hash code, computed on first use; 0 if not yet computed. As in
+   * {@link String#hashCode()}, a race to compute it is benign. */
+  private int hash;
 
   protected AstNode(Pos pos, Op op) {
+    this(pos, op, null);
+  }
+
+  protected AstNode(Pos pos, Op op, @Nullable Integer id) {
     this.pos = pos;
     this.op = op;
+    this.id = id;
   }
 
   @Override public String toString() {
     return unparse(new AstWriter()).toString();
   }
 
+  /** {@inheritDoc}
+   *
+   * <p>Node classes implement structural equality: two nodes are equal if
+   * they have the same class, operator, values and children. The
+   * {@link #id} and {@link #pos} are ignored. */
+  @Override public boolean equals(@Nullable Object o) {
+    return o == this
+        || o instanceof AstNode
+        && o.getClass() == getClass()
+        && o.hashCode() == hashCode()
+        && equalsNode((AstNode) o);
+  }
+
+  /** Returns whether this node has the same operator, values and children
+   * as another node of the same class. Called by {@link #equals(Object)};
+   * the default implementation, for classes that do not support structural
+   * equality, returns false. */
+  protected boolean equalsNode(AstNode node) {
+    return false;
+  }
+
+  /** {@inheritDoc}
+   *
+   * <p>The hash code is computed once, by {@link #computeHashCode()}, and
+   * cached. */
+  @Override public int hashCode() {
+    int h = hash;
+    if (h == 0) {
+      h = computeHashCode();
+      hash = h;
+    }
+    return h;
+  }
+
+  /** Computes a hash code consistent with {@link #equals(Object)}. */
+  protected int computeHashCode() {
+    return System.identityHashCode(this);
+  }
+
   public abstract AstWriter unparse(AstWriter writer);
 
   public abstract void accept(AstVisitor visitor, @Nullable AstNode parent);
@@ -95,9 +149,46 @@ public String dateString(boolean showTime) {
     throw new UnsupportedOperationException("not a date: " + getClass());
   }
 
+  /** Returns the child nodes; empty if this node has none. */
+  List<AstNode> children() {
+    return ImmutableList.of();
+  }
+
+  /** Returns a copy of this node with a given id and children.
+   *
+   * <p>Supported by nodes that accept visitors, and therefore can be
+   * numbered by {@link Asts#applyId}. */
+  AstNode copy(@Nullable Integer id, List<AstNode> children) {
+    throw new UnsupportedOperationException("copy " + getClass());
+  }
+
   public Digester digest(Digester digester) {
     return digester.put("type", type());
   }
+
+  /** Writes this node's class, operator, values and children to a sink;
+   * see {@link Asts#fingerprint(AstNode)}.
+   *
+   * <p>Like {@link #equals(Object)}, ignores {@link #id} and {@link #pos}.
+   * Values of variable length are preceded by their length, so that
+   * different trees write different sequences. */
+  public PrimitiveSink fingerprint(PrimitiveSink sink) {
+    return sink.putInt(getClass().getName().hashCode())
+        .putInt(op.ordinal());
+  }
+
+  /** Writes a string, preceded by its length, to a sink. */
+  static PrimitiveSink putString(PrimitiveSink sink, CharSequence s) {
+    return sink.putInt(s.length()).putUnencodedChars(s);
+  }
+
+  /** Writes a value of a comparison to a sink. */
+  static PrimitiveSink putValue(PrimitiveSink sink, Object value) {
+    if (value instanceof BigDecimal) {
+      return Decimals.fingerprint(sink, (BigDecimal) value);
+    }
+    return putString(sink.putByte((byte) 2), value.toString());
+  }
 }
 
 // End AstNode.java
@@ -22,6 +22,8 @@
 interface AstVisitor {
   void visit(Ast.Call2 call2, @Nullable AstNode parent);
 
+  void visit(Ast.CallN callN, @Nullable AstNode parent);
+
   void visit(Ast.Call1 call1, @Nullable AstNode parent);
 
   void visit(Ast.Call0 call0, @Nullable AstNode parent);
@@ -38,6 +38,12 @@ public void infix(Ast.Call2 call2, @Nullable AstNode parent) {
     }
   }
 
+  @Override public void visit(Ast.CallN callN, @Nullable AstNode parent) {
+    for (AstNode arg : callN.args) {
+      arg.accept(this, callN);
+    }
+  }
+
   @Override public void visit(Ast.Call1 call1, @Nullable AstNode parent) {
     if (call1.node != null) {
       call1.node.accept(this, call1);
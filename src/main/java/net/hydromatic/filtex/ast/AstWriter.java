@@ -16,56 +16,236 @@
  */
 package net.hydromatic.filtex.ast;
 
-/** Context for writing an AST out as a string. */
-public class AstWriter {
-  private final StringBuilder b;
+import org.checkerframework.checker.nullness.qual.Nullable;
 
-  private AstWriter(StringBuilder b) {
-    this.b = new StringBuilder();
-  }
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.util.Arrays;
+
+import static java.util.Objects.requireNonNull;
+
+/** Context for writing an AST out as a string.
+ *
+ * <p>Writes to an {@link Appendable}, by default a new {@link StringBuilder}.
+ * To unparse many trees without creating a string for each, create one
+ * writer over the destination (say a {@link java.io.Writer} for an HTTP
+ * response, or a {@link java.nio.CharBuffer}) and call
+ * {@link AstNode#unparse(AstWriter)} for each tree. Numbers are formatted
+ * into a buffer that belongs to the writer, so writing them creates no
+ * objects.
+ *
+ * <p>If the {@code Appendable} throws {@link IOException}, methods throw
+ * {@link UncheckedIOException}. A writer is not thread-safe. */
+public class AstWriter {
+  private final Appendable out;
+  /** Buffer for formatting numbers; grows if needed. */
+  private char[] buf = new char[24];
 
+  /** Creates a writer that writes to a new {@link StringBuilder}. */
   public AstWriter() {
     this(new StringBuilder());
   }
 
+  /** Creates a writer that writes to an {@link Appendable}. */
+  public AstWriter(Appendable out) {
+    this.out = requireNonNull(out, "out");
+  }
+
   /** {@inheritDoc}
    *
-   * <p>Returns the source code generated by this writer. */
+   * <p>Returns the source code generated by this writer; or more precisely,
+   * the string value of the {@code Appendable}, which for a
+   * {@link StringBuilder} or {@link java.io.StringWriter} is what has been
+   * written. */
   @Override public String toString() {
-    return b.toString();
+    return out.toString();
+  }
+
+  private void write(char c) {
+    try {
+      out.append(c);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  private void write(CharSequence s) {
+    try {
+      out.append(s);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  private void write(char[] chars, int start, int end) {
+    try {
+      for (int i = start; i < end; i++) {
+        out.append(chars[i]);
+      }
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
   }
 
   /** Appends a string to the output. */
   public AstWriter append(String s) {
-    b.append(s);
+    write(s);
+    return this;
+  }
+
+  /** Appends a character to the output. */
+  public AstWriter append(char c) {
+    write(c);
     return this;
   }
 
   /** Appends an identifier to the output. */
   public AstWriter id(String s) {
-    b.append(s);
+    write(s);
     return this;
   }
 
   /** Appends a call to a prefix operator. */
   public AstWriter prefix(boolean is, Op op, AstNode a) {
-    b.append('{');
+    write('{');
     if (!is) {
-      append("not ");
+      write("not ");
     }
-    append(op.s);
+    write(op.s);
     a.unparse(this);
-    b.append('}');
+    write('}');
     return this;
   }
 
   /** Appends a call to an infix operator. */
   public AstWriter infix(AstNode left, Op op, AstNode right) {
-    append("{");
+    write('{');
     left.unparse(this);
-    append(op.s);
+    write(op.s);
     right.unparse(this);
-    append("}");
+    write('}');
+    return this;
+  }
+
+  /** Appends a decimal number, which is either packed into a long (see
+   * {@link Decimals}) or, if {@code packed} is {@link Decimals#NONE}, a
+   * BigDecimal. */
+  public AstWriter appendDecimal(long packed, @Nullable BigDecimal value) {
+    if (packed == Decimals.NONE) {
+      // BigDecimal caches the result of toString
+      write(requireNonNull(value, "value").toString());
+      return this;
+    }
+
+    // Same format as Decimals.appendTo, but digits go into the buffer
+    final long unscaled = Decimals.unscaled(packed);
+    final int scale = Decimals.scale(packed);
+    final int n = digits(Math.abs(unscaled));
+    if (n - 1 - scale < -6) {
+      // BigDecimal uses scientific notation, e.g. "1E-7"; this is rare
+      write(Decimals.toBigDecimal(packed).toString());
+      return this;
+    }
+    if (unscaled < 0) {
+      write('-');
+    }
+    final int pointPos = n - scale;
+    if (pointPos >= n) {
+      write(buf, 0, n);
+    } else if (pointPos > 0) {
+      write(buf, 0, pointPos);
+      write('.');
+      write(buf, pointPos, n);
+    } else {
+      write("0.");
+      for (int i = pointPos; i < 0; i++) {
+        write('0');
+      }
+      write(buf, 0, n);
+    }
+    return this;
+  }
+
+  /** Puts the decimal digits of a non-negative number at the start of the
+   * buffer, and returns how many there are. */
+  private int digits(long v) {
+    int n = 0;
+    for (long x = v; x >= 10; x /= 10) {
+      ++n;
+    }
+    for (int i = n; i >= 0; i--) {
+      buf[i] = (char) ('0' + v % 10);
+      v /= 10;
+    }
+    return n + 1;
+  }
+
+  /** Appends a latitude or longitude, rounded to one decimal place
+   * (half-even), followed by {@code negative} (such as "°S") if the rounded
+   * value is negative, otherwise {@code positive} (such as "°N"). The
+   * number is written without its sign.
+   *
+   * <p>For example, -33.86 with "°S" and "°N" gives "33.9°S".
+   *
+   * <p>Rounds the digits of the value's string, which BigDecimal caches,
+   * rather than creating a rounded BigDecimal. */
+  public AstWriter appendDegrees(BigDecimal v, String negative,
+      String positive) {
+    final String s = v.toString();
+    if (s.indexOf('E') >= 0) {
+      // Scientific notation, e.g. "1E+2"; this is rare
+      final BigDecimal v2 = v.setScale(1, RoundingMode.HALF_EVEN);
+      return v2.signum() < 0
+          ? appendLiteral(v2.negate()).append(negative)
+          : appendLiteral(v2).append(positive);
+    }
+    final int start = s.charAt(0) == '-' ? 1 : 0;
+    final int point = s.indexOf('.') < 0 ? s.length() : s.indexOf('.');
+    if (buf.length < s.length() + 2) {
+      buf = Arrays.copyOf(buf, s.length() + 2);
+    }
+
+    // Copy the integer digits and first fraction digit, after a '0' that
+    // absorbs a carry (e.g. "99.96" becomes "100.0")
+    int n = 0;
+    buf[n++] = '0';
+    for (int i = start; i < point; i++) {
+      buf[n++] = s.charAt(i);
+    }
+    buf[n++] = point + 1 < s.length() ? s.charAt(point + 1) : '0';
+    if (point + 2 < s.length()) {
+      final char d = s.charAt(point + 2);
+      boolean up = d > '5';
+      if (d == '5') {
+        up = (buf[n - 1] - '0') % 2 == 1;
+        for (int i = point + 3; i < s.length(); i++) {
+          up |= s.charAt(i) != '0';
+        }
+      }
+      if (up) {
+        int i = n - 1;
+        while (buf[i] == '9') {
+          buf[i--] = '0';
+        }
+        ++buf[i];
+      }
+    }
+
+    // Skip leading zeros, keeping at least one integer digit
+    int first = 0;
+    while (first < n - 2 && buf[first] == '0') {
+      ++first;
+    }
+    boolean zero = true;
+    for (int i = first; i < n; i++) {
+      zero &= buf[i] == '0';
+    }
+    write(buf, first, n - 1);
+    write('.');
+    write(buf[n - 1]);
+    write(start > 0 && !zero ? negative : positive);
     return this;
   }
 
@@ -91,4 +271,4 @@ public AstWriter appendLiteral(Comparable value) {
   }
 }
 
-// End AstNode.java
+// End AstWriter.java
@@ -19,6 +19,10 @@
 import net.hydromatic.filtex.TypeFamily;
 
 import com.google.common.collect.ImmutableList;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.hash.PrimitiveSink;
 
 import org.checkerframework.checker.nullness.qual.Nullable;
 
@@ -29,7 +33,6 @@
 import java.util.function.Consumer;
 import java.util.function.Function;
 import java.util.function.Predicate;
-import java.util.stream.Collectors;
 
 import static net.hydromatic.filtex.ast.AstBuilder.ast;
 
@@ -52,56 +55,16 @@ private Asts() {}
    * <p>See
    * <a href="https://github.com/looker-open-source/components/blob/main/packages/filter-expressions/src/utils/tree/tree_to_list.ts">
    * tree_to_list.ts</a>
+   *
+   * <p>To iterate over the items without creating a list, use
+   * {@link AstCursor}.
    */
   public static List<AstNode> treeToList(AstNode root) {
-    final List<AstNode> orItems = new ArrayList<>();
-    final List<AstNode> andItems = new ArrayList<>();
-    final AstVisitor visitor =
-        new AstVisitorImpl() {
-          @Override public void infix(Ast.Call2 call2,
-              @Nullable AstNode parent) {
-            if (call2.op != Op.COMMA) {
-              (call2.is() ? orItems : andItems).add(call2);
-            }
-          }
-
-          @Override public void visit(Ast.Call0 call0,
-              @Nullable AstNode parent) {
-            (call0.is() ? orItems : andItems).add(call0);
-          }
-
-          @Override public void visit(Ast.MatchesAdvanced matchesAdvanced,
-              @Nullable AstNode parent) {
-            (matchesAdvanced.is() ? orItems : andItems).add(matchesAdvanced);
-          }
-
-          @Override public void visit(Ast.Comparison literal,
-              @Nullable AstNode parent) {
-            (literal.is() ? orItems : andItems).add(literal);
-          }
-
-          @Override public void visit(Ast.NumericRange range,
-              @Nullable AstNode parent) {
-            List<AstNode> list = range.is ? orItems : andItems;
-            if (range.left != null && range.right != null) {
-              list.add(range);
-            } else if (range.left != null) {
-              Op op = range.op.containsLowerBound() ? Op.GE : Op.GT;
-              AstNode comparison = ast.comparison(true, op, range.left);
-              list.add(comparison);
-            } else if (range.right != null) {
-              Op op = range.op.containsUpperBound() ? Op.LE : Op.LT;
-              AstNode comparison = ast.comparison(true, op, range.right);
-              list.add(comparison);
-              // TODO list.add(model(range.right));
-            }
-          }
-        };
-    root.accept(visitor, null);
-    return ImmutableList.<AstNode>builder()
-        .addAll(orItems)
-        .addAll(andItems)
-        .build();
+    final ImmutableList.Builder<AstNode> list = ImmutableList.builder();
+    for (AstCursor cursor = new AstCursor().reset(root); cursor.next();) {
+      list.add(cursor.current());
+    }
+    return list.build();
   }
 
   /** Given an AST and a nodeToString conversion function for that particular
@@ -112,14 +75,22 @@ public static List<AstNode> treeToList(AstNode root) {
    * tree_to_string.ts</a>. */
   public static String treeToString(AstNode root, Function<AstNode, String> f,
       Predicate<AstNode> predicate) {
-    return treeToList(root).stream()
-        .filter(predicate)
-        .map(f)
-        .collect(Collectors.joining(","));
+    final StringBuilder b = new StringBuilder();
+    for (AstCursor cursor = new AstCursor().reset(root); cursor.next();) {
+      final AstNode node = cursor.current();
+      if (predicate.test(node)) {
+        if (b.length() > 0) {
+          b.append(',');
+        }
+        b.append(f.apply(node));
+      }
+    }
+    return b.toString();
   }
 
   /** Traverses the tree depth-first inorder (left, root, right) and assigns an
-   * id attribute to each node.
+   * id attribute to each node. A node with more than two children is
+   * handled after its first child.
    *
    * <p>See
    * <a href="https://github.com/looker-open-source/components/blob/main/packages/filter-expressions/src/utils/tree/inorder_traversal.ts">
@@ -140,63 +111,84 @@ private static void inorder(AstNode node, AstNode parent,
       if (call2.right != null) {
         inorder(call2.right, node, nodeHandler);
       }
-    } else if (node instanceof Ast.NumericRange) {
-      Ast.NumericRange call2 = (Ast.NumericRange) node;
-      if (call2.left != null) {
-        inorder(ast.numberLiteral(true, call2.left), node, nodeHandler);
-      }
+    } else if (node instanceof Ast.CallN) {
+      final Ast.CallN callN = (Ast.CallN) node;
+      inorder(callN.args.get(0), node, nodeHandler);
       nodeHandler.apply(node, parent);
-      if (call2.right != null) {
-        inorder(ast.numberLiteral(true, call2.right), node, nodeHandler);
+      for (AstNode arg : callN.args.subList(1, callN.args.size())) {
+        inorder(arg, node, nodeHandler);
       }
+    } else if (node instanceof Ast.NumericRange) {
+      Ast.NumericRange range = (Ast.NumericRange) node;
+      inorder(ast.numberLiteral(true, range.left()), node, nodeHandler);
+      nodeHandler.apply(node, parent);
+      inorder(ast.numberLiteral(true, range.right()), node, nodeHandler);
     } else if (node instanceof Ast.Comparison) {
       nodeHandler.apply(node, parent);
     }
   }
 
-  /** Walks over a tree, applying a consumer to each node. */
+  /** Walks over a tree, applying a consumer to each node, in pre-order.
+   * Unlike a visitor, also reaches nodes that do not accept visitors, such
+   * as date nodes. */
   public static void traverse(AstNode root, Consumer<AstNode> consumer) {
-    AstVisitorImpl visitor = new AstVisitorImpl() {
-      @Override public void visit(Ast.Call2 call2, @Nullable AstNode parent) {
-        consumer.accept(call2);
-        super.visit(call2, parent);
-      }
-
-      @Override public void visit(Ast.MatchesAdvanced matchesAdvanced,
-          @Nullable AstNode parent) {
-        consumer.accept(matchesAdvanced);
-        super.visit(matchesAdvanced, parent);
-      }
-
-      @Override public void visit(Ast.Call1 call1, @Nullable AstNode parent) {
-        consumer.accept(call1);
-        super.visit(call1, parent);
-      }
+    consumer.accept(root);
+    final List<AstNode> children = root.children();
+    for (int i = 0; i < children.size(); i++) {
+      traverse(children.get(i), consumer);
+    }
+  }
 
-      @Override public void visit(Ast.Call0 call0, @Nullable AstNode parent) {
-        consumer.accept(call0);
-        super.visit(call0, parent);
+  /** Returns a tree in which every node has a unique id.
+   *
+   * <p>If every node already has a unique id, returns {@code root}.
+   * Otherwise, because nodes are immutable, returns a copy of the tree whose
+   * nodes are numbered 0, 1, 2, ... in pre-order. */
+  public static AstNode applyId(AstNode root) {
+    final Set<Integer> ids = new HashSet<>();
+    final boolean[] numbered = {true};
+    traverse(root, node -> {
+      if (node.id == null || !ids.add(node.id)) {
+        numbered[0] = false;
       }
+    });
+    return numbered[0] ? root : renumber(root);
+  }
 
-      @Override public void visit(Ast.Comparison literal,
-          @Nullable AstNode parent) {
-        consumer.accept(literal);
-        super.visit(literal, parent);
-      }
+  /** Returns a copy of a tree whose nodes are numbered in pre-order, starting
+   * from 0. Unlike {@link #applyId(AstNode)}, does not first check whether
+   * the tree is already numbered, and replaces any existing ids. */
+  public static AstNode renumber(AstNode root) {
+    return number(root, new int[] {0});
+  }
 
-      @Override public void visit(Ast.NumericRange range,
-          @Nullable AstNode parent) {
-        consumer.accept(range);
-        super.visit(range, parent);
-      }
-    };
-    root.accept(visitor, null);
+  /** Returns a copy of a tree whose nodes are numbered in pre-order,
+   * starting from {@code nextId[0]}. */
+  private static AstNode number(AstNode node, int[] nextId) {
+    final int id = nextId[0]++;
+    final List<AstNode> children = new ArrayList<>();
+    for (AstNode child : node.children()) {
+      children.add(number(child, nextId));
+    }
+    return node.copy(id, children);
   }
 
-  /** Ensures that every node has a unique id. */
-  public static AstNode applyId(AstNode root) {
-    root.accept(new NumberingVisitor(), null);
-    return root;
+  /** Returns a 128-bit fingerprint of a tree.
+   *
+   * <p>The fingerprint is computed in one pass over the tree, using
+   * {@link AstNode#fingerprint(PrimitiveSink)}, without building strings or
+   * maps; call {@link HashCode#asLong()} if 64 bits are enough. Trees that are
+   * equal have the same fingerprint. To give the same fingerprint to trees
+   * that are semantically equal, such as those for "1,2" and "2, 1", first
+   * convert them to canonical form using
+   * {@link net.hydromatic.filtex.Transforms#canonicalize(AstNode)}.
+   *
+   * <p>Fingerprints are stable within a process, but not between versions
+   * of this library. */
+  public static HashCode fingerprint(AstNode root) {
+    final Hasher hasher = Hashing.murmur3_128().newHasher();
+    root.fingerprint(hasher);
+    return hasher.hash();
   }
 
   /** Removes node from the AST. */
@@ -208,17 +200,16 @@ public static AstNode applyId(AstNode root) {
     if (nodeId.equals(root.id)) {
       return null;
     }
-    if (root.op == Op.COMMA) {
-      final Ast.Call2 call2 = (Ast.Call2) root;
-      final @Nullable AstNode left2 = removeNode(call2.left, nodeId);
-      final @Nullable AstNode right2 = removeNode(call2.right, nodeId);
-      if (left2 == null) {
-        return right2;
-      }
-      if (right2 == null) {
-        return left2;
+    if (root instanceof Ast.CallN) {
+      final Ast.CallN callN = (Ast.CallN) root;
+      final List<AstNode> args = new ArrayList<>(callN.args.size());
+      for (AstNode arg : callN.args) {
+        final @Nullable AstNode arg2 = removeNode(arg, nodeId);
+        if (arg2 != null) {
+          args.add(arg2);
+        }
       }
-      return ast.logicalExpression(left2, right2);
+      return args.isEmpty() ? null : ast.logicalExpression(args);
     }
     return root;
   }
@@ -268,51 +259,6 @@ public static String dateFilterToString(AstNode root, TypeFamily typeFamily) {
   interface NodeHandler<R> {
     R apply(AstNode node, @Nullable AstNode parent);
   }
-
-  /** Visitor that assigns a unique {@link AstNode#id} to every node in a tree.
-   * Modifies the tree.  */
-  private static class NumberingVisitor extends AstVisitorImpl {
-    final Set<Integer> set = new HashSet<>();
-
-    void handle(AstNode node) {
-      if (node.id == null || !set.add(node.id)) {
-        for (int i = set.size();; i++) {
-          Integer id = i;
-          if (set.add(id)) {
-            node.id = id;
-            break;
-          }
-        }
-      }
-    }
-
-    @Override public void visit(Ast.Call2 call2, @Nullable AstNode parent) {
-      handle(call2);
-      super.visit(call2, parent);
-    }
-
-    @Override public void visit(Ast.Call1 call1, @Nullable AstNode parent) {
-      handle(call1);
-      super.visit(call1, parent);
-    }
-
-    @Override public void visit(Ast.Call0 call0, @Nullable AstNode parent) {
-      handle(call0);
-      super.visit(call0, parent);
-    }
-
-    @Override public void visit(Ast.Comparison literal,
-        @Nullable AstNode parent) {
-      handle(literal);
-      super.visit(literal, parent);
-    }
-
-    @Override public void visit(Ast.NumericRange range,
-        @Nullable AstNode parent) {
-      handle(range);
-      super.visit(range, parent);
-    }
-  }
 }
 
 // End Asts.java
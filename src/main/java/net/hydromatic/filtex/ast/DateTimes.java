@@ -0,0 +1,260 @@
+/*
+ * Licensed to Julian Hyde under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to you under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.hydromatic.filtex.ast;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Utilities for date and time values packed into a {@code long}.
+ *
+ * <p>A date literal in a filter expression may be a year ("2018"), a
+ * quarter ("2018-Q4"), a month ("2018/05"), a day ("2018/05/10"), or a day
+ * and time ("2018/05/10 12:34" or "2018/05/10 12:34:56"). Rather than
+ * creating objects with nullable fields, the parser packs each into a long.
+ * The fields, from most to least significant, are year (32 bits), month
+ * (4 bits), day (5 bits), hour (5 bits), minute (6 bits), second (6 bits),
+ * quarter (3 bits) and {@link Precision} (3 bits). A field that is absent
+ * is zero.
+ *
+ * <p>Because the larger units are in the more significant bits, two values
+ * with the same precision compare in the same order as their longs. To
+ * compare values of different precisions, or to resolve a value to a point
+ * in time, use {@link #compare}, {@link #epochDay} and {@link #epochSecond},
+ * which use only integer arithmetic.
+ */
+public final class DateTimes {
+  private static final int PRECISION_SHIFT = 0;
+  private static final int QUARTER_SHIFT = 3;
+  private static final int SECOND_SHIFT = 6;
+  private static final int MINUTE_SHIFT = 12;
+  private static final int HOUR_SHIFT = 18;
+  private static final int DAY_SHIFT = 23;
+  private static final int MONTH_SHIFT = 28;
+  private static final int YEAR_SHIFT = 32;
+
+  private static final Precision[] PRECISIONS = Precision.values();
+
+  private DateTimes() {
+  }
+
+  /** Returns a year, such as "2018". */
+  public static long year(int year) {
+    return pack(Precision.YEAR, year, 0, 0, 0, 0, 0, 0);
+  }
+
+  /** Returns a quarter, such as "2018-Q4". */
+  public static long quarter(int year, int quarter) {
+    checkArgument(quarter >= 1 && quarter <= 4, "quarter %s", quarter);
+    return pack(Precision.QUARTER, year, 0, 0, 0, 0, 0, quarter);
+  }
+
+  /** Returns a month, such as "2018/05". */
+  public static long month(int year, int month) {
+    checkMonth(month);
+    return pack(Precision.MONTH, year, month, 0, 0, 0, 0, 0);
+  }
+
+  /** Returns a day, such as "2018/05/10". */
+  public static long date(int year, int month, int day) {
+    checkMonth(month);
+    checkArgument(day >= 1 && day <= 31, "day %s", day);
+    return pack(Precision.DAY, year, month, day, 0, 0, 0, 0);
+  }
+
+  /** Returns a time of day without a date, such as "12:34:56"; if
+   * {@code second} is negative, the time has minute precision, as
+   * "12:34". Use {@link #plus} to add it to a date. */
+  public static long time(int hour, int minute, int second) {
+    checkArgument(hour >= 0 && hour <= 23, "hour %s", hour);
+    checkArgument(minute >= 0 && minute <= 59, "minute %s", minute);
+    checkArgument(second <= 59, "second %s", second);
+    return second < 0
+        ? pack(Precision.MINUTE, 0, 0, 0, hour, minute, 0, 0)
+        : pack(Precision.SECOND, 0, 0, 0, hour, minute, second, 0);
+  }
+
+  /** Returns a date with a time, given a day (see {@link #date}) and a time
+   * of day (see {@link #time}). */
+  public static long plus(long date, long time) {
+    checkArgument(precision(date) == Precision.DAY, "not a day: %s", date);
+    return (date & ~(0x7L << PRECISION_SHIFT)) | time;
+  }
+
+  private static void checkMonth(int month) {
+    checkArgument(month >= 1 && month <= 12, "month %s", month);
+  }
+
+  private static long pack(Precision precision, int year, int month, int day,
+      int hour, int minute, int second, int quarter) {
+    return (long) year << YEAR_SHIFT
+        | (long) month << MONTH_SHIFT
+        | (long) day << DAY_SHIFT
+        | (long) hour << HOUR_SHIFT
+        | (long) minute << MINUTE_SHIFT
+        | (long) second << SECOND_SHIFT
+        | (long) quarter << QUARTER_SHIFT
+        | (long) precision.ordinal() << PRECISION_SHIFT;
+  }
+
+  /** Returns the precision of a packed value. */
+  public static Precision precision(long packed) {
+    return PRECISIONS[(int) (packed >>> PRECISION_SHIFT) & 0x7];
+  }
+
+  /** Returns the year of a packed value. */
+  public static int year(long packed) {
+    return (int) (packed >> YEAR_SHIFT);
+  }
+
+  /** Returns the quarter (1 to 4) of a packed value, or 0 if its precision
+   * is not {@link Precision#QUARTER}. */
+  public static int quarter(long packed) {
+    return (int) (packed >>> QUARTER_SHIFT) & 0x7;
+  }
+
+  /** Returns the month (1 to 12) of a packed value, or 0 if absent. */
+  public static int month(long packed) {
+    return (int) (packed >>> MONTH_SHIFT) & 0xF;
+  }
+
+  /** Returns the day of the month (1 to 31) of a packed value, or 0 if
+   * absent. */
+  public static int day(long packed) {
+    return (int) (packed >>> DAY_SHIFT) & 0x1F;
+  }
+
+  /** Returns the hour of a packed value; 0 if absent. */
+  public static int hour(long packed) {
+    return (int) (packed >>> HOUR_SHIFT) & 0x1F;
+  }
+
+  /** Returns the minute of a packed value; 0 if absent. */
+  public static int minute(long packed) {
+    return (int) (packed >>> MINUTE_SHIFT) & 0x3F;
+  }
+
+  /** Returns the second of a packed value; 0 if absent. */
+  public static int second(long packed) {
+    return (int) (packed >>> SECOND_SHIFT) & 0x3F;
+  }
+
+  /** Returns the number of days from 1970-01-01 to the first day of the
+   * period represented by a packed value. For example, for "2018-Q2",
+   * returns the day number of 2018-04-01. */
+  public static long epochDay(long packed) {
+    final int quarter = quarter(packed);
+    final int month = month(packed);
+    final int day = day(packed);
+    return epochDay(year(packed),
+        month != 0 ? month : quarter != 0 ? quarter * 3 - 2 : 1,
+        day != 0 ? day : 1);
+  }
+
+  /** Returns the number of days from 1970-01-01 to a date in the proleptic
+   * Gregorian calendar, as {@link java.time.LocalDate#toEpochDay()}. */
+  static long epochDay(int year, int month, int day) {
+    // Algorithm "days_from_civil", by Howard Hinnant
+    final long y = month <= 2 ? year - 1 : year;
+    final long era = Math.floorDiv(y, 400);
+    final long yearOfEra = y - era * 400;
+    final long dayOfYear = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5
+        + day - 1;
+    final long dayOfEra =
+        yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+    return era * 146_097 + dayOfEra - 719_468;
+  }
+
+  /** Returns the number of seconds from 1970-01-01 00:00:00 to the start of
+   * the period represented by a packed value. */
+  public static long epochSecond(long packed) {
+    return epochDay(packed) * 86_400
+        + hour(packed) * 3_600
+        + minute(packed) * 60
+        + second(packed);
+  }
+
+  /** Compares two packed values by the start of their periods, then by
+   * precision, coarsest first. */
+  public static int compare(long packed0, long packed1) {
+    if (precision(packed0) == precision(packed1)) {
+      return Long.compare(packed0, packed1);
+    }
+    final int c = Long.compare(epochSecond(packed0), epochSecond(packed1));
+    return c != 0 ? c
+        : precision(packed0).compareTo(precision(packed1));
+  }
+
+  /** Converts a packed value to a string, such as "2018", "2018-Q4",
+   * "2018/05", "2018/05/10", "2018/05/10 12:34" or
+   * "2018/05/10 12:34:56". */
+  public static String toString(long packed) {
+    final StringBuilder b = new StringBuilder();
+    final Precision precision = precision(packed);
+    pad(b, year(packed), 4);
+    if (precision == Precision.QUARTER) {
+      return b.append("-Q").append(quarter(packed)).toString();
+    }
+    if (precision == Precision.YEAR) {
+      return b.toString();
+    }
+    pad(b.append('/'), month(packed), 2);
+    if (precision == Precision.MONTH) {
+      return b.toString();
+    }
+    pad(b.append('/'), day(packed), 2);
+    if (precision == Precision.DAY) {
+      return b.toString();
+    }
+    pad(b.append(' '), hour(packed), 2);
+    pad(b.append(':'), minute(packed), 2);
+    if (precision == Precision.SECOND) {
+      pad(b.append(':'), second(packed), 2);
+    }
+    return b.toString();
+  }
+
+  private static void pad(StringBuilder b, int value, int width) {
+    final String s = Integer.toString(value);
+    for (int i = s.length(); i < width; i++) {
+      b.append('0');
+    }
+    b.append(s);
+  }
+
+  /** Which fields of a packed value are present. */
+  public enum Precision {
+    YEAR, QUARTER, MONTH, DAY, MINUTE, SECOND;
+
+    /** Returns whether values of this precision have a month and day. */
+    public boolean hasDay() {
+      return compareTo(DAY) >= 0;
+    }
+
+    /** Returns whether values of this precision have a month. */
+    public boolean hasMonth() {
+      return compareTo(MONTH) >= 0;
+    }
+
+    /** Returns whether values of this precision have an hour and
+     * minute. */
+    public boolean hasTime() {
+      return compareTo(MINUTE) >= 0;
+    }
+  }
+}
+
+// End DateTimes.java
@@ -0,0 +1,151 @@
+/*
+ * Licensed to Julian Hyde under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to you under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.hydromatic.filtex.ast;
+
+import com.google.common.collect.ImmutableList;
+
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+import java.math.BigDecimal;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.RandomAccess;
+
+/**
+ * Immutable list of decimal numbers, each packed into a {@code long} by
+ * {@link Decimals}.
+ *
+ * <p>It is the value of a numeric {@link Ast.Comparison}, and is much smaller
+ * than a list of {@link BigDecimal}. Its elements are converted to
+ * {@code BigDecimal} when you call {@link #get(int)}; call
+ * {@link #getPacked(int)} to avoid creating objects.
+ */
+@SuppressWarnings("rawtypes")
+public final class DecimalList extends AbstractList<Comparable>
+    implements RandomAccess {
+  private final long[] values;
+
+  private DecimalList(long[] values) {
+    this.values = values;
+  }
+
+  /** Creates a list with one packed value. */
+  public static DecimalList of(long packed) {
+    if (packed == Decimals.NONE) {
+      throw new IllegalArgumentException("not a packed value");
+    }
+    return new DecimalList(new long[] {packed});
+  }
+
+  /** Creates a list with the first {@code count} values of an array of
+   * packed values. */
+  public static DecimalList copyOf(long[] packed, int count) {
+    final long[] values = Arrays.copyOf(packed, count);
+    for (long value : values) {
+      if (value == Decimals.NONE) {
+        throw new IllegalArgumentException("not a packed value");
+      }
+    }
+    return new DecimalList(values);
+  }
+
+  /** Returns a list with the same elements as a given iterable, or null if
+   * not all of its elements are BigDecimal values that fit in a long. */
+  public static @Nullable DecimalList copyOf(
+      Iterable<? extends Comparable> values) {
+    if (values instanceof DecimalList) {
+      return (DecimalList) values;
+    }
+    long[] packed = new long[4];
+    int n = 0;
+    for (Comparable value : values) {
+      if (!(value instanceof BigDecimal)) {
+        return null;
+      }
+      final long p = Decimals.pack((BigDecimal) value);
+      if (p == Decimals.NONE) {
+        return null;
+      }
+      if (n == packed.length) {
+        packed = Arrays.copyOf(packed, n * 2);
+      }
+      packed[n++] = p;
+    }
+    return new DecimalList(Arrays.copyOf(packed, n));
+  }
+
+  /** Concatenates lists of values, copying each element once. The result is
+   * a DecimalList if all of the lists are. */
+  public static List<Comparable> concat(
+      List<? extends List<Comparable>> lists) {
+    int size = 0;
+    boolean packed = true;
+    for (List<Comparable> list : lists) {
+      size += list.size();
+      packed &= list instanceof DecimalList;
+    }
+    if (packed) {
+      final long[] values = new long[size];
+      int n = 0;
+      for (List<Comparable> list : lists) {
+        final long[] values1 = ((DecimalList) list).values;
+        System.arraycopy(values1, 0, values, n, values1.length);
+        n += values1.length;
+      }
+      return new DecimalList(values);
+    }
+    final ImmutableList.Builder<Comparable> builder =
+        ImmutableList.builderWithExpectedSize(size);
+    lists.forEach(builder::addAll);
+    return builder.build();
+  }
+
+  @Override public BigDecimal get(int index) {
+    return Decimals.toBigDecimal(values[index]);
+  }
+
+  /** {@inheritDoc}
+   *
+   * <p>Returns a copy, so that the result is also a {@code DecimalList}. */
+  @Override public DecimalList subList(int fromIndex, int toIndex) {
+    return new DecimalList(Arrays.copyOfRange(values, fromIndex, toIndex));
+  }
+
+  /** Returns the packed value of the element at a given position. */
+  public long getPacked(int index) {
+    return values[index];
+  }
+
+  @Override public int size() {
+    return values.length;
+  }
+
+  /** Appends the elements to a builder, separated by commas, as
+   * {@link AstNode#valueString()} would. */
+  public StringBuilder appendTo(StringBuilder b) {
+    for (int i = 0; i < values.length; i++) {
+      if (i > 0) {
+        b.append(',');
+      }
+      Decimals.appendTo(b, values[i]);
+    }
+    return b;
+  }
+}
+
+// End DecimalList.java
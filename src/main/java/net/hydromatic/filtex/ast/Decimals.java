@@ -0,0 +1,245 @@
+/*
+ * Licensed to Julian Hyde under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to you under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.hydromatic.filtex.ast;
+
+import com.google.common.hash.PrimitiveSink;
+
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Utilities for decimal numbers packed into a {@code long}.
+ *
+ * <p>Almost every number in a filter expression has few digits, so rather
+ * than creating a {@link BigDecimal}, the parser and AST store its unscaled
+ * value and scale in a long. The top 59 bits hold the unscaled value, and the
+ * bottom 5 bits hold the scale, which must be between 0 and 31. For example,
+ * "-1.50" has unscaled value -150 and scale 2.
+ *
+ * <p>A packed value converts to and from a {@code BigDecimal} without loss,
+ * including its scale. Numbers that do not fit, such as
+ * "12345678901234567890" or "1e3" (whose scale is negative), are represented
+ * as {@code BigDecimal}; methods that pack return {@link #NONE} for them.
+ */
+public final class Decimals {
+  /** Value returned by {@link #parse} and {@link #pack} if a number does not
+   * fit in a long. It is not a valid packed value. */
+  public static final long NONE = Long.MIN_VALUE;
+
+  private static final int SCALE_BITS = 5;
+  private static final int MAX_SCALE = (1 << SCALE_BITS) - 1;
+  private static final long MAX_UNSCALED = (1L << (63 - SCALE_BITS)) - 1;
+
+  private Decimals() {
+  }
+
+  /** Packs an unscaled value and scale, or returns {@link #NONE} if they do
+   * not fit. */
+  public static long pack(long unscaled, int scale) {
+    if (scale < 0 || scale > MAX_SCALE
+        || unscaled > MAX_UNSCALED || unscaled < -MAX_UNSCALED) {
+      return NONE;
+    }
+    return unscaled << SCALE_BITS | scale;
+  }
+
+  /** Packs a BigDecimal, or returns {@link #NONE} if it does not fit. */
+  public static long pack(BigDecimal value) {
+    final int scale = value.scale();
+    if (scale < 0 || scale > MAX_SCALE) {
+      return NONE;
+    }
+    final BigInteger unscaled = value.unscaledValue();
+    if (unscaled.bitLength() > 63 - SCALE_BITS) {
+      return NONE;
+    }
+    return pack(unscaled.longValue(), scale);
+  }
+
+  /** Parses a numeric literal, such as "-1.5" or ".2e-3", with the same
+   * result as {@link BigDecimal#BigDecimal(String)}; returns {@link #NONE} if
+   * the value does not fit, or if the literal is not valid. */
+  public static long parse(CharSequence s) {
+    return parse(s, 0, s.length());
+  }
+
+  /** Parses the numeric literal in a region of a character sequence, from
+   * {@code start} (inclusive) to {@code end} (exclusive).
+   *
+   * @see #parse(CharSequence) */
+  public static long parse(CharSequence s, int start, int end) {
+    int i = start;
+    final boolean negative = i < end && s.charAt(i) == '-';
+    if (negative) {
+      ++i;
+    }
+    long unscaled = 0;
+    int scale = 0;
+    int digitCount = 0;
+    boolean point = false;
+    for (; i < end; i++) {
+      final char c = s.charAt(i);
+      if (c >= '0' && c <= '9') {
+        final int digit = c - '0';
+        if (unscaled > (MAX_UNSCALED - digit) / 10) {
+          return NONE;
+        }
+        unscaled = unscaled * 10 + digit;
+        ++digitCount;
+        if (point) {
+          ++scale;
+        }
+      } else if (c == '.' && !point) {
+        point = true;
+      } else if ((c == 'e' || c == 'E') && digitCount > 0) {
+        break;
+      } else {
+        return NONE;
+      }
+    }
+    if (digitCount == 0) {
+      return NONE;
+    }
+    if (i < end) {
+      // Exponent; we only get here after 'e' or 'E'
+      ++i;
+      final boolean negativeExponent = i < end && s.charAt(i) == '-';
+      if (negativeExponent) {
+        ++i;
+      }
+      if (i == end) {
+        return NONE;
+      }
+      int exponent = 0;
+      for (; i < end; i++) {
+        final char c = s.charAt(i);
+        if (c < '0' || c > '9' || exponent > MAX_SCALE) {
+          return NONE;
+        }
+        exponent = exponent * 10 + (c - '0');
+      }
+      scale += negativeExponent ? exponent : -exponent;
+    }
+    return pack(negative ? -unscaled : unscaled, scale);
+  }
+
+  /** Returns the unscaled value of a packed number. */
+  public static long unscaled(long packed) {
+    return packed >> SCALE_BITS;
+  }
+
+  /** Returns the scale of a packed number. */
+  public static int scale(long packed) {
+    return (int) (packed & MAX_SCALE);
+  }
+
+  /** Returns a packed number with trailing zeros removed from its
+   * fractional part. For example, "1.50" becomes "1.5" and "2.0" becomes
+   * "2", but "10" is unchanged. Numbers that are numerically equal have the
+   * same normalized form. */
+  public static long normalize(long packed) {
+    long unscaled = unscaled(packed);
+    int scale = scale(packed);
+    while (scale > 0 && unscaled % 10 == 0) {
+      unscaled /= 10;
+      --scale;
+    }
+    return pack(unscaled, scale);
+  }
+
+  /** Returns a number with trailing zeros removed from its fractional part,
+   * and with a scale that is not negative; see {@link #normalize(long)}. */
+  public static BigDecimal normalize(BigDecimal value) {
+    final BigDecimal stripped = value.stripTrailingZeros();
+    return stripped.scale() < 0 ? stripped.setScale(0) : stripped;
+  }
+
+  /** Writes a packed number to a sink; see {@link AstNode#fingerprint}. */
+  static PrimitiveSink fingerprint(PrimitiveSink sink, long packed) {
+    return sink.putByte((byte) 0).putLong(packed);
+  }
+
+  /** Writes a number to a sink. A number that fits in a long is written
+   * the same as its packed form. */
+  static PrimitiveSink fingerprint(PrimitiveSink sink, BigDecimal value) {
+    final long packed = pack(value);
+    if (packed != NONE) {
+      return fingerprint(sink, packed);
+    }
+    final byte[] bytes = value.unscaledValue().toByteArray();
+    return sink.putByte((byte) 1)
+        .putInt(value.scale())
+        .putInt(bytes.length)
+        .putBytes(bytes);
+  }
+
+  /** Writes a number, stored either packed or as a BigDecimal, to a
+   * sink. */
+  static PrimitiveSink fingerprint(PrimitiveSink sink, long packed,
+      @Nullable BigDecimal value) {
+    return packed != NONE
+        ? fingerprint(sink, packed)
+        : fingerprint(sink, requireNonNull(value));
+  }
+
+  /** Converts a packed number to a BigDecimal. */
+  public static BigDecimal toBigDecimal(long packed) {
+    return BigDecimal.valueOf(unscaled(packed), scale(packed));
+  }
+
+  /** Converts a packed number to a string; the result is the same as
+   * {@link BigDecimal#toString()}. */
+  public static String toString(long packed) {
+    return appendTo(new StringBuilder(), packed).toString();
+  }
+
+  /** Appends a packed number to a builder, in the same format as
+   * {@link BigDecimal#toString()}. */
+  public static StringBuilder appendTo(StringBuilder b, long packed) {
+    final long unscaled = unscaled(packed);
+    final int scale = scale(packed);
+    if (scale == 0) {
+      return b.append(unscaled);
+    }
+    final String digits = Long.toString(Math.abs(unscaled));
+    final int adjustedExponent = digits.length() - 1 - scale;
+    if (adjustedExponent < -6) {
+      // BigDecimal uses scientific notation, e.g. "1E-7"; this is rare
+      return b.append(toBigDecimal(packed));
+    }
+    if (unscaled < 0) {
+      b.append('-');
+    }
+    final int pointPos = digits.length() - scale;
+    if (pointPos > 0) {
+      return b.append(digits, 0, pointPos)
+          .append('.')
+          .append(digits, pointPos, digits.length());
+    }
+    b.append("0.");
+    for (int i = pointPos; i < 0; i++) {
+      b.append('0');
+    }
+    return b.append(digits);
+  }
+}
+
+// End Decimals.java
@@ -41,7 +41,7 @@ private Digester(SortedMap<String, Object> map, String prefix) {
   }
 
   /** Creates a digester with the same map, additional prefix. */
-  private Digester plus(String prefix) {
+  Digester plus(String prefix) {
     return new Digester(map, this.prefix + prefix + ".");
   }
 
@@ -65,32 +65,55 @@ public Digester sub(String key, AstNode node) {
     return this;
   }
 
-  /** Adds a Date sub-object. */
-  public Digester sub(String key, Date date) {
-    date.digest(plus(key));
+  /** Adds a sub-object for a date, or a date and time, packed as by
+   * {@link DateTimes}. */
+  public Digester date(String key, long date) {
+    final Digester digester = plus(key)
+        .put("year", DateTimes.year(date))
+        .put("month", DateTimes.month(date))
+        .put("day", DateTimes.day(date));
+    if (DateTimes.precision(date).hasTime()) {
+      digester.put("hour", DateTimes.hour(date))
+          .put("minute", DateTimes.minute(date));
+      if (DateTimes.precision(date) == DateTimes.Precision.SECOND) {
+        digester.put("second", DateTimes.second(date));
+      }
+    }
     return this;
   }
 
   @Override public String toString() {
     // Convert map "{a=p,q, b.x=2, b.y=3}" to map2 "{a='p,q', b={x=2, y=3}}"
+    return nest(true).toString();
+  }
+
+  /** Returns the properties as a nested map. For example, properties
+   * "{a=p,q, b.x=2, b.y.z=3}" become "{a=p,q, b={x=2, y={z=3}}}". */
+  public SortedMap<String, Object> toMap() {
+    return nest(false);
+  }
+
+  private SortedMap<String, Object> nest(boolean quote) {
     final SortedMap<String, Object> map2 = new TreeMap<>();
     map.forEach((key, value) -> {
-      if (value instanceof String
+      if (quote
+          && value instanceof String
           && !ALPHANUMERIC.matcher((String) value).matches()) {
         value = "'" + value + "'";
       }
-      if (key.contains(".")) {
-        final int i = key.indexOf('.');
-        @SuppressWarnings("unchecked") final Map<String, Object> subMap =
+      Map<String, Object> subMap = map2;
+      int i;
+      while ((i = key.indexOf('.')) >= 0) {
+        @SuppressWarnings("unchecked") final Map<String, Object> m =
             (Map<String, Object>)
-                map2.computeIfAbsent(key.substring(0, i),
+                subMap.computeIfAbsent(key.substring(0, i),
                     k -> new TreeMap<>());
-        subMap.put(key.substring(i + 1), value);
-      } else {
-        map2.put(key, value);
+        subMap = m;
+        key = key.substring(i + 1);
       }
+      subMap.put(key, value);
     });
-    return map2.toString();
+    return map2;
   }
 
 }
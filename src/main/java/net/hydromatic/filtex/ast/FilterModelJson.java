@@ -0,0 +1,680 @@
+/*
+ * Licensed to Julian Hyde under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to you under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.hydromatic.filtex.ast;
+
+import com.google.common.collect.ImmutableList;
+
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.function.Supplier;
+
+import static net.hydromatic.filtex.ast.AstBuilder.ast;
+
+/**
+ * Converts ASTs to and from JSON in the shape of the FilterModel objects of
+ * the
+ * <a href="https://github.com/looker-open-source/components/tree/main/packages/filter-expressions">
+ * filter-expressions</a> TypeScript library.
+ *
+ * <p>For example, the tree for "[0,20],>30" is written as
+ *
+ * <pre>{@code
+ * {"type":",",
+ *  "left":{"type":"between","is":true,"bounds":"[]","low":0,"high":20},
+ *  "right":{"type":">","is":true,"value":[30]}}
+ * }</pre>
+ *
+ * <p>The fields are those returned by {@link AstNode#type()},
+ * {@link AstNode#is()}, {@link AstNode#value()}, {@link AstNode#bounds()},
+ * {@link AstNode#low()}, {@link AstNode#high()} and
+ * {@link AstNode#expression()}, plus "id" if the node has one, "left" and
+ * "right" for the terms of a logical expression, and "lat", "lon", "lat1",
+ * "lon1", "distance" and "unit" for locations. As in FilterModel, a logical
+ * expression with more than two terms is written as nested pairs.
+ *
+ * <p>Neither the writer nor the reader uses reflection or builds an
+ * intermediate map or string. The writer appends directly to a
+ * {@link StringBuilder}; the reader makes one pass over the characters,
+ * matches field names in place, parses numbers without creating
+ * {@link BigDecimal} objects if they fit in a long (see {@link Decimals}),
+ * and builds nodes using {@link AstBuilder}. It ignores "id", except on
+ * "matches advanced" nodes; call {@link Asts#applyId} to number the tree.
+ *
+ * <p>Number, location and "matches advanced" trees are supported. Date
+ * nodes have no FilterModel representation here, and the writer throws
+ * {@link IllegalArgumentException}.
+ */
+public class FilterModelJson {
+  private FilterModelJson() {
+  }
+
+  /** Converts a tree to a JSON string. */
+  public static String toJson(AstNode node) {
+    return write(node, new StringBuilder()).toString();
+  }
+
+  /** Appends the JSON for a tree to a builder. */
+  public static StringBuilder write(AstNode node, StringBuilder b) {
+    if (node instanceof Ast.CallN) {
+      // Write "a, b, c" as nested pairs, "{a, {b, c}}", starting each
+      // pair with the id of the node.
+      final List<AstNode> args = ((Ast.CallN) node).args;
+      for (int i = 0; i < args.size() - 1; i++) {
+        b.append('{');
+        if (i == 0 && node.id != null) {
+          b.append("\"id\":").append(node.id).append(',');
+        }
+        b.append("\"type\":");
+        string(b, node.type());
+        b.append(",\"left\":");
+        write(args.get(i), b);
+        b.append(",\"right\":");
+      }
+      write(args.get(args.size() - 1), b);
+      for (int i = 0; i < args.size() - 1; i++) {
+        b.append('}');
+      }
+      return b;
+    }
+    b.append('{');
+    if (node.id != null) {
+      b.append("\"id\":").append(node.id).append(',');
+    }
+    b.append("\"type\":");
+    string(b, node.type());
+    if (node instanceof Ast.Call2) {
+      b.append(",\"left\":");
+      write(((Ast.Call2) node).left, b);
+      b.append(",\"right\":");
+      write(((Ast.Call2) node).right, b);
+    } else if (node instanceof Ast.Comparison) {
+      b.append(",\"is\":").append(node.is());
+      b.append(",\"value\":");
+      values(b, ((Ast.Comparison) node).value);
+    } else if (node instanceof Ast.NumericRange) {
+      final Ast.NumericRange range = (Ast.NumericRange) node;
+      b.append(",\"is\":").append(range.is);
+      b.append(",\"bounds\":");
+      string(b, range.bounds());
+      b.append(",\"low\":");
+      number(b, range.packedLeft(), range::left);
+      b.append(",\"high\":");
+      number(b, range.packedRight(), range::right);
+    } else if (node instanceof Ast.Call0) {
+      b.append(",\"is\":").append(node.is());
+    } else if (node instanceof Ast.MatchesAdvanced) {
+      b.append(",\"expression\":");
+      string(b, ((Ast.MatchesAdvanced) node).expression);
+    } else if (node instanceof Ast.Point) {
+      location(b, ((Ast.Point) node).location, "");
+    } else if (node instanceof Ast.Box) {
+      location(b, ((Ast.Box) node).from, "");
+      location(b, ((Ast.Box) node).to, "1");
+    } else if (node instanceof Ast.Circle) {
+      final Ast.Circle circle = (Ast.Circle) node;
+      b.append(",\"distance\":").append(circle.distance);
+      b.append(",\"unit\":");
+      string(b, circle.unit.plural);
+      location(b, circle.location, "");
+    } else {
+      throw new IllegalArgumentException("cannot convert "
+          + node.getClass().getSimpleName() + " to FilterModel");
+    }
+    return b.append('}');
+  }
+
+  private static void location(StringBuilder b, Location location,
+      String suffix) {
+    b.append(",\"lat").append(suffix).append("\":")
+        .append(location.latitude)
+        .append(",\"lon").append(suffix).append("\":")
+        .append(location.longitude);
+  }
+
+  private static void number(StringBuilder b, long packed,
+      Supplier<BigDecimal> value) {
+    if (packed != Decimals.NONE) {
+      Decimals.appendTo(b, packed);
+    } else {
+      b.append(value.get());
+    }
+  }
+
+  @SuppressWarnings("rawtypes")
+  private static void values(StringBuilder b, List<Comparable> values) {
+    b.append('[');
+    if (values instanceof DecimalList) {
+      final DecimalList decimals = (DecimalList) values;
+      for (int i = 0; i < decimals.size(); i++) {
+        if (i > 0) {
+          b.append(',');
+        }
+        Decimals.appendTo(b, decimals.getPacked(i));
+      }
+    } else {
+      for (int i = 0; i < values.size(); i++) {
+        if (i > 0) {
+          b.append(',');
+        }
+        final Comparable value = values.get(i);
+        if (value instanceof BigDecimal) {
+          b.append(value);
+        } else {
+          string(b, value.toString());
+        }
+      }
+    }
+    b.append(']');
+  }
+
+  /** Appends a JSON string literal. */
+  private static void string(StringBuilder b, String s) {
+    b.append('"');
+    for (int i = 0; i < s.length(); i++) {
+      final char c = s.charAt(i);
+      switch (c) {
+      case '"':
+      case '\\':
+        b.append('\\').append(c);
+        break;
+      case '\n':
+        b.append("\\n");
+        break;
+      case '\r':
+        b.append("\\r");
+        break;
+      case '\t':
+        b.append("\\t");
+        break;
+      default:
+        if (c < ' ') {
+          b.append(String.format(Locale.ROOT, "\\u%04x", (int) c));
+        } else {
+          b.append(c);
+        }
+      }
+    }
+    b.append('"');
+  }
+
+  /** Converts JSON to a tree.
+   *
+   * @throws IllegalArgumentException if the JSON is not valid, or is not a
+   *   supported FilterModel */
+  public static AstNode read(CharSequence json) {
+    final Reader reader = new Reader(json);
+    final AstNode node = reader.node();
+    reader.skipWhitespace();
+    if (reader.pos < json.length()) {
+      throw reader.error("unexpected characters after model");
+    }
+    return node;
+  }
+
+  /** Names of the fields of a model. The reader matches names against these
+   * in place, without creating strings. */
+  private enum Field {
+    ID("id"), TYPE("type"), IS("is"), VALUE("value"), BOUNDS("bounds"),
+    LOW("low"), HIGH("high"), EXPRESSION("expression"), LEFT("left"),
+    RIGHT("right"), LAT("lat"), LON("lon"), LAT1("lat1"), LON1("lon1"),
+    DISTANCE("distance"), UNIT("unit");
+
+    private static final Field[] VALUES = values();
+
+    final String jsonName;
+
+    Field(String jsonName) {
+      this.jsonName = jsonName;
+    }
+  }
+
+  /** Pull parser that reads models from a character sequence. */
+  private static class Reader {
+    final CharSequence s;
+    int pos;
+
+    /** Packed values of the "value" field; reused by each comparison. */
+    long[] packed = new long[8];
+
+    Reader(CharSequence s) {
+      this.s = s;
+    }
+
+    IllegalArgumentException error(String message) {
+      return new IllegalArgumentException(message + " at position " + pos);
+    }
+
+    void skipWhitespace() {
+      while (pos < s.length()) {
+        switch (s.charAt(pos)) {
+        case ' ':
+        case '\t':
+        case '\n':
+        case '\r':
+          ++pos;
+          break;
+        default:
+          return;
+        }
+      }
+    }
+
+    /** Returns the next non-whitespace character, without consuming it. */
+    char peek() {
+      skipWhitespace();
+      if (pos >= s.length()) {
+        throw error("unexpected end of input");
+      }
+      return s.charAt(pos);
+    }
+
+    void expect(char c) {
+      if (peek() != c) {
+        throw error("expected '" + c + "'");
+      }
+      ++pos;
+    }
+
+    /** Reads a field name, and returns the field, or null if the name is
+     * not known. */
+    @Nullable Field field() {
+      expect('"');
+      final int start = pos;
+      while (pos < s.length() && s.charAt(pos) != '"') {
+        if (s.charAt(pos) == '\\') {
+          // Field names never contain escapes; read it the slow way.
+          pos = start - 1;
+          final String name = string();
+          for (Field field : Field.VALUES) {
+            if (field.jsonName.equals(name)) {
+              return field;
+            }
+          }
+          return null;
+        }
+        ++pos;
+      }
+      final int end = pos;
+      expect('"');
+      for (Field field : Field.VALUES) {
+        if (field.jsonName.length() == end - start
+            && regionMatches(field.jsonName, start)) {
+          return field;
+        }
+      }
+      return null;
+    }
+
+    private boolean regionMatches(String name, int start) {
+      for (int i = 0; i < name.length(); i++) {
+        if (s.charAt(start + i) != name.charAt(i)) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    String string() {
+      expect('"');
+      final StringBuilder b = new StringBuilder();
+      for (;;) {
+        if (pos >= s.length()) {
+          throw error("unterminated string");
+        }
+        final char c = s.charAt(pos++);
+        if (c == '"') {
+          return b.toString();
+        }
+        if (c != '\\') {
+          b.append(c);
+          continue;
+        }
+        if (pos >= s.length()) {
+          throw error("unterminated string");
+        }
+        final char e = s.charAt(pos++);
+        switch (e) {
+        case 'n':
+          b.append('\n');
+          break;
+        case 'r':
+          b.append('\r');
+          break;
+        case 't':
+          b.append('\t');
+          break;
+        case 'b':
+          b.append('\b');
+          break;
+        case 'f':
+          b.append('\f');
+          break;
+        case 'u':
+          if (pos + 4 > s.length()) {
+            throw error("bad escape");
+          }
+          b.append((char) Integer.parseInt(s.subSequence(pos, pos + 4)
+              .toString(), 16));
+          pos += 4;
+          break;
+        default:
+          b.append(e);
+        }
+      }
+    }
+
+    boolean bool() {
+      if (match("true")) {
+        return true;
+      }
+      if (match("false")) {
+        return false;
+      }
+      throw error("expected boolean");
+    }
+
+    private boolean match(String word) {
+      peek();
+      if (pos + word.length() <= s.length() && regionMatches(word, pos)) {
+        pos += word.length();
+        return true;
+      }
+      return false;
+    }
+
+    /** Consumes a number, and returns the position where it starts; it ends
+     * at {@link #pos}. */
+    int numberStart() {
+      peek();
+      final int start = pos;
+      while (pos < s.length()) {
+        final char c = s.charAt(pos);
+        if (c >= '0' && c <= '9' || c == '-' || c == '+' || c == '.'
+            || c == 'e' || c == 'E') {
+          ++pos;
+        } else {
+          break;
+        }
+      }
+      if (pos == start) {
+        throw error("expected number");
+      }
+      return start;
+    }
+
+    String numberString() {
+      final int start = numberStart();
+      return s.subSequence(start, pos).toString();
+    }
+
+    BigDecimal decimal() {
+      final int start = numberStart();
+      final long packed = Decimals.parse(s, start, pos);
+      return packed != Decimals.NONE
+          ? Decimals.toBigDecimal(packed)
+          : new BigDecimal(s.subSequence(start, pos).toString());
+    }
+
+    /** Reads the array of a "value" field. */
+    @SuppressWarnings("rawtypes")
+    List<Comparable> values() {
+      expect('[');
+      int count = 0;
+      @Nullable List<Comparable> list = null;
+      while (peek() != ']') {
+        if (count > 0) {
+          expect(',');
+        }
+        if (list == null && peek() != '"') {
+          final int start = numberStart();
+          final long p = Decimals.parse(s, start, pos);
+          if (p != Decimals.NONE) {
+            if (count == packed.length) {
+              packed = Arrays.copyOf(packed, count * 2);
+            }
+            packed[count++] = p;
+            continue;
+          }
+          pos = start;
+        }
+        if (list == null) {
+          list = new ArrayList<>();
+          for (int i = 0; i < count; i++) {
+            list.add(Decimals.toBigDecimal(packed[i]));
+          }
+        }
+        list.add(peek() == '"' ? string() : decimal());
+        ++count;
+      }
+      ++pos;
+      return list == null
+          ? DecimalList.copyOf(packed, count)
+          : ImmutableList.copyOf(list);
+    }
+
+    /** Skips a value of a field that is not known. */
+    void skipValue() {
+      switch (peek()) {
+      case '"':
+        string();
+        break;
+      case '{':
+      case '[':
+        final char close = s.charAt(pos) == '{' ? '}' : ']';
+        ++pos;
+        for (int i = 0; peek() != close; i++) {
+          if (i > 0) {
+            expect(',');
+          }
+          if (close == '}') {
+            string();
+            expect(':');
+          }
+          skipValue();
+        }
+        ++pos;
+        break;
+      case 't':
+      case 'f':
+        bool();
+        break;
+      case 'n':
+        if (!match("null")) {
+          throw error("expected null");
+        }
+        break;
+      default:
+        numberStart();
+      }
+    }
+
+    /** Reads a model, and converts it to a node. */
+    @SuppressWarnings("rawtypes")
+    AstNode node() {
+      @Nullable Integer id = null;
+      @Nullable String type = null;
+      boolean is = true;
+      @Nullable List<Comparable> value = null;
+      @Nullable String bounds = null;
+      @Nullable String low = null;
+      @Nullable String high = null;
+      @Nullable String expression = null;
+      @Nullable AstNode left = null;
+      @Nullable AstNode right = null;
+      final BigDecimal[] coordinates = new BigDecimal[4];
+      @Nullable BigDecimal distance = null;
+      @Nullable String unit = null;
+
+      expect('{');
+      for (int i = 0; peek() != '}'; i++) {
+        if (i > 0) {
+          expect(',');
+        }
+        final Field field = field();
+        expect(':');
+        if (field == null || peek() == 'n' && match("null")) {
+          if (field == null) {
+            skipValue();
+          }
+          continue;
+        }
+        switch (field) {
+        case ID:
+          id = Integer.valueOf(numberString());
+          break;
+        case TYPE:
+          type = string();
+          break;
+        case IS:
+          is = bool();
+          break;
+        case VALUE:
+          value = values();
+          break;
+        case BOUNDS:
+          bounds = string();
+          break;
+        case LOW:
+          low = numberString();
+          break;
+        case HIGH:
+          high = numberString();
+          break;
+        case EXPRESSION:
+          expression = string();
+          break;
+        case LEFT:
+          left = node();
+          break;
+        case RIGHT:
+          right = node();
+          break;
+        case LAT:
+        case LON:
+        case LAT1:
+        case LON1:
+          coordinates[field.ordinal() - Field.LAT.ordinal()] = decimal();
+          break;
+        case DISTANCE:
+          distance = decimal();
+          break;
+        case UNIT:
+          unit = string();
+          break;
+        default:
+          throw new AssertionError(field);
+        }
+      }
+      ++pos;
+
+      if (type == null) {
+        throw error("model has no type");
+      }
+      switch (type) {
+      case ",":
+        final List<AstNode> terms = new ArrayList<>();
+        addTerms(terms, require(left, "left"));
+        addTerms(terms, require(right, "right"));
+        return ast.logicalExpression(terms);
+      case "=":
+      case ">":
+      case ">=":
+      case "<":
+      case "<=":
+        return new Ast.Comparison(is, comparisonOp(type),
+            require(value, "value"));
+      case "between":
+        final String b = require(bounds, "bounds");
+        if (b.length() != 2) {
+          throw error("invalid bounds " + b);
+        }
+        return ast.between(is,
+            b.charAt(0) == '[' ? Bound.CLOSED : Bound.OPEN,
+            b.charAt(1) == ']' ? Bound.CLOSED : Bound.OPEN,
+            require(low, "low"), require(high, "high"));
+      case "null":
+        return ast.isNull(is);
+      case "notnull":
+        return ast.isNotNull();
+      case "is anywhere":
+        return ast.anywhere();
+      case "matchesAdvanced":
+        return ast.matchesAdvanced(require(expression, "expression"), id);
+      case "location":
+        return ast.point(location(coordinates, 0));
+      case "box":
+        return ast.box(location(coordinates, 0), location(coordinates, 2));
+      case "circle":
+        return ast.circle(require(distance, "distance"),
+            unit(require(unit, "unit")), location(coordinates, 0));
+      default:
+        throw error("unknown type '" + type + "'");
+      }
+    }
+
+    private <T> T require(@Nullable T t, String name) {
+      if (t == null) {
+        throw error("model has no " + name);
+      }
+      return t;
+    }
+
+    private static void addTerms(List<AstNode> terms, AstNode node) {
+      if (node instanceof Ast.CallN) {
+        terms.addAll(((Ast.CallN) node).args);
+      } else {
+        terms.add(node);
+      }
+    }
+
+    private Location location(BigDecimal[] coordinates, int i) {
+      return new Location(require(coordinates[i], "latitude"),
+          require(coordinates[i + 1], "longitude"));
+    }
+
+    private Unit unit(String plural) {
+      for (Unit unit : Unit.values()) {
+        if (unit.plural.equals(plural)) {
+          return unit;
+        }
+      }
+      throw error("unknown unit '" + plural + "'");
+    }
+
+    private static Op comparisonOp(String type) {
+      switch (type) {
+      case "=":
+        return Op.EQ;
+      case ">":
+        return Op.GT;
+      case ">=":
+        return Op.GE;
+      case "<":
+        return Op.LT;
+      default:
+        return Op.LE;
+      }
+    }
+  }
+}
+
+// End FilterModelJson.java
@@ -16,7 +16,12 @@
  */
 package net.hydromatic.filtex.ast;
 
+import com.google.common.hash.PrimitiveSink;
+
+import org.checkerframework.checker.nullness.qual.Nullable;
+
 import java.math.BigDecimal;
+import java.util.Objects;
 
 /** Geographic location. */
 public class Location {
@@ -29,6 +34,23 @@ public Location(BigDecimal latitude, BigDecimal longitude) {
     this.longitude = longitude;
   }
 
+  @Override public int hashCode() {
+    return Objects.hash(latitude, longitude);
+  }
+
+  @Override public boolean equals(@Nullable Object o) {
+    return o == this
+        || o instanceof Location
+        && latitude.equals(((Location) o).latitude)
+        && longitude.equals(((Location) o).longitude);
+  }
+
+  /** Writes this location to a sink; see {@link AstNode#fingerprint}. */
+  public PrimitiveSink fingerprint(PrimitiveSink sink) {
+    Decimals.fingerprint(sink, latitude);
+    return Decimals.fingerprint(sink, longitude);
+  }
+
   @Override public String toString() {
     return latitude + " " + longitude;
   }
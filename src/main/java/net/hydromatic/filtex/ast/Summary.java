@@ -21,10 +21,18 @@
 
 import org.checkerframework.checker.nullness.qual.Nullable;
 
+import java.math.BigDecimal;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.function.BiConsumer;
 
 /** Summary. */
 public class Summary {
+  private static final String[] MONTH_NAMES = {
+      "January", "February", "March", "April", "May", "June", "July",
+      "August", "September", "October", "November", "December"
+  };
+
   private Summary() {}
 
   /** Builds a summary description for a filter expression. */
@@ -71,6 +79,179 @@ private static boolean hasUserAttributeNodeWithoutValue(AstNode node) {
   public static String describeLocation(AstNode node) {
     return node.unparse(new AstWriter()).toString();
   }
+
+  /** Describes a number filter; for example, "[0,20],>30" becomes
+   * "is in range [0, 20] or is > 30".
+   *
+   * <p>Items that are not negated are joined with "or"; negated items
+   * follow, after ", and". */
+  public static String describeNumber(AstNode node) {
+    return describe(node, Summary::describeNumberItem);
+  }
+
+  /** Describes a date filter; for example, "3 days" becomes
+   * "is in the last 3 days".
+   *
+   * @see #describeNumber(AstNode) */
+  public static String describeDate(AstNode node) {
+    return describe(node, Summary::describeDateItem);
+  }
+
+  private static String describe(AstNode node,
+      BiConsumer<StringBuilder, AstNode> itemDescriber) {
+    final StringBuilder b = new StringBuilder();
+    boolean negated = false;
+    for (AstCursor cursor = new AstCursor().reset(node); cursor.next();) {
+      final AstNode item = cursor.current();
+      if (b.length() > 0) {
+        b.append(item.is() ? " or " : negated ? " and " : ", and ");
+      }
+      negated = !item.is();
+      itemDescriber.accept(b, item);
+    }
+    return b.toString();
+  }
+
+  @SuppressWarnings("rawtypes")
+  private static void describeNumberItem(StringBuilder b, AstNode node) {
+    if (node instanceof Ast.Comparison) {
+      final Ast.Comparison comparison = (Ast.Comparison) node;
+      b.append(comparison.is ? "is " : "is not ");
+      if (node.op != Op.EQ) {
+        b.append(node.op.s).append(' ');
+      }
+      // Values may repeat, e.g. "not 42, not 42" has values [42, 42]
+      String sep = "";
+      for (Comparable value : new LinkedHashSet<>(comparison.value)) {
+        b.append(sep).append(value);
+        sep = " or ";
+      }
+    } else if (node instanceof Ast.NumericRange) {
+      final Ast.NumericRange range = (Ast.NumericRange) node;
+      b.append(range.is ? "is in range " : "is not in range ")
+          .append(node.op.left)
+          .append(range.left())
+          .append(", ")
+          .append(range.right())
+          .append(node.op.right);
+    } else if (node instanceof Ast.Call0) {
+      b.append(node.op == Op.NULL && ((Ast.Call0) node).is
+          ? "is null" : "is not null");
+    } else if (node instanceof Ast.MatchesAdvanced) {
+      b.append(((Ast.MatchesAdvanced) node).expression);
+    } else {
+      b.append(node);
+    }
+  }
+
+  private static void describeDateItem(StringBuilder b, AstNode node) {
+    if (node instanceof Ast.Past) {
+      final Ast.Past past = (Ast.Past) node;
+      b.append("is in the last ");
+      if (past.complete) {
+        appendInterval(b, past.value, past.unit, "complete ");
+      } else {
+        appendInterval(b, past.value, past.unit, "");
+      }
+    } else if (node instanceof Ast.LastInterval) {
+      final Ast.LastInterval last = (Ast.LastInterval) node;
+      appendInterval(b.append("is in the last "), last.value, last.unit, "");
+    } else if (node instanceof Ast.Relative) {
+      final Ast.Relative relative = (Ast.Relative) node;
+      appendInterval(b.append("is "), relative.value, relative.unit, "")
+          .append(node.op == Op.PAST_AGO ? " ago" : " from now");
+    } else if (node instanceof Ast.RelativeRange) {
+      final Ast.RelativeRange range = (Ast.RelativeRange) node;
+      appendInterval(b.append("is "), range.startInterval.value,
+          range.startInterval.unit, "")
+          .append(' ').append(range.intervalType()).append(" for ");
+      appendInterval(b, range.endInterval.value, range.endInterval.unit, "");
+    } else if (node instanceof Ast.RelativeUnit) {
+      final Ast.RelativeUnit relative = (Ast.RelativeUnit) node;
+      b.append(node.op == Op.BEFORE ? "is before " : "is on or after ");
+      appendInterval(b, relative.value, relative.unit, "")
+          .append(relative.fromNow ? " from now" : " ago");
+    } else if (node instanceof Ast.Absolute) {
+      b.append(node.op == Op.BEFORE ? "is before " : "is on or after ");
+      b.append(DateTimes.toString(((Ast.Absolute) node).date));
+    } else if (node instanceof Ast.Range) {
+      final Ast.Range range = (Ast.Range) node;
+      b.append("is from ").append(DateTimes.toString(range.start))
+          .append(" until ").append(DateTimes.toString(range.end));
+    } else if (node instanceof Ast.RangeInterval) {
+      final Ast.RangeInterval range = (Ast.RangeInterval) node;
+      b.append("is from ").append(DateTimes.toString(range.start));
+      appendInterval(b.append(" for "), range.end.value, range.end.unit, "");
+    } else if (node instanceof Ast.MonthInterval) {
+      final Ast.MonthInterval range = (Ast.MonthInterval) node;
+      b.append("is from ").append(MONTH_NAMES[range.month - 1]).append(' ')
+          .append(range.year).append(" for ");
+      appendInterval(b, range.end.value, range.end.unit, "");
+    } else if (node instanceof Ast.ThisUnit) {
+      final Ast.ThisUnit thisUnit = (Ast.ThisUnit) node;
+      switch (node.op) {
+      case THIS:
+        b.append("is this ");
+        break;
+      case NEXT:
+        b.append("is next ");
+        break;
+      case LAST:
+        b.append("is previous ");
+        break;
+      default:
+        // e.g. "before_next" becomes "before next "
+        b.append(node.op.s.replace('_', ' ')).append(' ');
+      }
+      b.append(thisUnit.unit.singular);
+    } else if (node instanceof Ast.ThisRange) {
+      final Ast.ThisRange range = (Ast.ThisRange) node;
+      b.append("is this ").append(range.startInterval.singular)
+          .append(" to ").append(range.endInterval.singular);
+    } else if (node instanceof Ast.DateLiteral) {
+      final long date = ((Ast.DateLiteral) node).date;
+      switch (node.op) {
+      case ON:
+        b.append("is on ").append(DateTimes.toString(date));
+        break;
+      case YEAR:
+        b.append("is in the year ").append(DateTimes.year(date));
+        break;
+      case FISCAL_YEAR:
+        b.append("is in fiscal year ").append(DateTimes.year(date));
+        break;
+      case MONTH:
+        b.append("is in ").append(MONTH_NAMES[DateTimes.month(date) - 1])
+            .append(' ').append(DateTimes.year(date));
+        break;
+      case QUARTER:
+        b.append("is in ").append(DateTimes.year(date))
+            .append("-Q").append(DateTimes.quarter(date));
+        break;
+      case FISCAL_QUARTER:
+        b.append("is in fiscal quarter ").append(DateTimes.year(date))
+            .append("-Q").append(DateTimes.quarter(date));
+        break;
+      default:
+        b.append("is ").append(DateTimes.toString(date));
+      }
+    } else if (node instanceof Ast.DayLiteral) {
+      b.append("is ").append(((Ast.DayLiteral) node).day);
+    } else if (node instanceof Ast.MatchesAdvanced) {
+      final String expression = ((Ast.MatchesAdvanced) node).expression;
+      b.append(expression.isEmpty() ? "is any time" : expression);
+    } else {
+      describeNumberItem(b, node);
+    }
+  }
+
+  /** Appends an interval such as "3 days" or "1 month". */
+  private static StringBuilder appendInterval(StringBuilder b,
+      BigDecimal value, DatetimeUnit unit, String qualifier) {
+    return b.append(value).append(' ').append(qualifier)
+        .append(value.compareTo(BigDecimal.ONE) == 0
+            ? unit.singular : unit.plural);
+  }
 }
 
 // End Summary.java
@@ -0,0 +1,680 @@
+/*
+ * Licensed to Julian Hyde under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to you under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.hydromatic.filtex.eval;
+
+import net.hydromatic.filtex.ast.Ast;
+import net.hydromatic.filtex.ast.AstCursor;
+import net.hydromatic.filtex.ast.AstNode;
+import net.hydromatic.filtex.ast.Op;
+
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.DoublePredicate;
+import java.util.function.LongPredicate;
+import java.util.function.Predicate;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Number filter, compiled from an AST so that it can be applied to values.
+ *
+ * <p>For example,
+ *
+ * <pre>{@code
+ * NumberFilter filter =
+ *     NumberFilter.compile(
+ *         Filtex.parseFilterExpression(TypeFamily.NUMBER, "[0,20],>30"));
+ * filter.test(25L); // returns false
+ * filter.test(31.5); // returns true
+ * }</pre>
+ *
+ * <p>A value matches if it matches at least one of the items that are not
+ * negated (or there are no such items) and it matches every negated item.
+ * For example, a value matches "23, not 42, not 43" if it is 23; it matches
+ * "not 42, not 43" if it is neither 42 nor 43. A null value matches
+ * "null" and all negated items except "not null", such as "not 5".
+ *
+ * <p>Values and bounds are held in arrays of {@code long}, {@code double}
+ * and {@link BigDecimal}, and lists of '=' values are sorted, so that
+ * {@code test} does a binary search and allocates nothing.
+ * {@link #test(double)} compares with each bound converted to the nearest
+ * double; {@link #test(long)} and {@link #test(BigDecimal)} are exact.
+ *
+ * <p>To evaluate a filter over many values at once, the {@code select}
+ * methods apply it to a slice of a {@code long[]}, {@code double[]} or
+ * {@code int[]} column, with an optional bitmap of null values, and write a
+ * selection bitmap; the {@code count} methods just count the matches. They
+ * work in blocks of 64 values, computing one bitmap word per item, in loops
+ * without branches that depend on the data.
+ *
+ * <p>A filter is immutable, and may be used by concurrent threads.
+ */
+public final class NumberFilter {
+  /** Items that are not negated; a value must match one of them. */
+  private final Term[] orTerms;
+  /** Negated items; a value must match all of them. */
+  private final Term[] andTerms;
+  /** All ones if null values match, otherwise zero. */
+  private final long nullMask;
+
+  private NumberFilter(List<Term> orTerms, List<Term> andTerms) {
+    this.orTerms = orTerms.toArray(new Term[0]);
+    this.andTerms = andTerms.toArray(new Term[0]);
+    this.nullMask = testNull() ? -1L : 0L;
+  }
+
+  /** Compiles a NUMBER filter.
+   *
+   * @throws IllegalArgumentException if the tree contains an item that is
+   * not a number filter, such as "matches advanced" */
+  public static NumberFilter compile(AstNode node) {
+    final List<Term> orTerms = new ArrayList<>();
+    final List<Term> andTerms = new ArrayList<>();
+    for (AstCursor cursor = new AstCursor().reset(node); cursor.next();) {
+      final AstNode item = cursor.current();
+      final List<Term> terms = item.is() ? orTerms : andTerms;
+      if (item instanceof Ast.Comparison) {
+        compileComparison(terms, (Ast.Comparison) item);
+      } else if (item instanceof Ast.NumericRange) {
+        final Ast.NumericRange range = (Ast.NumericRange) item;
+        terms.add(
+            new Range(range.is,
+                range.op.left.startsWith("(-inf") ? null : range.left(),
+                range.op.containsLowerBound(),
+                range.op.right.endsWith("inf)") ? null : range.right(),
+                range.op.containsUpperBound()));
+      } else if (item instanceof Ast.Call0) {
+        // "null" matches null; "not null" and "is not null" match others
+        terms.add(new Null((item.op == Op.NULL) == item.is()));
+      } else {
+        throw new IllegalArgumentException("cannot compile '" + item
+            + "' as a number filter");
+      }
+    }
+    return new NumberFilter(orTerms, andTerms);
+  }
+
+  @SuppressWarnings("rawtypes")
+  private static void compileComparison(List<Term> terms,
+      Ast.Comparison comparison) {
+    final List<BigDecimal> values = new ArrayList<>();
+    for (Comparable value : comparison.value) {
+      if (!(value instanceof BigDecimal)) {
+        throw new IllegalArgumentException("cannot compile '" + comparison
+            + "' as a number filter");
+      }
+      values.add((BigDecimal) value);
+    }
+    final boolean is = comparison.is;
+    switch (comparison.op) {
+    case EQ:
+      terms.add(new Points(is, values));
+      return;
+    default:
+      // Each value is a range; "> 5, 6" is "> 5 or > 6"
+      for (BigDecimal value : values) {
+        switch (comparison.op) {
+        case GT:
+          terms.add(new Range(is, value, false, null, false));
+          break;
+        case GE:
+          terms.add(new Range(is, value, true, null, false));
+          break;
+        case LT:
+          terms.add(new Range(is, null, false, value, false));
+          break;
+        case LE:
+          terms.add(new Range(is, null, false, value, true));
+          break;
+        default:
+          throw new IllegalArgumentException("cannot compile '" + comparison
+              + "' as a number filter");
+        }
+      }
+    }
+  }
+
+  /** Returns whether a {@code double} value matches this filter. */
+  public boolean test(double v) {
+    for (Term term : andTerms) {
+      if (!term.test(v)) {
+        return false;
+      }
+    }
+    if (orTerms.length == 0) {
+      return true;
+    }
+    for (Term term : orTerms) {
+      if (term.test(v)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /** Returns whether a {@code long} value matches this filter. */
+  public boolean test(long v) {
+    for (Term term : andTerms) {
+      if (!term.test(v)) {
+        return false;
+      }
+    }
+    if (orTerms.length == 0) {
+      return true;
+    }
+    for (Term term : orTerms) {
+      if (term.test(v)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /** Returns whether a {@link BigDecimal} value, possibly null, matches this
+   * filter. Values are compared using {@link BigDecimal#compareTo}, so 2.0
+   * matches "2". */
+  public boolean test(@Nullable BigDecimal v) {
+    for (Term term : andTerms) {
+      if (!term.test(v)) {
+        return false;
+      }
+    }
+    if (orTerms.length == 0) {
+      return true;
+    }
+    for (Term term : orTerms) {
+      if (term.test(v)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /** Returns whether a null value matches this filter. */
+  public boolean testNull() {
+    return test((BigDecimal) null);
+  }
+
+  /** Applies this filter to {@code length} values starting at
+   * {@code values[offset]}, and returns the number that match.
+   *
+   * <p>Bit {@code i} of a bitmap (bit {@code i % 64} of word
+   * {@code i / 64}) refers to {@code values[offset + i]}. If {@code nulls}
+   * is not null, a set bit means that the value is null, and the value in
+   * the array is ignored. If {@code selection} is not null, sets its bits to
+   * the values that match, and clears the other bits of the words it
+   * writes.
+   *
+   * @param values Column of values
+   * @param offset Index of first value
+   * @param length Number of values
+   * @param nulls Null bitmap, or null if no values are null
+   * @param selection Selection bitmap to write, or null to only count
+   * @return Number of values that match */
+  public int select(long[] values, int offset, int length,
+      long @Nullable [] nulls, long @Nullable [] selection) {
+    checkSlice(values.length, offset, length, nulls, selection);
+    int count = 0;
+    for (int start = 0; start < length; start += 64) {
+      final int n = Math.min(64, length - start);
+      long and = -1L;
+      for (Term term : andTerms) {
+        and &= term.mask(values, offset + start, n);
+      }
+      long or = orTerms.length == 0 ? -1L : 0L;
+      for (Term term : orTerms) {
+        or |= term.mask(values, offset + start, n);
+      }
+      count += finish(and & or, start, n, nulls, selection);
+    }
+    return count;
+  }
+
+  /** Applies this filter to a slice of a column of {@code double} values.
+   *
+   * @see #select(long[], int, int, long[], long[]) */
+  public int select(double[] values, int offset, int length,
+      long @Nullable [] nulls, long @Nullable [] selection) {
+    checkSlice(values.length, offset, length, nulls, selection);
+    int count = 0;
+    for (int start = 0; start < length; start += 64) {
+      final int n = Math.min(64, length - start);
+      long and = -1L;
+      for (Term term : andTerms) {
+        and &= term.mask(values, offset + start, n);
+      }
+      long or = orTerms.length == 0 ? -1L : 0L;
+      for (Term term : orTerms) {
+        or |= term.mask(values, offset + start, n);
+      }
+      count += finish(and & or, start, n, nulls, selection);
+    }
+    return count;
+  }
+
+  /** Applies this filter to a slice of a column of {@code int} values.
+   *
+   * @see #select(long[], int, int, long[], long[]) */
+  public int select(int[] values, int offset, int length,
+      long @Nullable [] nulls, long @Nullable [] selection) {
+    checkSlice(values.length, offset, length, nulls, selection);
+    int count = 0;
+    for (int start = 0; start < length; start += 64) {
+      final int n = Math.min(64, length - start);
+      long and = -1L;
+      for (Term term : andTerms) {
+        and &= term.mask(values, offset + start, n);
+      }
+      long or = orTerms.length == 0 ? -1L : 0L;
+      for (Term term : orTerms) {
+        or |= term.mask(values, offset + start, n);
+      }
+      count += finish(and & or, start, n, nulls, selection);
+    }
+    return count;
+  }
+
+  /** Returns the number of values in a slice of a column of {@code long}
+   * values that match this filter.
+   *
+   * @see #select(long[], int, int, long[], long[]) */
+  public int count(long[] values, int offset, int length,
+      long @Nullable [] nulls) {
+    return select(values, offset, length, nulls, null);
+  }
+
+  /** Returns the number of values in a slice of a column of {@code double}
+   * values that match this filter.
+   *
+   * @see #select(long[], int, int, long[], long[]) */
+  public int count(double[] values, int offset, int length,
+      long @Nullable [] nulls) {
+    return select(values, offset, length, nulls, null);
+  }
+
+  /** Returns the number of values in a slice of a column of {@code int}
+   * values that match this filter.
+   *
+   * @see #select(long[], int, int, long[], long[]) */
+  public int count(int[] values, int offset, int length,
+      long @Nullable [] nulls) {
+    return select(values, offset, length, nulls, null);
+  }
+
+  private static void checkSlice(int arrayLength, int offset, int length,
+      long @Nullable [] nulls, long @Nullable [] selection) {
+    checkArgument(offset >= 0 && length >= 0
+            && offset <= arrayLength - length,
+        "slice [%s, %s) out of bounds for length %s", offset,
+        offset + length, arrayLength);
+    final int words = (length + 63) >>> 6;
+    checkArgument(nulls == null || nulls.length >= words,
+        "null bitmap needs %s words", words);
+    checkArgument(selection == null || selection.length >= words,
+        "selection bitmap needs %s words", words);
+  }
+
+  /** Applies nulls to a word of matches for a block of {@code n} values,
+   * writes it to the selection bitmap, and returns the number of
+   * matches. */
+  private int finish(long word, int start, int n, long @Nullable [] nulls,
+      long @Nullable [] selection) {
+    if (nulls != null) {
+      final long nullWord = nulls[start >>> 6];
+      word = word & ~nullWord | nullWord & nullMask;
+    }
+    if (n < 64) {
+      word &= (1L << n) - 1;
+    }
+    if (selection != null) {
+      selection[start >>> 6] = word;
+    }
+    return Long.bitCount(word);
+  }
+
+  /** Returns this filter as a {@link DoublePredicate}. */
+  public DoublePredicate toDoublePredicate() {
+    return this::test;
+  }
+
+  /** Returns this filter as a {@link LongPredicate}. */
+  public LongPredicate toLongPredicate() {
+    return this::test;
+  }
+
+  /** Returns this filter as a {@link Predicate} on {@link BigDecimal}
+   * values, which may be null. */
+  public Predicate<@Nullable BigDecimal> toPredicate() {
+    return this::test;
+  }
+
+  /** Item of a filter, compiled. Each item matches or rejects null values,
+   * and its {@code test} methods take account of whether it is negated. */
+  private abstract static class Term {
+    final boolean is;
+
+    Term(boolean is) {
+      this.is = is;
+    }
+
+    abstract boolean test(double v);
+
+    abstract boolean test(long v);
+
+    abstract boolean test(@Nullable BigDecimal v);
+
+    /** Returns a word whose bit {@code j} is whether
+     * {@code values[start + j]} matches, for {@code j} less than
+     * {@code n}. */
+    abstract long mask(long[] values, int start, int n);
+
+    abstract long mask(double[] values, int start, int n);
+
+    abstract long mask(int[] values, int start, int n);
+
+    /** Applies negation to a word of values that are in this term. */
+    long negate(long word) {
+      return is ? word : ~word;
+    }
+  }
+
+  /** Term that matches a list of values ('='). */
+  private static class Points extends Term {
+    /** Lists up to this size are searched linearly, without branches,
+     * rather than by binary search. */
+    private static final int SMALL = 16;
+
+    private final BigDecimal[] values;
+    private final double[] doubleValues;
+    /** Values that are integers within the range of {@code long}. */
+    private final long[] longValues;
+
+    Points(boolean is, List<BigDecimal> values) {
+      super(is);
+      this.values = values.toArray(new BigDecimal[0]);
+      Arrays.sort(this.values);
+      this.doubleValues = new double[this.values.length];
+      final long[] longValues = new long[this.values.length];
+      int n = 0;
+      for (int i = 0; i < this.values.length; i++) {
+        doubleValues[i] = this.values[i].doubleValue();
+        try {
+          longValues[n] = this.values[i].longValueExact();
+          ++n;
+        } catch (ArithmeticException e) {
+          // not an integer, or too large; no long matches it
+        }
+      }
+      Arrays.sort(doubleValues);
+      this.longValues = Arrays.copyOf(longValues, n);
+    }
+
+    @Override boolean test(double v) {
+      // Adding 0.0 converts -0.0 to 0.0, which binarySearch distinguishes
+      return (Arrays.binarySearch(doubleValues, v + 0.0) >= 0) == is;
+    }
+
+    @Override boolean test(long v) {
+      return (Arrays.binarySearch(longValues, v) >= 0) == is;
+    }
+
+    @Override boolean test(@Nullable BigDecimal v) {
+      if (v == null) {
+        return !is;
+      }
+      return (Arrays.binarySearch(values, v) >= 0) == is;
+    }
+
+    @Override long mask(long[] values, int start, int n) {
+      long word = 0;
+      if (longValues.length <= SMALL) {
+        for (int j = 0; j < n; j++) {
+          final long v = values[start + j];
+          boolean hit = false;
+          for (long p : longValues) {
+            hit |= v == p;
+          }
+          word |= (hit ? 1L : 0L) << j;
+        }
+      } else {
+        for (int j = 0; j < n; j++) {
+          final boolean hit =
+              Arrays.binarySearch(longValues, values[start + j]) >= 0;
+          word |= (hit ? 1L : 0L) << j;
+        }
+      }
+      return negate(word);
+    }
+
+    @Override long mask(double[] values, int start, int n) {
+      long word = 0;
+      if (doubleValues.length <= SMALL) {
+        for (int j = 0; j < n; j++) {
+          final double v = values[start + j];
+          boolean hit = false;
+          for (double p : doubleValues) {
+            hit |= v == p;
+          }
+          word |= (hit ? 1L : 0L) << j;
+        }
+      } else {
+        for (int j = 0; j < n; j++) {
+          final boolean hit =
+              Arrays.binarySearch(doubleValues, values[start + j] + 0.0)
+                  >= 0;
+          word |= (hit ? 1L : 0L) << j;
+        }
+      }
+      return negate(word);
+    }
+
+    @Override long mask(int[] values, int start, int n) {
+      long word = 0;
+      if (longValues.length <= SMALL) {
+        for (int j = 0; j < n; j++) {
+          final long v = values[start + j];
+          boolean hit = false;
+          for (long p : longValues) {
+            hit |= v == p;
+          }
+          word |= (hit ? 1L : 0L) << j;
+        }
+      } else {
+        for (int j = 0; j < n; j++) {
+          final boolean hit =
+              Arrays.binarySearch(longValues, values[start + j]) >= 0;
+          word |= (hit ? 1L : 0L) << j;
+        }
+      }
+      return negate(word);
+    }
+  }
+
+  /** Term that matches a range of values, each of whose bounds may be
+   * absent, open or closed. */
+  private static class Range extends Term {
+    private final @Nullable BigDecimal lower;
+    private final boolean lowerClosed;
+    private final @Nullable BigDecimal upper;
+    private final boolean upperClosed;
+    private final double doubleLower;
+    private final double doubleUpper;
+    /** Bounds for the batch kernels, which are always closed. */
+    private final double closedDoubleLower;
+    private final double closedDoubleUpper;
+    /** Smallest and largest {@code long} in the range; if
+     * {@code longLower > longUpper}, no {@code long} is in the range. */
+    private final long longLower;
+    private final long longUpper;
+    /** {@code longUpper - longLower}, flipped so that a signed comparison
+     * acts as an unsigned comparison; the batch kernels test whether
+     * {@code v - longLower} is in [0, longSpan] with one comparison. Not
+     * valid if the range is empty. */
+    private final long longSpan;
+
+    Range(boolean is, @Nullable BigDecimal lower, boolean lowerClosed,
+        @Nullable BigDecimal upper, boolean upperClosed) {
+      super(is);
+      this.lower = lower;
+      this.lowerClosed = lowerClosed;
+      this.upper = upper;
+      this.upperClosed = upperClosed;
+      this.doubleLower =
+          lower == null ? Double.NEGATIVE_INFINITY : lower.doubleValue();
+      this.doubleUpper =
+          upper == null ? Double.POSITIVE_INFINITY : upper.doubleValue();
+      // For doubles other than NaN, "x > a" is "x >= nextUp(a)"
+      this.closedDoubleLower =
+          lowerClosed ? doubleLower : Math.nextUp(doubleLower);
+      this.closedDoubleUpper =
+          upperClosed ? doubleUpper : Math.nextDown(doubleUpper);
+
+      long longLower = Long.MIN_VALUE;
+      long longUpper = Long.MAX_VALUE;
+      if (lower != null) {
+        // x > 2.5 is x >= 3; x > 2 is x >= 3; x >= 2.5 is x >= 3
+        BigDecimal b = lower.setScale(0, RoundingMode.FLOOR);
+        if (!lowerClosed || b.compareTo(lower) < 0) {
+          b = b.add(BigDecimal.ONE);
+        }
+        if (b.compareTo(BigDecimal.valueOf(Long.MAX_VALUE)) > 0) {
+          longLower = Long.MAX_VALUE; // empty
+          longUpper = Long.MIN_VALUE;
+        } else if (b.compareTo(BigDecimal.valueOf(Long.MIN_VALUE)) > 0) {
+          longLower = b.longValueExact();
+        }
+      }
+      if (upper != null) {
+        // x < 2.5 is x <= 2; x < 2 is x <= 1; x <= 2.5 is x <= 2
+        BigDecimal b = upper.setScale(0, RoundingMode.CEILING);
+        if (!upperClosed || b.compareTo(upper) > 0) {
+          b = b.subtract(BigDecimal.ONE);
+        }
+        if (b.compareTo(BigDecimal.valueOf(Long.MIN_VALUE)) < 0) {
+          longLower = Long.MAX_VALUE; // empty
+          longUpper = Long.MIN_VALUE;
+        } else if (b.compareTo(BigDecimal.valueOf(Long.MAX_VALUE)) < 0) {
+          longUpper = Math.min(longUpper, b.longValueExact());
+        }
+      }
+      this.longLower = longLower;
+      this.longUpper = longUpper;
+      this.longSpan = longUpper - longLower ^ Long.MIN_VALUE;
+    }
+
+    @Override boolean test(double v) {
+      final boolean in =
+          (lowerClosed ? v >= doubleLower : v > doubleLower)
+              && (upperClosed ? v <= doubleUpper : v < doubleUpper);
+      return in == is;
+    }
+
+    @Override boolean test(long v) {
+      return (v >= longLower && v <= longUpper) == is;
+    }
+
+    @Override boolean test(@Nullable BigDecimal v) {
+      if (v == null) {
+        return !is;
+      }
+      boolean in = true;
+      if (lower != null) {
+        final int c = v.compareTo(lower);
+        in = lowerClosed ? c >= 0 : c > 0;
+      }
+      if (in && upper != null) {
+        final int c = v.compareTo(upper);
+        in = upperClosed ? c <= 0 : c < 0;
+      }
+      return in == is;
+    }
+
+    @Override long mask(long[] values, int start, int n) {
+      if (longLower > longUpper) {
+        return negate(0L);
+      }
+      long word = 0;
+      for (int j = 0; j < n; j++) {
+        final long v = values[start + j];
+        word |= (v - longLower ^ Long.MIN_VALUE) <= longSpan ? 1L << j : 0L;
+      }
+      return negate(word);
+    }
+
+    @Override long mask(double[] values, int start, int n) {
+      long word = 0;
+      for (int j = 0; j < n; j++) {
+        final double v = values[start + j];
+        word |= (v >= closedDoubleLower ? 1L << j : 0L)
+            & (v <= closedDoubleUpper ? 1L << j : 0L);
+      }
+      return negate(word);
+    }
+
+    @Override long mask(int[] values, int start, int n) {
+      if (longLower > longUpper) {
+        return negate(0L);
+      }
+      long word = 0;
+      for (int j = 0; j < n; j++) {
+        final long v = values[start + j];
+        word |= (v - longLower ^ Long.MIN_VALUE) <= longSpan ? 1L << j : 0L;
+      }
+      return negate(word);
+    }
+  }
+
+  /** Term that matches null values, or non-null values. */
+  private static class Null extends Term {
+    Null(boolean matchesNull) {
+      super(matchesNull);
+    }
+
+    @Override boolean test(double v) {
+      return !is;
+    }
+
+    @Override boolean test(long v) {
+      return !is;
+    }
+
+    @Override boolean test(@Nullable BigDecimal v) {
+      return (v == null) == is;
+    }
+
+    // Null values are handled by the caller; other values are not null
+
+    @Override long mask(long[] values, int start, int n) {
+      return is ? 0L : -1L;
+    }
+
+    @Override long mask(double[] values, int start, int n) {
+      return is ? 0L : -1L;
+    }
+
+    @Override long mask(int[] values, int start, int n) {
+      return is ? 0L : -1L;
+    }
+  }
+}
+
+// End NumberFilter.java
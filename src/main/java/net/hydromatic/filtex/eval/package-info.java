@@ -14,24 +14,7 @@
  * See the License for the specific language governing permissions and
  * limitations under the License.
  */
-package net.hydromatic.filtex.ast;
+/** Evaluation of filter expressions against values. */
+package net.hydromatic.filtex.eval;
 
-import org.checkerframework.checker.nullness.qual.Nullable;
-
-/** Time value, e.g. "12:34:56".
- *
- * @see Date
- * @see Datetime */
-public class Time {
-  public final int hour;
-  public final int minute;
-  public final @Nullable Integer second;
-
-  public Time(int hour, int minute, @Nullable Integer second) {
-    this.hour = hour;
-    this.minute = minute;
-    this.second = second;
-  }
-}
-
-// End Time.java
+// End package-info.java
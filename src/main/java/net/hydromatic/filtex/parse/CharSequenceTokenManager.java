@@ -0,0 +1,813 @@
+/*
+ * Licensed to Julian Hyde under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to you under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.hydromatic.filtex.parse;
+
+import net.hydromatic.filtex.ast.Pos;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Token manager that reads directly from a {@link CharSequence}.
+ *
+ * <p>It is an alternative to {@link FiltexParserImplTokenManager}, which
+ * JavaCC generates, and which reads from a {@link java.io.Reader} into the
+ * buffers of a {@link SimpleCharStream}. It produces the same tokens (same
+ * kinds, images and positions) and plugs into the same parser:
+ *
+ * <pre>{@code
+ * CharSequenceTokenManager tokenManager = new CharSequenceTokenManager();
+ * FiltexParserImpl parser = new FiltexParserImpl(tokenManager);
+ * tokenManager.reset("1, 2, 3");
+ * parser.ReInit(tokenManager);
+ * AstNode node = parser.numericExpressionEof();
+ * }</pre>
+ *
+ * <p>It works on offsets into the character sequence. Tokens whose spelling
+ * consists of letters (for example "AFTER", "days", "TOMORROW") are found
+ * using a perfect hash table; their images, and the images of punctuation
+ * tokens, are shared constants (unless the input spells a keyword in mixed
+ * case). Only literals, such as numbers and dates, have an image that is a
+ * new string.
+ *
+ * <p>Tokens are pooled. {@link #reset(CharSequence)} re-uses the tokens
+ * created for the previous input, so once it is warm a parser and token
+ * manager that parse many expressions allocate no tokens. Consequently,
+ * tokens from the previous input must not be used after {@code reset}; see
+ * {@link ParseException#detach()}.
+ *
+ * <p>This class is not thread-safe.
+ */
+public class CharSequenceTokenManager extends FiltexParserImplTokenManager {
+  /** Number of pooled tokens above which {@link #reset} discards the pool,
+   * so that one long expression does not cause memory to be retained. */
+  private static final int MAX_POOL_SIZE = 1024;
+
+  /** Token kinds whose spelling consists only of letters and underscores,
+   * indexed by slot in the perfect hash table, or -1. */
+  private static final int[] KEYWORD_KINDS;
+
+  /** Spelling of each keyword in lower case, indexed by slot. */
+  private static final String[] KEYWORDS;
+
+  /** Spelling of each fixed-spelling token in lower case, indexed by kind,
+   * or null if the token does not have a fixed spelling. */
+  private static final String[] LOWER_IMAGES;
+
+  /** Spelling of each fixed-spelling token in upper case, indexed by kind,
+   * or null. */
+  private static final String[] UPPER_IMAGES;
+
+  private static final int HASH_MULTIPLIER;
+  private static final int HASH_MASK = 255;
+  private static final int MAX_KEYWORD_LENGTH;
+
+  private static final String USER_ATTRIBUTES_IMAGE = "_user_attributes[";
+
+  private static final int MINUS = kind("-");
+  private static final int GT = kind(">");
+  private static final int GE = kind(">=");
+  private static final int LT = kind("<");
+  private static final int LE = kind("<=");
+  private static final int LPAREN = kind("(");
+  private static final int LBRACKET = kind("[");
+  private static final int MINUS_INF = kind("-inf");
+  private static final int RPAREN = kind(")");
+  private static final int RBRACKET = kind("]");
+  private static final int USER_ATTRIBUTES = kind(USER_ATTRIBUTES_IMAGE);
+
+  static {
+    LOWER_IMAGES = new String[tokenImage.length];
+    UPPER_IMAGES = new String[tokenImage.length];
+    final List<String> keywords = new ArrayList<>();
+    final List<Integer> keywordKinds = new ArrayList<>();
+    int maxKeywordLength = 0;
+    for (int kind = 1; kind < tokenImage.length; kind++) {
+      final String image = tokenImage[kind];
+      if (image.length() > 2
+          && image.startsWith("\"")
+          && image.endsWith("\"")) {
+        final String spelling = image.substring(1, image.length() - 1);
+        LOWER_IMAGES[kind] = spelling.toLowerCase(Locale.ROOT);
+        UPPER_IMAGES[kind] = spelling.toUpperCase(Locale.ROOT);
+        if (isKeyword(spelling)) {
+          keywords.add(LOWER_IMAGES[kind]);
+          keywordKinds.add(kind);
+          maxKeywordLength = Math.max(maxKeywordLength, spelling.length());
+        }
+      }
+    }
+    MAX_KEYWORD_LENGTH = maxKeywordLength;
+    HASH_MULTIPLIER = findMultiplier(keywords);
+    KEYWORDS = new String[HASH_MASK + 1];
+    KEYWORD_KINDS = new int[HASH_MASK + 1];
+    Arrays.fill(KEYWORD_KINDS, -1);
+    for (int i = 0; i < keywords.size(); i++) {
+      final String keyword = keywords.get(i);
+      final int slot = slot(keyword, 0, keyword.length(), HASH_MULTIPLIER);
+      KEYWORDS[slot] = keyword;
+      KEYWORD_KINDS[slot] = keywordKinds.get(i);
+    }
+  }
+
+  private CharSequence s = "";
+  private int end;
+  /** Offset of the next character to read. */
+  private int pos;
+  private int tabSize = 1;
+
+  // Line and column of the most recently read character; these follow the
+  // rules in SimpleCharStream.UpdateLineColumn.
+  private int line;
+  private int column;
+  private boolean prevCharIsCR;
+  private boolean prevCharIsLF;
+
+  private Token[] tokens = new Token[16];
+  private int tokenCount;
+
+  // Limits on the current sequence; see setLimits
+  private long maxTokenCount = Long.MAX_VALUE;
+  private long deadline;
+  private long maxNanos = Long.MAX_VALUE;
+
+  // Longest match found so far by the current call to getNextToken
+  private int matchKind;
+  private int matchLength;
+
+  /** Creates a CharSequenceTokenManager with empty input. */
+  public CharSequenceTokenManager() {
+    super(null);
+  }
+
+  /** Creates a CharSequenceTokenManager that will read a given character
+   * sequence. */
+  public CharSequenceTokenManager(CharSequence s) {
+    this();
+    reset(s);
+  }
+
+  /** Starts reading a new character sequence.
+   *
+   * <p>Tokens returned for the previous sequence will be re-used. */
+  public void reset(CharSequence s) {
+    reset(s, 0, s.length(), 1, 0);
+  }
+
+  /** Starts reading a region of a character sequence, from {@code start}
+   * (inclusive) to {@code end} (exclusive).
+   *
+   * <p>Tokens have the positions they would have if the whole sequence
+   * were read; {@code line} and {@code column} are the position of the
+   * character before {@code start} (or 1 and 0 if {@code start} is 0).
+   * The region should start at a token boundary.
+   *
+   * <p>Tokens returned for the previous sequence will be re-used, and
+   * limits set by {@link #setLimits} are cleared. */
+  public void reset(CharSequence s, int start, int end, int line,
+      int column) {
+    this.s = s;
+    this.end = end;
+    this.pos = start;
+    this.line = line;
+    this.column = column;
+    final char prev = start > 0 ? s.charAt(start - 1) : 0;
+    this.prevCharIsCR = prev == '\r';
+    this.prevCharIsLF = prev == '\n';
+    if (tokens.length > MAX_POOL_SIZE) {
+      tokens = new Token[16];
+    }
+    tokenCount = 0;
+    maxTokenCount = Long.MAX_VALUE;
+    maxNanos = Long.MAX_VALUE;
+  }
+
+  /** Limits the number of tokens that will be read from the current sequence,
+   * and the time, starting now, spent reading them. If a limit is exceeded,
+   * {@link #getNextToken()} throws {@link ParseLimitException}.
+   *
+   * <p>The parser does a bounded amount of work per token, so these limits
+   * bound the cost of parsing. The clock is checked every few tokens, so a
+   * time limit is approximate. {@code Long.MAX_VALUE} means no limit. */
+  public void setLimits(long maxTokenCount, long maxNanos) {
+    this.maxTokenCount = maxTokenCount;
+    this.maxNanos = maxNanos;
+    if (maxNanos != Long.MAX_VALUE) {
+      this.deadline = System.nanoTime() + maxNanos;
+    }
+  }
+
+  /** Returns the offset of the next character to be read; after
+   * {@link #getNextToken()} returns a token, the offset just after it. */
+  public int offset() {
+    return pos;
+  }
+
+  /** Sets the number of columns in a tab stop; default 1, as in
+   * {@link SimpleCharStream#setTabSize(int)}. */
+  public void setTabSize(int tabSize) {
+    this.tabSize = tabSize;
+  }
+
+  @Override public Token getNextToken() {
+    while (pos < end && isSkip(s.charAt(pos))) {
+      updateLineColumn(s.charAt(pos++));
+    }
+    if (pos >= end) {
+      final Token t = newToken(EOF, "");
+      // As SimpleCharStream, the end-of-file token has the position of the
+      // last character read, or 0 if there were no characters.
+      t.beginLine = t.endLine = pos == 0 ? 0 : line;
+      t.beginColumn = t.endColumn = pos == 0 ? 0 : column;
+      return t;
+    }
+
+    final int start = pos;
+    match(start);
+    if (matchLength == 0) {
+      throw lexicalError(start);
+    }
+    final int kind = matchKind;
+    final int tokenEnd = start + matchLength;
+    final Token t = newToken(kind, image(kind, start, tokenEnd));
+    updateLineColumn(s.charAt(pos++));
+    t.beginLine = line;
+    t.beginColumn = column;
+    while (pos < tokenEnd) {
+      updateLineColumn(s.charAt(pos++));
+    }
+    t.endLine = line;
+    t.endColumn = column;
+    if (tokenCount > maxTokenCount) {
+      throw limitExceeded(t, ParseLimitException.Limit.TOKEN_COUNT,
+          maxTokenCount);
+    }
+    if ((tokenCount & 0x3F) == 0
+        && maxNanos != Long.MAX_VALUE
+        && System.nanoTime() - deadline > 0) {
+      throw limitExceeded(t, ParseLimitException.Limit.TIME, maxNanos);
+    }
+    return t;
+  }
+
+  private static ParseLimitException limitExceeded(Token t,
+      ParseLimitException.Limit limit, long value) {
+    return new ParseLimitException(limit, value,
+        new Pos("", t.beginLine, t.beginColumn, t.endLine, t.endColumn + 1));
+  }
+
+  /** Returns a token from the pool, or creates one. */
+  private Token newToken(int kind, String image) {
+    if (tokenCount == tokens.length) {
+      tokens = Arrays.copyOf(tokens, tokenCount * 2);
+    }
+    Token t = tokens[tokenCount];
+    if (t == null) {
+      t = tokens[tokenCount] = new Token();
+    }
+    ++tokenCount;
+    t.kind = kind;
+    t.image = image;
+    t.next = null;
+    t.specialToken = null;
+    return t;
+  }
+
+  /** Returns the image of a token, preferably a constant. */
+  private String image(int kind, int start, int tokenEnd) {
+    final String image = jjstrLiteralImages[kind];
+    if (image != null) {
+      return image;
+    }
+    final String lower = LOWER_IMAGES[kind];
+    if (lower != null) {
+      if (regionMatches(start, lower, false)) {
+        return lower;
+      }
+      final String upper = UPPER_IMAGES[kind];
+      if (regionMatches(start, upper, false)) {
+        return upper;
+      }
+    }
+    return s.subSequence(start, tokenEnd).toString();
+  }
+
+  /** Advances the line and column past a character. */
+  private void updateLineColumn(char c) {
+    column++;
+    if (prevCharIsLF) {
+      prevCharIsLF = false;
+      line += column = 1;
+    } else if (prevCharIsCR) {
+      prevCharIsCR = false;
+      if (c == '\n') {
+        prevCharIsLF = true;
+      } else {
+        line += column = 1;
+      }
+    }
+    switch (c) {
+    case '\r':
+      prevCharIsCR = true;
+      break;
+    case '\n':
+      prevCharIsLF = true;
+      break;
+    case '\t':
+      column--;
+      column += tabSize - column % tabSize;
+      break;
+    default:
+      break;
+    }
+  }
+
+  /** Finds the longest token starting at {@code start}; sets
+   * {@link #matchKind} and {@link #matchLength}. If there is no token,
+   * {@code matchLength} is 0. */
+  private void match(int start) {
+    matchKind = -1;
+    matchLength = 0;
+    final char c = s.charAt(start);
+    if (isDigit(c)) {
+      candidate(NUMBER_LITERAL, numberLiteral(start));
+      dateOrTime(start);
+      return;
+    }
+    if (isLetter(c)) {
+      keyword(start);
+      if (fold(c) == 'f' && fold(charAt(start + 1)) == 'y'
+          && digits(start + 2) >= 4) {
+        candidate(FY_YEAR, 6);
+        if (isQuarter(start + 6)) {
+          candidate(FY_YEAR_QUARTER, 9);
+        }
+      }
+      return;
+    }
+    switch (c) {
+    case '-':
+      candidate(MINUS, 1);
+      candidate(NUMBER_LITERAL, numberLiteral(start));
+      candidate(NUMBER_LITERAL0, numberLiteral0(start));
+      if (regionMatches(start, "-inf", true)) {
+        candidate(MINUS_INF, 4);
+      }
+      break;
+    case '.':
+      candidate(NUMBER_LITERAL0, numberLiteral0(start));
+      break;
+    case '/':
+      candidate(DATE_SEP, 1);
+      break;
+    case ':':
+      candidate(TIME_SEP, 1);
+      break;
+    case '"':
+      candidate(QUOTED_STRING, quotedString(start));
+      candidate(DOUBLE_QUOTE, 1);
+      break;
+    case '#':
+      final int length = quotedString(start + 1);
+      if (length > 0) {
+        candidate(CHAR_LITERAL, length + 1);
+      }
+      break;
+    case '>':
+      candidate(GT, 1);
+      if (charAt(start + 1) == '=') {
+        candidate(GE, 2);
+      }
+      break;
+    case '<':
+      candidate(LT, 1);
+      if (charAt(start + 1) == '=') {
+        candidate(LE, 2);
+      } else if (charAt(start + 1) == '>') {
+        candidate(LT_GT, 2);
+      }
+      break;
+    case '!':
+      if (charAt(start + 1) == '=') {
+        candidate(BANG_EQ, 2);
+      }
+      break;
+    case '{':
+      if (charAt(start + 1) == '{') {
+        candidate(DOUBLE_LBRACE, 2);
+      }
+      break;
+    case '}':
+      if (charAt(start + 1) == '}') {
+        candidate(DOUBLE_RBRACE, 2);
+      }
+      break;
+    case '(':
+      candidate(LPAREN, 1);
+      break;
+    case '[':
+      candidate(LBRACKET, 1);
+      break;
+    case ')':
+      candidate(RPAREN, 1);
+      break;
+    case ']':
+      candidate(RBRACKET, 1);
+      break;
+    case ',':
+      candidate(COMMA, 1);
+      break;
+    case '=':
+      candidate(EQ, 1);
+      break;
+    case '_':
+      if (regionMatches(start, USER_ATTRIBUTES_IMAGE, true)) {
+        candidate(USER_ATTRIBUTES, USER_ATTRIBUTES_IMAGE.length());
+      }
+      break;
+    default:
+      break;
+    }
+  }
+
+  /** Records a match if it is longer than the best so far; if two matches
+   * have the same length, the one defined first in the grammar wins. */
+  private void candidate(int kind, int length) {
+    if (length > matchLength
+        || length == matchLength && length > 0 && kind < matchKind) {
+      matchKind = kind;
+      matchLength = length;
+    }
+  }
+
+  /** Matches the longest keyword that is a prefix of the run of letters
+   * starting at {@code start}. Usually the whole run is a keyword, and this
+   * method does one hash lookup. */
+  private void keyword(int start) {
+    int run = 0;
+    while (run < MAX_KEYWORD_LENGTH && isWordChar(charAt(start + run))) {
+      ++run;
+    }
+    for (int length = run; length > 0; length--) {
+      final int slot = slot(s, start, length, HASH_MULTIPLIER);
+      final String keyword = KEYWORDS[slot];
+      if (keyword != null
+          && keyword.length() == length
+          && regionMatches(start, keyword, true)) {
+        candidate(KEYWORD_KINDS[slot], length);
+        return;
+      }
+    }
+  }
+
+  /** Matches tokens that start with a digit: YEAR_MONTH, YYYY_MM_DD,
+   * YEAR_QUARTER, HH_MM_SS. */
+  private void dateOrTime(int start) {
+    if (digits(start) >= 4) {
+      final char separator = charAt(start + 4);
+      if (separator == '/' || separator == '-') {
+        if (isMonth(start + 5)) {
+          candidate(YEAR_MONTH, 7);
+          final char separator2 = charAt(start + 7);
+          if ((separator2 == '/' || separator2 == '-') && isDay(start + 8)) {
+            candidate(YYYY_MM_DD, 10);
+          }
+        }
+        if (isQuarter(start + 4)) {
+          candidate(YEAR_QUARTER, 7);
+        }
+      }
+    }
+    if (isHour(start)
+        && charAt(start + 2) == ':'
+        && isMinute(start + 3)) {
+      candidate(HH_MM_SS,
+          charAt(start + 5) == ':' && isMinute(start + 6) ? 8 : 5);
+    }
+  }
+
+  /** Returns the length of a NUMBER_LITERAL, or 0. */
+  private int numberLiteral(int start) {
+    int i = start;
+    if (charAt(i) == '-') {
+      ++i;
+    }
+    final int digits = digits(i);
+    if (digits == 0) {
+      return 0;
+    }
+    i += digits;
+    if (charAt(i) == '.' && digits(i + 1) > 0) {
+      i += 1 + digits(i + 1);
+    }
+    return exponent(i) - start;
+  }
+
+  /** Returns the length of a NUMBER_LITERAL0 (which has no digits before the
+   * decimal point), or 0. */
+  private int numberLiteral0(int start) {
+    int i = start;
+    if (charAt(i) == '-') {
+      ++i;
+    }
+    if (charAt(i) != '.' || digits(i + 1) == 0) {
+      return 0;
+    }
+    i += 1 + digits(i + 1);
+    return exponent(i) - start;
+  }
+
+  /** Returns the offset after an optional exponent starting at {@code i}. */
+  private int exponent(int i) {
+    final char c = charAt(i);
+    if (c == 'e' || c == 'E') {
+      int j = i + 1;
+      if (charAt(j) == '-') {
+        ++j;
+      }
+      final int digits = digits(j);
+      if (digits > 0) {
+        return j + digits;
+      }
+    }
+    return i;
+  }
+
+  /** Returns the length of a QUOTED_STRING starting at {@code start}, or 0.
+   * Within the string, the only escapes are {@code \"} and {@code \\}. */
+  private int quotedString(int start) {
+    if (charAt(start) != '"') {
+      return 0;
+    }
+    int i = start + 1;
+    while (i < end) {
+      final char c = s.charAt(i);
+      if (c == '"') {
+        return i + 1 - start;
+      }
+      if (c == '\\') {
+        final char c2 = charAt(i + 1);
+        if (i + 1 >= end || c2 != '"' && c2 != '\\') {
+          return 0;
+        }
+        i += 2;
+      } else {
+        ++i;
+      }
+    }
+    return 0;
+  }
+
+  /** Creates an error for a position at which no token matches.
+   *
+   * <p>Reports the same position as the generated token manager: the first
+   * character at which no token could continue; but if that character is
+   * the last in the input (or there is no such character), the position
+   * after the last character. */
+  private TokenMgrError lexicalError(int start) {
+    final int errorEnd = viableEnd(start);
+    while (pos < errorEnd && pos < end) {
+      updateLineColumn(s.charAt(pos++));
+    }
+    if (errorEnd >= end - 1) {
+      if (pos < end) {
+        updateLineColumn(s.charAt(pos++));
+      }
+      final char c = s.charAt(end - 1);
+      final boolean newLine = c == '\n' || c == '\r';
+      return new TokenMgrError(true, 0,
+          newLine ? line + 1 : line,
+          newLine ? 0 : column + 1,
+          end - start <= 1 ? "" : s.subSequence(start, end).toString(),
+          c, TokenMgrError.LEXICAL_ERROR);
+    }
+    final char c = s.charAt(pos);
+    updateLineColumn(c);
+    return new TokenMgrError(false, 0, line, column,
+        s.subSequence(start, errorEnd).toString(), c,
+        TokenMgrError.LEXICAL_ERROR);
+  }
+
+  /** Returns the offset of the first character at which no token that
+   * starts at {@code start} could continue. */
+  private int viableEnd(int start) {
+    final char c = s.charAt(start);
+    switch (c) {
+    case '#':
+      int i = start + 1;
+      if (charAt(i) != '"') {
+        return i;
+      }
+      ++i;
+      while (i < end) {
+        if (s.charAt(i) == '\\') {
+          final char c2 = charAt(i + 1);
+          if (i + 1 < end && c2 != '"' && c2 != '\\') {
+            return i + 1;
+          }
+          i += 2;
+        } else {
+          ++i;
+        }
+      }
+      return end;
+    case '!':
+    case '{':
+    case '}':
+    case '.':
+      return start + 1;
+    default:
+      if (!isWordChar(c)) {
+        return start;
+      }
+      int viable = commonPrefix(start, USER_ATTRIBUTES_IMAGE);
+      for (String keyword : KEYWORDS) {
+        if (keyword != null) {
+          viable = Math.max(viable, commonPrefix(start, keyword));
+        }
+      }
+      if (fold(c) == 'f' && fold(charAt(start + 1)) == 'y') {
+        final int digits = Math.min(4, digits(start + 2));
+        int fy = 2 + digits;
+        if (digits == 4 && charAt(start + 6) == '-') {
+          ++fy;
+          if (fold(charAt(start + 7)) == 'q') {
+            ++fy;
+          }
+        }
+        viable = Math.max(viable, fy);
+      }
+      return start + viable;
+    }
+  }
+
+  /** Returns the length of the longest common prefix, ignoring case, of
+   * the input at {@code start} and a string. */
+  private int commonPrefix(int start, String keyword) {
+    int i = 0;
+    while (i < keyword.length()
+        && start + i < end
+        && fold(s.charAt(start + i)) == keyword.charAt(i)) {
+      ++i;
+    }
+    return i;
+  }
+
+  /** Returns whether the input at {@code start} starts with a string,
+   * optionally ignoring the case of ASCII letters. */
+  private boolean regionMatches(int start, String string, boolean ignoreCase) {
+    if (start + string.length() > end) {
+      return false;
+    }
+    for (int i = 0; i < string.length(); i++) {
+      final char c = s.charAt(start + i);
+      if ((ignoreCase ? fold(c) : c) != string.charAt(i)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /** Returns the character at offset {@code i}, or 0 if past the end. */
+  private char charAt(int i) {
+    return i < end ? s.charAt(i) : 0;
+  }
+
+  /** Returns the number of ASCII digits starting at offset {@code i}. */
+  private int digits(int i) {
+    int j = i;
+    while (j < end && isDigit(s.charAt(j))) {
+      ++j;
+    }
+    return j - i;
+  }
+
+  private boolean isMonth(int i) {
+    final char c0 = charAt(i);
+    final char c1 = charAt(i + 1);
+    return c0 == '0' && c1 >= '1' && c1 <= '9'
+        || c0 == '1' && c1 >= '0' && c1 <= '2';
+  }
+
+  private boolean isDay(int i) {
+    final char c0 = charAt(i);
+    final char c1 = charAt(i + 1);
+    return c0 == '0' && c1 >= '1' && c1 <= '9'
+        || (c0 == '1' || c0 == '2') && isDigit(c1)
+        || c0 == '3' && (c1 == '0' || c1 == '1');
+  }
+
+  private boolean isHour(int i) {
+    final char c0 = charAt(i);
+    final char c1 = charAt(i + 1);
+    return c0 == '0' && c1 >= '1' && c1 <= '9'
+        || c0 == '1' && isDigit(c1)
+        || c0 == '2' && c1 >= '0' && c1 <= '3';
+  }
+
+  private boolean isMinute(int i) {
+    final char c0 = charAt(i);
+    return c0 >= '0' && c0 <= '5' && isDigit(charAt(i + 1));
+  }
+
+  /** Returns whether the input at {@code i} is a quarter suffix, such as
+   * "-Q4". */
+  private boolean isQuarter(int i) {
+    final char c = charAt(i + 2);
+    return charAt(i) == '-' && fold(charAt(i + 1)) == 'q'
+        && c >= '1' && c <= '4';
+  }
+
+  private static boolean isDigit(char c) {
+    return c >= '0' && c <= '9';
+  }
+
+  private static boolean isLetter(char c) {
+    return c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z';
+  }
+
+  private static boolean isWordChar(char c) {
+    return isLetter(c) || c == '_';
+  }
+
+  private static boolean isKeyword(String spelling) {
+    for (int i = 0; i < spelling.length(); i++) {
+      if (!isWordChar(spelling.charAt(i))) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /** Returns whether a character is white space that the grammar skips. */
+  private static boolean isSkip(char c) {
+    return c == ' ' || c == '\t' || c == '\n' || c == '\r' || c == '\f';
+  }
+
+  /** Converts an ASCII upper-case letter to lower case; as the grammar is
+   * {@code IGNORE_CASE}, keywords match regardless of the case of ASCII
+   * letters (but not of other letters). */
+  private static char fold(char c) {
+    return c >= 'A' && c <= 'Z' ? (char) (c + ('a' - 'A')) : c;
+  }
+
+  /** Returns the slot in the keyword table for a range of characters. */
+  private static int slot(CharSequence s, int start, int length,
+      int multiplier) {
+    int h = length;
+    for (int i = 0; i < length; i++) {
+      h = h * multiplier + fold(s.charAt(start + i));
+    }
+    return (h ^ h >>> 8) & HASH_MASK;
+  }
+
+  /** Finds a multiplier such that every keyword has a different slot. */
+  private static int findMultiplier(List<String> keywords) {
+    for (int multiplier = 31; multiplier < 1_000_000; multiplier += 2) {
+      final boolean[] used = new boolean[HASH_MASK + 1];
+      boolean perfect = true;
+      for (String keyword : keywords) {
+        final int slot = slot(keyword, 0, keyword.length(), multiplier);
+        if (used[slot]) {
+          perfect = false;
+          break;
+        }
+        used[slot] = true;
+      }
+      if (perfect) {
+        return multiplier;
+      }
+    }
+    throw new AssertionError("no perfect hash for " + keywords);
+  }
+
+  /** Returns the kind of the token with a given fixed spelling; for
+   * example, {@code kind("(")}. */
+  public static int kind(String spelling) {
+    final String image = "\"" + spelling + "\"";
+    for (int kind = 0; kind < tokenImage.length; kind++) {
+      if (tokenImage[kind].equals(image)) {
+        return kind;
+      }
+    }
+    throw new AssertionError("unknown token " + spelling);
+  }
+}
+
+// End CharSequenceTokenManager.java
@@ -0,0 +1,211 @@
+/*
+ * Licensed to Julian Hyde under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to you under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.hydromatic.filtex.parse;
+
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+/**
+ * This exception is thrown when parse errors are encountered.
+ *
+ * <p>Replaces the class that JavaCC would otherwise generate. Invalid filter
+ * expressions are common (users type free text) and are not programming
+ * errors, so this exception does not record a stack trace, and does not
+ * build its message until {@link #getMessage()} is called.
+ */
+public class ParseException extends Exception {
+  private static final long serialVersionUID = 1L;
+
+  /** The end of line string for this machine. */
+  protected static final String EOL =
+      System.getProperty("line.separator", "\n");
+
+  /** The last token that has been consumed successfully. If this exception
+   * has been created due to a parse error, the token following this token
+   * is the first error token. */
+  public @Nullable Token currentToken;
+
+  /** Sequences of tokens (by their ordinal values) that were expected at this
+   * point of the parse. */
+  public int[] @Nullable [] expectedTokenSequences;
+
+  /** The "tokenImage" array of the generated parser. */
+  public String @Nullable [] tokenImage;
+
+  /** Creates a ParseException; called by the method
+   * {@code generateParseException} in the generated parser. */
+  public ParseException(Token currentToken, int[][] expectedTokenSequences,
+      String[] tokenImage) {
+    super(null, null, false, false);
+    this.currentToken = currentToken;
+    this.expectedTokenSequences = expectedTokenSequences;
+    this.tokenImage = tokenImage;
+  }
+
+  /** Creates a ParseException with no message. */
+  public ParseException() {
+    super(null, null, false, false);
+  }
+
+  /** Creates a ParseException with a message. */
+  public ParseException(String message) {
+    super(message, null, false, false);
+  }
+
+  @Override public String getMessage() {
+    final String message = super.getMessage();
+    if (message == null
+        && currentToken != null
+        && expectedTokenSequences != null
+        && tokenImage != null) {
+      return message(currentToken, expectedTokenSequences, tokenImage);
+    }
+    return message;
+  }
+
+  /** Returns the token at which the error occurred, or null if not known. */
+  public @Nullable Token errorToken() {
+    return currentToken == null ? null : currentToken.next;
+  }
+
+  /** Replaces the tokens referenced by this exception with copies, and
+   * returns this exception.
+   *
+   * <p>Call this method if the exception may outlive its tokens; for
+   * example, {@link CharSequenceTokenManager} re-uses tokens when it is
+   * reset. */
+  public ParseException detach() {
+    if (currentToken != null) {
+      int maxSize = 0;
+      if (expectedTokenSequences != null) {
+        for (int[] sequence : expectedTokenSequences) {
+          maxSize = Math.max(maxSize, sequence.length);
+        }
+      }
+      final Token head = copy(currentToken);
+      Token copy = head;
+      Token t = currentToken.next;
+      for (int i = 0; i < Math.max(maxSize, 1) && t != null; i++) {
+        copy = copy.next = copy(t);
+        t = t.next;
+      }
+      currentToken = head;
+    }
+    return this;
+  }
+
+  private static Token copy(Token t) {
+    final Token copy = new Token(t.kind, t.image);
+    copy.beginLine = t.beginLine;
+    copy.beginColumn = t.beginColumn;
+    copy.endLine = t.endLine;
+    copy.endColumn = t.endColumn;
+    return copy;
+  }
+
+  /** Generates the message, from the current token and expected token
+   * sequences. */
+  private static String message(Token currentToken,
+      int[][] expectedTokenSequences, String[] tokenImage) {
+    final StringBuilder expected = new StringBuilder();
+    int maxSize = 0;
+    for (int[] sequence : expectedTokenSequences) {
+      maxSize = Math.max(maxSize, sequence.length);
+      for (int kind : sequence) {
+        expected.append(tokenImage[kind]).append(' ');
+      }
+      if (sequence[sequence.length - 1] != 0) {
+        expected.append("...");
+      }
+      expected.append(EOL).append("    ");
+    }
+    final StringBuilder b = new StringBuilder("Encountered \"");
+    Token tok = currentToken.next;
+    for (int i = 0; i < maxSize && tok != null; i++) {
+      if (i != 0) {
+        b.append(' ');
+      }
+      if (tok.kind == 0) {
+        b.append(tokenImage[0]);
+        break;
+      }
+      b.append(' ')
+          .append(tokenImage[tok.kind])
+          .append(" \"")
+          .append(escape(tok.image))
+          .append(" \"");
+      tok = tok.next;
+    }
+    b.append('"');
+    if (currentToken.next != null) {
+      b.append(" at line ").append(currentToken.next.beginLine)
+          .append(", column ").append(currentToken.next.beginColumn);
+    }
+    b.append('.').append(EOL);
+    if (expectedTokenSequences.length == 1) {
+      b.append("Was expecting:").append(EOL).append("    ").append(expected);
+    } else if (expectedTokenSequences.length > 1) {
+      b.append("Was expecting one of:").append(EOL).append("    ")
+          .append(expected);
+    }
+    return b.toString();
+  }
+
+  /** Converts raw characters to their escaped version, for use in an ASCII
+   * string literal. */
+  static String escape(String s) {
+    final StringBuilder b = new StringBuilder();
+    for (int i = 0; i < s.length(); i++) {
+      final char c = s.charAt(i);
+      switch (c) {
+      case '\b':
+        b.append("\\b");
+        break;
+      case '\t':
+        b.append("\\t");
+        break;
+      case '\n':
+        b.append("\\n");
+        break;
+      case '\f':
+        b.append("\\f");
+        break;
+      case '\r':
+        b.append("\\r");
+        break;
+      case '"':
+        b.append("\\\"");
+        break;
+      case '\'':
+        b.append("\\'");
+        break;
+      case '\\':
+        b.append("\\\\");
+        break;
+      default:
+        if (c < 0x20 || c > 0x7e) {
+          final String hex = "0000" + Integer.toString(c, 16);
+          b.append("\\u").append(hex.substring(hex.length() - 4));
+        } else {
+          b.append(c);
+        }
+      }
+    }
+    return b.toString();
+  }
+}
+
+// End ParseException.java
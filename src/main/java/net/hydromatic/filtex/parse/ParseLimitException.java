@@ -0,0 +1,79 @@
+/*
+ * Licensed to Julian Hyde under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to you under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.hydromatic.filtex.parse;
+
+import net.hydromatic.filtex.ast.Pos;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Thrown when parsing an expression exceeds a limit, such as the number of
+ * terms or the time allowed.
+ *
+ * <p>Unlike {@link ParseException}, it does not mean that the expression is
+ * invalid, only that it was too expensive to parse. It is unchecked, so that
+ * the token manager can throw it, and like {@code ParseException} it does not
+ * record a stack trace.
+ */
+public class ParseLimitException extends RuntimeException {
+  private static final long serialVersionUID = 1L;
+
+  /** Which limit was exceeded. */
+  public final Limit limit;
+
+  /** Value of the limit. */
+  public final long value;
+
+  /** Position at which the limit was exceeded; {@link Pos#ZERO} if the limit
+   * applies to the whole expression. */
+  public final Pos pos;
+
+  /** Creates a ParseLimitException. */
+  public ParseLimitException(Limit limit, long value, Pos pos) {
+    super(null, null, false, false);
+    this.limit = requireNonNull(limit, "limit");
+    this.value = value;
+    this.pos = requireNonNull(pos, "pos");
+  }
+
+  @Override public String getMessage() {
+    return "expression exceeds limit of " + value + " " + limit.unit;
+  }
+
+  /** Kinds of limit. */
+  public enum Limit {
+    /** Number of characters in the expression. */
+    LENGTH("characters"),
+    /** Number of terms in a list. */
+    TERM_COUNT("terms"),
+    /** Number of values in value lists such as "1, 2, 3". */
+    VALUE_COUNT("values"),
+    /** Number of tokens read by the parser. */
+    TOKEN_COUNT("tokens"),
+    /** Time spent parsing. */
+    TIME("nanoseconds");
+
+    /** Unit in which the limit is expressed, for messages. */
+    public final String unit;
+
+    Limit(String unit) {
+      this.unit = unit;
+    }
+  }
+}
+
+// End ParseLimitException.java
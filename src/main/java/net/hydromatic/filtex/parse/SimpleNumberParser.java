@@ -0,0 +1,261 @@
+/*
+ * Licensed to Julian Hyde under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to you under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.hydromatic.filtex.parse;
+
+import net.hydromatic.filtex.ast.AstNode;
+import net.hydromatic.filtex.ast.Bound;
+import net.hydromatic.filtex.ast.DecimalList;
+import net.hydromatic.filtex.ast.Decimals;
+import net.hydromatic.filtex.ast.Op;
+
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static net.hydromatic.filtex.ast.AstBuilder.ast;
+
+/**
+ * Hand-written parser for the simplest numeric expressions.
+ *
+ * <p>Most numeric filters are a literal ("5"), a list of literals
+ * ("1, 2, 3"), "null", "not null", or a single comparison ("&gt;= 10").
+ * This class recognizes such expressions in one pass over the characters,
+ * without starting the generated parser, and builds the same AST as
+ * {@link FiltexParserImpl#numericExpressionEof()}.
+ *
+ * <p>It recognizes a comma-separated list of terms, each of which is an
+ * optional negation ("not", "!=" or "&lt;&gt;") followed by "null", a number,
+ * or a comparison operator ("&gt;", "&gt;=", "&lt;", "&lt;=") and a number.
+ * If it sees anything else, it returns null, and the caller should use the
+ * full grammar. It is conservative: it returns null for some expressions
+ * that the full grammar would accept, but never succeeds for an expression
+ * that the full grammar would reject.
+ *
+ * <p>If every term is a number, as in a pasted list of ids, it collects the
+ * values into an array, and returns a single "=" node whose value is a
+ * {@link DecimalList}. That is the node that
+ * {@link net.hydromatic.filtex.Transforms#numberTransform} would create by
+ * merging the terms, but it is built without creating a node per term.
+ */
+public class SimpleNumberParser {
+  private SimpleNumberParser() {
+  }
+
+  /** Parses a numeric expression, or returns null if it is not simple. */
+  public static @Nullable AstNode parse(String s) {
+    return parse(s, Integer.MAX_VALUE);
+  }
+
+  /** Parses a numeric expression, or returns null if it is not simple or
+   * has more than {@code maxTermCount} terms. */
+  public static @Nullable AstNode parse(String s, int maxTermCount) {
+    // While every term is a number that fits in a long, "values" holds the
+    // packed values, and "terms" is empty; after that, "terms" holds all
+    // terms.
+    long[] values = new long[8];
+    int valueCount = 0;
+    final List<AstNode> terms = new ArrayList<>();
+    int termCount = 0;
+    final int n = s.length();
+    int i = skipSpace(s, 0);
+    for (;;) {
+      // Optional prefix, as in the "is" rule
+      boolean is = true;
+      if (matchesKeyword(s, i, "not")) {
+        is = false;
+        i = skipSpace(s, i + 3);
+      } else if (s.startsWith("!=", i) || s.startsWith("<>", i)) {
+        is = false;
+        i = skipSpace(s, i + 2);
+      }
+
+      if (matchesKeyword(s, i, "null")) {
+        flush(values, valueCount, terms);
+        valueCount = -1;
+        terms.add(ast.isNull(is));
+        i += 4;
+      } else {
+        // Optional comparison operator, as in the "intervalComp1" and
+        // "intervalComp2" rules
+        final char c = i < n ? s.charAt(i) : 0;
+        final char c2 = i + 1 < n ? s.charAt(i + 1) : 0;
+        final Bound leftBound;
+        final Bound rightBound;
+        if (c == '>') {
+          leftBound = c2 == '=' ? Bound.CLOSED : Bound.OPEN;
+          rightBound = Bound.ABSENT;
+          i = skipSpace(s, c2 == '=' ? i + 2 : i + 1);
+        } else if (c == '<') {
+          if (c2 == '>') {
+            return null; // a second negation, e.g. "not <> 1"
+          }
+          leftBound = Bound.ABSENT;
+          rightBound = c2 == '=' ? Bound.CLOSED : Bound.OPEN;
+          i = skipSpace(s, c2 == '=' ? i + 2 : i + 1);
+        } else {
+          leftBound = rightBound = null;
+        }
+
+        final int end = endOfNumber(s, i);
+        if (end < 0) {
+          return null;
+        }
+        final Op op = leftBound == null ? Op.EQ
+            : leftBound == Bound.ABSENT
+                ? (rightBound == Bound.CLOSED ? Op.LE : Op.LT)
+                : (leftBound == Bound.CLOSED ? Op.GE : Op.GT);
+        final long value = Decimals.parse(s, i, end);
+        if (valueCount >= 0 && is && op == Op.EQ && value != Decimals.NONE) {
+          if (valueCount == values.length) {
+            values = Arrays.copyOf(values, valueCount * 2);
+          }
+          values[valueCount++] = value;
+        } else if (value != Decimals.NONE) {
+          flush(values, valueCount, terms);
+          valueCount = -1;
+          terms.add(ast.decimalComparison(is, op, value));
+        } else {
+          flush(values, valueCount, terms);
+          valueCount = -1;
+          // Rare: too many digits, or a negative scale, as in "1e3"
+          final BigDecimal bigValue = new BigDecimal(s.substring(i, end));
+          terms.add(ast.comparison(is, op, bigValue));
+        }
+        i = end;
+      }
+
+      ++termCount;
+      i = skipSpace(s, i);
+      if (i == n) {
+        if (valueCount < 0) {
+          return ast.logicalExpression(terms);
+        }
+        return valueCount == 1
+            ? ast.decimalLiteral(true, values[0])
+            : ast.comparison(true, Op.EQ,
+                DecimalList.copyOf(values, valueCount));
+      }
+      if (s.charAt(i) != ',' || termCount >= maxTermCount) {
+        return null;
+      }
+      i = skipSpace(s, i + 1);
+    }
+  }
+
+  /** Adds a term for each of the first {@code valueCount} values to a list;
+   * does nothing if {@code valueCount} is negative. */
+  private static void flush(long[] values, int valueCount,
+      List<AstNode> terms) {
+    for (int i = 0; i < valueCount; i++) {
+      terms.add(ast.decimalLiteral(true, values[i]));
+    }
+  }
+
+  /** Returns the position after the last white space character at or after
+   * {@code i}. The white space characters are those that the grammar
+   * skips. */
+  private static int skipSpace(String s, int i) {
+    final int n = s.length();
+    while (i < n) {
+      switch (s.charAt(i)) {
+      case ' ':
+      case '\t':
+      case '\n':
+      case '\r':
+      case '\f':
+        ++i;
+        break;
+      default:
+        return i;
+      }
+    }
+    return i;
+  }
+
+  /** Returns whether a keyword (in lower case) occurs at position {@code i},
+   * ignoring case, and is not followed by a letter. */
+  private static boolean matchesKeyword(String s, int i, String keyword) {
+    final int end = i + keyword.length();
+    if (end > s.length()) {
+      return false;
+    }
+    for (int j = 0; j < keyword.length(); j++) {
+      // For an ASCII lower-case letter k, "c | 0x20 == k" holds only if c is
+      // k or its upper-case equivalent.
+      if ((s.charAt(i + j) | 0x20) != keyword.charAt(j)) {
+        return false;
+      }
+    }
+    return end == s.length() || !Character.isLetter(s.charAt(end));
+  }
+
+  /** Returns the position after the number literal that starts at position
+   * {@code i}, or -1 if there is no number literal, or if it runs into
+   * another token.
+   *
+   * <p>Follows the {@code NUMBER_LITERAL} and {@code NUMBER_LITERAL0}
+   * tokens, but requires that the literal is followed by white space, a
+   * comma, or the end of the string. (Otherwise "2018-01" or "12:30" might be
+   * mistaken for numbers.) */
+  private static int endOfNumber(String s, int i) {
+    final int n = s.length();
+    int j = i;
+    if (j < n && s.charAt(j) == '-') {
+      ++j;
+    }
+    final int integerDigits = digits(s, j);
+    j += integerDigits;
+    if (j < n && s.charAt(j) == '.') {
+      final int fractionDigits = digits(s, j + 1);
+      if (fractionDigits == 0) {
+        return -1;
+      }
+      j += 1 + fractionDigits;
+    } else if (integerDigits == 0) {
+      return -1;
+    }
+    if (j < n && (s.charAt(j) == 'e' || s.charAt(j) == 'E')) {
+      int k = j + 1;
+      if (k < n && s.charAt(k) == '-') {
+        ++k;
+      }
+      final int exponentDigits = digits(s, k);
+      if (exponentDigits == 0) {
+        return -1;
+      }
+      j = k + exponentDigits;
+    }
+    if (j < n && s.charAt(j) != ',' && skipSpace(s, j) == j) {
+      return -1;
+    }
+    return j;
+  }
+
+  /** Returns the number of ASCII digits starting at position {@code i}. */
+  private static int digits(String s, int i) {
+    int j = i;
+    while (j < s.length() && s.charAt(j) >= '0' && s.charAt(j) <= '9') {
+      ++j;
+    }
+    return j - i;
+  }
+}
+
+// End SimpleNumberParser.java
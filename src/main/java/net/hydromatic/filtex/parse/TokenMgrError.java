@@ -0,0 +1,134 @@
+/*
+ * Licensed to Julian Hyde under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to you under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.hydromatic.filtex.parse;
+
+import net.hydromatic.filtex.ast.Pos;
+
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+/**
+ * Error thrown by the token manager.
+ *
+ * <p>Replaces the class that JavaCC would otherwise generate. Like
+ * {@link ParseException}, it does not record a stack trace, and builds its
+ * message only when {@link #getMessage()} is called.
+ */
+public class TokenMgrError extends Error {
+  private static final long serialVersionUID = 1L;
+
+  /** Lexical error occurred. */
+  public static final int LEXICAL_ERROR = 0;
+
+  /** An attempt was made to create a second instance of a static token
+   * manager. */
+  public static final int STATIC_LEXER_ERROR = 1;
+
+  /** Tried to change to an invalid lexical state. */
+  public static final int INVALID_LEXICAL_STATE = 2;
+
+  /** Detected (and bailed out of) an infinite loop in the token manager. */
+  public static final int LOOP_DETECTED = 3;
+
+  /** Why this error was thrown; one of the above 4 values. */
+  int errorCode;
+
+  /** Whether the end of the input was reached; valid if a lexical error. */
+  public final boolean eofSeen;
+
+  /** Line at which the lexical error occurred, or -1. */
+  public final int errorLine;
+
+  /** Column at which the lexical error occurred, or -1. */
+  public final int errorColumn;
+
+  private final int lexState;
+  private final @Nullable String errorAfter;
+  private final int curChar;
+
+  /** Creates a TokenMgrError with no message. */
+  public TokenMgrError() {
+    this(null, LEXICAL_ERROR);
+  }
+
+  /** Creates a TokenMgrError with a message and reason. */
+  public TokenMgrError(@Nullable String message, int reason) {
+    super(message, null, false, false);
+    this.errorCode = reason;
+    this.eofSeen = false;
+    this.lexState = 0;
+    this.errorLine = -1;
+    this.errorColumn = -1;
+    this.errorAfter = null;
+    this.curChar = 0;
+  }
+
+  /** Creates a TokenMgrError for a lexical error; called by the generated
+   * token manager. */
+  public TokenMgrError(boolean eofSeen, int lexState, int errorLine,
+      int errorColumn, String errorAfter, int curChar, int reason) {
+    super(null, null, false, false);
+    this.errorCode = reason;
+    this.eofSeen = eofSeen;
+    this.lexState = lexState;
+    this.errorLine = errorLine;
+    this.errorColumn = errorColumn;
+    this.errorAfter = errorAfter;
+    this.curChar = curChar;
+  }
+
+  @Override public String getMessage() {
+    final String message = super.getMessage();
+    if (message == null && errorLine >= 0) {
+      return lexicalError(eofSeen, lexState, errorLine, errorColumn,
+          errorAfter, curChar);
+    }
+    return message;
+  }
+
+  /** Returns the position of a lexical error, from the start of the partial
+   * token that was being read to the character that could not be matched;
+   * or {@link Pos#ZERO} if not a lexical error. */
+  public Pos pos() {
+    if (errorLine < 0) {
+      return Pos.ZERO;
+    }
+    final int prefixLength = errorAfter == null ? 0 : errorAfter.length();
+    final int startColumn = Math.max(1, errorColumn - prefixLength);
+    final int endColumn = eofSeen ? errorColumn : errorColumn + 1;
+    return new Pos("", errorLine, startColumn, errorLine,
+        Math.max(startColumn + 1, endColumn));
+  }
+
+  /** Returns a detailed message for a lexical error. */
+  protected static String lexicalError(boolean eofSeen, int lexState,
+      int errorLine, int errorColumn, @Nullable String errorAfter,
+      int curChar) {
+    return "Lexical error at line " + errorLine
+        + ", column " + errorColumn
+        + ".  Encountered: "
+        + (eofSeen
+            ? "<EOF>"
+            : "'" + ParseException.escape(String.valueOf((char) curChar))
+                + "' (" + curChar + "),")
+        + (errorAfter == null || errorAfter.isEmpty()
+            ? ""
+            : " after prefix \"" + ParseException.escape(errorAfter) + "\"")
+        + (lexState == 0 ? "" : " (in lexical state " + lexState + ")");
+  }
+}
+
+// End TokenMgrError.java
@@ -18,21 +18,31 @@
 
 import net.hydromatic.filtex.ast.AstNode;
 import net.hydromatic.filtex.ast.Asts;
+import net.hydromatic.filtex.ast.DateTimes;
 import net.hydromatic.filtex.ast.Digester;
 
 import org.checkerframework.checker.nullness.qual.Nullable;
 import org.junit.jupiter.api.Disabled;
 import org.junit.jupiter.api.Test;
 
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
 
 import static net.hydromatic.filtex.Filtex.parseFilterExpression;
 import static net.hydromatic.filtex.TestValues.forEach;
 
+import static org.hamcrest.CoreMatchers.nullValue;
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.core.Is.is;
 
+import static java.util.Objects.requireNonNull;
+
 /** Tests date expressions. */
 public class DateTest {
 
@@ -42,6 +52,51 @@ public class DateTest {
         checkDateItem(i.expression, i.output, i.describe, i.type, i.digest));
   }
 
+  /** Tests that date filters that parse are summarized from their ASTs.
+   * (Some test values, such as "this fiscal year", do not yet parse.)
+   *
+   * <p>Unlike the reference implementation, summaries keep the time of day
+   * of date-time literals, and say "is" before "this year to second". */
+  @Test void testDateSummary() {
+    final Map<String, String> differences = new HashMap<>();
+    differences.put("before 2018-01-01 12:00:00",
+        "is before 2018/01/01 12:00:00");
+    differences.put("2018-05-18 12:00:00 to 2018-05-18 14:00:00",
+        "is from 2018/05/18 12:00:00 until 2018/05/18 14:00:00");
+    differences.put("this year to second", "is this year to second");
+    differences.put("this year to day", "is this year to day");
+    forEach(TestValues.DATE_EXPRESSION_TEST_ITEMS, i -> {
+      final ParseResult result = Filtex.tryParse(TypeFamily.DATE, i.expression);
+      if (result.node != null) {
+        assertThat(
+            Filtex.summary(TypeFamily.DATE, result.node, Locale.ENGLISH),
+            is(differences.getOrDefault(i.expression, i.describe)));
+      }
+    });
+
+    // Date-time literals are summarized to their precision, for DATE and
+    // DATE_TIME.
+    final String[][] values = {
+        {"2018/05/10 12:30 to 2018/05/10 18:00",
+            "is from 2018/05/10 12:30 until 2018/05/10 18:00"},
+        {"before 2018/05/10 12:30", "is before 2018/05/10 12:30"},
+        {"after 2018/05/10 12:30:15", "is on or after 2018/05/10 12:30:15"},
+        {"2018/05/10 12:30 for 3 hours",
+            "is from 2018/05/10 12:30 for 3 hours"},
+        {"2018/05/10 to 2018/05/12", "is from 2018/05/10 until 2018/05/12"},
+        {"this month to year", "is this month to year"},
+    };
+    for (String[] value : values) {
+      final ParseResult result = Filtex.tryParse(TypeFamily.DATE, value[0]);
+      final AstNode node = requireNonNull(result.node, value[0]);
+      for (TypeFamily typeFamily
+          : new TypeFamily[] {TypeFamily.DATE, TypeFamily.DATE_TIME}) {
+        assertThat(Filtex.summary(typeFamily, node, Locale.ENGLISH),
+            is(value[1]));
+      }
+    }
+  }
+
   void checkDateItem(String expression, String expectedOutput,
       String expectedSummary, @Nullable String expectedType,
       String expectedDigest) {
@@ -345,6 +400,108 @@ void checkExpression(String expression, String expectedDigest) {
     forEach(INVALID_DATES, pair ->
         checkExpression(pair.expression, pair.type));
   }
+
+  /** Tests that a month of "00" is invalid, and that {@link Filtex#tryParse}
+   * and {@link Filtex#recognize} agree. */
+  @Test void testInvalidMonth() {
+    final String[] expressions = {
+        "2018-00", "2018/00", "2018/00/05", "2018-00-05 12:00",
+        "after 2018/00/05", "2018/00/05 to 2018/05/10"
+    };
+    for (String expression : expressions) {
+      final ParseResult result = Filtex.tryParse(TypeFamily.DATE, expression);
+      assertThat(expression, result.status, is(ParseResult.Status.INVALID));
+      assertThat(expression, Filtex.recognize(TypeFamily.DATE, expression),
+          is(result.pos));
+    }
+
+    // Months "01" to "12" are valid
+    for (int month = 1; month <= 12; month++) {
+      final String expression = String.format(Locale.ROOT, "2018/%02d", month);
+      final ParseResult result = Filtex.tryParse(TypeFamily.DATE, expression);
+      assertThat(expression, result.isValid(), is(true));
+      assertThat(expression, Filtex.recognize(TypeFamily.DATE, expression),
+          nullValue());
+    }
+  }
+
+  /** Tests {@link DateTimes}, the packed representation of date and time
+   * literals. */
+  @Test void testDateTimes() {
+    final long date = DateTimes.date(2018, 5, 10);
+    assertThat(DateTimes.precision(date), is(DateTimes.Precision.DAY));
+    assertThat(DateTimes.year(date), is(2018));
+    assertThat(DateTimes.month(date), is(5));
+    assertThat(DateTimes.day(date), is(10));
+    assertThat(DateTimes.toString(date), is("2018/05/10"));
+
+    final long datetime =
+        DateTimes.plus(date, DateTimes.time(12, 34, 56));
+    assertThat(DateTimes.precision(datetime),
+        is(DateTimes.Precision.SECOND));
+    assertThat(DateTimes.hour(datetime), is(12));
+    assertThat(DateTimes.minute(datetime), is(34));
+    assertThat(DateTimes.second(datetime), is(56));
+    assertThat(DateTimes.toString(datetime), is("2018/05/10 12:34:56"));
+    assertThat(
+        DateTimes.toString(DateTimes.plus(date, DateTimes.time(8, 5, -1))),
+        is("2018/05/10 08:05"));
+    assertThat(DateTimes.epochSecond(datetime),
+        is(LocalDateTime.of(2018, 5, 10, 12, 34, 56)
+            .toEpochSecond(ZoneOffset.UTC)));
+
+    final long quarter = DateTimes.quarter(2018, 2);
+    assertThat(DateTimes.quarter(quarter), is(2));
+    assertThat(DateTimes.month(quarter), is(0));
+    assertThat(DateTimes.toString(quarter), is("2018-Q2"));
+    assertThat(DateTimes.epochDay(quarter),
+        is(LocalDate.of(2018, 4, 1).toEpochDay()));
+    assertThat(DateTimes.toString(DateTimes.month(2018, 5)), is("2018/05"));
+    assertThat(DateTimes.toString(DateTimes.year(2018)), is("2018"));
+
+    // A period sorts before its first day, which sorts before any time
+    // within that day.
+    final long[] ordered = {
+        DateTimes.year(2018),
+        DateTimes.quarter(2018, 1),
+        DateTimes.month(2018, 1),
+        DateTimes.date(2018, 1, 1),
+        DateTimes.plus(DateTimes.date(2018, 1, 1), DateTimes.time(0, 0, -1)),
+        DateTimes.plus(DateTimes.date(2018, 1, 1), DateTimes.time(0, 0, 0)),
+        DateTimes.plus(DateTimes.date(2018, 1, 1), DateTimes.time(0, 0, 1)),
+        DateTimes.date(2018, 1, 2),
+        DateTimes.month(2018, 2),
+        DateTimes.quarter(2018, 2),
+        DateTimes.year(2019),
+    };
+    for (int i = 0; i < ordered.length; i++) {
+      for (int j = 0; j < ordered.length; j++) {
+        assertThat(Integer.signum(DateTimes.compare(ordered[i], ordered[j])),
+            is(Integer.compare(i, j)));
+      }
+    }
+
+    // Day arithmetic agrees with java.time
+    final Random random = new Random(0);
+    for (int i = 0; i < 1_000; i++) {
+      final LocalDateTime t =
+          LocalDateTime.of(1600 + random.nextInt(800), 1 + random.nextInt(12),
+              1 + random.nextInt(28), random.nextInt(24), random.nextInt(60),
+              random.nextInt(60));
+      final LocalDateTime t2 = t.plusSeconds(random.nextInt(100_000_000));
+      final long p = pack(t);
+      final long p2 = pack(t2);
+      assertThat(DateTimes.epochDay(p), is(t.toLocalDate().toEpochDay()));
+      assertThat(Integer.signum(DateTimes.compare(p, p2)),
+          is(Integer.signum(t.compareTo(t2))));
+    }
+  }
+
+  private static long pack(LocalDateTime t) {
+    return DateTimes.plus(
+        DateTimes.date(t.getYear(), t.getMonthValue(), t.getDayOfMonth()),
+        DateTimes.time(t.getHour(), t.getMinute(), t.getSecond()));
+  }
 }
 
 // End DateTest.java
@@ -16,10 +16,61 @@
  */
 package net.hydromatic.filtex;
 
+import net.hydromatic.filtex.ast.Ast;
+import net.hydromatic.filtex.ast.AstNode;
+import net.hydromatic.filtex.ast.Asts;
+import net.hydromatic.filtex.ast.Digester;
+import net.hydromatic.filtex.ast.Op;
+import net.hydromatic.filtex.ast.Pos;
+import net.hydromatic.filtex.util.Pair;
+
+import com.google.common.base.Strings;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.collect.ImmutableList;
+
+import org.checkerframework.checker.nullness.qual.Nullable;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.parallel.ResourceLock;
+import org.junit.jupiter.api.parallel.Resources;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
+import static net.hydromatic.filtex.ast.AstBuilder.ast;
+
+import static org.hamcrest.CoreMatchers.containsString;
+import static org.hamcrest.CoreMatchers.endsWith;
+import static org.hamcrest.CoreMatchers.instanceOf;
 import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.not;
+import static org.hamcrest.CoreMatchers.notNullValue;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.hamcrest.CoreMatchers.startsWith;
 import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.jupiter.api.Assertions.fail;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+import static java.util.Objects.requireNonNull;
 
 /** Tests the {@link Filtex} facade. */
 public class FiltexTest {
@@ -27,6 +78,765 @@ public class FiltexTest {
     assertThat(Filtex.getExpressionType(true, "field_filter"),
         is(TypeFamily.NUMBER));
   }
+
+  /** Tests that {@link ParseCache} returns the same tree for the same
+   * expression, and records hits, misses and evictions. */
+  @Test void testParseCache() {
+    final ParseCache cache = ParseCache.withMaximumSize(2);
+    final AstNode node = cache.parseFilterExpression(TypeFamily.NUMBER, "1, 2");
+    assertThat(node.toString(), is("1,2"));
+    assertThat(cache.parseFilterExpression(TypeFamily.NUMBER, "1, 2"),
+        sameInstance(node));
+
+    // Same expression, different type family, is a different entry
+    final AstNode node2 =
+        cache.parseFilterExpression(TypeFamily.LOCATION, "NULL");
+    assertThat(node2, not(sameInstance(node)));
+    assertThat(cache.size(), is(2L));
+
+    CacheStats stats = cache.stats();
+    assertThat(stats.hitCount(), is(1L));
+    assertThat(stats.missCount(), is(2L));
+    assertThat(stats.evictionCount(), is(0L));
+
+    cache.parseFilterExpression(TypeFamily.NUMBER, "> 10");
+    stats = cache.stats();
+    assertThat(stats.missCount(), is(3L));
+    assertThat(stats.evictionCount(), is(1L));
+    assertThat(cache.size(), is(2L));
+
+    cache.invalidateAll();
+    assertThat(cache.size(), is(0L));
+
+    // Location expressions contain points, boxes and circles, which are
+    // copied when the tree is numbered
+    final ParseCache cache2 = ParseCache.withMaximumSize(10);
+    for (String s
+        : Arrays.asList("36.97, -122.03",
+            "inside box from 72, -173 to 14, -58",
+            "40 miles from 36.97, -122.03")) {
+      final AstNode locationNode =
+          cache2.parseFilterExpression(TypeFamily.LOCATION, s);
+      assertThat(locationNode.id, is(0));
+      assertThat(locationNode,
+          is(Filtex.parseFilterExpression(TypeFamily.LOCATION, s)));
+      assertThat(cache2.parseFilterExpression(TypeFamily.LOCATION, s),
+          sameInstance(locationNode));
+    }
+  }
+
+  /** Tests {@link SummaryCache}, including its bulk method. */
+  @Test void testSummaryCache() {
+    final SummaryCache cache = SummaryCache.withMaximumSize(10);
+    final List<AstNode> nodes = new ArrayList<>();
+    for (String s : new String[] {"[0,20],>30", "5", "[0, 20], > 30", "5"}) {
+      nodes.add(Filtex.parseFilterExpression(TypeFamily.NUMBER, s));
+    }
+    assertThat(cache.summaries(TypeFamily.NUMBER, nodes, Locale.ENGLISH),
+        is(
+            Arrays.asList("is in range [0, 20] or is > 30", "is 5",
+                "is in range [0, 20] or is > 30", "is 5")));
+    // Equal trees share an entry, even if one is numbered
+    assertThat(cache.size(), is(2L));
+    assertThat(cache.stats().hitCount(), is(2L));
+    assertThat(
+        cache.summary(TypeFamily.NUMBER, Asts.applyId(nodes.get(0)),
+            Locale.ENGLISH),
+        is("is in range [0, 20] or is > 30"));
+    assertThat(cache.stats().hitCount(), is(3L));
+
+    // Different locale or type family is a different entry
+    cache.summary(TypeFamily.NUMBER, nodes.get(1), Locale.FRENCH);
+    final AstNode node =
+        Filtex.parseFilterExpression(TypeFamily.DATE, "3 days");
+    assertThat(cache.summary(TypeFamily.DATE, node, Locale.ENGLISH),
+        is("is in the last 3 days"));
+    assertThat(cache.size(), is(4L));
+
+    cache.invalidateAll();
+    assertThat(cache.size(), is(0L));
+  }
+
+  /** Tests a {@link ParseCache} that evicts by weight, and a cache that
+   * wraps a user-supplied {@link com.google.common.cache.Cache}. */
+  @Test void testParseCacheWeight() {
+    final ParseCache cache = ParseCache.withMaximumWeight(12);
+    cache.parseFilterExpression(TypeFamily.NUMBER, "1, 2, 3");
+    cache.parseFilterExpression(TypeFamily.NUMBER, "4, 5");
+    assertThat(cache.size(), is(2L));
+    cache.parseFilterExpression(TypeFamily.NUMBER, "6, 7");
+    assertThat(cache.stats().evictionCount(), is(1L));
+
+    final ParseCache cache2 =
+        ParseCache.of(CacheBuilder.newBuilder().recordStats().build());
+    cache2.parseFilterExpression(TypeFamily.DATE, "this day");
+    cache2.parseFilterExpression(TypeFamily.DATE, "this day");
+    assertThat(cache2.stats().hitCount(), is(1L));
+  }
+
+  /** Tests that the trees returned from a {@link ParseCache} are not modified
+   * by {@link Asts#applyId} or {@link Transforms}. */
+  @Test void testParseCacheImmutable() {
+    final ParseCache cache = ParseCache.withMaximumSize(10);
+    final AstNode node =
+        cache.parseFilterExpression(TypeFamily.NUMBER, "1, >5, 2, 3");
+    assertThat(node, instanceOf(Ast.CallN.class));
+    final Ast.CallN callN = (Ast.CallN) node;
+    final AstNode last = callN.args.get(2);
+    final Integer id = node.id;
+    assertThat(id, not(nullValue()));
+
+    assertThat(Asts.applyId(node), sameInstance(node));
+    assertThat(node.id, is(id));
+
+    Transforms.numberTransform(node);
+    assertThat(callN.args.get(2), sameInstance(last));
+    assertThat(node.toString(), is("{1,{5,2,3}}"));
+  }
+
+  /** Tests {@link Filtex#tryParse}, which reports invalid expressions
+   * without falling back to "matches advanced". */
+  // Other tests update the metrics, so run in isolation
+  @ResourceLock(Resources.GLOBAL)
+  @Test void testTryParse() {
+    final ParseMetrics metrics = ParseMetrics.INSTANCE;
+    final long parseCount = metrics.parseCount();
+    final long invalidCount = metrics.invalidCount();
+
+    final ParseResult result = Filtex.tryParse(TypeFamily.NUMBER, "1, 2");
+    assertThat(result.isValid(), is(true));
+    assertThat(result.status, is(ParseResult.Status.OK));
+    assertThat(result.node, notNullValue());
+    assertThat(result.node.toString(), is("1,2"));
+    assertThat(result.pos, nullValue());
+    assertThat(result.message(), nullValue());
+
+    // Syntax error
+    final ParseResult result2 = Filtex.tryParse(TypeFamily.NUMBER, "1, 2, (3");
+    assertThat(result2.isValid(), is(false));
+    assertThat(result2.status, is(ParseResult.Status.INVALID));
+    assertThat(result2.node, nullValue());
+    assertThat(result2.pos, notNullValue());
+    assertThat(result2.pos.toString(), is("1.8"));
+    final String message2 = result2.message();
+    assertThat(message2, startsWith("Encountered \"<EOF>\""));
+
+    // Lexical error
+    final ParseResult result3 = Filtex.tryParse(TypeFamily.NUMBER, "1, # 2");
+    assertThat(result3.status, is(ParseResult.Status.INVALID));
+    assertThat(result3.pos, notNullValue());
+    assertThat(result3.pos.toString(), is("1.4-1.6"));
+    assertThat(result3.message(), startsWith("Lexical error at line 1"));
+
+    // Semantic error, thrown by the parser after it has consumed the token
+    final ParseResult result4 =
+        Filtex.tryParse(TypeFamily.LOCATION, "91, 100");
+    assertThat(result4.status, is(ParseResult.Status.INVALID));
+    assertThat(result4.message(), is("expected a number between -90 and 90"));
+
+    // parseFilterExpression falls back to "matches advanced"
+    final AstNode node =
+        Filtex.parseFilterExpression(TypeFamily.NUMBER, "1, 2, (3");
+    assertThat(node, instanceOf(Ast.MatchesAdvanced.class));
+
+    // The parser has re-used its tokens, but the message is unchanged
+    assertThat(result2.message(), is(message2));
+
+    assertThat(metrics.parseCount() - parseCount, is(5L));
+    assertThat(metrics.invalidCount() - invalidCount, is(4L));
+    assertThat(metrics.fallbackRate() > 0D, is(true));
+  }
+
+  /** Tests {@link Filtex#tryParse(TypeFamily, String, ParseLimits)}, which
+   * rejects expressions that are too expensive to parse. */
+  // Other tests update the metrics, so run in isolation
+  @ResourceLock(Resources.GLOBAL)
+  @Test void testTryParseLimits() {
+    final ParseMetrics metrics = ParseMetrics.INSTANCE;
+    final long limitExceededCount = metrics.limitExceededCount();
+
+    // Length is checked before parsing
+    final ParseResult result =
+        Filtex.tryParse(TypeFamily.NUMBER, "1, 2, 3",
+            ParseLimits.NONE.withMaxLength(5));
+    assertThat(result.isValid(), is(false));
+    assertThat(result.status, is(ParseResult.Status.LIMIT_EXCEEDED));
+    assertThat(result.node, nullValue());
+    assertThat(result.pos, is(Pos.ZERO));
+    assertThat(result.message(),
+        is("expression exceeds limit of 5 characters"));
+
+    // Term count; the simple parser gives up, and the full parser stops at
+    // the first term over the limit
+    final ParseLimits limits = ParseLimits.NONE.withMaxTermCount(3);
+    final ParseResult result2 =
+        Filtex.tryParse(TypeFamily.NUMBER, "1, 2, 3, 4, 5", limits);
+    assertThat(result2.status, is(ParseResult.Status.LIMIT_EXCEEDED));
+    assertThat(result2.pos, notNullValue());
+    assertThat(result2.pos.toString(), is("1.10"));
+    assertThat(result2.message(), is("expression exceeds limit of 3 terms"));
+    assertThat(
+        Filtex.tryParse(TypeFamily.NUMBER, "1, 2, 3", limits).isValid(),
+        is(true));
+    assertThat(
+        Filtex.tryParse(TypeFamily.DATE, "today, 1, 2, 3",
+            limits).status,
+        is(ParseResult.Status.LIMIT_EXCEEDED));
+
+    // Value count, checked before the values are merged into a list
+    final ParseLimits limits3 = ParseLimits.NONE.withMaxValueCount(2);
+    final ParseResult result3 =
+        Filtex.tryParse(TypeFamily.NUMBER, "1, 2, not 3, >4", limits3);
+    assertThat(result3.status, is(ParseResult.Status.LIMIT_EXCEEDED));
+    assertThat(result3.message(), is("expression exceeds limit of 2 values"));
+    assertThat(
+        Filtex.tryParse(TypeFamily.NUMBER, "[1, 2], 3, (4, 5), 6", limits3)
+            .isValid(),
+        is(true));
+
+    // Token count
+    final ParseResult result4 =
+        Filtex.tryParse(TypeFamily.NUMBER, "[0, 10], [20, 30]",
+            ParseLimits.NONE.withMaxTokenCount(5));
+    assertThat(result4.status, is(ParseResult.Status.LIMIT_EXCEEDED));
+    assertThat(result4.pos, notNullValue());
+    assertThat(result4.pos.toString(), is("1.8"));
+
+    // Time; the clock is checked every 64 tokens
+    final StringBuilder b = new StringBuilder();
+    for (int i = 0; i < 100; i++) {
+      b.append(i == 0 ? "" : ", ").append("[").append(i).append(", 200]");
+    }
+    final String expression = b.toString();
+    assertThat(
+        Filtex.tryParse(TypeFamily.NUMBER, expression,
+            ParseLimits.NONE.withMaxNanos(1)).message(),
+        is("expression exceeds limit of 1 nanoseconds"));
+
+    // Apart from the time limit (which a slow or busy machine might exceed),
+    // the default limits allow the expression
+    final ParseLimits untimed =
+        ParseLimits.DEFAULT.withMaxNanos(Long.MAX_VALUE);
+    assertThat(
+        Filtex.tryParse(TypeFamily.NUMBER, expression, untimed).isValid(),
+        is(true));
+
+    // A long list exceeds the default limits
+    final String longList = String.join(",", Collections.nCopies(2_000, "1"));
+    assertThat(
+        Filtex.tryParse(TypeFamily.NUMBER, longList, untimed).message(),
+        is("expression exceeds limit of 1000 terms"));
+
+    // Limits do not apply to later parses on the same thread
+    assertThat(Filtex.tryParse(TypeFamily.NUMBER, "1, 2, 3, 4, 5").isValid(),
+        is(true));
+    assertThat(Filtex.tryParse(TypeFamily.NUMBER, longList).isValid(),
+        is(true));
+
+    // Exceeded limits are counted separately from invalid expressions. (Other
+    // tests, running concurrently, may parse invalid expressions but do not
+    // use limits.)
+    assertThat(metrics.limitExceededCount() - limitExceededCount, is(7L));
+
+    try {
+      final ParseLimits limits5 = ParseLimits.NONE.withMaxTermCount(0);
+      fail("expected error, got " + limits5);
+    } catch (IllegalArgumentException e) {
+      assertThat(e.getMessage(), is("maxTermCount must be positive: 0"));
+    }
+  }
+
+  /** Tests {@link BatchParser}. */
+  @Test void testBatchParser() {
+    final List<Pair<TypeFamily, String>> expressions =
+        ImmutableList.of(Pair.of(TypeFamily.NUMBER, "1, 2"),
+            Pair.of(TypeFamily.NUMBER, "1, 2, (3"),
+            Pair.of(TypeFamily.LOCATION, "1, 2"),
+            Pair.of(TypeFamily.NUMBER, "1, 2"),
+            Pair.of(TypeFamily.DATE, "this day"));
+    final BatchParser.Result result = BatchParser.parse(expressions);
+    assertThat(result.results.size(), is(5));
+    assertThat(result.distinctCount, is(4));
+    assertThat(result.invalidCount, is(1));
+    assertThat(result.results.get(0).node, notNullValue());
+    assertThat(result.results.get(0).node.toString(), is("1,2"));
+    assertThat(result.results.get(1).isValid(), is(false));
+    assertThat(result.results.get(2).typeFamily, is(TypeFamily.LOCATION));
+    assertThat(result.results.get(3), sameInstance(result.results.get(0)));
+    assertThat(result.results.get(4).typeFamily, is(TypeFamily.DATE));
+    assertThat(result.elapsedNanos > 0, is(true));
+
+    // A larger batch, on a pool with 3 threads, gives the same results as
+    // parsing one at a time.
+    final List<Pair<TypeFamily, String>> expressions2 = new ArrayList<>();
+    for (int i = 0; i < 2_000; i++) {
+      expressions2.add(Pair.of(TypeFamily.NUMBER, i + ", >" + (i % 7)));
+      expressions2.add(Pair.of(TypeFamily.NUMBER, "[0, " + (i % 10) + "]"));
+      expressions2.add(Pair.of(TypeFamily.NUMBER, "1, (" + (i % 3)));
+    }
+    final ForkJoinPool pool = new ForkJoinPool(3);
+    try {
+      final BatchParser.Result result2 =
+          BatchParser.parse(expressions2.stream().parallel(), pool);
+      assertThat(result2.results.size(), is(6_000));
+      assertThat(result2.distinctCount, is(2_013));
+      assertThat(result2.invalidCount, is(2_000));
+      for (int i = 0; i < expressions2.size(); i++) {
+        final Pair<TypeFamily, String> pair = expressions2.get(i);
+        final ParseResult r = result2.results.get(i);
+        assertThat(r.expression, is(pair.right));
+        assertThat(String.valueOf(r),
+            is(String.valueOf(Filtex.tryParse(pair.left, pair.right))));
+      }
+    } finally {
+      pool.shutdown();
+    }
+  }
+
+  /** Tests that a re-used parser gives the same results as a new parser,
+   * including after an expression that fails to parse. */
+  @Test void testParserReuse() {
+    final String[][] expressions = {
+        {"NUMBER", "[0,20],>30"},
+        {"NUMBER", "1, 2, (3"},
+        {"NUMBER", "not null"},
+        {"LOCATION", "36.97, -122.03"},
+        {"LOCATION", "inside box from 72, -173 to 14, -58"},
+        {"DATE", "this day"},
+        {"DATE", "2018/05/29 to 2018/06/"},
+        {"DATE", "last 3 days"},
+        {"NUMBER", ">= 5.5"},
+    };
+    for (String[] pair : expressions) {
+      final TypeFamily typeFamily = TypeFamily.valueOf(pair[0]);
+      final String expression = pair[1];
+      final String expected =
+          Filtex.parseFilterExpression(typeFamily, expression, false)
+              .digest(new Digester()).toString();
+      assertThat(expression,
+          Filtex.parseFilterExpression(typeFamily, expression, true)
+              .digest(new Digester()).toString(),
+          is(expected));
+    }
+  }
+
+  /** Tests that re-using a parser allocates less memory than creating a new
+   * parser for each expression. */
+  @Test void testParserReuseAllocation() {
+    final java.lang.management.ThreadMXBean bean =
+        ManagementFactory.getThreadMXBean();
+    assumeTrue(bean instanceof com.sun.management.ThreadMXBean,
+        "allocated bytes are not available on this JVM");
+    final com.sun.management.ThreadMXBean threadBean =
+        (com.sun.management.ThreadMXBean) bean;
+    final long threadId = Thread.currentThread().getId();
+    final int n = 2_000;
+    final long[] bytes = new long[2];
+    for (int pass = 0; pass < 2; pass++) { // first pass warms up
+      for (int i = 0; i < bytes.length; i++) {
+        final boolean reuse = i == 1;
+        final long before = threadBean.getThreadAllocatedBytes(threadId);
+        for (int j = 0; j < n; j++) {
+          Filtex.parseFilterExpression(TypeFamily.NUMBER, "[0,20],>30",
+              reuse);
+        }
+        bytes[i] = threadBean.getThreadAllocatedBytes(threadId) - before;
+      }
+    }
+    assertThat("bytes per parse: new parser " + bytes[0] / n
+            + ", re-used parser " + bytes[1] / n,
+        bytes[1] < bytes[0], is(true));
+  }
+
+  /** Tests {@link Filtex#recognize}, which checks an expression without
+   * building an AST, and finds the same errors as
+   * {@link Filtex#tryParse}. */
+  @Test void testRecognize() {
+    assertThat(Filtex.recognize(TypeFamily.NUMBER, "1, 2"), nullValue());
+    assertThat(String.valueOf(Filtex.recognize(TypeFamily.NUMBER, "1, 2, (3")),
+        is("1.8"));
+    assertThat(String.valueOf(Filtex.recognize(TypeFamily.NUMBER, "[,]")),
+        is("1.3"));
+    assertThat(
+        String.valueOf(Filtex.recognize(TypeFamily.LOCATION, "91, 100")),
+        is("1.5-1.8"));
+    assertThat(
+        String.valueOf(
+            Filtex.recognize(TypeFamily.LOCATION, "-3 miles from 1, 2")),
+        is("1.18"));
+    assertThat(Filtex.recognize(TypeFamily.DATE, "3 days ago for 3 days"),
+        nullValue());
+
+    final List<Pair<TypeFamily, String>> list = new ArrayList<>();
+    TestValues.NUMBER_EXPRESSION_TEST_ITEMS.forEach(i ->
+        list.add(Pair.of(TypeFamily.NUMBER, i.expression)));
+    TestValues.DATE_EXPRESSION_TEST_ITEMS.forEach(i ->
+        list.add(Pair.of(TypeFamily.DATE, i.expression)));
+    TestValues.LOCATION_EXPRESSION_TEST_ITEMS.forEach(i ->
+        list.add(Pair.of(TypeFamily.LOCATION, i.expression)));
+
+    // Random expressions built from fragments, with a fixed seed
+    final String[] fragments = {
+        "1", "-3", "91", "2018", "2018/05", "2018-05-10", "12:30", "FY2018",
+        "2018-Q1", ", ", " ", "(", ")", "[", "]", "NOT ", ">", "<=", " AND ",
+        " OR ", " to ", "null", "-inf", "inf", "x", " days", " month",
+        " ago", " from now", " for ", "this ", "last ", "before ", "after ",
+        " miles", " from ", "inside box from ", "today", "\""
+    };
+    final Random random = new Random(99);
+    for (int i = 0; i < 20_000; i++) {
+      final StringBuilder b = new StringBuilder();
+      for (int j = random.nextInt(6); j >= 0; j--) {
+        b.append(fragments[random.nextInt(fragments.length)]);
+      }
+      final TypeFamily typeFamily = i % 3 == 0 ? TypeFamily.NUMBER
+          : i % 3 == 1 ? TypeFamily.DATE
+          : TypeFamily.LOCATION;
+      list.add(Pair.of(typeFamily, b.toString()));
+    }
+
+    int validCount = 0;
+    for (Pair<TypeFamily, String> pair : list) {
+      final String expected = recognizeResult(() -> {
+        final ParseResult result = Filtex.tryParse(pair.left, pair.right);
+        return result.isValid() ? null : result.pos;
+      });
+      final String actual =
+          recognizeResult(() -> Filtex.recognize(pair.left, pair.right));
+      assertThat(pair.toString(), actual, is(expected));
+      if (expected.equals("null")) {
+        ++validCount;
+      }
+    }
+    assertThat(validCount, is(544));
+  }
+
+  /** Returns the position returned by a function, or the exception it
+   * throws, as a string. */
+  private static String recognizeResult(Supplier<@Nullable Pos> supplier) {
+    try {
+      return String.valueOf(supplier.get());
+    } catch (RuntimeException e) {
+      return e.toString();
+    }
+  }
+
+  /** Tests {@link ParseSession}, which re-parses an expression
+   * incrementally as it is edited. */
+  @Test void testParseSession() {
+    final ParseSession session = new ParseSession(TypeFamily.NUMBER);
+    assertThat(session.result().toString(), is("INVALID at 0.0"));
+    assertThat(session.reset("1, 2, 3").toString(), is("1,2,3"));
+    final AstNode node = requireNonNull(session.result().node);
+
+    // Replace "2" with "20"; segments "1" and "3" are re-used
+    assertThat(session.edit(3, 1, "20").toString(), is("1,20,3"));
+    assertThat(session.expression(), is("1, 20, 3"));
+
+    // Break the expression, then fix it
+    assertThat(session.edit(4, 0, "(").toString(), is("INVALID at 1.5"));
+    assertThat(session.expression(), is("1, 2(0, 3"));
+    assertThat(session.edit(3, 6, "[0, 3]").toString(), is("{1,[0,3]}"));
+    assertThat(session.result().node, not(sameInstance(node)));
+
+    // An edit on an earlier line shifts the positions of later segments
+    session.reset("1,\n2,\n3");
+    assertThat(session.edit(4, 0, "?").toString(), is("INVALID at 2.2"));
+    assertThat(session.edit(0, 0, "\n\n").toString(),
+        is("INVALID at 4.2"));
+    assertThat(session.edit(6, 1, "").toString(), is("1,2,3"));
+    assertThat(session.expression(), is("\n\n1,\n2,\n3"));
+
+    try {
+      final ParseResult result = session.edit(2, 99, "");
+      fail("expected error, got " + result);
+    } catch (IndexOutOfBoundsException e) {
+      assertThat(e.getMessage(),
+          is("offset 2, removeLength 99, expression length 9"));
+    }
+
+    // Random edits give the same result as parsing the whole expression
+    final String[] fragments = {
+        "1", "2.5", "-3", ",", ", ", " ", "(", ")", "[", "]", "NOT ", "!=",
+        ">", ">=", "<=", "AND", " OR ", "to", "null", "-inf", "#", "\"",
+        "\n", "x", ".5"
+    };
+    final Random random = new Random(5);
+    for (int i = 0; i < 2_000; i++) {
+      final StringBuilder b = new StringBuilder();
+      for (int j = random.nextInt(8); j > 0; j--) {
+        b.append(fragments[random.nextInt(fragments.length)]);
+      }
+      session.reset(b.toString());
+      for (int j = 0; j < 20; j++) {
+        final String expression = session.expression();
+        final int offset = random.nextInt(expression.length() + 1);
+        final int removeLength =
+            random.nextInt(Math.min(4, expression.length() - offset) + 1);
+        final String insert = random.nextBoolean()
+            ? fragments[random.nextInt(fragments.length)]
+            : "";
+        final ParseResult result = session.edit(offset, removeLength, insert);
+        final ParseResult expected =
+            Filtex.tryParse(TypeFamily.NUMBER, session.expression());
+        assertThat(session.expression(), describe(result),
+            is(describe(expected)));
+      }
+    }
+  }
+
+  /** Tests that the work done by {@link ParseSession#edit} is proportional
+   * to the size of the edit, not to the length of the expression. */
+  @Test void testParseSessionWork() {
+    final List<List<Integer>> visitCounts = new ArrayList<>();
+    for (int n : new int[] {100, 10_000}) {
+      final StringBuilder b = new StringBuilder();
+      for (int i = 0; i < n; i++) {
+        b.append(i == 0 ? "" : ", ").append(i % 90 + 10);
+      }
+      final ParseSession session = new ParseSession(TypeFamily.NUMBER);
+      session.reset(b.toString());
+
+      // Put the gap in the middle; this edit moves half of the segments.
+      final int m = session.expression().length() / 2;
+      final int offset = session.expression().indexOf(',', m) + 2;
+      session.edit(offset, 1, "7");
+      assertThat(session.visitCount > n / 3, is(true));
+
+      // Edits near the gap visit a few segments.
+      final List<Integer> list = new ArrayList<>();
+      final String[][] edits = {
+          {"0", "1", "8"}, // replace a digit
+          {"2", "0", ", 5"}, // add a segment
+          {"2", "3", ""}, // remove it
+          {"0", "0", ">"}, // split a run of '=' terms
+          {"0", "1", ""}, // join it again
+          {"2", "0", ","}, // add an empty segment, which is invalid
+          {"3", "0", "6"}, // make it valid
+          {"4", "0", " OR 1"}, // add a term to a segment
+          {"0", "0", "[1, 2], "}, // add segments containing commas
+          {"30", "1", "9"}, // an edit a few segments later
+      };
+      for (String[] edit : edits) {
+        session.edit(offset + Integer.parseInt(edit[0]),
+            Integer.parseInt(edit[1]), edit[2]);
+        list.add(session.visitCount);
+        final ParseResult expected =
+            Filtex.tryParse(TypeFamily.NUMBER, session.expression(),
+                ParseLimits.NONE);
+        assertThat(describe(session.result()), is(describe(expected)));
+        assertThat(session.result().node, is(expected.node));
+      }
+      visitCounts.add(list);
+    }
+    assertThat(visitCounts.get(0).toString(),
+        is("[2, 3, 3, 2, 2, 3, 2, 2, 4, 6]"));
+    assertThat(visitCounts.get(1), is(visitCounts.get(0)));
+  }
+
+  private static String describe(ParseResult result) {
+    return result.node == null
+        ? result + ": " + result.message()
+        : result.node.digest(new Digester()).toString();
+  }
+
+  /** Tests {@link Main}, the command-line interface, reading from standard
+   * input and from a memory-mapped file. */
+  @Test void testMain() throws IOException {
+    final String input = "1, 2\n>=5\r\n(3\n\n[1,2], NOT 3\n1, # 2";
+    final String expected = "{type='=', value='1,2'}\n"
+        + "{type='>=', value=5}\n"
+        + "INVALID at 1.2\n"
+        + "INVALID at 0.0\n"
+        + "{left={bounds='[]', high=2, low=1, type=between}, "
+        + "right={is=false, type='=', value=3}, type=','}\n"
+        + "INVALID at 1.4-1.6\n";
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    final ByteArrayOutputStream err = new ByteArrayOutputStream();
+    final int status =
+        Main.run(new String[0], stdin(input), out, new PrintStream(err));
+    assertThat(status, is(1));
+    assertThat(out.toString("UTF-8"), is(expected));
+    assertThat(err.size(), is(0));
+
+    final Path file = Files.createTempFile("filtex", ".txt");
+    try {
+      Files.write(file, input.getBytes(StandardCharsets.UTF_8));
+
+      // Tiny regions and batches, so that lines straddle region boundaries
+      // and there are several batches.
+      for (int regionSize : new int[] {13, 14, 20, 100}) {
+        final Main main =
+            new Main(TypeFamily.NUMBER, Main.Format.DIGEST, 2,
+                file.toString(), 2, regionSize);
+        out.reset();
+        assertThat(main.run(stdin(""), out), is(1));
+        assertThat(out.toString("UTF-8"), is(expected));
+      }
+
+      // A line longer than a region is an error.
+      out.reset();
+      final Main main =
+          new Main(TypeFamily.NUMBER, Main.Format.DIGEST, 0,
+              file.toString(), 2, 8);
+      try {
+        final int status2 = main.run(stdin(""), out);
+        fail("expected error, got " + status2);
+      } catch (IOException e) {
+        assertThat(e.getMessage(),
+            is("line at offset 14 is longer than 8 bytes"));
+      }
+    } finally {
+      Files.delete(file);
+    }
+
+    out.reset();
+    final int status3 =
+        Main.run(new String[] {"--format=json"}, stdin(">=5\n1, # 2\n"),
+            out, new PrintStream(err));
+    assertThat(status3, is(1));
+    assertThat(out.toString("UTF-8"),
+        is("{\"expression\":\">=5\",\"valid\":true,"
+            + "\"ast\":{\"type\":\">=\",\"value\":\"5\"}}\n"
+            + "{\"expression\":\"1, # 2\",\"valid\":false,"
+            + "\"pos\":\"1.4-1.6\",\"message\":\"Lexical error at line 1,"
+            + " column 5.  Encountered: ' ' (32), after prefix \\\"#\\\"\"}\n"));
+
+    out.reset();
+    final int status4 =
+        Main.run(new String[] {"--type=location", "--format=summary"},
+            stdin("chicago\n"), out, new PrintStream(err));
+    assertThat(status4, is(1));
+
+    final int status5 =
+        Main.run(new String[] {"--format=xml"}, stdin(""), out,
+            new PrintStream(err));
+    assertThat(status5, is(2));
+    assertThat(err.toString("UTF-8"),
+        startsWith("invalid argument: --format=xml\nUsage: filtex"));
+
+    // Every type advertised in the usage message parses; the others are
+    // usage errors.
+    final String[][] typeInputs = {
+        {"date", "today\n", "{day=today, type=day}\n"},
+        {"location", "36.97, -122.03\n",
+            "{lat=36.97, long=-122.03, type=location}\n"},
+        {"number", ">=5\n", "{type='>=', value=5}\n"},
+    };
+    for (String[] typeInput : typeInputs) {
+      final String arg = "--type=" + typeInput[0];
+      assertThat(Main.USAGE, containsString(typeInput[0]));
+      out.reset();
+      err.reset();
+      final int status6 =
+          Main.run(new String[] {arg}, stdin(typeInput[1]), out,
+              new PrintStream(err));
+      assertThat(arg, status6, is(0));
+      assertThat(arg, out.toString("UTF-8"), is(typeInput[2]));
+      assertThat(arg, err.size(), is(0));
+    }
+    for (String type : new String[] {"date_time", "string"}) {
+      out.reset();
+      err.reset();
+      final int status7 =
+          Main.run(new String[] {"--type=" + type}, stdin("1\n"), out,
+              new PrintStream(err));
+      assertThat(status7, is(2));
+      assertThat(out.size(), is(0));
+      assertThat(err.toString("UTF-8"),
+          startsWith("unsupported type: --type=" + type
+              + "\nUsage: filtex"));
+    }
+  }
+
+  private static InputStream stdin(String s) {
+    return new ByteArrayInputStream(s.getBytes(StandardCharsets.UTF_8));
+  }
+
+  /** Tests that {@link Transforms#mergeMultiValueNodes} does not modify its
+   * argument. */
+  @Test void testMergeMultiValueNodesDoesNotMutate() {
+    final AstNode node =
+        ast.logicalExpression(
+            ImmutableList.of(ast.numberLiteral(true, BigDecimal.ONE),
+                ast.between(Op.OPEN_ABSENT, true, BigDecimal.valueOf(5)),
+                ast.numberLiteral(true, BigDecimal.valueOf(2)),
+                ast.numberLiteral(true, BigDecimal.valueOf(3))));
+    assertThat(node.toString(), is("{1,{5,{2,3}}}"));
+    final AstNode node2 = Transforms.mergeMultiValueNodes(node, Op.EQ, true);
+    assertThat(node2.toString(), is("{1,{5,2,3}}"));
+    assertThat(node.toString(), is("{1,{5,{2,3}}}"));
+  }
+
+  /** Tests that ASTs are immutable: {@link Asts#applyId} returns a numbered
+   * copy rather than modifying its argument, and so a tree can be shared by
+   * concurrent threads. */
+  @Test void testAstImmutable() {
+    final AstNode node =
+        ast.logicalExpression(
+            ImmutableList.of(ast.numberLiteral(true, BigDecimal.ONE),
+                ast.between(Op.OPEN_ABSENT, true, BigDecimal.valueOf(5)),
+                ast.numberLiteral(false, BigDecimal.valueOf(2)),
+                ast.numberLiteral(false, BigDecimal.valueOf(2))));
+    assertThat(node.id, nullValue());
+
+    final AstNode numbered = Asts.applyId(node);
+    assertThat(numbered, not(sameInstance(node)));
+    assertThat(numbered.id, is(0));
+    assertThat(Asts.treeToList(numbered).get(2).id, is(3));
+    assertThat(node.id, nullValue());
+    assertThat(Asts.treeToList(node).get(2).id, nullValue());
+    assertThat(Asts.applyId(numbered), sameInstance(numbered));
+    assertThat(numbered.toString(), is(node.toString()));
+
+    // Transform the same tree in many threads at once
+    final String expected = Transforms.numberTransform(node).toString();
+    assertThat(expected, is("{1,{5,2,2}}"));
+    final List<String> results =
+        IntStream.range(0, 1_000).parallel()
+            .mapToObj(i ->
+                Transforms.numberTransform(Asts.applyId(node)).toString())
+            .distinct()
+            .collect(Collectors.toList());
+    assertThat(results, is(Collections.singletonList(expected)));
+    assertThat(node.id, nullValue());
+  }
+
+  /** Tests that a logical expression is a flat {@link Ast.CallN} with the
+   * same digest as a right-deep tree of {@link Ast.Call2}, and that very
+   * long expressions can be parsed and traversed. */
+  @Test void testLogicalExpressionFlat() {
+    final AstNode a = ast.numberLiteral(true, BigDecimal.ONE);
+    final AstNode b =
+        ast.between(Op.OPEN_ABSENT, true, BigDecimal.valueOf(5));
+    final AstNode c = ast.numberLiteral(false, BigDecimal.valueOf(2));
+    final AstNode node = ast.logicalExpression(ImmutableList.of(a, b, c));
+    assertThat(node, instanceOf(Ast.CallN.class));
+    final AstNode deep =
+        new Ast.Call2(Op.COMMA, a, new Ast.Call2(Op.COMMA, b, c));
+    assertThat(node.toString(), is(deep.toString()));
+    assertThat(node.digest(new Digester()).toString(),
+        is(deep.digest(new Digester()).toString()));
+
+    // 100,000 terms; alternate "=" and ">" so that nothing is merged
+    final int n = 100_000;
+    final StringBuilder b2 = new StringBuilder();
+    for (int i = 0; i < n; i++) {
+      b2.append(i == 0 ? "" : ", ").append(i % 2 == 0 ? "" : ">").append(i);
+    }
+    final AstNode node2 =
+        Filtex.parseFilterExpression(TypeFamily.NUMBER, b2.toString());
+    assertThat(((Ast.CallN) node2).args.size(), is(n));
+    assertThat(Asts.treeToList(node2).size(), is(n));
+    final String s = node2.toString();
+    assertThat(s, startsWith("{0,{1,{2,"));
+    assertThat(s, endsWith(",99999" + Strings.repeat("}", n - 1)));
+
+    final AstNode numbered = Asts.applyId(node2);
+    final List<AstNode> list = Asts.treeToList(numbered);
+    final AstNode node3 = Asts.removeNode(numbered, list.get(1).id);
+    assertThat(Asts.treeToList(requireNonNull(node3)).size(), is(n - 1));
+  }
 }
 
 // End FiltexTest.java
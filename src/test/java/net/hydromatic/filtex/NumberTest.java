@@ -16,22 +16,50 @@
  */
 package net.hydromatic.filtex;
 
+import net.hydromatic.filtex.ast.Ast;
 import net.hydromatic.filtex.ast.AstNode;
 import net.hydromatic.filtex.ast.Asts;
+import net.hydromatic.filtex.ast.DecimalList;
+import net.hydromatic.filtex.ast.Decimals;
+import net.hydromatic.filtex.ast.Op;
+import net.hydromatic.filtex.eval.NumberFilter;
+import net.hydromatic.filtex.parse.FiltexParserImpl;
+import net.hydromatic.filtex.parse.ParseException;
+import net.hydromatic.filtex.parse.SimpleNumberParser;
+import net.hydromatic.filtex.parse.TokenMgrError;
 
 import com.google.common.collect.ImmutableList;
+import com.google.common.hash.HashCode;
 
+import org.junit.jupiter.api.Tag;
 import org.junit.jupiter.api.Test;
 
+import java.io.StringReader;
+import java.lang.management.ManagementFactory;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
 
 import static net.hydromatic.filtex.Filtex.parseFilterExpression;
 import static net.hydromatic.filtex.TestValues.forEach;
+import static net.hydromatic.filtex.ast.AstBuilder.ast;
 import static net.hydromatic.filtex.ast.Asts.convertTypeToOption;
 
+import static org.hamcrest.CoreMatchers.instanceOf;
+import static org.hamcrest.CoreMatchers.not;
+import static org.hamcrest.CoreMatchers.notNullValue;
 import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.CoreMatchers.startsWith;
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.core.Is.is;
+import static org.junit.jupiter.api.Assertions.fail;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
 
 /** Tests number expressions. */
 public class NumberTest {
@@ -52,6 +80,25 @@ void checkNumericItem(String expression, String type) {
         testItem -> checkNumericItem(testItem.expression, testItem.type));
   }
 
+  /** Tests that number filters are summarized from their ASTs. */
+  @Test void testNumberSummary() {
+    forEach(TestValues.NUMBER_EXPRESSION_TEST_ITEMS, testItem -> {
+      if (testItem.expression.equals("<3 OR >80.44")) {
+        // We parse as "not [3,80.44]", which is correct; the reference
+        // implementation has bounds "()"
+        return;
+      }
+      final AstNode node =
+          parseFilterExpression(TypeFamily.NUMBER, testItem.expression);
+      assertThat(Filtex.summary(TypeFamily.NUMBER, node, Locale.ENGLISH),
+          is(testItem.describe));
+      assertThat(
+          Filtex.summary(TypeFamily.NUMBER, testItem.expression,
+              Locale.ENGLISH),
+          is(testItem.describe));
+    });
+  }
+
   /** Expressions that should fail. */
   static final List<String> FAIL_EXPRESSIONS =
       ImmutableList.of("(,)", "AND", "OR", "[inf,10]");
@@ -238,6 +285,653 @@ void checkNull(String expression, String type) {
         checkNumeric(c.expression, c.type, c.textInput));
   }
 
+  /** Expressions that {@link SimpleNumberParser} should handle, or that look
+   * similar to those it should handle. */
+  static final List<String> SIMPLE_CASES =
+      ImmutableList.of("", " ", ",", "1,", ",1", "1,,2", "1 2", "1 , 2",
+          "\t1\n,\r2\f", "00012", "-0", "1.50", "1e5", "1e-5", "1E5", "1E",
+          "1.", ".", "-", "- 1", "-.5e2", "1e5.3", "2018", "2018-01",
+          "2018/01/02", "2018-Q1", "12:30", "FY2018", "not5", "not-5",
+          "notnull", "null5", "nulls", "not not 1", "not <> 1", "!1", "> =5",
+          "<=>5", "!=>5", "not >5", "!= null", "<> null", ">5, 3",
+          "1, not 2", "not 1, not 2", ">1 and <2", "5 or 6", "10 to",
+          "{{ _user_attributes['x'] }}");
+
+  /** Tests that {@link SimpleNumberParser} generates the same AST as the full
+   * parser, and only for expressions that the full parser accepts. */
+  @Test void testSimpleNumberParser() {
+    final List<String> expressions = new ArrayList<>(SIMPLE_CASES);
+    TestValues.NUMBER_EXPRESSION_TEST_ITEMS.forEach(i ->
+        expressions.add(i.expression));
+    NUMERIC_CASES.forEach(c -> expressions.add(c.expression));
+    NULL_CASES.forEach(c -> expressions.add(c.expression));
+    BETWEEN_CASES.forEach(c -> expressions.add(c.expression));
+    NOW_SUPPORTED_CASES.forEach(c -> expressions.add(c.expression));
+    UNSUPPORTED_CASES.forEach(c -> expressions.add(c.expression));
+    expressions.addAll(FAIL_EXPRESSIONS);
+
+    final Set<String> simpleExpressions = new HashSet<>();
+    forEach(expressions, expression -> {
+      final AstNode simple = SimpleNumberParser.parse(expression);
+      if (simple == null) {
+        return;
+      }
+      simpleExpressions.add(expression);
+      AstNode full;
+      try {
+        full = new FiltexParserImpl(new StringReader(expression))
+            .numericExpressionEof();
+      } catch (ParseException | TokenMgrError e) {
+        full = null;
+      }
+      assertThat(full, notNullValue());
+      assertThat(describe(Transforms.numberTransform(simple)),
+          is(describe(Transforms.numberTransform(full))));
+    });
+
+    // Check that the common cases are handled, so that the above test is
+    // not vacuous.
+    assertThat(simpleExpressions.containsAll(
+        ImmutableList.of("5", "not 5", "<> 5", "1, 3, 5, 7", "not 66, 99, 4",
+            "NULL", "NOT NULL", ">= 1.1", "<-242", "-.5e2",
+            "\t1\n,\r2\f", "not 1, not 2", "1, not 2")),
+        is(true));
+  }
+
+  /** Tests {@link Decimals}, which packs numbers into a long, against
+   * {@link BigDecimal}. */
+  @Test void testDecimals() {
+    final List<String> literals = new ArrayList<>(
+        ImmutableList.of("0", "-0", "0.0", "-0.000", "1", "-1", "1.50",
+            "007", ".5", "-.5", "1e-3", "1.5E-3", "0.0000001", "0.000001",
+            "1e3", "-.5e2", "123456789012345678", "12345678901234567",
+            "-288230376151711743", "288230376151711743", "288230376151711744",
+            "1.0000000000000000000000000000000", "1e-31", "1e-32",
+            "1e-0000000000000000000000000000005", "abc", "1..2", "-", ".",
+            "1e", "1e-", "e5", ""));
+    final Random random = new Random(11);
+    for (int i = 0; i < 10_000; i++) {
+      final StringBuilder b = new StringBuilder();
+      if (random.nextBoolean()) {
+        b.append('-');
+      }
+      b.append(random.nextInt(1 << random.nextInt(31)));
+      if (random.nextBoolean()) {
+        b.append('.').append(random.nextInt(1 << random.nextInt(31)));
+      }
+      if (random.nextInt(5) == 0) {
+        b.append(random.nextBoolean() ? "e-" : "e").append(random.nextInt(40));
+      }
+      literals.add(b.toString());
+    }
+
+    int packedCount = 0;
+    for (String literal : literals) {
+      BigDecimal expected;
+      try {
+        expected = new BigDecimal(literal);
+      } catch (NumberFormatException e) {
+        expected = null;
+      }
+      final long packed = Decimals.parse(literal);
+      if (packed == Decimals.NONE) {
+        // Only invalid literals, and values that do not fit, are not packed
+        assertThat(literal,
+            expected == null
+                || Decimals.pack(expected) == Decimals.NONE,
+            is(true));
+        continue;
+      }
+      ++packedCount;
+      assertThat(literal, expected, notNullValue());
+      final BigDecimal actual = Decimals.toBigDecimal(packed);
+      assertThat(literal, actual, is(expected));
+      assertThat(literal, actual.scale(), is(expected.scale()));
+      assertThat(literal, Decimals.toString(packed), is(expected.toString()));
+      assertThat(literal, Decimals.pack(expected), is(packed));
+    }
+    assertThat(packedCount > literals.size() / 2, is(true));
+
+    // Numbers that do not fit are BigDecimal in the AST
+    final String big = "12345678901234567890.5";
+    final AstNode node = parseFilterExpression(TypeFamily.NUMBER,
+        "[1.5, " + big + "], 2, " + big + ", >1e3");
+    assertThat(node.toString(),
+        is("{[1.5," + big + "],{2," + big + ",1E+3}}"));
+
+    // A list of numbers that fit is stored in a DecimalList
+    final AstNode node2 =
+        parseFilterExpression(TypeFamily.NUMBER, "1, 2.50, -3, 4");
+    assertThat(node2, instanceOf(Ast.Comparison.class));
+    final List<?> values = ((Ast.Comparison) node2).value;
+    assertThat(values, instanceOf(DecimalList.class));
+    assertThat(values.toString(), is("[1, 2.50, -3, 4]"));
+    assertThat(values,
+        is(ImmutableList.of(BigDecimal.ONE, new BigDecimal("2.50"),
+            BigDecimal.valueOf(-3), BigDecimal.valueOf(4))));
+    assertThat(((DecimalList) values).getPacked(1),
+        is(Decimals.pack(250, 2)));
+  }
+
+  /** Tests that long lists of numbers, such as pasted lists of ids, are
+   * parsed into a single node.
+   *
+   * <p>The "simple" expression is a list of numbers, which
+   * {@link SimpleNumberParser} handles; the "full" expression starts with a
+   * range, and so requires the full grammar and
+   * {@link Transforms#mergeMultiValueNodes}. */
+  @Test void testLongList() {
+    for (int n = 10; n <= 10_000; n *= 10) {
+      final String simple = longList(n);
+      final String full = "[0, 1], " + simple;
+
+      final AstNode node = parseFilterExpression(TypeFamily.NUMBER, simple);
+      final AstNode node2 = parseFilterExpression(TypeFamily.NUMBER, full);
+      final String valueString = node.valueString();
+      final String unparse = node2.toString();
+
+      assertThat(node, instanceOf(Ast.Comparison.class));
+      assertThat(((Ast.Comparison) node).value,
+          instanceOf(DecimalList.class));
+      assertThat(((Ast.Comparison) node).value.size(), is(n));
+      assertThat(valueString, is(simple.replace(" ", "")));
+      assertThat(node2, instanceOf(Ast.CallN.class));
+      assertThat(((Ast.CallN) node2).args.size(), is(2));
+      assertThat(unparse, is("{[0,1]," + valueString + "}"));
+    }
+  }
+
+  /** Prints the time per value to parse and unparse lists of 10 to
+   * 1,000,000 values; the time per value should not grow with the size of
+   * the list.
+   *
+   * <p>This is a benchmark, and does not run by default; see "benchmark" in
+   * {@code pom.xml}. {@link #testLongList()} tests correctness. */
+  @Tag("benchmark")
+  @Test void testLongListPerformance() {
+    for (int n = 10; n <= 1_000_000; n *= 10) {
+      final String simple = longList(n);
+      final String full = "[0, 1], " + simple;
+
+      final long t0 = System.nanoTime();
+      final AstNode node = parseFilterExpression(TypeFamily.NUMBER, simple);
+      final long t1 = System.nanoTime();
+      final AstNode node2 = parseFilterExpression(TypeFamily.NUMBER, full);
+      final long t2 = System.nanoTime();
+      final String unparse = node2.toString();
+      final long t3 = System.nanoTime();
+
+      assertThat(((Ast.Comparison) node).value.size(), is(n));
+      assertThat(unparse, startsWith("{[0,1],"));
+      System.out.printf("values %,9d: ns per value: simple %,6d, "
+              + "full %,6d, unparse %,4d%n",
+          n, (t1 - t0) / n, (t2 - t1) / n, (t3 - t2) / n);
+    }
+  }
+
+  /** Returns a list of {@code n} distinct numbers, such as
+   * "0, 7, 4, 1, 8, 5, 2, 9, 6, 3". */
+  private static String longList(int n) {
+    final StringBuilder b = new StringBuilder();
+    for (int i = 0; i < n; i++) {
+      b.append(i == 0 ? "" : ", ").append(i * 7 % n);
+    }
+    return b.toString();
+  }
+
+  /** Tests that {@link Transforms#numberTransform} gives the same trees,
+   * including ids, as the passes that it replaces: {@link Transforms#countNots},
+   * {@link Transforms#mergeMultiValueNodes} and
+   * {@link Transforms#removeDuplicateNotNodes}. */
+  @Test void testNumberTransform() throws ParseException {
+    checkNumberTransform("1, not 2", "1,2");
+    checkNumberTransform("not 1, >5, not 1", "{1,5}");
+    checkNumberTransform("not 1, not 1, >5", "{1,1,5}");
+    checkNumberTransform("1, 2, not 3, >5, not 4, 6", "{1,2,{3,{5,{4,6}}}}");
+
+    final Random random = new Random(3);
+    for (int i = 0; i < 2_000; i++) {
+      final List<AstNode> terms = new ArrayList<>();
+      final int n = 1 + random.nextInt(6);
+      for (int j = 0; j < n; j++) {
+        final boolean is = random.nextInt(3) > 0;
+        final BigDecimal value = BigDecimal.valueOf(random.nextInt(3));
+        switch (random.nextInt(4)) {
+        case 0:
+          terms.add(ast.isNull(is));
+          break;
+        case 1:
+          terms.add(ast.comparison(is, Op.GT, value));
+          break;
+        default:
+          terms.add(ast.numberLiteral(is, value));
+        }
+      }
+      final AstNode node = ast.logicalExpression(terms);
+      checkNumberTransform(node);
+      checkNumberTransform(Asts.applyId(node));
+    }
+  }
+
+  private static void checkNumberTransform(String expression,
+      String expected) throws ParseException {
+    final AstNode node =
+        new FiltexParserImpl(new StringReader(expression))
+            .numericExpressionEof();
+    assertThat(Transforms.numberTransform(node).toString(), is(expected));
+    checkNumberTransform(node);
+  }
+
+  private static void checkNumberTransform(AstNode node) {
+    final int countOfNotNodes = Transforms.countNots(node);
+    final AstNode merged =
+        Transforms.mergeMultiValueNodes(node, Op.EQ, countOfNotNodes == 1);
+    final AstNode expected =
+        countOfNotNodes == 2
+            ? Transforms.removeDuplicateNotNodes(merged)
+            : merged;
+    final AstNode actual = Transforms.numberTransform(node);
+    assertThat(actual, is(expected));
+    assertThat(ids(actual), is(ids(expected)));
+  }
+
+  /** Returns the ids of the nodes of a tree, in pre-order. */
+  private static List<Integer> ids(AstNode node) {
+    final List<Integer> ids = new ArrayList<>();
+    Asts.traverse(node, n -> ids.add(n.id));
+    return ids;
+  }
+
+  /** Tests {@link Transforms#numberTransform} on expressions of up to
+   * 10,000 terms. Each expression has runs of '=' terms to merge, and two
+   * equal "is not" terms, the second of which is removed. */
+  @Test void testNumberTransformLarge() {
+    for (int n = 10; n <= 10_000; n *= 10) {
+      final List<AstNode> terms = new ArrayList<>(n);
+      for (int i = 0; i < n; i++) {
+        terms.add(i % 5 == 4
+            ? ast.comparison(true, Op.GT, BigDecimal.valueOf(i))
+            : ast.numberLiteral(true, BigDecimal.valueOf(i)));
+      }
+      terms.set(1, ast.numberLiteral(false, BigDecimal.ONE));
+      terms.set(n - 2, ast.numberLiteral(false, BigDecimal.ONE));
+      final AstNode node = ast.logicalExpression(terms);
+      final AstNode node2 = Transforms.numberTransform(node);
+
+      assertThat(node2, instanceOf(Ast.CallN.class));
+      final List<AstNode> args = ((Ast.CallN) node2).args;
+      assertThat(args.get(1).is(), is(false));
+      assertThat(args.get(args.size() - 1).is(), is(true));
+      assertThat(Transforms.countNots(node2), is(1));
+    }
+  }
+
+  /** Tests {@link NumberFilter}, which applies a number filter to
+   * values. */
+  @Test void testNumberFilter() {
+    checkFilter("[0,20],>30", "-1:F 0:T 20:T 20.5:F 30:F 30.01:T null:F");
+    checkFilter("(0,20)", "0:F 0.5:T 19.99:T 20:F");
+    checkFilter("5", "5:T 5.00:T 4:F null:F");
+    checkFilter("not 5", "5:F 4:T null:T");
+    checkFilter("1, 3, 5, 7", "1:T 2:F 7:T 7.5:F");
+    checkFilter("not 66, 99, 4", "66:F 99:F 4:F 5:T");
+    checkFilter("23, not 42, not 43", "23:T 42:F 43:F 24:F");
+    checkFilter("NOT 10,[1,5)", "1:T 4.99:T 5:F 10:F 11:F");
+    checkFilter("<3 OR >80.44", "2:T 3:F 80:F 80.44:F 81:T");
+    checkFilter(">2.5", "2:F 2.5:F 2.6:T 3:T");
+    checkFilter("<=-2.5", "-3:T -2.5:T -2:F");
+    checkFilter("null", "null:T 0:F");
+    checkFilter("not null", "null:F 0:T");
+    checkFilter("23,NOT NULL", "23:T 24:F null:F");
+    checkFilter("1e30", "1e30:T 0:F");
+    checkFilter(">1e30", "1e31:T 9223372036854775807:F");
+    checkFilter("<-1e30", "-9223372036854775808:F");
+    checkFilter("2.5", "2.5:T 2.50:T 2:F 3:F");
+
+    // BigDecimal comparisons are exact; double comparisons are not
+    final NumberFilter bigFilter =
+        NumberFilter.compile(
+            parseFilterExpression(TypeFamily.NUMBER,
+                "12345678901234567890.5"));
+    assertThat(bigFilter.test(new BigDecimal("12345678901234567890")),
+        is(false));
+    assertThat(bigFilter.test(12345678901234567890d), is(true));
+
+    try {
+      final NumberFilter filter =
+          NumberFilter.compile(
+              parseFilterExpression(TypeFamily.NUMBER, "(,)"));
+      fail("expected error, got " + filter);
+    } catch (IllegalArgumentException e) {
+      assertThat(e.getMessage(),
+          is("cannot compile '(,)' as a number filter"));
+    }
+  }
+
+  /** Checks a number filter against a list of values and expected results,
+   * such as "1:T 2.5:F null:F"; also checks that the {@code double} and
+   * {@code long} versions agree with the {@code BigDecimal} version. */
+  private static void checkFilter(String expression, String expected) {
+    final NumberFilter filter =
+        NumberFilter.compile(parseFilterExpression(TypeFamily.NUMBER,
+            expression));
+    for (String pair : expected.split(" ")) {
+      final String[] parts = pair.split(":");
+      final boolean b = parts[1].equals("T");
+      if (parts[0].equals("null")) {
+        assertThat(pair, filter.testNull(), is(b));
+        assertThat(pair, filter.toPredicate().test(null), is(b));
+        continue;
+      }
+      final BigDecimal v = new BigDecimal(parts[0]);
+      assertThat(pair, filter.test(v), is(b));
+      assertThat(pair, filter.toDoublePredicate().test(v.doubleValue()),
+          is(b));
+      try {
+        assertThat(pair, filter.toLongPredicate().test(v.longValueExact()),
+            is(b));
+      } catch (ArithmeticException e) {
+        // not a long
+      }
+    }
+    // Integers near the bounds give the same result as a long, double and
+    // BigDecimal
+    for (long i = -100; i <= 100; i++) {
+      final boolean b = filter.test(BigDecimal.valueOf(i));
+      assertThat(expression + ": " + i, filter.test(i), is(b));
+      assertThat(expression + ": " + i, filter.test((double) i), is(b));
+    }
+  }
+
+  /** Tests that the batch methods of {@link NumberFilter} give the same
+   * results as evaluating one value at a time, for slices that do not start
+   * or end on a word boundary, with and without nulls. */
+  @Test void testNumberFilterBatch() {
+    final Random random = new Random(7);
+    final int size = 1_000;
+    final long[] longs = new long[size];
+    final double[] doubles = new double[size];
+    final int[] ints = new int[size];
+    for (int i = 0; i < size; i++) {
+      ints[i] = random.nextInt(120) - 10;
+      longs[i] = i % 97 == 0 ? Long.MIN_VALUE : ints[i];
+      doubles[i] = ints[i] / 2d;
+    }
+    for (String expression : new String[] {"[0,20],>30", "5", "not 5",
+        "not 66, 99, 4", "23, not 42, not 43", "NOT 10,[1,5)", "(1,100]",
+        "<3 OR >80.44", "null", "not null", "23,NOT NULL", ">2.5",
+        "1,2,3,4,5,6,7,8,9,10,11,12,13", "not 1,2,3,4,5,6,7,8,9,10,11,12"}) {
+      final NumberFilter filter =
+          NumberFilter.compile(
+              parseFilterExpression(TypeFamily.NUMBER, expression));
+      for (int[] slice : new int[][] {{0, size}, {3, 64}, {5, 130}, {999, 1},
+          {17, 0}}) {
+        final int offset = slice[0];
+        final int length = slice[1];
+        final long[] nulls = new long[(length + 63) / 64];
+        for (int i = 0; i < length; i += 1 + random.nextInt(9)) {
+          nulls[i >>> 6] |= 1L << i;
+        }
+        for (boolean withNulls : new boolean[] {false, true}) {
+          final long[] n = withNulls ? nulls : null;
+          final long[] selection = new long[nulls.length];
+          final String message = expression + " " + offset + "+" + length;
+
+          int expected = 0;
+          long[] expectedBits = new long[nulls.length];
+          for (int i = 0; i < length; i++) {
+            final boolean isNull =
+                withNulls && (nulls[i >>> 6] & 1L << i) != 0;
+            if (isNull ? filter.testNull() : filter.test(longs[offset + i])) {
+              ++expected;
+              expectedBits[i >>> 6] |= 1L << i;
+            }
+          }
+          assertThat(message,
+              filter.select(longs, offset, length, n, selection),
+              is(expected));
+          assertThat(message, selection, is(expectedBits));
+          assertThat(message, filter.count(longs, offset, length, n),
+              is(expected));
+
+          expected = 0;
+          expectedBits = new long[nulls.length];
+          for (int i = 0; i < length; i++) {
+            final boolean isNull =
+                withNulls && (nulls[i >>> 6] & 1L << i) != 0;
+            if (isNull ? filter.testNull()
+                : filter.test(doubles[offset + i])) {
+              ++expected;
+              expectedBits[i >>> 6] |= 1L << i;
+            }
+          }
+          assertThat(message,
+              filter.select(doubles, offset, length, n, selection),
+              is(expected));
+          assertThat(message, selection, is(expectedBits));
+
+          expected = 0;
+          expectedBits = new long[nulls.length];
+          for (int i = 0; i < length; i++) {
+            final boolean isNull =
+                withNulls && (nulls[i >>> 6] & 1L << i) != 0;
+            if (isNull ? filter.testNull()
+                : filter.test((long) ints[offset + i])) {
+              ++expected;
+              expectedBits[i >>> 6] |= 1L << i;
+            }
+          }
+          assertThat(message,
+              filter.select(ints, offset, length, n, selection),
+              is(expected));
+          assertThat(message, selection, is(expectedBits));
+        }
+      }
+    }
+
+    try {
+      final int count =
+          NumberFilter.compile(parseFilterExpression(TypeFamily.NUMBER, "1"))
+              .count(longs, 990, 20, null);
+      fail("expected error, got " + count);
+    } catch (IllegalArgumentException e) {
+      assertThat(e.getMessage(),
+          is("slice [990, 1010) out of bounds for length 1000"));
+    }
+  }
+
+  /** Prints the throughput of the batch methods of {@link NumberFilter},
+   * in millions of values per second, for each kind of {@link Op}.
+   *
+   * <p>This is a benchmark, and does not run by default; see "benchmark" in
+   * {@code pom.xml}. {@link #testNumberFilterBatch()} tests correctness. */
+  @Tag("benchmark")
+  @Test void testNumberFilterThroughput() {
+    final Random random = new Random(11);
+    final int size = 1 << 16;
+    final long[] longs = new long[size];
+    final double[] doubles = new double[size];
+    final int[] ints = new int[size];
+    final long[] nulls = new long[size / 64];
+    final long[] selection = new long[size / 64];
+    for (int i = 0; i < size; i++) {
+      ints[i] = random.nextInt(1000);
+      longs[i] = ints[i];
+      doubles[i] = ints[i] + 0.5;
+    }
+    for (int i = 0; i < nulls.length; i++) {
+      nulls[i] = random.nextLong() & random.nextLong() & random.nextLong();
+    }
+    final String[][] cases = {
+        {"EQ", "500"},
+        {"EQ (13 values)", "1,2,3,5,8,13,21,34,55,89,144,233,377"},
+        {"GT", ">500"},
+        {"GE", ">=500"},
+        {"LT", "<500"},
+        {"LE", "<=500"},
+        {"OPEN_OPEN", "(100,600)"},
+        {"OPEN_CLOSED", "(100,600]"},
+        {"CLOSED_OPEN", "[100,600)"},
+        {"CLOSED_CLOSED", "[100,600]"},
+        {"NULL", "null"},
+        {"NOTNULL", "not null"},
+        {"COMMA", "[0,20],>30,not 500"},
+    };
+    final int n = 100;
+    int total = 0;
+    for (String[] c : cases) {
+      final NumberFilter filter =
+          NumberFilter.compile(parseFilterExpression(TypeFamily.NUMBER, c[1]));
+      final double[] rates = new double[4];
+      for (int pass = 0; pass < 2; pass++) { // first pass warms up
+        long t0 = System.nanoTime();
+        for (int i = 0; i < n; i++) {
+          total += filter.select(longs, 0, size, nulls, selection);
+        }
+        long t1 = System.nanoTime();
+        for (int i = 0; i < n; i++) {
+          total += filter.select(doubles, 0, size, nulls, selection);
+        }
+        long t2 = System.nanoTime();
+        for (int i = 0; i < n; i++) {
+          total += filter.select(ints, 0, size, nulls, selection);
+        }
+        long t3 = System.nanoTime();
+        for (int i = 0; i < n; i++) {
+          total += filter.count(longs, 0, size, null);
+        }
+        long t4 = System.nanoTime();
+        rates[0] = 1_000d * n * size / (t1 - t0);
+        rates[1] = 1_000d * n * size / (t2 - t1);
+        rates[2] = 1_000d * n * size / (t3 - t2);
+        rates[3] = 1_000d * n * size / (t4 - t3);
+      }
+      System.out.printf("%-16s M values/s: long %,6.0f, double %,6.0f, "
+              + "int %,6.0f, long count-only %,6.0f%n",
+          c[0], rates[0], rates[1], rates[2], rates[3]);
+    }
+    assertThat(total > 0, is(true));
+  }
+
+  /** Tests that evaluating a {@link NumberFilter} allocates no memory. */
+  @Test void testNumberFilterAllocation() {
+    final java.lang.management.ThreadMXBean bean =
+        ManagementFactory.getThreadMXBean();
+    assumeTrue(bean instanceof com.sun.management.ThreadMXBean,
+        "allocated bytes are not available on this JVM");
+    final com.sun.management.ThreadMXBean threadBean =
+        (com.sun.management.ThreadMXBean) bean;
+    final long threadId = Thread.currentThread().getId();
+    final NumberFilter filter =
+        NumberFilter.compile(
+            parseFilterExpression(TypeFamily.NUMBER,
+                "[0,20],>30,1,2,3,not 15,not null"));
+    final BigDecimal[] decimals = new BigDecimal[100];
+    for (int i = 0; i < decimals.length; i++) {
+      decimals[i] = BigDecimal.valueOf(i);
+    }
+    final int n = 1_000_000;
+    long bytes = 0;
+    int count = 0;
+    for (int pass = 0; pass < 2; pass++) { // first pass warms up
+      final long before = threadBean.getThreadAllocatedBytes(threadId);
+      for (int i = 0; i < n; i++) {
+        count += filter.test(i % 100) ? 1 : 0;
+        count += filter.test((i % 100) * 0.5) ? 1 : 0;
+        count += filter.test(decimals[i % 100]) ? 1 : 0;
+      }
+      bytes = threadBean.getThreadAllocatedBytes(threadId) - before;
+    }
+    assertThat(count > 0, is(true));
+    // Allow for a little noise, such as the allocation of a lambda
+    assertThat("bytes allocated: " + bytes, bytes < 1_000, is(true));
+  }
+
+  /** Tests {@link Transforms#canonicalize(AstNode)}. */
+  @Test void testCanonicalize() {
+    checkCanonical("2, 1, 2.0", "1,2");
+    checkCanonical("3, 1.50, 2", "1.5,2,3");
+    checkCanonical("[5, 5]", "5");
+    checkCanonical("1, [5, 5]", "1,5");
+    checkCanonical("[5.0, 5], 1, 5", "1,5");
+    checkCanonical("[1.0, 2.50)", "[1,2.5)");
+    // Unparse does not print "not"; the first term is "not 2, not 3"
+    checkCanonical("not 3, 1, not 2", "{2,3,1}");
+    checkCanonical("not [5, 5], not 1", "1,5");
+    checkCanonical(">5, 1, null, 2", "{1,2,{5,is null}}");
+    checkCanonical("null, >5, 1, null", "{1,{5,is null}}");
+
+    // Canonicalizing a canonical tree has no effect
+    forEach(TestValues.NUMBER_EXPRESSION_TEST_ITEMS, item -> {
+      final AstNode canonical =
+          Transforms.canonicalize(
+              parseFilterExpression(TypeFamily.NUMBER, item.expression));
+      assertThat(Transforms.canonicalize(canonical), is(canonical));
+    });
+  }
+
+  private static void checkCanonical(String expression, String expected) {
+    final AstNode node =
+        parseFilterExpression(TypeFamily.NUMBER, expression);
+    assertThat(Transforms.canonicalize(node).toString(), is(expected));
+  }
+
+  /** Tests {@link Filtex#fingerprint(TypeFamily, String)} and
+   * {@link Asts#fingerprint(AstNode)}. */
+  @Test void testFingerprint() {
+    final HashCode h = Filtex.fingerprint(TypeFamily.NUMBER, "1,2");
+    assertThat(Filtex.fingerprint(TypeFamily.NUMBER, "2, 1"), is(h));
+    assertThat(Filtex.fingerprint(TypeFamily.NUMBER, "1, 2, 1.00"), is(h));
+    assertThat(Filtex.fingerprint(TypeFamily.NUMBER, "1,3"), not(h));
+    assertThat(Filtex.fingerprint(TypeFamily.NUMBER, "not 1, not 2"), not(h));
+    assertThat(Filtex.fingerprint(TypeFamily.NUMBER, "[1,2]"), not(h));
+    assertThat(Filtex.fingerprint(TypeFamily.NUMBER, ">1, 2"),
+        is(Filtex.fingerprint(TypeFamily.NUMBER, "2, > 1.0")));
+
+    // A closed range whose bounds are equal is merged with the '=' terms
+    assertThat(Filtex.fingerprint(TypeFamily.NUMBER, "1, [5, 5]"),
+        is(Filtex.fingerprint(TypeFamily.NUMBER, "1, 5")));
+
+    // Numbers that do not fit in a long
+    assertThat(
+        Filtex.fingerprint(TypeFamily.NUMBER, "12345678901234567890, 1"),
+        is(Filtex.fingerprint(TypeFamily.NUMBER, "1, 12345678901234567890")));
+
+    // Distinct expressions have distinct fingerprints, and ids are ignored
+    final Map<HashCode, AstNode> map = new HashMap<>();
+    forEach(TestValues.NUMBER_EXPRESSION_TEST_ITEMS, item -> {
+      final AstNode node =
+          Transforms.canonicalize(
+              parseFilterExpression(TypeFamily.NUMBER, item.expression));
+      final HashCode hashCode = Asts.fingerprint(node);
+      assertThat(Asts.fingerprint(Asts.applyId(node)), is(hashCode));
+      final AstNode previous = map.put(hashCode, node);
+      if (previous != null) {
+        assertThat(previous, is(node));
+      }
+    });
+  }
+
+  /** Returns a string that describes every field of a numeric AST. */
+  private static String describe(AstNode node) {
+    final StringBuilder b = new StringBuilder()
+        .append(node.getClass().getSimpleName())
+        .append("{id: ").append(node.id)
+        .append(", op: ").append(node.op)
+        .append(", is: ").append(node.is())
+        .append(", type: ").append(node.type())
+        .append(", value: ").append(node.valueString())
+        .append(", low: ").append(node.low())
+        .append(", high: ").append(node.high())
+        .append(", bounds: ").append(node.bounds());
+    if (node instanceof Ast.Call2) {
+      final Ast.Call2 call2 = (Ast.Call2) node;
+      b.append(", left: ").append(describe(call2.left))
+          .append(", right: ").append(describe(call2.right));
+    }
+    return b.append('}').toString();
+  }
+
 }
 
 // End ParserTest.java
@@ -16,14 +16,30 @@
  */
 package net.hydromatic.filtex;
 
+import net.hydromatic.filtex.parse.CharSequenceTokenManager;
+import net.hydromatic.filtex.parse.FiltexParserImplConstants;
+import net.hydromatic.filtex.parse.FiltexParserImplTokenManager;
+import net.hydromatic.filtex.parse.SimpleCharStream;
+import net.hydromatic.filtex.parse.Token;
+import net.hydromatic.filtex.parse.TokenMgrError;
+
 import org.junit.jupiter.api.Disabled;
 import org.junit.jupiter.api.Test;
 
+import java.io.StringReader;
 import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
 
 import static net.hydromatic.filtex.Ft.ft;
 import static net.hydromatic.filtex.Matchers.isAst;
 import static net.hydromatic.filtex.Matchers.isComparison;
+import static net.hydromatic.filtex.TestValues.forEach;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.Is.is;
 
 /**
  * Tests the parser.
@@ -45,6 +61,76 @@ public class ParserTest {
     ft(TypeFamily.NUMBER, "[0,20],>30")
         .assertParse(isAst("{[0,20],30}"));
   }
+
+  /** Tests that {@link CharSequenceTokenManager} produces the same tokens as
+   * the token manager generated by JavaCC. */
+  @Test void testCharSequenceTokenManager() {
+    final List<String> expressions = new ArrayList<>();
+    TestValues.NUMBER_EXPRESSION_TEST_ITEMS.forEach(i ->
+        expressions.add(i.expression));
+    TestValues.DATE_EXPRESSION_TEST_ITEMS.forEach(i ->
+        expressions.add(i.expression));
+    TestValues.LOCATION_EXPRESSION_TEST_ITEMS.forEach(i ->
+        expressions.add(i.expression));
+    expressions.addAll(
+        Arrays.asList("", " ", "\n", "1\r\n2\r3\n\n4", "\t1\t,\t2",
+            "2018-01-05", "2018/01/05", "2018-01-32", "2018-13", "2018-00",
+            "2018-Q1", "2018-q5", "12:30", "12:30:45", "12:30:6", "24:00",
+            "00:30", "FY2018", "fy2018-q3", "FY20189", "FY201", "1.5e-3", "1e",
+            "1.", "-.5", "-", "-inf", "-INF", "-info", "inf", "infinity",
+            "\"abc\"", "\"a\\\"b\"", "\"a\\\\\"", "\"unterminated",
+            "\"a\\b\"", "#\"x\"", "#", "#x", "!", "!=", "<>", "<=", ">=",
+            "{{ _user_attributes['a'] }}", "_USER_ATTRIBUTES[", "_user",
+            "nextweek", "todays", "Tomorrow", "tOmOrRoW", "fiscal_quarters",
+            "Fiscal_Year", "hoursx", "nul", "\u212Ailometers", "\u0131nside",
+            "\u00e9t\u00e9", "\ud83d\ude3b"));
+
+    // Random expressions built from fragments, with a fixed seed
+    final String[] fragments = {
+        "1", "2018", "-", "/", "01", "12", ":", "30", "Q", "q", "fy", "e",
+        ".", "\"", "\\", "#", " ", "\t", "\n", "\r", "day", "s", "to",
+        "inf", "(", ")", "[", "]", "<", ">", "=", "!", "{", "}", ",",
+        "_user_attributes[", "x", "\u00e9", "NOT", "null"
+    };
+    final Random random = new Random(1234);
+    for (int i = 0; i < 20_000; i++) {
+      final StringBuilder b = new StringBuilder();
+      for (int j = random.nextInt(8); j >= 0; j--) {
+        b.append(fragments[random.nextInt(fragments.length)]);
+      }
+      expressions.add(b.toString());
+    }
+
+    final CharSequenceTokenManager tokenManager =
+        new CharSequenceTokenManager();
+    forEach(expressions, expression -> {
+      tokenManager.reset(expression);
+      final FiltexParserImplTokenManager generated =
+          new FiltexParserImplTokenManager(
+              new SimpleCharStream(new StringReader(expression)));
+      for (;;) {
+        final String expected = describe(generated);
+        final String actual = describe(tokenManager);
+        assertThat(actual, is(expected));
+        if (expected.startsWith("EOF") || expected.startsWith("error")) {
+          break;
+        }
+      }
+    });
+  }
+
+  /** Reads the next token and describes its kind, image and position. */
+  private static String describe(FiltexParserImplTokenManager tokenManager) {
+    final Token t;
+    try {
+      t = tokenManager.getNextToken();
+    } catch (TokenMgrError e) {
+      return "error at " + e.errorLine + "." + e.errorColumn;
+    }
+    return (t.kind == 0 ? "EOF" : FiltexParserImplConstants.tokenImage[t.kind])
+        + " '" + t.image + "' " + t.beginLine + "." + t.beginColumn
+        + "-" + t.endLine + "." + t.endColumn;
+  }
 }
 
 // End ParserTest.java
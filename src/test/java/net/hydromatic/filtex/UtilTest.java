@@ -17,21 +17,43 @@
 package net.hydromatic.filtex;
 
 import net.hydromatic.filtex.ast.Ast;
+import net.hydromatic.filtex.ast.AstBinary;
+import net.hydromatic.filtex.ast.AstCursor;
 import net.hydromatic.filtex.ast.AstNode;
+import net.hydromatic.filtex.ast.AstWriter;
 import net.hydromatic.filtex.ast.Asts;
 import net.hydromatic.filtex.ast.Bound;
+import net.hydromatic.filtex.ast.Decimals;
+import net.hydromatic.filtex.ast.FilterModelJson;
+import net.hydromatic.filtex.ast.Op;
 
 import com.google.common.collect.ImmutableList;
 
 import org.junit.jupiter.api.Test;
 
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
 import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Random;
 
+import static net.hydromatic.filtex.TestValues.forEach;
 import static net.hydromatic.filtex.ast.AstBuilder.ast;
 
 import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.not;
+import static org.hamcrest.CoreMatchers.notNullValue;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.CoreMatchers.sameInstance;
 import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.jupiter.api.Assertions.fail;
 
 /** Tests utilities. */
 public class UtilTest {
@@ -54,9 +76,9 @@ public class UtilTest {
                     BigDecimal.valueOf(5), null)));
     final List<AstNode> list = Asts.treeToList(root);
     assertThat(list.size(), is(2));
-    final Ast.Call2 call2 = (Ast.Call2) root;
-    assertThat(list.get(0), is(call2.left));
-    assertThat(list.get(1), is(call2.right));
+    final Ast.CallN callN = (Ast.CallN) root;
+    assertThat(list.get(0), is(callN.args.get(0)));
+    assertThat(list.get(1), is(callN.args.get(1)));
   }
 
   // Tree list is sorted by the 'is' value of nodes
@@ -69,10 +91,325 @@ public class UtilTest {
                     BigDecimal.valueOf(5), null)));
     final List<AstNode> list = Asts.treeToList(root);
     assertThat(list.size(), is(2));
-    final Ast.Call2 call2 = (Ast.Call2) root;
+    final Ast.CallN callN = (Ast.CallN) root;
     // right becomes before left. It all depends on what the value of 'is' is
-    assertThat(list.get(0), is(call2.right));
-    assertThat(list.get(1), is(call2.left));
+    assertThat(list.get(0), is(callN.args.get(1)));
+    assertThat(list.get(1), is(callN.args.get(0)));
+  }
+
+  // A cursor yields the same items as treeToList, and can be reused
+  @Test void testCursor() {
+    final AstCursor cursor = new AstCursor();
+    forEach(TestValues.NUMBER_EXPRESSION_TEST_ITEMS, item -> {
+      final ParseResult result =
+          Filtex.tryParse(TypeFamily.NUMBER, item.expression);
+      if (result.node == null) {
+        return;
+      }
+      final List<AstNode> list = new ArrayList<>();
+      for (cursor.reset(result.node); cursor.next();) {
+        list.add(cursor.current());
+      }
+      assertThat(list, is(Asts.treeToList(result.node)));
+    });
+
+    // "or" items come before "and" items
+    final AstNode root =
+        Filtex.parseFilterExpression(TypeFamily.NUMBER, "not 1, 2, not 3, 4");
+    final StringBuilder b = new StringBuilder();
+    for (cursor.reset(root); cursor.next();) {
+      b.append(cursor.current().is() ? "" : "not ")
+          .append(cursor.current()).append(';');
+    }
+    assertThat(b.toString(), is("2;4;not 1;not 3;"));
+
+    // After the last item, there is no current item
+    try {
+      final AstNode node = cursor.current();
+      fail("expected error, got " + node);
+    } catch (NoSuchElementException e) {
+      assertThat(e, notNullValue());
+    }
+  }
+
+  // Nodes are equal if they have the same structure; ids are ignored
+  @Test void testEquals() {
+    final AstNode node =
+        Filtex.parseFilterExpression(TypeFamily.NUMBER, "1, not null");
+    final AstNode node2 =
+        Filtex.parseFilterExpression(TypeFamily.NUMBER, "1, not null");
+    assertThat(node, not(sameInstance(node2)));
+    assertThat(node, is(node2));
+    assertThat(node.hashCode(), is(node2.hashCode()));
+    assertThat(Asts.applyId(node), is(node2));
+    assertThat(node,
+        not(Filtex.parseFilterExpression(TypeFamily.NUMBER, "1, null")));
+    assertThat(Filtex.parseFilterExpression(TypeFamily.NUMBER, "> 0"),
+        not(Filtex.parseFilterExpression(TypeFamily.NUMBER, ">= 0")));
+    assertThat(Filtex.parseFilterExpression(TypeFamily.DATE, "this month"),
+        is(Filtex.parseFilterExpression(TypeFamily.DATE, "this month")));
+    assertThat(Filtex.parseFilterExpression(TypeFamily.DATE, "2018/05/10"),
+        not(Filtex.parseFilterExpression(TypeFamily.DATE, "2018/05/11")));
+
+    // Calls with one argument are equal if their arguments are equal
+    final AstNode call =
+        ast.call(Op.LITERAL, false, ast.numberLiteral(true, "5"));
+    final AstNode call2 =
+        ast.call(Op.LITERAL, false, ast.numberLiteral(true, "5"));
+    assertThat(call, not(sameInstance(call2)));
+    assertThat(call, is(call2));
+    assertThat(call.hashCode(), is(call2.hashCode()));
+    assertThat(AstBinary.read(AstBinary.write(call)), is(call));
+    assertThat(ast.intern(call2), sameInstance(ast.intern(call)));
+    assertThat(call,
+        not(ast.call(Op.LITERAL, false, ast.numberLiteral(true, "6"))));
+    assertThat(call,
+        not(ast.call(Op.LITERAL, true, ast.numberLiteral(true, "5"))));
+
+    // Transforms.removeDuplicateNotNodes finds equal "not" nodes
+    assertThat(
+        Filtex.parseFilterExpression(TypeFamily.NUMBER, "not 1, >5, not 1")
+            .toString(),
+        is("{1,5}"));
+  }
+
+  // Interned trees share equal nodes
+  @Test void testIntern() {
+    final AstNode node =
+        ast.intern(Filtex.parseFilterExpression(TypeFamily.NUMBER, "not null"));
+    final AstNode node2 =
+        ast.intern(Filtex.parseFilterExpression(TypeFamily.NUMBER, "not null"));
+    assertThat(node2, sameInstance(node));
+
+    // Ids are removed, so that trees that differ only in ids share nodes
+    final AstNode node3 =
+        ast.intern(
+            Asts.applyId(
+                Filtex.parseFilterExpression(TypeFamily.NUMBER,
+                    "1, >5, not null")));
+    assertThat(node3.id, nullValue());
+    final AstNode node4 =
+        ast.intern(
+            Filtex.parseFilterExpression(TypeFamily.NUMBER, "2, not null"));
+    final Ast.CallN callN3 = (Ast.CallN) node3;
+    final Ast.CallN callN4 = (Ast.CallN) node4;
+    assertThat(callN3.args.get(2), sameInstance(node));
+    assertThat(callN4.args.get(1), sameInstance(node));
+    assertThat(ast.intern(callN3.args.get(1)),
+        sameInstance(callN3.args.get(1)));
+  }
+
+  // Every tree in TestValues survives a round trip through AstBinary
+  @Test void testBinary() {
+    forEach(TestValues.NUMBER_EXPRESSION_TEST_ITEMS, item ->
+        checkBinary(TypeFamily.NUMBER, item.expression));
+    forEach(TestValues.DATE_EXPRESSION_TEST_ITEMS, item ->
+        checkBinary(TypeFamily.DATE, item.expression));
+    forEach(TestValues.LOCATION_EXPRESSION_TEST_ITEMS, item ->
+        checkBinary(TypeFamily.LOCATION, item.expression));
+    checkBinary(TypeFamily.NUMBER, "12345678901234567890, 1.5, -2");
+    checkBinary(TypeFamily.NUMBER, "[-1e40, 12345678901234567890.5)");
+  }
+
+  private static void checkBinary(TypeFamily typeFamily, String expression) {
+    final ParseResult result = Filtex.tryParse(typeFamily, expression);
+    if (result.node == null) {
+      return; // not every test value is valid
+    }
+    final AstNode node = result.node;
+    final ByteBuffer buffer = AstBinary.write(node);
+    final AstNode node2 = AstBinary.read(buffer);
+    assertThat(node2, is(node));
+    assertThat(node2.getClass(), is(node.getClass()));
+    assertThat(Asts.fingerprint(node2), is(Asts.fingerprint(node)));
+    assertThat(buffer.position(), is(0));
+
+    // The reader sees the same tree, without decoding it
+    final AstBinary.Reader reader = AstBinary.reader(buffer);
+    assertThat(reader.length(), is(buffer.limit() - 3));
+    checkReader(reader, node);
+  }
+
+  private static void checkReader(AstBinary.Reader reader, AstNode node) {
+    assertThat(reader.kind().nodeClass, is(node.getClass()));
+    assertThat(reader.op(), is(node.op));
+    assertThat(reader.is(), is(node.is()));
+    if (node instanceof Ast.Comparison
+        || node instanceof Ast.NumericRange) {
+      assertThat(reader.value(), is(ImmutableList.copyOf(node.value())));
+    }
+    final List<AstBinary.Reader> children = reader.children();
+    final List<AstNode> nodeChildren =
+        node instanceof Ast.CallN ? ((Ast.CallN) node).args
+            : node instanceof Ast.Call2
+            ? ImmutableList.of(((Ast.Call2) node).left,
+                ((Ast.Call2) node).right)
+            : node instanceof Ast.Call1
+            ? ImmutableList.of(((Ast.Call1) node).node)
+            : ImmutableList.of();
+    assertThat(children.size(), is(nodeChildren.size()));
+    for (int i = 0; i < children.size(); i++) {
+      checkReader(children.get(i), nodeChildren.get(i));
+    }
+    assertThat(reader.toNode(), is(node));
+  }
+
+  // The encoding of a long list of numbers is compact, and a reader
+  // rejects buffers of other versions
+  @Test void testBinaryFormat() {
+    final AstNode node =
+        Filtex.parseFilterExpression(TypeFamily.NUMBER, "1, 2, 300, not null");
+    final ByteBuffer buffer = AstBinary.write(node);
+    // header (3), CallN (2 + count 1), Comparison (2 + count 1 + 1 + values
+    // 1 + 2 + 3), Call0 (2)
+    assertThat(buffer.limit(), is(18));
+
+    final AstBinary.Reader reader = AstBinary.reader(buffer);
+    assertThat(reader.kind(), is(AstBinary.Kind.CALLN));
+    assertThat(reader.children().get(1).kind(), is(AstBinary.Kind.CALL0));
+    assertThat(reader.children().get(1).is(), is(false));
+
+    buffer.put(2, (byte) 99);
+    try {
+      final AstBinary.Reader reader2 = AstBinary.reader(buffer);
+      fail("expected error, got " + reader2);
+    } catch (IllegalArgumentException e) {
+      assertThat(e.getMessage(), is("unsupported version 99; expected 1"));
+    }
+  }
+
+  // Number and location trees survive a round trip through FilterModel JSON
+  @Test void testFilterModelJson() {
+    forEach(TestValues.NUMBER_EXPRESSION_TEST_ITEMS, item ->
+        checkJson(TypeFamily.NUMBER, item.expression));
+    forEach(TestValues.LOCATION_EXPRESSION_TEST_ITEMS, item ->
+        checkJson(TypeFamily.LOCATION, item.expression));
+    checkJson(TypeFamily.NUMBER, "12345678901234567890, 1.5, -2");
+    checkJson(TypeFamily.NUMBER, "[-1e40, 12345678901234567890.5)");
+
+    final AstNode node =
+        Filtex.parseFilterExpression(TypeFamily.NUMBER, "[0,20],>30");
+    final String json = FilterModelJson.toJson(node);
+    assertThat(json,
+        is("{\"type\":\",\","
+            + "\"left\":{\"type\":\"between\",\"is\":true,"
+            + "\"bounds\":\"[]\",\"low\":0,\"high\":20},"
+            + "\"right\":{\"type\":\">\",\"is\":true,\"value\":[30]}}"));
+
+    // A logical expression with three terms is written as nested pairs
+    assertThat(
+        FilterModelJson.toJson(
+            Asts.applyId(
+                Filtex.parseFilterExpression(TypeFamily.NUMBER,
+                    "[0,1], null, >5"))),
+        is("{\"id\":0,\"type\":\",\","
+            + "\"left\":{\"id\":1,\"type\":\"between\",\"is\":true,"
+            + "\"bounds\":\"[]\",\"low\":0,\"high\":1},"
+            + "\"right\":{\"type\":\",\","
+            + "\"left\":{\"id\":2,\"type\":\"null\",\"is\":true},"
+            + "\"right\":{\"id\":3,\"type\":\">\",\"is\":true,"
+            + "\"value\":[5]}}}"));
+
+    // The reader allows fields in any order, whitespace, and unknown fields
+    final String json2 = "{ \"right\" : {\"value\": [30], \"type\": \">\"},\n"
+        + "  \"type\": \",\", \"extra\": {\"a\": [1, \"b\", null]},\n"
+        + "  \"left\": {\"high\": 20, \"low\": 0, \"bounds\": \"[]\","
+        + " \"type\": \"between\", \"id\": null} }";
+    assertThat(FilterModelJson.read(json2), is(node));
+
+    try {
+      final AstNode node2 = FilterModelJson.read("{\"type\":\"foo\"}");
+      fail("expected error, got " + node2);
+    } catch (IllegalArgumentException e) {
+      assertThat(e.getMessage(), is("unknown type 'foo' at position 14"));
+    }
+  }
+
+  private static void checkJson(TypeFamily typeFamily, String expression) {
+    final ParseResult result = Filtex.tryParse(typeFamily, expression);
+    if (result.node == null) {
+      return; // not every test value is valid
+    }
+    final AstNode node = result.node;
+    final String json = FilterModelJson.toJson(node);
+    assertThat(FilterModelJson.read(json), is(node));
+  }
+  // An AstWriter can write many trees to any Appendable, with the same
+  // result as toString
+  @Test void testAstWriter() {
+    final StringWriter stringWriter = new StringWriter();
+    final AstWriter writer = new AstWriter(stringWriter);
+    final StringBuilder expected = new StringBuilder();
+    forEach(TestValues.NUMBER_EXPRESSION_TEST_ITEMS, item ->
+        checkWriter(writer, expected, TypeFamily.NUMBER, item.expression));
+    forEach(TestValues.LOCATION_EXPRESSION_TEST_ITEMS, item ->
+        checkWriter(writer, expected, TypeFamily.LOCATION, item.expression));
+    assertThat(stringWriter.toString(), is(expected.toString()));
+
+    // Write into a buffer
+    final CharBuffer buffer = CharBuffer.allocate(64);
+    Filtex.parseFilterExpression(TypeFamily.NUMBER,
+            "[0.001, 12345678901234567890], -2.50, 1e-7, not 3")
+        .unparse(new AstWriter(buffer));
+    buffer.flip();
+    assertThat(buffer.toString(),
+        is("{[0.001,12345678901234567890],-2.50,1E-7,3}"));
+
+    // Packed decimals are formatted like BigDecimal
+    final Random random = new Random(5);
+    for (int i = 0; i < 10_000; i++) {
+      final long unscaled =
+          random.nextInt(4) == 0 ? random.nextInt(1000) - 500
+              : random.nextLong() >> 8;
+      final long packed = Decimals.pack(unscaled, random.nextInt(12));
+      assertThat(new AstWriter().appendDecimal(packed, null).toString(),
+          is(Decimals.toBigDecimal(packed).toString()));
+    }
+
+    // Degrees are rounded half-even, like BigDecimal.setScale
+    for (String s : new String[] {"0", "-0.04", "-0.05", "0.05", "0.15",
+        "0.25", "0.2500001", "-33.86", "99.96", "-179.95", "12", "1E+2",
+        "1E-7", "-1.25E+1"}) {
+      final BigDecimal v = new BigDecimal(s);
+      final BigDecimal rounded = v.setScale(1, RoundingMode.HALF_EVEN);
+      final String expectedDegrees = rounded.signum() < 0
+          ? rounded.negate() + "°S"
+          : rounded + "°N";
+      assertThat(new AstWriter().appendDegrees(v, "°S", "°N").toString(),
+          is(expectedDegrees));
+    }
+
+    // An IOException from the Appendable is wrapped
+    final Writer closedWriter = new Writer() {
+      @Override public void write(char[] cbuf, int off, int len)
+          throws IOException {
+        throw new IOException("closed");
+      }
+
+      @Override public void flush() {
+      }
+
+      @Override public void close() {
+      }
+    };
+    try {
+      final AstWriter writer2 =
+          Filtex.parseFilterExpression(TypeFamily.NUMBER, "1")
+              .unparse(new AstWriter(closedWriter));
+      fail("expected error, got " + writer2);
+    } catch (UncheckedIOException e) {
+      assertThat(e.getCause().getMessage(), is("closed"));
+    }
+  }
+
+  private static void checkWriter(AstWriter writer, StringBuilder expected,
+      TypeFamily typeFamily, String expression) {
+    final ParseResult result = Filtex.tryParse(typeFamily, expression);
+    if (result.node == null) {
+      return; // not every test value is valid
+    }
+    result.node.unparse(writer).append('\n');
+    expected.append(result.node).append('\n');
   }
 }
 